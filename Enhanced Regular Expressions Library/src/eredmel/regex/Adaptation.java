@@ -0,0 +1,157 @@
+package eredmel.regex;
+
+/**
+ * Chooses how the searches of a pattern planned to be matched by a
+ * {@link LazyDFA} are run, from how fast they have been going: by the DFA
+ * skipping ahead to the pattern's prefix, by the DFA reading every character,
+ * which is faster when the prefix is found everywhere but seldom starts a
+ * match, or by the nodes alone, which is faster when matches are so close
+ * together that the DFA only finds what the nodes would have found anyway.
+ * The nodes are only run alone for a pattern that {@link OnePass} can run,
+ * since they never have more than one way to go on past a character of it,
+ * while those of another pattern can take exponential time to rule out a
+ * match that the DFA rules out in one pass. The searches
+ * of a pattern planned to be matched with a {@link BitParallel} automaton
+ * are likewise run with it, as {@link #UNFILTERED}.
+ * <p>
+ * Searches are counted in windows of {@link #WINDOW}, after a first window
+ * in which the planned way warms up. The first few searches of each window
+ * try each of the other ways in turn, of which the second half are timed,
+ * once the way has warmed up again, while the rest are run in the current
+ * way, of which one in {@link #SAMPLE} is timed. Searches
+ * in which the DFA built states are not timed, since later searches reuse
+ * what they built. At the end of each window, the way that took the least
+ * time per character searched is noted, and it becomes the current one if it
+ * took less by a margin in two windows in a row, so that the choice does not
+ * flip between ways that are about as fast. Since every window tries the
+ * other ways, the choice follows the inputs when they change.
+ * <p>
+ * The counts are kept without synchronization, so some are lost when threads
+ * search at once, which only leaves the choice less well informed, since
+ * every way finds the same matches.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class Adaptation {
+	/**
+	 * The ways to run a search.
+	 */
+	static final int PREFILTERED = 0, UNFILTERED = 1, NODES = 2;
+	private static final int WAYS = 3;
+	/**
+	 * The number of searches between choices, and before the first one.
+	 */
+	private static final int WINDOW = 1024;
+	/**
+	 * The number of searches at the start of each window that try each of
+	 * the other ways, half of which are timed.
+	 */
+	private static final int PROBE = 16;
+	/**
+	 * One in this many of the other searches is timed.
+	 */
+	private static final int SAMPLE = 16;
+	/**
+	 * How many times as long per character the current way must take as
+	 * another one for the other one to be chosen.
+	 */
+	private static final double MARGIN = 1.25;
+	private final boolean prefix, nodes;
+	private int current;
+	/**
+	 * The way that was cheaper than the current one in the last window, or -1.
+	 */
+	private int challenger = -1;
+	/**
+	 * The searches started in this window, which is negative during the warm
+	 * up.
+	 */
+	private int started = -WINDOW;
+	/**
+	 * The time taken by, and the characters searched by, the timed searches
+	 * of each way in this window.
+	 */
+	private final long[] nanos = new long[WAYS], chars = new long[WAYS];
+	private long searches, matches, searched, stops, nodeSearches, switches;
+	/**
+	 * The matches found by the searches that skipped ahead to the prefix.
+	 */
+	private long hits;
+	/**
+	 * @param prefix
+	 *        whether the pattern has a prefix that the DFA can skip ahead to
+	 * @param nodes
+	 *        whether the nodes can be run alone
+	 */
+	Adaptation(boolean prefix, boolean nodes) {
+		this.prefix = prefix;
+		this.nodes = nodes;
+		this.current = prefix ? PREFILTERED : UNFILTERED;
+	}
+	/**
+	 * @return the way to run the next search, complemented if it is to be
+	 *         timed
+	 */
+	int way() {
+		int k = started++;
+		if (k < 0) return current;
+		if (k < PROBE * WAYS) {
+			int way = k / PROBE;
+			if (way != current && (way != PREFILTERED || prefix)
+					&& (way != NODES || nodes))
+				return k % PROBE < PROBE / 2 ? way : ~way;
+		}
+		return k % SAMPLE == 0 ? ~current : current;
+	}
+	/**
+	 * Records a search, run in the given way, which took the given time, or -1
+	 * if it was not timed, searched the given number of characters, and
+	 * stopped at the prefix the given number of times.
+	 */
+	void record(int way, long time, int length, boolean matched, int stopped) {
+		searches++;
+		if (matched) matches++;
+		if (matched && way == PREFILTERED) hits++;
+		searched += length;
+		stops += stopped;
+		if (time >= 0) {
+			nanos[way] += time;
+			chars[way] += Math.max(length, 1);
+		}
+		if (way == NODES) nodeSearches++;
+		if (started >= WINDOW) choose();
+	}
+	private void choose() {
+		started = 0;
+		if (chars[current] > 0) {
+			int cheapest = current;
+			double least = Double.MAX_VALUE;
+			for (int way = 0; way < WAYS; way++) {
+				if (way == current || chars[way] == 0) continue;
+				double cost = (double) nanos[way] / chars[way];
+				if (cost < least) {
+					least = cost;
+					cheapest = way;
+				}
+			}
+			if (least * MARGIN >= (double) nanos[current] / chars[current])
+				challenger = -1;
+			else if (challenger != cheapest) challenger = cheapest;
+			else {
+				current = cheapest;
+				challenger = -1;
+				switches++;
+			}
+		}
+		for (int way = 0; way < WAYS; way++)
+			nanos[way] = chars[way] = 0;
+	}
+	/**
+	 * @return the statistics of the searches recorded so far
+	 */
+	MatchStatistics statistics() {
+		return new MatchStatistics(searches, matches, searched, prefix ? stops
+				: -1, hits, nodeSearches, switches, current);
+	}
+}
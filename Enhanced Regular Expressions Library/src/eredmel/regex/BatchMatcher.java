@@ -0,0 +1,102 @@
+package eredmel.regex;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Searches many independent inputs for a pattern on several threads.
+ * <p>
+ * Each worker keeps one {@link Matcher}, which it resets for each input, so
+ * that the matcher's group lists, paren stacks and metadata buffers are
+ * allocated once per worker rather than once per input. The inputs are taken
+ * in blocks of {@link #BLOCK} from a shared counter, so that workers whose
+ * inputs are quick to search take on more of them.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class BatchMatcher {
+	/**
+	 * The number of inputs a worker takes at a time, which is the number of
+	 * bits in a word of a {@link java.util.BitSet}, so that no two workers
+	 * write to the same word.
+	 */
+	private static final int BLOCK = 64;
+	private final Pattern pattern;
+	private final CharSequence[] inputs;
+	/**
+	 * The words of the set of inputs that contain a match.
+	 */
+	final long[] found;
+	/**
+	 * The start of the first match in each input, or -1 if there is none, or
+	 * null if these are not needed.
+	 */
+	final int[] starts;
+	private final AtomicInteger nextBlock = new AtomicInteger();
+	private BatchMatcher(Pattern pattern, CharSequence[] inputs,
+			boolean starts) {
+		this.pattern = pattern;
+		this.inputs = inputs;
+		this.found = new long[(inputs.length + BLOCK - 1) / BLOCK];
+		this.starts = starts ? new int[inputs.length] : null;
+	}
+	/**
+	 * Searches each of the given inputs for a match of the given pattern, on
+	 * the given executor.
+	 *
+	 * @param starts
+	 *        whether to record where the first match in each input starts
+	 */
+	static BatchMatcher run(Pattern pattern,
+			List<? extends CharSequence> inputs, Executor executor,
+			boolean starts) {
+		pattern.compiled();
+		BatchMatcher batch = new BatchMatcher(pattern,
+				inputs.toArray(new CharSequence[0]), starts);
+		int workers = Math.min(batch.found.length,
+				executor instanceof ForkJoinPool ? ((ForkJoinPool) executor)
+						.getParallelism() : Runtime.getRuntime()
+						.availableProcessors());
+		CompletableFuture<?>[] tasks = new CompletableFuture<?>[workers];
+		for (int i = 0; i < workers; i++)
+			tasks[i] = CompletableFuture.runAsync(batch::work, executor);
+		try {
+			CompletableFuture.allOf(tasks).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw e;
+		}
+		return batch;
+	}
+	/**
+	 * Searches blocks of inputs until there are none left.
+	 */
+	private void work() {
+		Matcher matcher = pattern.matcher("");
+		try {
+			int block;
+			while ((block = nextBlock.getAndIncrement()) < found.length) {
+				long word = 0;
+				int end = Math.min(inputs.length, (block + 1) * BLOCK);
+				for (int i = block * BLOCK; i < end; i++) {
+					matcher.reset(inputs[i], pattern.type());
+					// Where the match starts is only found if it is asked for
+					boolean match = starts == null ? matcher
+							.test(Matcher.NOANCHOR) : matcher.find();
+					if (match) word |= 1L << (i % BLOCK);
+					if (starts != null) starts[i] = match ? matcher.first : -1;
+				}
+				found[block] = word;
+			}
+		} finally {
+			matcher.close();
+		}
+	}
+}
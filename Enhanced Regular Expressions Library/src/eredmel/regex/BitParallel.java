@@ -0,0 +1,188 @@
+package eredmel.regex;
+
+import static eredmel.regex.PikeProgram.*;
+
+/**
+ * Finds where a match of a short {@link PikeProgram} of bounded length can
+ * start, keeping the instructions that consume input which the threads have
+ * just taken as the bits of a long, as the Shift-And algorithm does for a
+ * literal, with the instructions numbered as the positions of a
+ * {@link Glushkov} automaton.
+ * <p>
+ * Each character is read with a few operations on the long: the threads at
+ * each instruction go on to the one after it with a shift, while the few
+ * that can go elsewhere are looked up, and those that cannot take the
+ * character are masked off, by a mask looked up for characters below
+ * {@link Glushkov#TABLE} and built as they are read for the rest. An
+ * instruction that can take a supplementary code point is given a second bit
+ * for its low surrogate, so that the automaton reads one character at a time,
+ * and a path through it is as long as the text it matches.
+ * <p>
+ * Assertions of every kind, and checks for empty repetitions, are taken to
+ * hold, so the automaton finds every match the program would, and perhaps
+ * more. Since no match is longer than the longest path through the
+ * instructions, none can start that far before the end of the first match the
+ * automaton finds, so the nodes only need to be run from there up to that
+ * end, and past it only once the automaton finds another match. Programs with
+ * loops, with more than {@link Glushkov#MAX_POSITIONS} bits, that consume line
+ * endings, or that can match the empty string, in which case the automaton
+ * would find a match everywhere, have no automaton.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class BitParallel {
+	/**
+	 * Returned by {@link #run} if there is no match.
+	 */
+	static final int NO_MATCH = -1;
+	final PikeProgram program;
+	/**
+	 * The bits, one per instruction that consumes input and one more per
+	 * instruction that can consume a supplementary code point.
+	 */
+	private final Glushkov glushkov;
+	/**
+	 * The bits taken from the start, and the bits after which the match is
+	 * accepted.
+	 */
+	private final long initial, finals;
+	/**
+	 * The bits after which the next bit is taken, and those after which other
+	 * bits may be, which are given by {@link #jumps}.
+	 */
+	private final long shifts, jumped;
+	private final long[] jumps;
+	/**
+	 * The bits that can take each character below {@link Glushkov#TABLE}.
+	 */
+	private final long[] table;
+	/**
+	 * The number of bits on the longest path through them, and so the number
+	 * of characters in the longest match.
+	 */
+	final int longest;
+	private BitParallel(Glushkov glushkov, long initial, long finals,
+			long[] follow, int longest) {
+		this.program = glushkov.program;
+		this.glushkov = glushkov;
+		this.initial = initial;
+		this.finals = finals;
+		this.longest = longest;
+		long shifts = 0, jumped = 0;
+		jumps = new long[follow.length];
+		for (int p = 0; p < follow.length; p++) {
+			long next = p + 1 < Glushkov.MAX_POSITIONS ? 1L << p + 1 : 0;
+			if ((follow[p] & next) != 0) shifts |= 1L << p;
+			jumps[p] = follow[p] & ~next;
+			if (jumps[p] != 0) jumped |= 1L << p;
+		}
+		this.shifts = shifts;
+		this.jumped = jumped;
+		table = glushkov.table();
+	}
+	/**
+	 * @return the automaton for the given program, or null if it has none
+	 */
+	static BitParallel of(PikeProgram program) {
+		for (int op : program.ops)
+			if (op == LINE_ENDING) return null;
+		Glushkov glushkov = Glushkov.of(program, true);
+		if (glushkov == null) return null;
+		int[] positions = glushkov.positions;
+		int count = positions.length;
+		// Every assertion is taken to hold
+		Glushkov.Closure closure = new Glushkov.Closure(glushkov);
+		long initial = closure.from(0);
+		if (closure.accepts) return null;
+		long finals = 0;
+		long[] follow = new long[count];
+		for (int p = 0; p < count; p++) {
+			int pc = positions[p];
+			if (pc >= 0 && glushkov.wide(pc)) {
+				// Either the code point is read whole, or its first character
+				// on its own
+				follow[p] = 1L << p + 1;
+				continue;
+			}
+			follow[p] = closure.from((pc < 0 ? ~pc : pc) + 1);
+			if (closure.accepts) finals |= 1L << p;
+		}
+		for (int p = 0; p < count; p++)
+			if (positions[p] >= 0 && glushkov.wide(positions[p])) {
+				follow[p] |= follow[p + 1];
+				if ((finals & 1L << p + 1) != 0) finals |= 1L << p;
+			}
+		int[] depths = new int[count];
+		int longest = 0;
+		for (int p = 0; p < count; p++) {
+			if ((initial & 1L << p) == 0) continue;
+			int depth = depth(p, follow, depths);
+			if (depth < 0) return null;
+			longest = Math.max(longest, depth);
+		}
+		return new BitParallel(glushkov, initial, finals, follow, longest);
+	}
+	/**
+	 * @return the number of bits on the longest path from the given bit, or
+	 *         -1 if there is a loop, with the paths from the bits already seen
+	 *         in the given array, and those being followed as -1
+	 */
+	private static int depth(int p, long[] follow, int[] depths) {
+		if (depths[p] != 0) return depths[p];
+		depths[p] = -1;
+		int depth = 0;
+		for (long next = follow[p]; next != 0; next &= next - 1) {
+			int d = depth(Long.numberOfTrailingZeros(next), follow, depths);
+			if (d < 0) return -1;
+			depth = Math.max(depth, d);
+		}
+		return depths[p] = depth + 1;
+	}
+	/**
+	 * Searches the matcher's region from the given position.
+	 *
+	 * @return the end of the first match the automaton finds, which is no
+	 *         later than the end of the first match of the program, or
+	 *         {@link #NO_MATCH}
+	 */
+	int run(Matcher matcher, int from) {
+		CharSequence seq = matcher.text;
+		int to = matcher.to;
+		int lastStart = Math.min(to, matcher.lastStart);
+		long[] table = this.table;
+		long initial = this.initial, finals = this.finals;
+		long shifts = this.shifts, jumped = this.jumped;
+		// The mask of the last character above the table
+		char other = 0;
+		long otherMask = 0;
+		long state = 0;
+		for (int pos = from; pos < to; pos++) {
+			char ch = seq.charAt(pos);
+			if (state == 0) {
+				// No thread can be started at a character no bit takes
+				while (ch < Glushkov.TABLE && (table[ch] & initial) == 0) {
+					if (++pos > lastStart || pos == to) return NO_MATCH;
+					ch = seq.charAt(pos);
+				}
+			}
+			long mask;
+			if (ch < Glushkov.TABLE) mask = table[ch];
+			else {
+				if (ch != other) {
+					other = ch;
+					otherMask = glushkov.mask(ch);
+				}
+				mask = otherMask;
+			}
+			long next = (state & shifts) << 1;
+			for (long jump = state & jumped; jump != 0; jump &= jump - 1)
+				next |= jumps[Long.numberOfTrailingZeros(jump)];
+			if (pos <= lastStart) next |= initial;
+			state = next & mask;
+			if ((state & finals) != 0) return pos + 1;
+			if (state == 0 && pos >= lastStart) break;
+		}
+		return NO_MATCH;
+	}
+}
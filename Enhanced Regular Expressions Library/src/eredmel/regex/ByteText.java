@@ -0,0 +1,355 @@
+package eredmel.regex;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Bytes in an ASCII-compatible charset viewed as a {@link CharSequence},
+ * without decoding them into a {@link String}.
+ * <p>
+ * ISO-8859-1 and US-ASCII bytes (and UTF-8 bytes that turn out to be ASCII)
+ * are read one byte per character, so character indices are byte offsets.
+ * Other UTF-8 bytes are read through an index of the byte offset of every
+ * {@link #INDEX_INTERVAL}th character, together with a cursor at the last
+ * character read so that sequential access does not go through the index;
+ * {@link #byteOffset(int)} converts character indices back to byte offsets.
+ * Malformed UTF-8 bytes are read as U+FFFD, one per byte.
+ *
+ * @author Kavi Gupta
+ *
+ */
+public final class ByteText implements CharSequence {
+	/**
+	 * The number of characters between entries of the UTF-8 offset index.
+	 * Each entry is the byte offset of the code point containing its
+	 * character, shifted left by one, plus one if the character is the low
+	 * surrogate of that code point.
+	 */
+	public static final int INDEX_INTERVAL = 256;
+	static final int CHUNK_BITS = 30;
+	private static final char REPLACEMENT = '\uFFFD';
+	/**
+	 * The number of characters before the cursor within which it is moved back
+	 * rather than through the index.
+	 */
+	private static final int BACKWARD_STEPS = 16;
+	/**
+	 * The number of bits of the byte offset in a cursor. A UTF-8 text takes at
+	 * most four bytes for each of its characters, and has at most
+	 * {@link Integer#MAX_VALUE} characters, so its byte offsets fit.
+	 */
+	private static final int CURSOR_BITS = 33;
+	/**
+	 * The file, mapped in chunks of 2^{@link #CHUNK_BITS} bytes.
+	 */
+	private final ByteBuffer[] chunks;
+	private final long size;
+	private final int length;
+	/**
+	 * Null if each byte is a character, or the byte offsets of every
+	 * {@link #INDEX_INTERVAL}th character otherwise.
+	 */
+	private final LongBuffer index;
+	private final boolean offHeap;
+	/**
+	 * The array backing the only chunk, if it has one, so that it can be read
+	 * without going through the buffer.
+	 */
+	private final byte[] array;
+	private final int arrayOffset;
+	/**
+	 * The position of the last code point that was read, as its character
+	 * index shifted left by {@link #CURSOR_BITS}, plus its byte offset. Any
+	 * cursor is correct, and it is kept in one field, so threads may overwrite
+	 * each other's.
+	 */
+	private long cursor;
+	/**
+	 * The enregex metadata of this text read from a sidecar file, or null.
+	 */
+	private volatile EnregexMetadataColumns metadata;
+	private ByteText(ByteBuffer[] chunks, long size, int length,
+			LongBuffer index, boolean offHeap) {
+		this.chunks = chunks;
+		this.size = size;
+		this.length = length;
+		this.index = index;
+		this.offHeap = offHeap;
+		boolean heap = chunks.length == 1 && chunks[0].hasArray();
+		this.array = heap ? chunks[0].array() : null;
+		this.arrayOffset = heap ? chunks[0].arrayOffset() : 0;
+	}
+	/**
+	 * Views the given bytes, which are in the given charset, as characters.
+	 *
+	 * @throws IllegalArgumentException
+	 *         if the charset is not ISO-8859-1, US-ASCII or UTF-8
+	 */
+	public static ByteText wrap(byte[] bytes, int offset, int length,
+			Charset charset) {
+		return of(new ByteBuffer[] { ByteBuffer.wrap(bytes, offset, length)
+				.slice() }, length, charset, false);
+	}
+	/**
+	 * @return whether bytes in the given charset can be viewed directly
+	 */
+	static boolean supports(Charset charset) {
+		return charset.equals(StandardCharsets.ISO_8859_1)
+				|| charset.equals(StandardCharsets.US_ASCII)
+				|| charset.equals(StandardCharsets.UTF_8);
+	}
+	/**
+	 * Views the given chunks of 2^{@link #CHUNK_BITS} bytes as characters.
+	 *
+	 * @param offHeap
+	 *        whether the offset index, and the enregex metadata of the text,
+	 *        should be kept outside of the heap
+	 */
+	static ByteText of(ByteBuffer[] chunks, long size, Charset charset,
+			boolean offHeap) {
+		if (!supports(charset))
+			throw new IllegalArgumentException("Unsupported charset "
+					+ charset);
+		if (charset.equals(StandardCharsets.UTF_8))
+			return utf8(chunks, size, offHeap);
+		return new ByteText(chunks, size, checkLength(size), null, offHeap);
+	}
+	private static int checkLength(long length) {
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("More than "
+					+ Integer.MAX_VALUE + " characters");
+		return (int) length;
+	}
+	/**
+	 * Builds the offset index of a UTF-8 file, in the same pass as counting its
+	 * characters.
+	 */
+	private static ByteText utf8(ByteBuffer[] chunks, long size,
+			boolean offHeap) {
+		ByteText text = new ByteText(chunks, size, 0, null, offHeap);
+		// A code point has no more characters than bytes, so this is enough
+		// entries for any text short enough to be viewed
+		int entries = (int) (Math.min(size, 1L << 31) / INDEX_INTERVAL + 1);
+		LongBuffer index = null;
+		long chars = 0, next = 0;
+		for (long at = 0; at < size && chars <= Integer.MAX_VALUE;) {
+			long decoded = text.decode(at);
+			int n = chars(decoded);
+			if (index == null && decoded >>> 8 >= 0x80) {
+				// The index is only needed once a code point is not ASCII,
+				// and the entries before it are at their own byte offsets
+				index = offHeap ? ByteBuffer.allocateDirect(8 * entries)
+						.order(ByteOrder.nativeOrder()).asLongBuffer()
+						: LongBuffer.allocate(entries);
+				for (; next < chars; next += INDEX_INTERVAL)
+					index.put(next << 1);
+			}
+			// An entry may fall on the low surrogate of a code point
+			if (index != null)
+				for (; next < chars + n; next += INDEX_INTERVAL)
+					index.put(at << 1 | (next > chars ? 1 : 0));
+			chars += n;
+			at += decoded & 0xFF;
+		}
+		int length = checkLength(chars);
+		if (index != null) index.flip();
+		return new ByteText(chunks, size, length, index, offHeap);
+	}
+	@Override
+	public char charAt(int i) {
+		if (i < 0 || i >= length)
+			throw new IndexOutOfBoundsException("index " + i);
+		if (index == null) return (char) (get(i) & 0xFF);
+		long cur = seek(i);
+		int codePoint = (int) (decode(cursorBytes(cur)) >>> 8);
+		if (codePoint < 0x10000) return (char) codePoint;
+		return i == cursorChars(cur) ? Character.highSurrogate(codePoint)
+				: Character.lowSurrogate(codePoint);
+	}
+	/**
+	 * @return the cursor at the code point containing the character at the
+	 *         given index, which also becomes the current cursor
+	 */
+	private long seek(int i) {
+		long cur = cursor;
+		int chars = cursorChars(cur);
+		long bytes = cursorBytes(cur);
+		if (i < chars && chars - i <= BACKWARD_STEPS) {
+			// Backtracking reads the characters just before the cursor
+			while (i < chars) {
+				bytes = previous(bytes);
+				chars -= chars(decode(bytes));
+			}
+			return cursor = cursor(chars, bytes);
+		}
+		if (i < chars || i - chars > INDEX_INTERVAL) {
+			int entry = i / INDEX_INTERVAL;
+			long at = index.get(entry);
+			chars = entry * INDEX_INTERVAL - (int) (at & 1);
+			bytes = at >>> 1;
+		}
+		while (true) {
+			long decoded = decode(bytes);
+			int n = chars(decoded);
+			if (i < chars + n) return cursor = cursor(chars, bytes);
+			chars += n;
+			bytes += decoded & 0xFF;
+		}
+	}
+	/**
+	 * @return the byte offset of the character at the given index, or the
+	 *         number of bytes if {@code index == length()}
+	 */
+	public long byteOffset(int index) {
+		if (index < 0 || index > length)
+			throw new IndexOutOfBoundsException("index " + index);
+		if (this.index == null) return index;
+		if (index == length) return size;
+		long cur = seek(index), at = cursorBytes(cur);
+		// A low surrogate is taken to be at the end of its code point
+		return index == cursorChars(cur) ? at : at + (decode(at) & 0xFF);
+	}
+	/**
+	 * @return whether the enregex metadata of this text should be kept
+	 *         outside of the heap
+	 */
+	boolean offHeap() {
+		return offHeap;
+	}
+	/**
+	 * @return the enregex metadata of this text for the given type, as read
+	 *         from a sidecar file, or null if it has not been read
+	 */
+	EnregexMetadataColumns metadata(EnregexType type) {
+		EnregexMetadataColumns metadata = this.metadata;
+		return metadata != null && metadata.type.equals(type) ? metadata
+				: null;
+	}
+	void setMetadata(EnregexMetadataColumns metadata) {
+		this.metadata = metadata;
+	}
+	/**
+	 * @return the SHA-256 digest of the bytes of this text
+	 */
+	byte[] digest() {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		for (ByteBuffer chunk : chunks)
+			digest.update(chunk.duplicate());
+		return digest.digest();
+	}
+	/**
+	 * @return a view of the same bytes with its own cursor, so that another
+	 *         thread can read through it without moving this text's cursor
+	 */
+	ByteText view() {
+		ByteText view = new ByteText(chunks, size, length, index, offHeap);
+		view.metadata = metadata;
+		return view;
+	}
+	/**
+	 * @return the number of bytes in this text
+	 */
+	long size() {
+		return size;
+	}
+	@Override
+	public int length() {
+		return length;
+	}
+	@Override
+	public String subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end)
+			throw new IndexOutOfBoundsException("start " + start + ", end "
+					+ end);
+		StringBuilder sb = new StringBuilder(end - start);
+		for (int i = start; i < end; i++)
+			sb.append(charAt(i));
+		return sb.toString();
+	}
+	@Override
+	public String toString() {
+		return subSequence(0, length);
+	}
+	private byte get(long at) {
+		if (array != null) return array[arrayOffset + (int) at];
+		return chunks[(int) (at >>> CHUNK_BITS)]
+				.get((int) (at & (1L << CHUNK_BITS) - 1));
+	}
+	/**
+	 * Decodes the UTF-8 code point at the given byte offset.
+	 *
+	 * @return the code point shifted left by 8, plus its length in bytes
+	 */
+	private long decode(long at) {
+		int lead = get(at) & 0xFF;
+		int n, codePoint;
+		if (lead < 0x80) return (long) lead << 8 | 1;
+		else if (lead >= 0xC2 && lead <= 0xDF) {
+			n = 2;
+			codePoint = lead & 0x1F;
+		} else if (lead >= 0xE0 && lead <= 0xEF) {
+			n = 3;
+			codePoint = lead & 0x0F;
+		} else if (lead >= 0xF0 && lead <= 0xF4) {
+			n = 4;
+			codePoint = lead & 0x07;
+		} else return (long) REPLACEMENT << 8 | 1;
+		if (at + n > size) return (long) REPLACEMENT << 8 | 1;
+		for (int k = 1; k < n; k++) {
+			int b = get(at + k) & 0xFF;
+			if ((b & 0xC0) != 0x80) return (long) REPLACEMENT << 8 | 1;
+			codePoint = codePoint << 6 | b & 0x3F;
+		}
+		// Overlong, surrogate and out of range encodings are malformed
+		if (n == 3 && (codePoint < 0x800 || Character.isSurrogate((char) codePoint))
+				|| n == 4 && (codePoint < 0x10000 || codePoint > 0x10FFFF))
+			return (long) REPLACEMENT << 8 | 1;
+		return (long) codePoint << 8 | n;
+	}
+	/**
+	 * @return the byte offset of the code point before the one at the given
+	 *         byte offset. Only bytes that are not continuation bytes can start
+	 *         a well-formed code point, so this is the last such byte that
+	 *         starts one ending at the given offset, or the previous byte if
+	 *         there is none.
+	 */
+	private long previous(long at) {
+		for (int k = 1; k <= 4 && at - k >= 0; k++) {
+			if ((get(at - k) & 0xC0) == 0x80) continue;
+			long decoded = decode(at - k);
+			return (decoded & 0xFF) == k ? at - k : at - 1;
+		}
+		return at - 1;
+	}
+	/**
+	 * @return the number of characters in a decoded code point
+	 */
+	private static int chars(long decoded) {
+		return decoded >>> 8 >= 0x10000 ? 2 : 1;
+	}
+	private static long cursor(int chars, long bytes) {
+		return (long) chars << CURSOR_BITS | bytes;
+	}
+	/**
+	 * @return the character index of a cursor
+	 */
+	private static int cursorChars(long cursor) {
+		return (int) (cursor >>> CURSOR_BITS);
+	}
+	/**
+	 * @return the byte offset of a cursor
+	 */
+	private static long cursorBytes(long cursor) {
+		return cursor & (1L << CURSOR_BITS) - 1;
+	}
+}
@@ -18,12 +18,7 @@ abstract class CharProperty extends Node {
 	 * @return the set complement of this property
 	 */
 	CharProperty complement() {
-		return new CharProperty() {
-			@Override
-			boolean isSatisfiedBy(int ch) {
-				return !CharProperty.this.isSatisfiedBy(ch);
-			}
-		};
+		return new Complement(this);
 	}
 	@Override
 	boolean match(Matcher matcher, int i, CharSequence seq) {
@@ -259,4 +254,109 @@ abstract class CharProperty extends Node {
 			return ch < 256 && bits[ch];
 		}
 	}
-}
\ No newline at end of file
+	/**
+	 * The set complement of a property.
+	 */
+	static final class Complement extends CharProperty {
+		final CharProperty property;
+		Complement(CharProperty property) {
+			this.property = property;
+		}
+		@Override
+		boolean isSatisfiedBy(int ch) {
+			return !property.isSatisfiedBy(ch);
+		}
+	}
+	/**
+	 * The set union of two properties.
+	 */
+	static final class Union extends CharProperty {
+		final CharProperty lhs, rhs;
+		Union(CharProperty lhs, CharProperty rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+		@Override
+		boolean isSatisfiedBy(int ch) {
+			return lhs.isSatisfiedBy(ch) || rhs.isSatisfiedBy(ch);
+		}
+	}
+	/**
+	 * The set intersection of two properties.
+	 */
+	static final class Intersection extends CharProperty {
+		final CharProperty lhs, rhs;
+		Intersection(CharProperty lhs, CharProperty rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+		@Override
+		boolean isSatisfiedBy(int ch) {
+			return lhs.isSatisfiedBy(ch) && rhs.isSatisfiedBy(ch);
+		}
+	}
+	/**
+	 * The set difference of two properties.
+	 */
+	static final class Difference extends CharProperty {
+		final CharProperty lhs, rhs;
+		Difference(CharProperty lhs, CharProperty rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+		@Override
+		boolean isSatisfiedBy(int ch) {
+			return !rhs.isSatisfiedBy(ch) && lhs.isSatisfiedBy(ch);
+		}
+	}
+	/**
+	 * Node class for matching characters within an explicit value range.
+	 */
+	static final class CharRange extends CharProperty {
+		final int lower, upper;
+		CharRange(int lower, int upper) {
+			this.lower = lower;
+			this.upper = upper;
+		}
+		@Override
+		boolean isSatisfiedBy(int ch) {
+			return Pattern.inRange(lower, ch, upper);
+		}
+	}
+	/**
+	 * Node class for matching characters within an explicit value range in
+	 * an ASCII case insensitive manner.
+	 */
+	static final class CharRangeI extends CharProperty {
+		final int lower, upper;
+		CharRangeI(int lower, int upper) {
+			this.lower = lower;
+			this.upper = upper;
+		}
+		@Override
+		boolean isSatisfiedBy(int ch) {
+			return Pattern.inRange(lower, ch, upper)
+					|| ASCII.isAscii(ch)
+					&& (Pattern.inRange(lower, ASCII.toUpper(ch), upper) || Pattern
+							.inRange(lower, ASCII.toLower(ch), upper));
+		}
+	}
+	/**
+	 * Node class for matching characters within an explicit value range in
+	 * a Unicode case insensitive manner.
+	 */
+	static final class CharRangeU extends CharProperty {
+		final int lower, upper;
+		CharRangeU(int lower, int upper) {
+			this.lower = lower;
+			this.upper = upper;
+		}
+		@Override
+		boolean isSatisfiedBy(int ch) {
+			if (Pattern.inRange(lower, ch, upper)) return true;
+			int up = Character.toUpperCase(ch);
+			return Pattern.inRange(lower, up, upper)
+					|| Pattern.inRange(lower, Character.toLowerCase(up), upper);
+		}
+	}
+}
@@ -27,8 +27,12 @@ class CharPropertyNames {
 	private static void defCtype(String name, final int ctype) {
 		map.put(name, () -> new Ctype(ctype));
 	}
-	private static abstract class CloneableProperty extends CharProperty
+	static abstract class CloneableProperty extends CharProperty
 			implements Cloneable {
+		/**
+		 * The name this property was defined with.
+		 */
+		String name;
 		@Override
 		public CloneableProperty clone() {
 			try {
@@ -39,6 +43,7 @@ class CharPropertyNames {
 		}
 	}
 	private static void defClone(String name, final CloneableProperty p) {
+		p.name = name;
 		map.put(name, () -> p.clone());
 	}
 	private static final HashMap<String, Supplier<CharProperty>> map = new HashMap<>();
@@ -0,0 +1,835 @@
+package eredmel.regex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import eredmel.regex.CharProperty.BmpCharProperty;
+
+/**
+ * Generates code for the nodes of a pattern compiled with
+ * {@link Pattern#GENERATE_CODE} once they have been run {@link #THRESHOLD}
+ * times, so that the hot patterns of a program are matched by code of their
+ * own, in which each node calls the method of the one after it directly,
+ * rather than through a {@code match} call that sees every kind of node.
+ * <p>
+ * Each node of the kinds that are common in the patterns worth generating
+ * code for, such as literals, character classes, groups, alternations and
+ * repetitions, is generated as a static method that does what its
+ * {@code match} does, with its fields written into the code as constants,
+ * and the methods of the nodes after it and inside it called by name. The
+ * nodes of other kinds are called from the method that stands for them, and
+ * match as they would otherwise, as do the nodes after them. The methods are
+ * written as Java source, compiled in memory by the system Java compiler,
+ * and defined as a hidden class, which reads the nodes it calls from its
+ * class data into static final fields, so that the calls through them can be
+ * inlined too.
+ * <p>
+ * The code is generated on a background thread, while the searches go on
+ * with the nodes, and is used by the searches that start once it is ready.
+ * If there is no Java compiler, as in a runtime without the
+ * {@code java.compiler} module, or the code cannot be generated, the nodes go
+ * on being used.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class CodeGenerator {
+	/**
+	 * The number of times the nodes of a pattern are run before code is
+	 * generated for them. This can be set with the
+	 * {@code eredmel.regex.generateAfter} system property.
+	 */
+	static final int THRESHOLD = Integer.getInteger(
+			"eredmel.regex.generateAfter", 10000);
+	/**
+	 * The largest number of nodes code is generated for.
+	 */
+	private static final int MAX_NODES = 512;
+	/**
+	 * The longest literal whose characters are compared one by one in the
+	 * code, rather than in a loop.
+	 */
+	private static final int MAX_UNROLLED = 32;
+	private static final String PACKAGE = "eredmel.regex";
+	private static final String NAME = "GeneratedNodes";
+	/**
+	 * Generates the code of every pattern in turn, so that a program with many
+	 * hot patterns does not compile them all at once.
+	 */
+	private static final ExecutorService GENERATOR = Executors
+			.newSingleThreadExecutor(task -> {
+				Thread thread = new Thread(task, "eredmel-regex-generator");
+				thread.setDaemon(true);
+				return thread;
+			});
+	private final Node root, matchRoot;
+	/**
+	 * The number of times the nodes have been run, which is kept without
+	 * synchronization, since losing a few only puts off generating the code.
+	 */
+	private int runs;
+	private final AtomicBoolean started = new AtomicBoolean();
+	/**
+	 * The code being generated, or null if it has not started being.
+	 */
+	private volatile Future<?> generation;
+	/**
+	 * The generated root and match root, or the given ones if the code could
+	 * not be generated, or null if it is not ready.
+	 */
+	private volatile Node[] roots;
+	CodeGenerator(Node root, Node matchRoot) {
+		this.root = root;
+		this.matchRoot = matchRoot;
+	}
+	/**
+	 * Counts a run of the nodes, starting to generate code for them once they
+	 * have been run often enough.
+	 *
+	 * @return the generated root, or match root if the run is anchored, or
+	 *         null if there is none yet
+	 */
+	Node root(boolean anchored) {
+		Node[] roots = this.roots;
+		if (roots != null) return roots[anchored ? 1 : 0];
+		if (++runs >= THRESHOLD && started.compareAndSet(false, true))
+			generation = GENERATOR.submit(this::generate);
+		return null;
+	}
+	/**
+	 * Waits at most the given time for the code to be generated, if it has
+	 * started being generated.
+	 *
+	 * @return whether code has been generated for the nodes
+	 */
+	boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		Future<?> generation = this.generation;
+		if (generation != null) try {
+			generation.get(timeout, unit);
+		} catch (ExecutionException | TimeoutException e) {
+			// Either way, the nodes go on being used
+		}
+		return generated();
+	}
+	/**
+	 * @return whether code has been generated for the nodes
+	 */
+	boolean generated() {
+		Node[] roots = this.roots;
+		return roots != null && roots[0] != root;
+	}
+	private void generate() {
+		Node[] roots = null;
+		try {
+			roots = Compiler.compile(root, matchRoot);
+		} catch (Exception | LinkageError e) {
+			Logger.getGlobal().log(Level.FINE,
+					"Could not generate code for the nodes", e);
+		}
+		this.roots = roots == null ? new Node[] { root, matchRoot } : roots;
+	}
+	/**
+	 * Writes the source of the class that stands for the given roots, in
+	 * which the method {@code m} followed by the number of a node stands for
+	 * it, and the field {@code N} followed by its number holds it.
+	 */
+	private static final class Writer {
+		private final Map<Node, Integer> ids = new IdentityHashMap<>();
+		final List<Node> nodes = new ArrayList<>();
+		private final ArrayDeque<Node> pending = new ArrayDeque<>();
+		private final BitSet referenced = new BitSet();
+		private final StringBuilder methods = new StringBuilder();
+		/**
+		 * @return the source, or null if there are too many nodes
+		 */
+		String write(Node root, Node matchRoot) {
+			int rootId = id(root), matchId = id(matchRoot);
+			while (!pending.isEmpty()) {
+				if (nodes.size() > MAX_NODES) return null;
+				Node node = pending.poll();
+				method(node, ids.get(node));
+			}
+			if (nodes.size() > MAX_NODES) return null;
+			StringBuilder source = new StringBuilder();
+			source.append("package ").append(PACKAGE).append(";\n");
+			source.append("final class ").append(NAME)
+					.append(" extends Node {\n");
+			source.append("\tprivate static final Object[] DATA = data();\n");
+			for (int k = 0; k < nodes.size(); k++)
+				if (referenced.get(k)) {
+					String type = name(nodes.get(k).getClass());
+					source.append("\tprivate static final ").append(type)
+							.append(" N").append(k).append(" = (")
+							.append(type).append(") DATA[").append(k)
+							.append("];\n");
+				}
+			source.append("\tprivate final boolean anchored;\n");
+			source.append("\t").append(NAME)
+					.append("(boolean anchored) {\n");
+			source.append("\t\tthis.anchored = anchored;\n\t}\n");
+			source.append("\tprivate static Object[] data() {\n");
+			source.append("\t\ttry {\n");
+			source.append("\t\t\treturn java.lang.invoke.MethodHandles"
+					+ ".classData(java.lang.invoke.MethodHandles.lookup(),"
+					+ " java.lang.constant.ConstantDescs.DEFAULT_NAME,"
+					+ " Object[].class);\n");
+			source.append("\t\t} catch (IllegalAccessException e) {\n");
+			source.append("\t\t\tthrow new IllegalStateException(e);\n");
+			source.append("\t\t}\n\t}\n");
+			source.append("\t@Override\n");
+			source.append("\tboolean match(Matcher m, int i,"
+					+ " CharSequence seq) {\n");
+			source.append("\t\treturn anchored ? m").append(matchId)
+					.append("(m, i, seq) : m").append(rootId)
+					.append("(m, i, seq);\n\t}\n");
+			source.append(methods);
+			source.append("}\n");
+			return source.toString();
+		}
+		/**
+		 * @return the number of the given node, which is written once it has
+		 *         been given one
+		 */
+		private int id(Node node) {
+			Integer id = ids.get(node);
+			if (id != null) return id;
+			ids.put(node, nodes.size());
+			nodes.add(node);
+			pending.add(node);
+			return nodes.size() - 1;
+		}
+		/**
+		 * @return the call of the method of the given node at the given
+		 *         position
+		 */
+		private String call(Node node, String i) {
+			return "m" + id(node) + "(m, " + i + ", seq)";
+		}
+		/**
+		 * @return the field that holds the given node
+		 */
+		private String field(Node node) {
+			int id = id(node);
+			referenced.set(id);
+			return "N" + id;
+		}
+		private void method(Node node, int id) {
+			StringBuilder out = methods;
+			out.append("\tstatic boolean m").append(id)
+					.append("(Matcher m, int i, CharSequence seq) {\n");
+			Class<?> type = node.getClass();
+			Class<?> matcher = matcher(type);
+			if (type == Node.class) accept(false);
+			else if (type == Node.LastNode.class) accept(true);
+			else if (type == Node.Start.class || type == Node.StartS.class)
+				start((Node.Start) node, type == Node.StartS.class);
+			else if (matcher == Node.Assertion.class)
+				out.append("\t\treturn ").append(field(node))
+						.append(".holds(m, i, seq) && ")
+						.append(call(node.next, "i")).append(";\n");
+			else if (matcher == CharProperty.class
+					|| matcher == BmpCharProperty.class)
+				property((CharProperty) node, matcher == CharProperty.class);
+			else if (type == Node.LineEnding.class) lineEnding(node);
+			else if (type == Node.Ques.class) ques((Node.Ques) node);
+			else if (type == Node.Curly.class) curly((Node.Curly) node, id);
+			else if (type == Node.GroupCurly.class)
+				groupCurly((Node.GroupCurly) node, id);
+			else if (type == Node.Branch.class) branch((Node.Branch) node);
+			else if (type == Node.BranchConn.class)
+				out.append("\t\treturn ").append(call(node.next, "i"))
+						.append(";\n");
+			else if (type == Node.GroupHead.class)
+				groupHead((Node.GroupHead) node);
+			else if (type == Node.GroupTail.class)
+				groupTail((Node.GroupTail) node);
+			else if (type == Node.Slice.class || type == Node.SliceI.class
+					|| type == Node.SliceU.class)
+				slice((Node.SliceNode) node);
+			else if (type == Node.BnM.class) bnm((Node.BnM) node);
+			else if (type == Node.Pos.class) pos((Node.Pos) node);
+			else out.append("\t\treturn ").append(field(node))
+					.append(".match(m, i, seq);\n");
+			out.append("\t}\n");
+		}
+		private void accept(boolean last) {
+			StringBuilder out = methods;
+			if (last)
+				out.append("\t\tif (m.acceptMode == Matcher.ENDANCHOR"
+						+ " && i != m.to) return false;\n");
+			out.append("\t\tm.last = i;\n");
+			out.append("\t\tm.cacheGroup(0, Range.of(m.first, m.last));\n");
+			out.append("\t\treturn true;\n");
+		}
+		private void start(Node.Start node, boolean supplementary) {
+			StringBuilder out = methods;
+			int minLength = node.minLength;
+			out.append("\t\tif (i > m.to - ").append(minLength)
+					.append(") {\n");
+			out.append("\t\t\tm.hitEnd = true;\n\t\t\treturn false;\n\t\t}\n");
+			out.append("\t\tint guard = Math.min(m.to - ").append(minLength)
+					.append(", m.lastStart);\n");
+			out.append("\t\twhile (i <= guard) {\n");
+			out.append("\t\t\tif (").append(call(node.next, "i"))
+					.append(") {\n");
+			out.append("\t\t\t\tm.first = i;\n");
+			out.append("\t\t\t\tm.cacheGroup(0,"
+					+ " Range.of(m.first, m.last));\n");
+			out.append("\t\t\t\treturn true;\n\t\t\t}\n");
+			if (supplementary) {
+				out.append("\t\t\tif (i == guard) break;\n");
+				out.append("\t\t\tif (Character.isHighSurrogate("
+						+ "seq.charAt(i++)) && i < seq.length()\n");
+				out.append("\t\t\t\t\t&& Character.isLowSurrogate("
+						+ "seq.charAt(i))) i++;\n");
+			} else out.append("\t\t\ti++;\n");
+			out.append("\t\t}\n");
+			out.append("\t\tm.hitEnd = true;\n\t\treturn false;\n");
+		}
+		private void property(CharProperty node, boolean codePoint) {
+			StringBuilder out = methods;
+			out.append("\t\tif (i < m.to) {\n");
+			if (codePoint)
+				out.append("\t\t\tint ch = Character.codePointAt(seq, i);\n");
+			else out.append("\t\t\tint ch = seq.charAt(i);\n");
+			out.append("\t\t\treturn ").append(satisfies(node))
+					.append("\n\t\t\t\t\t&& ")
+					.append(call(node.next, codePoint
+							? "i + Character.charCount(ch)" : "i + 1"))
+					.append(";\n\t\t}\n");
+			out.append("\t\tm.hitEnd = true;\n\t\treturn false;\n");
+		}
+		/**
+		 * @return the condition under which the given property is satisfied by
+		 *         {@code ch}
+		 */
+		private String satisfies(CharProperty node) {
+			if (node instanceof CharProperty.Single)
+				return "ch == " + ((CharProperty.Single) node).c;
+			if (node instanceof CharProperty.SingleS)
+				return "ch == " + ((CharProperty.SingleS) node).c;
+			if (node instanceof CharProperty.SingleI) {
+				CharProperty.SingleI single = (CharProperty.SingleI) node;
+				return "(ch == " + single.lower + " || ch == " + single.upper
+						+ ")";
+			}
+			if (node instanceof CharProperty.All) return "true";
+			return field(node) + ".isSatisfiedBy(ch)";
+		}
+		private void lineEnding(Node node) {
+			StringBuilder out = methods;
+			out.append("\t\tif (i < m.to) {\n");
+			out.append("\t\t\tint ch = seq.charAt(i);\n");
+			out.append("\t\t\tif (ch == 0x0A || ch == 0x0B || ch == 0x0C"
+					+ " || ch == 0x85\n");
+			out.append("\t\t\t\t\t|| ch == 0x2028 || ch == 0x2029)\n");
+			out.append("\t\t\t\treturn ").append(call(node.next, "i + 1"))
+					.append(";\n");
+			out.append("\t\t\tif (ch == 0x0D) {\n");
+			out.append("\t\t\t\ti++;\n");
+			out.append("\t\t\t\tif (i < m.to && seq.charAt(i) == 0x0A) i++;\n");
+			out.append("\t\t\t\treturn ").append(call(node.next, "i"))
+					.append(";\n\t\t\t}\n");
+			out.append("\t\t} else m.hitEnd = true;\n");
+			out.append("\t\treturn false;\n");
+		}
+		private void ques(Node.Ques node) {
+			String atom = call(node.atom, "i");
+			String next = call(node.next, "i");
+			String after = call(node.next, "m.last");
+			StringBuilder out = methods;
+			switch (node.type) {
+				case Pattern.GREEDY:
+					out.append("\t\treturn ").append(atom).append(" && ")
+							.append(after).append("\n\t\t\t\t|| ")
+							.append(next).append(";\n");
+					break;
+				case Pattern.LAZY:
+					out.append("\t\treturn ").append(next)
+							.append("\n\t\t\t\t|| ").append(atom).append(" && ")
+							.append(after).append(";\n");
+					break;
+				case Pattern.POSSESSIVE:
+					out.append("\t\tif (").append(atom)
+							.append(") i = m.last;\n");
+					out.append("\t\treturn ").append(next).append(";\n");
+					break;
+				default:
+					out.append("\t\treturn ").append(atom).append(" && ")
+							.append(after).append(";\n");
+					break;
+			}
+		}
+		/**
+		 * Writes the method of the given repetition, and for a greedy one,
+		 * the method {@code g} followed by its number, which stands for
+		 * {@link Node.Curly#match0}.
+		 */
+		private void curly(Node.Curly node, int id) {
+			String atom = call(node.atom, "i");
+			StringBuilder out = methods;
+			int cmin = node.cmin, cmax = node.cmax;
+			out.append("\t\tfor (int j = 0; j < ").append(cmin)
+					.append("; j++) {\n");
+			out.append("\t\t\tif (!").append(atom)
+					.append(") return false;\n");
+			out.append("\t\t\ti = m.last;\n\t\t}\n");
+			switch (node.type) {
+				case Pattern.GREEDY:
+					out.append("\t\treturn g").append(id).append("(m, i, ")
+							.append(cmin).append(", seq);\n");
+					// The method of the rest is closed as this one would be
+					out.append("\t}\n");
+					greedy(node, id);
+					return;
+				case Pattern.LAZY:
+					out.append("\t\tfor (int j = ").append(cmin)
+							.append(";; j++) {\n");
+					out.append("\t\t\tif (").append(call(node.next, "i"))
+							.append(") return true;\n");
+					out.append("\t\t\tif (j >= ").append(cmax)
+							.append(" || !").append(atom)
+							.append(" || i == m.last)\n");
+					out.append("\t\t\t\treturn false;\n");
+					out.append("\t\t\ti = m.last;\n\t\t}\n");
+					return;
+				default:
+					out.append("\t\tfor (int j = ").append(cmin)
+							.append("; j < ").append(cmax).append("; j++) {\n");
+					out.append("\t\t\tif (!").append(atom)
+							.append(" || i == m.last) break;\n");
+					out.append("\t\t\ti = m.last;\n\t\t}\n");
+					out.append("\t\treturn ").append(call(node.next, "i"))
+							.append(";\n");
+					return;
+			}
+		}
+		private void greedy(Node.Curly node, int id) {
+			String atom = call(node.atom, "i");
+			String next = call(node.next, "i");
+			int cmax = node.cmax;
+			StringBuilder out = methods;
+			out.append("\tstatic boolean g").append(id)
+					.append("(Matcher m, int i, int numberMatched,"
+							+ " CharSequence seq) {\n");
+			out.append("\t\tif (numberMatched >= ").append(cmax)
+					.append(") return ").append(next).append(";\n");
+			out.append("\t\tint backLimit = numberMatched;\n");
+			out.append("\t\tif (!").append(atom).append(") return ")
+					.append(next).append(";\n");
+			out.append("\t\tint matchLen = m.last - i;\n");
+			out.append("\t\tif (matchLen == 0) return ").append(next)
+					.append(";\n");
+			out.append("\t\ti = m.last;\n");
+			out.append("\t\tnumberMatched++;\n");
+			out.append("\t\twhile (numberMatched < ").append(cmax)
+					.append(") {\n");
+			out.append("\t\t\tif (!").append(atom).append(") break;\n");
+			out.append("\t\t\tif (i + matchLen != m.last) {\n");
+			out.append("\t\t\t\tif (g").append(id)
+					.append("(m, m.last, numberMatched + 1, seq))"
+							+ " return true;\n");
+			out.append("\t\t\t\tbreak;\n\t\t\t}\n");
+			out.append("\t\t\ti += matchLen;\n");
+			out.append("\t\t\tnumberMatched++;\n\t\t}\n");
+			out.append("\t\twhile (numberMatched >= backLimit) {\n");
+			out.append("\t\t\tif (").append(next).append(") return true;\n");
+			out.append("\t\t\ti -= matchLen;\n");
+			out.append("\t\t\tnumberMatched--;\n");
+			out.append("\t\t\t").append(field(node.atom))
+					.append(".clean(m);\n\t\t}\n");
+			out.append("\t\treturn false;\n");
+		}
+		/**
+		 * Writes the method of the given repetition of a group, and the
+		 * method {@code g} followed by its number, which stands for the one
+		 * of {@link Node.GroupCurly#match0}, {@link Node.GroupCurly#match1} or
+		 * {@link Node.GroupCurly#match2} it calls.
+		 */
+		private void groupCurly(Node.GroupCurly node, int id) {
+			String atom = call(node.atom, "i");
+			String cache = "m.cacheGroup(" + node.groupIndex / 2
+					+ ", Range.of(i, m.last));\n";
+			boolean capture = node.capture;
+			StringBuilder out = methods;
+			out.append("\t\tjava.util.ArrayList<Range>[] save = null;\n");
+			out.append("\t\tint[] locals = m.locals;\n");
+			out.append("\t\tint save0 = locals[").append(node.localIndex)
+					.append("];\n");
+			if (capture) {
+				out.append("\t\tsave = new java.util.ArrayList[m.groupsr"
+						+ ".length];\n");
+				out.append("\t\tfor (int j = 0; j < m.groupsr.length; j++)\n");
+				out.append("\t\t\tsave[j] = (java.util.ArrayList<Range>)"
+						+ " m.groupsr[j].clone();\n");
+			}
+			out.append("\t\tlocals[").append(node.localIndex)
+					.append("] = -1;\n");
+			out.append("\t\tboolean ret = true;\n");
+			out.append("\t\tfor (int j = 0; j < ").append(node.cmin)
+					.append("; j++) {\n");
+			out.append("\t\t\tif (!").append(atom).append(") {\n");
+			out.append("\t\t\t\tret = false;\n\t\t\t\tbreak;\n\t\t\t}\n");
+			if (capture) out.append("\t\t\t").append(cache);
+			out.append("\t\t\ti = m.last;\n\t\t}\n");
+			out.append("\t\tif (ret) ret = g").append(id).append("(m, i, ")
+					.append(node.cmin).append(", seq);\n");
+			out.append("\t\tif (!ret) {\n");
+			out.append("\t\t\tlocals[").append(node.localIndex)
+					.append("] = save0;\n");
+			if (capture) out.append("\t\t\tm.groupsr = save;\n");
+			out.append("\t\t}\n");
+			out.append("\t\treturn ret;\n");
+			// The method of the rest is closed as this one would be
+			out.append("\t}\n");
+			out.append("\tstatic boolean g").append(id)
+					.append("(Matcher m, int i, int j, CharSequence seq) {\n");
+			String next = call(node.next, "i");
+			int cmax = node.cmax;
+			switch (node.type) {
+				case Pattern.GREEDY:
+					out.append("\t\tint min = j;\n");
+					out.append("\t\tif (j >= ").append(cmax).append(" || !")
+							.append(atom).append(") return ").append(next)
+							.append(";\n");
+					out.append("\t\tint k = m.last - i;\n");
+					out.append("\t\tif (k <= 0) {\n");
+					if (capture)
+						out.append("\t\t\tm.cacheGroup(")
+								.append(node.groupIndex / 2)
+								.append(", Range.of(i, i + k));\n");
+					out.append("\t\t\treturn ")
+							.append(call(node.next, "i + k"))
+							.append(";\n\t\t}\n");
+					out.append("\t\tfor (;;) {\n");
+					if (capture)
+						out.append("\t\t\tm.cacheGroup(")
+								.append(node.groupIndex / 2)
+								.append(", Range.of(i, i + k));\n");
+					out.append("\t\t\ti = i + k;\n");
+					out.append("\t\t\tif (++j >= ").append(cmax)
+							.append(" || !").append(atom)
+							.append(") break;\n");
+					out.append("\t\t\tif (i + k != m.last) {\n");
+					out.append("\t\t\t\tif (g").append(id)
+							.append("(m, i, j, seq)) return true;\n");
+					out.append("\t\t\t\tbreak;\n\t\t\t}\n\t\t}\n");
+					out.append("\t\twhile (j > min) {\n");
+					out.append("\t\t\tif (").append(next)
+							.append(") return true;\n");
+					out.append("\t\t\ti = i - k;\n");
+					if (capture)
+						out.append("\t\t\t").append(field(node))
+								.append(".clean(m);\n");
+					out.append("\t\t\tj--;\n\t\t}\n");
+					out.append("\t\treturn ").append(next).append(";\n");
+					return;
+				case Pattern.LAZY:
+					out.append("\t\tfor (;;) {\n");
+					out.append("\t\t\tif (").append(next)
+							.append(") return true;\n");
+					out.append("\t\t\tif (j >= ").append(cmax)
+							.append(" || !").append(atom)
+							.append(" || i == m.last)\n");
+					out.append("\t\t\t\treturn false;\n");
+					if (capture) out.append("\t\t\t").append(cache);
+					out.append("\t\t\ti = m.last;\n\t\t\tj++;\n\t\t}\n");
+					return;
+				default:
+					out.append("\t\tfor (; j < ").append(cmax)
+							.append("; j++) {\n");
+					out.append("\t\t\tif (!").append(atom)
+							.append(") break;\n");
+					if (capture) out.append("\t\t\t").append(cache);
+					out.append("\t\t\tif (i == m.last) break;\n");
+					out.append("\t\t\ti = m.last;\n\t\t}\n");
+					out.append("\t\treturn ").append(next).append(";\n");
+					return;
+			}
+		}
+		private void branch(Node.Branch node) {
+			StringBuilder out = methods;
+			for (int n = 0; n < node.size; n++)
+				out.append("\t\tif (").append(call(node.atoms[n] == null
+						? node.conn.next : node.atoms[n], "i"))
+						.append(") return true;\n");
+			out.append("\t\treturn false;\n");
+		}
+		private void groupHead(Node.GroupHead node) {
+			StringBuilder out = methods;
+			String local = "m.locals[" + node.localIndex + "]";
+			out.append("\t\tint save = ").append(local).append(";\n");
+			out.append("\t\t").append(local).append(" = i;\n");
+			out.append("\t\tboolean ret = ").append(call(node.next, "i"))
+					.append(";\n");
+			out.append("\t\t").append(local).append(" = save;\n");
+			out.append("\t\treturn ret;\n");
+		}
+		private void groupTail(Node.GroupTail node) {
+			StringBuilder out = methods;
+			int group = node.groupIndex / 2;
+			out.append("\t\tint tmp = m.locals[").append(node.localIndex)
+					.append("];\n");
+			out.append("\t\tif (tmp >= 0) {\n");
+			out.append("\t\t\tm.cacheGroup(").append(group)
+					.append(", Range.of(tmp, i));\n");
+			out.append("\t\t\tif (").append(call(node.next, "i"))
+					.append(") return true;\n");
+			out.append("\t\t\tm.removeGroup(").append(group).append(");\n");
+			out.append("\t\t\treturn false;\n\t\t}\n");
+			out.append("\t\tm.last = i;\n\t\treturn true;\n");
+		}
+		/**
+		 * Writes the method of a literal of characters compared as they are,
+		 * ignoring ASCII case or ignoring Unicode case, which compares them
+		 * one by one when the whole literal is in the region, and otherwise
+		 * finds where the end is hit.
+		 */
+		private void slice(Node.SliceNode node) {
+			StringBuilder out = methods;
+			int[] buffer = node.buffer;
+			int length = buffer.length;
+			String next = call(node.next, "i + " + length);
+			out.append("\t\tint c;\n");
+			if (length <= MAX_UNROLLED) {
+				out.append("\t\tif (i + ").append(length)
+						.append(" <= m.to) {\n");
+				for (int j = 0; j < length; j++)
+					out.append("\t\t\tif (").append(differs(node, buffer[j],
+							"i + " + j)).append(") return false;\n");
+				out.append("\t\t\treturn ").append(next).append(";\n\t\t}\n");
+			}
+			out.append("\t\tint[] buf = ").append(field(node))
+					.append(".buffer;\n");
+			out.append("\t\tfor (int j = 0; j < ").append(length)
+					.append("; j++) {\n");
+			out.append("\t\t\tif (i + j >= m.to) {\n");
+			out.append("\t\t\t\tm.hitEnd = true;\n\t\t\t\treturn false;\n");
+			out.append("\t\t\t}\n");
+			out.append("\t\t\tif (").append(differs(node, -1, "i + j"))
+					.append(") return false;\n");
+			out.append("\t\t}\n");
+			out.append("\t\treturn ").append(next).append(";\n");
+		}
+		/**
+		 * @return the condition under which the character at the given
+		 *         position differs from the given one of the given literal, or
+		 *         from {@code buf[j]} if it is negative
+		 */
+		private static String differs(Node.SliceNode node, int expected,
+				String at) {
+			String b = expected < 0 ? "buf[j]" : Integer.toString(expected);
+			String c = "(c = seq.charAt(" + at + "))";
+			if (node instanceof Node.SliceI)
+				return c + " != " + b + " && " + b + " != ASCII.toLower(c)";
+			if (node instanceof Node.SliceU)
+				return c + " != " + b + " && " + b
+						+ " != Character.toLowerCase(Character.toUpperCase(c))";
+			return c + " != " + b;
+		}
+		private void bnm(Node.BnM node) {
+			StringBuilder out = methods;
+			String field = field(node);
+			int length = node.buffer.length;
+			out.append("\t\tint[] src = ").append(field).append(".buffer;\n");
+			out.append("\t\tint[] lastOcc = ").append(field)
+					.append(".lastOcc;\n");
+			out.append("\t\tint[] optoSft = ").append(field)
+					.append(".optoSft;\n");
+			out.append("\t\tint last = Math.min(m.to - ").append(length)
+					.append(", m.lastStart);\n");
+			out.append("\t\tNEXT: while (i <= last) {\n");
+			out.append("\t\t\tfor (int j = ").append(length - 1)
+					.append("; j >= 0; j--) {\n");
+			out.append("\t\t\t\tint ch = seq.charAt(i + j);\n");
+			out.append("\t\t\t\tif (ch != src[j]) {\n");
+			out.append("\t\t\t\t\ti += Math.max(j + 1 - lastOcc[ch & 0x7F],"
+					+ " optoSft[j]);\n");
+			out.append("\t\t\t\t\tcontinue NEXT;\n\t\t\t\t}\n\t\t\t}\n");
+			out.append("\t\t\tm.first = i;\n");
+			out.append("\t\t\tif (").append(call(node.next, "i + " + length))
+					.append(") {\n");
+			out.append("\t\t\t\tm.first = i;\n");
+			out.append("\t\t\t\tm.cacheGroup(0,"
+					+ " Range.of(m.first, m.last));\n");
+			out.append("\t\t\t\treturn true;\n\t\t\t}\n");
+			out.append("\t\t\ti++;\n\t\t}\n");
+			out.append("\t\tm.hitEnd = true;\n\t\treturn false;\n");
+		}
+		private void pos(Node.Pos node) {
+			StringBuilder out = methods;
+			out.append("\t\tint savedTo = m.to;\n");
+			out.append("\t\tboolean conditionMatched;\n");
+			out.append("\t\tif (m.transparentBounds)"
+					+ " m.to = m.getTextLength();\n");
+			out.append("\t\ttry {\n");
+			out.append("\t\t\tconditionMatched = ")
+					.append(call(node.cond, "i")).append(";\n");
+			out.append("\t\t} finally {\n\t\t\tm.to = savedTo;\n\t\t}\n");
+			out.append("\t\treturn conditionMatched && ")
+					.append(call(node.next, "i")).append(";\n");
+		}
+		/**
+		 * @return the class that declares the {@code match} method of the given
+		 *         class of node
+		 */
+		private static Class<?> matcher(Class<?> type) {
+			for (; type != Node.class; type = type.getSuperclass())
+				for (Method method : type.getDeclaredMethods())
+					if (method.getName().equals("match")
+							&& Arrays.equals(method.getParameterTypes(),
+									new Class<?>[] { Matcher.class, int.class,
+											CharSequence.class }))
+						return type;
+			return Node.class;
+		}
+		/**
+		 * @return the name of the given class, or of the nearest class it
+		 *         extends that can be named in the source
+		 */
+		private static String name(Class<?> type) {
+			while (!nameable(type))
+				type = type.getSuperclass();
+			return type.getCanonicalName();
+		}
+		private static boolean nameable(Class<?> type) {
+			if (type.isHidden() || type.getCanonicalName() == null)
+				return false;
+			for (Class<?> c = type; c != null; c = c.getEnclosingClass()) {
+				int modifiers = c.getModifiers();
+				if (Modifier.isPrivate(modifiers)
+						|| !Modifier.isPublic(modifiers)
+						&& !c.getPackageName().equals(PACKAGE)) return false;
+			}
+			return true;
+		}
+	}
+	/**
+	 * Compiles the generated source, and is kept apart so that a runtime
+	 * without the {@code java.compiler} module only fails once it is used.
+	 */
+	private static final class Compiler {
+		/**
+		 * @return the generated root and match root, or null if there is no
+		 *         compiler, or too many nodes
+		 */
+		static Node[] compile(Node root, Node matchRoot) throws Exception {
+			JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+			if (compiler == null) return null;
+			Writer writer = new Writer();
+			String source = writer.write(root, matchRoot);
+			if (source == null) return null;
+			StringWriter messages = new StringWriter();
+			Memory memory = new Memory(compiler.getStandardFileManager(null,
+					null, null));
+			boolean compiled;
+			try {
+				compiled = compiler.getTask(messages, memory, null,
+						Arrays.asList("-classpath", classPath(), "-proc:none",
+								"-g:none", "-nowarn"), null,
+						Arrays.asList(new Source(source))).call();
+			} finally {
+				memory.close();
+			}
+			if (!compiled || memory.outputs.size() != 1)
+				throw new IllegalStateException(
+						"The generated code did not compile: " + messages);
+			MethodHandles.Lookup lookup = MethodHandles.lookup()
+					.defineHiddenClassWithClassData(
+							memory.outputs.get(0).bytes.toByteArray(),
+							writer.nodes.toArray(), true);
+			Constructor<?> constructor = lookup
+					.lookupClass().getDeclaredConstructor(boolean.class);
+			return new Node[] { (Node) constructor.newInstance(false),
+					(Node) constructor.newInstance(true) };
+		}
+		/**
+		 * @return the class path of the program, along with where the nodes
+		 *         were loaded from, if it is not on it
+		 */
+		private static String classPath() throws Exception {
+			String path = System.getProperty("java.class.path", "");
+			CodeSource source = Node.class.getProtectionDomain()
+					.getCodeSource();
+			if (source == null || source.getLocation() == null) return path;
+			String location = Paths.get(source.getLocation().toURI())
+					.toString();
+			return path.isEmpty() ? location : location
+					+ File.pathSeparator + path;
+		}
+	}
+	private static final class Source extends SimpleJavaFileObject {
+		private final String source;
+		Source(String source) {
+			super(URI.create("string:///" + PACKAGE.replace('.', '/') + "/"
+					+ NAME + Kind.SOURCE.extension), Kind.SOURCE);
+			this.source = source;
+		}
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return source;
+		}
+	}
+	private static final class Output extends SimpleJavaFileObject {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Output(String name) {
+			super(URI.create("bytes:///" + name.replace('.', '/')
+					+ Kind.CLASS.extension), Kind.CLASS);
+		}
+		@Override
+		public OutputStream openOutputStream() {
+			return bytes;
+		}
+	}
+	/**
+	 * Keeps the classes compiled in memory.
+	 */
+	private static final class Memory extends
+			ForwardingJavaFileManager<StandardJavaFileManager> {
+		final List<Output> outputs = new ArrayList<>();
+		Memory(StandardJavaFileManager manager) {
+			super(manager);
+		}
+		@Override
+		public JavaFileObject getJavaFileForOutput(Location location,
+				String className, Kind kind, FileObject sibling) {
+			Output output = new Output(className);
+			outputs.add(output);
+			return output;
+		}
+	}
+}
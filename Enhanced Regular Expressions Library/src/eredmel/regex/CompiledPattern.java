@@ -10,32 +10,421 @@ package eredmel.regex;
  * @author Kavi Gupta
  * 
  */
-class CompiledPattern implements java.io.Serializable {
+class CompiledPattern {
 	/**
 	 * The "root" of the match operation.
 	 */
-	transient Node root;
+	final Node root;
 	/**
 	 * The root of object tree for a match operation. The pattern is matched
 	 * at the beginning. This may include a find that uses BnM or a First
 	 * node.
 	 */
-	transient Node matchRoot;
+	final Node matchRoot;
 	/**
 	 * The group registry that allows one to look up groups by name.
 	 */
-	GroupRegistry registry;
-	transient int localCount;
-	CompiledPattern(Node root, Node matchRoot, GroupRegistry registry,
-			int localCount) {
+	final GroupRegistry registry;
+	final int localCount;
+	/**
+	 * Whether the root only starts matches at the start of each code point,
+	 * rather than at each character.
+	 */
+	final boolean codePointStarts;
+	/**
+	 * The literal every match starts with, or null.
+	 */
+	final String prefix;
+	/**
+	 * The engine that matches the pattern.
+	 */
+	final Pattern.Engine engine;
+	/**
+	 * Whether the engine was chosen for the pattern, rather than given, so
+	 * that it may be helped along by checks that the other engines make.
+	 */
+	final boolean planned;
+	/**
+	 * Chooses how searches are run, or null if they are always run in the
+	 * planned way.
+	 */
+	final Adaptation adaptation;
+	/**
+	 * Generates code for the nodes once they have been run often enough, or
+	 * null if none is generated.
+	 */
+	final CodeGenerator generator;
+	private final String pattern;
+	private final int flags;
+	private final EnregexType type;
+	/**
+	 * The automata of the engine, or null if they have not yet been built.
+	 */
+	private volatile Automata automata;
+	/**
+	 * The lazy DFAs that find where the matches of this pattern end, as given
+	 * by {@link LazyDFA#all(PikeProgram, String, boolean)}, or null if they
+	 * have not yet been built.
+	 */
+	private volatile LazyDFA[] dfas;
+	/**
+	 * The automata an engine runs in place of the nodes, or in front of them.
+	 */
+	private static final class Automata {
+		/**
+		 * The program run by the {@link PikeVM} in place of the node graph,
+		 * or null if the node graph is matched.
+		 */
+		final PikeProgram program;
+		/**
+		 * The program run by the lazy DFAs, or null if they are not run.
+		 */
+		final PikeProgram automaton;
+		/**
+		 * Finds the groups of the matches the lazy DFAs find in one pass, or
+		 * null if the nodes find them.
+		 */
+		final OnePass onePass;
+		/**
+		 * Finds where the matches of this pattern can start before the nodes
+		 * are run, or null if the nodes search on their own.
+		 */
+		final BitParallel bitParallel;
+		/**
+		 * Finds where the first match of this pattern starts, reading
+		 * backwards from where its matches end, before the nodes are run, or
+		 * null if the nodes search on their own.
+		 */
+		final ReverseAutomaton reverse;
+		Automata(PikeProgram program, PikeProgram automaton,
+				OnePass onePass, BitParallel bitParallel,
+				ReverseAutomaton reverse) {
+			this.program = program;
+			this.automaton = automaton;
+			this.onePass = onePass;
+			this.bitParallel = bitParallel;
+			this.reverse = reverse;
+		}
+	}
+	private CompiledPattern(Node root, Node matchRoot, GroupRegistry registry,
+			int localCount, String pattern, int flags, EnregexType type,
+			Pattern.Engine engine, boolean planned, Automata automata) {
 		this.root = root;
 		this.matchRoot = matchRoot;
 		this.registry = registry;
 		this.localCount = localCount;
+		this.pattern = pattern;
+		this.flags = flags;
+		this.type = type;
+		this.engine = engine;
+		this.planned = planned;
+		this.automata = automata;
+		this.codePointStarts = root instanceof Node.StartS
+				|| root instanceof Node.BnMS
+				|| root instanceof Node.EnregexQuoteStart
+				&& ((Node.EnregexQuoteStart) root).supplementary;
+		if (matchRoot instanceof Node.Slice) {
+			int[] buf = ((Node.Slice) matchRoot).buffer;
+			this.prefix = new String(buf, 0, buf.length);
+		} else if (root instanceof Node.EnregexQuoteStart) {
+			// The quote assertions before it take no characters
+			this.prefix = ((Node.EnregexQuoteStart) root).literal;
+		} else this.prefix = null;
+		boolean adapts = planned && (flags & Pattern.FIXED_PLAN) == 0
+				&& (engine == Pattern.Engine.DFA
+						|| engine == Pattern.Engine.ONE_PASS
+						|| engine == Pattern.Engine.BIT_PARALLEL);
+		// The bit-parallel automaton does not skip ahead to the prefix
+		this.adaptation = adapts ? new Adaptation(prefix != null
+				&& engine != Pattern.Engine.BIT_PARALLEL,
+				engine == Pattern.Engine.ONE_PASS) : null;
+		// The literal and the virtual machine do not run the nodes
+		boolean generates = (flags & Pattern.GENERATE_CODE) != 0
+				&& !(planned && (engine == Pattern.Engine.LITERAL
+						|| engine == Pattern.Engine.PIKE_VM));
+		this.generator = generates ? new CodeGenerator(root, matchRoot) : null;
+	}
+	/**
+	 * @return the automata of the engine, building them if they have not yet
+	 *         been built
+	 */
+	private Automata automata() {
+		Automata automata = this.automata;
+		if (automata == null) {
+			// As with the lazy DFAs, a race at worst builds them twice
+			automata = build(root, matchRoot, localCount, pattern, flags, type,
+					engine, planned);
+			this.automata = automata;
+		}
+		return automata;
+	}
+	/**
+	 * @return the program run by the {@link PikeVM} in place of the node
+	 *         graph, or null if the node graph is matched
+	 */
+	PikeProgram program() {
+		return automata().program;
+	}
+	/**
+	 * @return the automaton that finds the groups of the matches the lazy
+	 *         DFAs find in one pass, or null if the nodes find them
+	 */
+	OnePass onePass() {
+		return automata().onePass;
+	}
+	/**
+	 * @return the automaton that finds where the matches of this pattern can
+	 *         start before the nodes are run, or null if the nodes search on
+	 *         their own
+	 */
+	BitParallel bitParallel() {
+		return automata().bitParallel;
+	}
+	/**
+	 * @return the automaton that finds where the first match of this pattern
+	 *         starts, reading backwards from where its matches end, or null if
+	 *         the nodes search on their own
+	 */
+	ReverseAutomaton reverse() {
+		return automata().reverse;
 	}
-	private void readObject(java.io.ObjectInputStream s)
-			throws java.io.IOException, ClassNotFoundException {
-		s.defaultReadObject();
-		localCount = 0;
+	/**
+	 * @return the nodes that match the pattern from each position in turn,
+	 *         or, if the search is anchored, from the given one, or the code
+	 *         generated for them, if it is ready
+	 */
+	Node root(boolean anchored) {
+		if (generator != null) {
+			Node generated = generator.root(anchored);
+			if (generated != null) return generated;
+		}
+		return anchored ? matchRoot : root;
+	}
+	/**
+	 * @return the lazy DFA that finds where matches of the given kind end, or
+	 *         null if the pattern is not matched by one
+	 */
+	LazyDFA dfa(boolean anchored, boolean endAnchored) {
+		PikeProgram automaton = automata().automaton;
+		if (automaton == null) return null;
+		LazyDFA[] dfas = this.dfas;
+		if (dfas == null) {
+			// Racing threads build equivalent automata, either of which will do
+			dfas = LazyDFA.all(automaton, prefix, codePointStarts);
+			this.dfas = dfas;
+		}
+		return dfas[(anchored ? 2 : 0) + (endAnchored ? 1 : 0)];
+	}
+	/**
+	 * @return whether the given root tries every position in turn
+	 */
+	private static boolean startsEverywhere(Node root) {
+		if (root instanceof Node.EnregexQuoteStart)
+			return ((Node.EnregexQuoteStart) root).literal == null;
+		return root instanceof Node.Start;
+	}
+	/**
+	 * @return the automaton that finds where the first match of the given
+	 *         program starts from where the matches end, or null if it has
+	 *         none, or the given root would not search for it from the first
+	 *         position to the last, hitting the end if it finds nothing
+	 */
+	private static ReverseAutomaton reverse(Node root, PikeProgram program) {
+		if (!(root instanceof Node.Start || root instanceof Node.BnM))
+			return null;
+		ReverseAutomaton reverse = ReverseAutomaton.of(program);
+		return reverse == null || reverse.end == null ? null : reverse;
+	}
+	/**
+	 * Plans how the pattern with the given nodes is matched, choosing, unless
+	 * it is given an engine, the first of these that can match it:
+	 * <ul>
+	 * <li>{@link Pattern.Engine#PIKE_VM} if the flags include
+	 * {@link Pattern#LINEAR_TIME}</li>
+	 * <li>{@link Pattern.Engine#LITERAL} if the pattern is a case sensitive
+	 * literal</li>
+	 * <li>{@link Pattern.Engine#PIKE_VM} if it repeats an enregex parenthesis
+	 * assertion</li>
+	 * <li>{@link Pattern.Engine#ONE_PASS} if it can be run by a
+	 * {@link LazyDFA} and by {@link OnePass}</li>
+	 * <li>{@link Pattern.Engine#DFA} if it can be run by a {@link LazyDFA}</li>
+	 * <li>{@link Pattern.Engine#BIT_PARALLEL} if it can be run by a
+	 * {@link BitParallel} automaton, and the nodes would otherwise try every
+	 * position rather than skip ahead to a literal</li>
+	 * <li>{@link Pattern.Engine#REVERSE} if it can be run by a
+	 * {@link ReverseAutomaton}, which it can if it is short, and anchored at
+	 * the end of the input</li>
+	 * <li>{@link Pattern.Engine#ENREGEX} if it has enregex assertions</li>
+	 * <li>{@link Pattern.Engine#BACKTRACKING}</li>
+	 * </ul>
+	 * An engine that is given is run on its own, without a lazy DFA in front
+	 * of it unless it is {@link Pattern.Engine#DFA} or
+	 * {@link Pattern.Engine#ONE_PASS}, or a bit-parallel automaton unless it is
+	 * {@link Pattern.Engine#BIT_PARALLEL}, or a reverse automaton unless it is
+	 * {@link Pattern.Engine#REVERSE}, or any of the checks the planned
+	 * engines make to skip past where there can be no match. Searches of a
+	 * pattern planned to be matched by any of these three adapt how they are
+	 * run, as
+	 * {@link Adaptation} chooses, unless the flags include
+	 * {@link Pattern#FIXED_PLAN}. If the flags include
+	 * {@link Pattern#GENERATE_CODE}, code is generated for the nodes of a
+	 * pattern whose engine runs them, once it has run them often enough, as
+	 * {@link CodeGenerator} does.
+	 *
+	 * @param enregex
+	 *        whether the pattern has enregex assertions
+	 * @param forced
+	 *        the engine to match the pattern with, or null to choose one
+	 * @throws PatternSyntaxException
+	 *         if the pattern must be matched in linear time, or by the given
+	 *         engine, but cannot be
+	 */
+	static CompiledPattern of(Node root, Node matchRoot,
+			GroupRegistry registry, int localCount, String pattern, int flags,
+			EnregexType type, boolean enregex, Pattern.Engine forced) {
+		boolean literal = matchRoot instanceof Node.Slice
+				&& matchRoot.next == Pattern.lastAccept;
+		if (forced != null) {
+			Automata automata = build(root, matchRoot, localCount, pattern,
+					flags, type, forced, false);
+			switch (forced) {
+				case LITERAL:
+					if (!literal)
+						throw new PatternSyntaxException(
+								"A pattern that is not a case sensitive literal"
+										+ " cannot be matched as one", pattern,
+								-1);
+					break;
+				case DFA:
+					if (!LazyDFA.runs(automata.automaton))
+						throw new PatternSyntaxException(
+								"The pattern cannot be matched by a DFA",
+								pattern, -1);
+					break;
+				case ONE_PASS:
+					if (automata.onePass == null)
+						throw new PatternSyntaxException(
+								"The pattern cannot be matched in one pass",
+								pattern, -1);
+					break;
+				case BIT_PARALLEL:
+					if (automata.bitParallel == null)
+						throw new PatternSyntaxException(
+								"The pattern cannot be matched by a bit-parallel"
+										+ " automaton", pattern, -1);
+					break;
+				case REVERSE:
+					if (automata.reverse == null)
+						throw new PatternSyntaxException(
+								"The pattern cannot be matched backwards from"
+										+ " its end", pattern, -1);
+					break;
+				default:
+					break;
+			}
+			return new CompiledPattern(root, matchRoot, registry, localCount,
+					pattern, flags, type, forced, false, automata);
+		}
+		if ((flags & Pattern.LINEAR_TIME) != 0) {
+			PikeProgram program = PikeProgram.compile(matchRoot, localCount,
+					pattern, type);
+			return new CompiledPattern(root, matchRoot, registry, localCount,
+					pattern, flags, type, Pattern.Engine.PIKE_VM, true,
+					new Automata(program, LazyDFA.runs(program) ? program
+							: null, null, null, null));
+		}
+		if (literal)
+			return new CompiledPattern(root, matchRoot, registry, localCount,
+					pattern, flags, type, Pattern.Engine.LITERAL, true,
+					new Automata(null, null, null, null, null));
+		PikeProgram program = PikeProgram.tryCompile(matchRoot, localCount,
+				type);
+		// Otherwise the nodes, which jump straight to the positions at which
+		// a parenthesis assertion can close, are faster than the VM
+		if (program != null && program.repeatedParens)
+			return new CompiledPattern(root, matchRoot, registry, localCount,
+					pattern, flags, type, Pattern.Engine.PIKE_VM, true,
+					new Automata(program, null, null, null, null));
+		if (LazyDFA.runs(program)) {
+			OnePass onePass = OnePass.of(program);
+			return new CompiledPattern(root, matchRoot, registry, localCount,
+					pattern, flags, type, onePass != null
+							? Pattern.Engine.ONE_PASS : Pattern.Engine.DFA,
+					true, new Automata(null, program, onePass, null, null));
+		}
+		ReverseAutomaton reverse = reverse(root, program);
+		if (reverse != null)
+			return new CompiledPattern(root, matchRoot, registry, localCount,
+					pattern, flags, type, Pattern.Engine.REVERSE, true,
+					new Automata(null, null, null, null, reverse));
+		BitParallel bitParallel = program == null || !startsEverywhere(root)
+				? null : BitParallel.of(program);
+		if (bitParallel != null)
+			return new CompiledPattern(root, matchRoot, registry, localCount,
+					pattern, flags, type, Pattern.Engine.BIT_PARALLEL, true,
+					new Automata(null, null, null, bitParallel, null));
+		return new CompiledPattern(root, matchRoot, registry, localCount,
+				pattern, flags, type, enregex ? Pattern.Engine.ENREGEX
+						: Pattern.Engine.BACKTRACKING, true, new Automata(null,
+						null, null, null, null));
+	}
+	/**
+	 * Matches the pattern with the given nodes with the given engine, as
+	 * {@link #of(Node, Node, GroupRegistry, int, String, int, EnregexType,
+	 * boolean, Pattern.Engine)} planned, or was given, without planning it
+	 * again. The automata of the engine are only built when the pattern is
+	 * first searched.
+	 *
+	 * @param planned
+	 *        whether the engine was planned, rather than given
+	 */
+	static CompiledPattern planned(Node root, Node matchRoot,
+			GroupRegistry registry, int localCount, String pattern, int flags,
+			EnregexType type, Pattern.Engine engine, boolean planned) {
+		return new CompiledPattern(root, matchRoot, registry, localCount,
+				pattern, flags, type, engine, planned, null);
+	}
+	/**
+	 * @return the automata the given engine runs for the pattern with the
+	 *         given nodes, or, if they cannot be built for it, nulls in their
+	 *         place
+	 * @param planned
+	 *        whether the engine was planned, rather than given
+	 */
+	private static Automata build(Node root, Node matchRoot, int localCount,
+			String pattern, int flags, EnregexType type,
+			Pattern.Engine engine, boolean planned) {
+		PikeProgram program = null, automaton = null;
+		OnePass onePass = null;
+		BitParallel bitParallel = null;
+		ReverseAutomaton reverse = null;
+		switch (engine) {
+			case DFA:
+				automaton = PikeProgram.tryCompile(matchRoot, localCount, type);
+				break;
+			case ONE_PASS:
+				automaton = PikeProgram.tryCompile(matchRoot, localCount, type);
+				if (LazyDFA.runs(automaton)) onePass = OnePass.of(automaton);
+				break;
+			case BIT_PARALLEL:
+				PikeProgram compiled = PikeProgram.tryCompile(matchRoot,
+						localCount, type);
+				if (compiled != null) bitParallel = BitParallel.of(compiled);
+				break;
+			case REVERSE:
+				reverse = reverse(root, PikeProgram.tryCompile(matchRoot,
+						localCount, type));
+				break;
+			case PIKE_VM:
+				program = PikeProgram.compile(matchRoot, localCount, pattern,
+						type);
+				// Only a linear time plan runs the lazy DFA in front of it
+				if (planned && (flags & Pattern.LINEAR_TIME) != 0
+						&& LazyDFA.runs(program)) automaton = program;
+				break;
+			default:
+				break;
+		}
+		return new Automata(program, automaton, onePass, bitParallel, reverse);
 	}
 }
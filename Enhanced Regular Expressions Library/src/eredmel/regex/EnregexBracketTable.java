@@ -0,0 +1,111 @@
+package eredmel.regex;
+
+/**
+ * A precomputed table of the bracket structure of a window of an
+ * {@link EnregexSegment} for a single paren type. It allows the positions at which an enregex close
+ * paren assertion can match a given open paren assertion to be enumerated
+ * directly, rather than by testing every candidate position with
+ * {@link EnregexSegment#parensMatch(int, int, int)}.
+ * <p>
+ * An open assertion at {@code i} and a close assertion at {@code j} match
+ * exactly when {@code depth(j) == depth(i)} and {@code i <= j < drop(i)}.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class EnregexBracketTable {
+	/**
+	 * The first position of the window.
+	 */
+	private final int from;
+	/**
+	 * The paren depth before each position of the window, indexed by position
+	 * minus {@link #from}.
+	 */
+	private final int[] depth;
+	/**
+	 * For each position {@code i}, the first position after {@code i} at
+	 * which the depth is less than at {@code i}, or one more than the last
+	 * position of the window if there is none.
+	 */
+	private final int[] drop;
+	private final int minDepth;
+	/**
+	 * The positions at each depth, in ascending order, indexed by depth minus
+	 * {@link #minDepth}.
+	 */
+	private final int[][] positions;
+	/**
+	 * Creates the table for the positions {@code from} to {@code to} of the
+	 * segment, inclusive.
+	 */
+	EnregexBracketTable(EnregexSegment segment, int parenType, int from,
+			int to) {
+		this.from = from;
+		int n = to - from + 1;
+		depth = new int[n];
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		for (int k = 0; k < n; k++) {
+			depth[k] = segment.parenDepthAt(from + k, parenType);
+			min = Math.min(min, depth[k]);
+			max = Math.max(max, depth[k]);
+		}
+		minDepth = min;
+		// Monotonic stack of positions whose drop has not been found yet
+		drop = new int[n];
+		int[] pending = new int[n];
+		int top = 0;
+		for (int k = 0; k < n; k++) {
+			while (top > 0 && depth[pending[top - 1]] > depth[k])
+				drop[pending[--top]] = from + k;
+			pending[top++] = k;
+		}
+		while (top > 0)
+			drop[pending[--top]] = from + n;
+		int[] counts = new int[max - min + 1];
+		for (int k = 0; k < n; k++)
+			counts[depth[k] - min]++;
+		positions = new int[counts.length][];
+		for (int d = 0; d < counts.length; d++) {
+			positions[d] = new int[counts[d]];
+			counts[d] = 0;
+		}
+		for (int k = 0; k < n; k++) {
+			int d = depth[k] - min;
+			positions[d][counts[d]++] = from + k;
+		}
+	}
+	/**
+	 * @return the last position of the window
+	 */
+	int last() {
+		return from + depth.length - 1;
+	}
+	int depth(int i) {
+		return depth[i - from];
+	}
+	int drop(int i) {
+		return drop[i - from];
+	}
+	/**
+	 * @return the positions in ascending order that have the same depth as
+	 *         the given position
+	 */
+	int[] positionsAtDepthOf(int i) {
+		return positions[depth(i) - minDepth];
+	}
+	/**
+	 * @return the index in the given ascending array of the last element that
+	 *         is at most {@code key}, or -1 if there is none
+	 */
+	static int floorIndex(int[] sorted, int key) {
+		int lo = 0, hi = sorted.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] <= key)
+				lo = mid + 1;
+			else hi = mid - 1;
+		}
+		return hi;
+	}
+}
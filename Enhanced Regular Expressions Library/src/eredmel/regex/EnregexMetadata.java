@@ -5,7 +5,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class EnregexMetadata {
-	private final EnregexType type;
+	final EnregexType type;
 	private final int[] parencounts;
 	private final int quoteType;
 	private final int slashcount;
@@ -13,7 +13,7 @@ public class EnregexMetadata {
 		return new EnregexMetadata(type, new int[type.parens.size()], -1, 0);
 	}
 	public EnregexMetadata next(char next) {
-		Logger.getGlobal().log(Level.FINE, this + "\t" + next);
+		Logger.getGlobal().log(Level.FINE, () -> this + "\t" + next);
 		if (next == '\\') return slash();
 		if (quoteType >= 0) {
 			SymbolPair pair = type.quotes.get(quoteType);
@@ -26,7 +26,7 @@ public class EnregexMetadata {
 		}
 		for (int i = 0; i < type.parens.size(); i++) {
 			SymbolPair pair = type.parens.get(i);
-			Logger.getGlobal().log(Level.FINE, pair.toString());
+			Logger.getGlobal().log(Level.FINE, pair::toString);
 			if (pair.openMatches(next, slashcount)) return openParen(i);
 			if (pair.closeMatches(next, slashcount)) return closeParen(i);
 		}
@@ -55,13 +55,52 @@ public class EnregexMetadata {
 	private EnregexMetadata openQuote(int i) {
 		return new EnregexMetadata(type, parencounts, i, 0);
 	}
-	private EnregexMetadata(EnregexType type, int[] parencounts,
+	EnregexMetadata(EnregexType type, int[] parencounts,
 			int quoteType, int slashcount) {
 		this.type = type;
 		this.parencounts = parencounts;
 		this.quoteType = quoteType;
 		this.slashcount = slashcount;
 	}
+	int quoteType() {
+		return quoteType;
+	}
+	int slashCount() {
+		return slashcount;
+	}
+	int parenDepth(int parenType) {
+		return parencounts[parenType];
+	}
+	/**
+	 * @return whether this metadata and the other will stay the same, up to a
+	 *         constant difference in paren counts, after any text. This is the
+	 *         case exactly when they have the same quote and slash state.
+	 */
+	boolean synchronizedWith(EnregexMetadata other) {
+		return quoteType == other.quoteType && slashcount == other.slashcount;
+	}
+	/**
+	 * @return this metadata with the given amounts added to its paren counts
+	 *         (or subtracted if {@code sign} is negative)
+	 */
+	EnregexMetadata shift(int[] delta, int sign) {
+		boolean zero = true;
+		for (int d : delta)
+			zero &= d == 0;
+		if (zero) return this;
+		int[] paren2 = parencounts.clone();
+		for (int i = 0; i < paren2.length; i++)
+			paren2[i] += sign * delta[i];
+		return new EnregexMetadata(type, paren2, quoteType, slashcount);
+	}
+	/**
+	 * Adds the difference between the paren counts of this metadata and the
+	 * other to the given array.
+	 */
+	void addParenDelta(EnregexMetadata other, int[] delta) {
+		for (int i = 0; i < delta.length; i++)
+			delta[i] += parencounts[i] - other.parencounts[i];
+	}
 	public boolean equalParenState(EnregexMetadata other, int parenClose) {
 		int parenType = type.parenType(parenClose);
 		return parencounts[parenType] == other.parencounts[parenType];
@@ -78,6 +117,27 @@ public class EnregexMetadata {
 		else return this.quoteType != quoteType;
 	}
 	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + Arrays.hashCode(parencounts);
+		result = prime * result + quoteType;
+		result = prime * result + slashcount;
+		return result;
+	}
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (obj == null) return false;
+		if (getClass() != obj.getClass()) return false;
+		EnregexMetadata other = (EnregexMetadata) obj;
+		if (!type.equals(other.type)) return false;
+		if (!Arrays.equals(parencounts, other.parencounts)) return false;
+		if (quoteType != other.quoteType) return false;
+		if (slashcount != other.slashcount) return false;
+		return true;
+	}
+	@Override
 	public String toString() {
 		return "[" + Arrays.toString(parencounts) + "," + quoteType + ","
 				+ slashcount + "]";
@@ -0,0 +1,209 @@
+package eredmel.regex;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Storage for the {@link EnregexMetadata} of the positions of a text in
+ * direct buffers, rather than as objects on the heap. Each position takes one
+ * record holding its quote type, then its slash count and paren counts, each
+ * of which takes the same number of bytes (four, except in sidecar files,
+ * where it is as few as the values fit in). The records are
+ * grouped into blocks, which are only allocated once a position in them is
+ * stored, and which are freed by {@link #close()} rather than by the garbage
+ * collector.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class EnregexMetadataColumns {
+	private static final int BLOCK_BITS = 16;
+	static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	final EnregexType type;
+	private final int parens;
+	/**
+	 * The number of bytes in each slash count and paren count, and in each
+	 * record.
+	 */
+	private final int width, stride;
+	private final ByteBuffer[] blocks;
+	/**
+	 * Whether the blocks are views of a file, as read by {@link EnregexSidecar},
+	 * rather than allocated by these columns.
+	 */
+	private final boolean mapped;
+	/**
+	 * Frees a direct buffer, or null if this is not possible on this JVM, in
+	 * which case the buffers are left to the garbage collector.
+	 */
+	private static final Method CLEANER;
+	private static final Object UNSAFE;
+	static {
+		Method cleaner = null;
+		Object unsafe = null;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field field = c.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			cleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			cleaner = null;
+		}
+		CLEANER = cleaner;
+		UNSAFE = unsafe;
+	}
+	/**
+	 * Creates storage for the positions 0 to {@code size - 1}.
+	 */
+	EnregexMetadataColumns(EnregexType type, int size) {
+		this(type, new ByteBuffer[(size + BLOCK_SIZE - 1) >>> BLOCK_BITS], 4,
+				false);
+	}
+	/**
+	 * Reads the positions from the given blocks, each of which holds the
+	 * records of {@link #BLOCK_SIZE} positions (except the last, which may
+	 * hold fewer).
+	 */
+	EnregexMetadataColumns(EnregexType type, ByteBuffer[] blocks, int width,
+			boolean mapped) {
+		this.type = type;
+		this.parens = type.parens.size();
+		this.width = width;
+		this.stride = stride(type, width);
+		this.blocks = blocks;
+		this.mapped = mapped;
+	}
+	/**
+	 * @return the number of bytes in each record for the given type and count
+	 *         width
+	 */
+	static int stride(EnregexType type, int width) {
+		return 1 + width * (1 + type.parens.size());
+	}
+	/**
+	 * Writes the record of the given metadata at the position of the given
+	 * buffer, advancing it.
+	 *
+	 * @return false if one of its counts does not fit in the given width, in
+	 *         which case the record is not completely written
+	 */
+	static boolean put(ByteBuffer buffer, EnregexMetadata metadata,
+			int width) {
+		buffer.put((byte) metadata.quoteType());
+		if (!put(buffer, metadata.slashCount(), width)) return false;
+		for (int i = 0; i < metadata.type.parens.size(); i++)
+			if (!put(buffer, metadata.parenDepth(i), width)) return false;
+		return true;
+	}
+	private static boolean put(ByteBuffer buffer, int value, int width) {
+		switch (width) {
+			case 1:
+				buffer.put((byte) value);
+				return value == (byte) value;
+			case 2:
+				buffer.putShort((short) value);
+				return value == (short) value;
+			default:
+				buffer.putInt(value);
+				return true;
+		}
+	}
+	private void set(ByteBuffer block, int at, int value) {
+		switch (width) {
+			case 1:
+				block.put(at, (byte) value);
+				break;
+			case 2:
+				block.putShort(at, (short) value);
+				break;
+			default:
+				block.putInt(at, value);
+				break;
+		}
+	}
+	private int get(ByteBuffer block, int at) {
+		switch (width) {
+			case 1:
+				return block.get(at);
+			case 2:
+				return block.getShort(at);
+			default:
+				return block.getInt(at);
+		}
+	}
+	/**
+	 * @return whether the blocks are views of a file, which cannot be written
+	 *         to or freed
+	 */
+	boolean mapped() {
+		return mapped;
+	}
+	/**
+	 * Stores the metadata of the given position, in blocks that are not
+	 * mapped, whose counts then fit in their width.
+	 */
+	void set(int position, EnregexMetadata metadata) {
+		assert !mapped;
+		ByteBuffer block = blocks[position >>> BLOCK_BITS];
+		if (block == null)
+			block = blocks[position >>> BLOCK_BITS] = ByteBuffer
+					.allocateDirect(BLOCK_SIZE * stride);
+		int at = (position & BLOCK_SIZE - 1) * stride;
+		block.put(at, (byte) metadata.quoteType());
+		set(block, at + 1, metadata.slashCount());
+		for (int i = 0; i < parens; i++)
+			set(block, at + 1 + width * (i + 1), metadata.parenDepth(i));
+	}
+	EnregexMetadata get(int position) {
+		ByteBuffer block = blocks[position >>> BLOCK_BITS];
+		int at = (position & BLOCK_SIZE - 1) * stride;
+		int[] parencounts = new int[parens];
+		for (int i = 0; i < parens; i++)
+			parencounts[i] = get(block, at + 1 + width * (i + 1));
+		return new EnregexMetadata(type, parencounts, block.get(at), get(
+				block, at + 1));
+	}
+	/**
+	 * @return the quote type of the given position, as in {@link #get(int)},
+	 *         read without building its metadata
+	 */
+	int quoteType(int position) {
+		return blocks[position >>> BLOCK_BITS].get((position & BLOCK_SIZE - 1)
+				* stride);
+	}
+	/**
+	 * @return the slash count of the given position, as in {@link #get(int)}
+	 */
+	int slashCount(int position) {
+		return get(blocks[position >>> BLOCK_BITS], (position & BLOCK_SIZE - 1)
+				* stride + 1);
+	}
+	/**
+	 * @return the depth of the given paren type at the given position, as in
+	 *         {@link #get(int)}
+	 */
+	int parenDepth(int position, int parenType) {
+		return get(blocks[position >>> BLOCK_BITS], (position & BLOCK_SIZE - 1)
+				* stride + 1 + width * (parenType + 1));
+	}
+	/**
+	 * Frees the blocks that have been allocated. Positions stored afterwards
+	 * are stored in newly allocated blocks. Mapped blocks are left as they
+	 * are.
+	 */
+	void close() {
+		if (mapped) return;
+		for (ByteBuffer block : blocks) {
+			if (block == null || CLEANER == null) continue;
+			try {
+				CLEANER.invoke(UNSAFE, block);
+			} catch (ReflectiveOperationException e) {
+				// Left to the garbage collector
+			}
+		}
+		Arrays.fill(blocks, null);
+	}
+}
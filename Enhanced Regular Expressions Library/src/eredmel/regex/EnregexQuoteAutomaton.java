@@ -0,0 +1,75 @@
+package eredmel.regex;
+
+/**
+ * The part of the {@link EnregexMetadata} of a position that quote assertions
+ * depend on, namely the quote the position is in and whether it follows an odd
+ * number of slashes, as a finite automaton over the characters of the text.
+ * <p>
+ * Its states are small integers, so that they can be made part of the states
+ * of other automata, which can then run quote assertions in the same pass as
+ * the rest of the pattern, without the metadata of every position.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class EnregexQuoteAutomaton {
+	private final EnregexType type;
+	/**
+	 * The number of states.
+	 */
+	final int states;
+	/**
+	 * The state after each ASCII character from each state, indexed by state
+	 * times 128 plus the character.
+	 */
+	private final byte[] ascii;
+	EnregexQuoteAutomaton(EnregexType type) {
+		this.type = type;
+		this.states = state(type.quotes.size(), 0);
+		this.ascii = new byte[states * 128];
+		for (int state = 0; state < states; state++)
+			for (char ch = 0; ch < 128; ch++)
+				ascii[state * 128 + ch] = (byte) step(state, ch);
+	}
+	/**
+	 * @return the state of the given metadata
+	 */
+	static int of(EnregexMetadata metadata) {
+		return of(metadata.quoteType(), metadata.slashCount());
+	}
+	/**
+	 * @return the state of metadata with the given quote type and slash count
+	 */
+	static int of(int quoteType, int slashCount) {
+		return state(quoteType, slashCount % 2);
+	}
+	private static int state(int quoteType, int slashes) {
+		return 2 * (quoteType + 1) + slashes;
+	}
+	/**
+	 * @return the state after the given character, as given by
+	 *         {@link EnregexMetadata#next(char)}
+	 */
+	int next(int state, char next) {
+		return next < 128 ? ascii[state * 128 + next] : step(state, next);
+	}
+	private int step(int state, char next) {
+		if (next == '\\') return state ^ 1;
+		int quoteType = state / 2 - 1, slashes = state % 2;
+		if (quoteType >= 0)
+			return type.quotes.get(quoteType).closeMatches(next, slashes) ? state(
+					-1, 0) : state(quoteType, 0);
+		for (int i = 0; i < type.quotes.size(); i++)
+			if (type.quotes.get(i).openMatches(next, slashes))
+				return state(i, 0);
+		return state(-1, 0);
+	}
+	/**
+	 * @return whether a quote assertion for the quote type with the given
+	 *         index holds in the given state, as given by
+	 *         {@link EnregexMetadata#quoteTypeMatches(boolean, int)}
+	 */
+	static boolean matches(int state, int quoteType, boolean positive) {
+		return (state / 2 - 1 == quoteType) == positive;
+	}
+}
@@ -0,0 +1,63 @@
+package eredmel.regex;
+
+/**
+ * A precomputed table of the maximal runs of positions of a window of an
+ * {@link EnregexSegment} that are in a given quote type (as in
+ * {@link EnregexMetadata#quoteType()}). It allows the next
+ * position satisfying an enregex quote assertion to be found with a binary
+ * search rather than by testing every position.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class EnregexQuoteTable {
+	/**
+	 * The starts (inclusive) and ends (exclusive) of the runs of positions
+	 * that are in the quote type, in ascending order.
+	 */
+	private final int[] starts, ends;
+	/**
+	 * One more than the last position of the window.
+	 */
+	private final int limit;
+	/**
+	 * Creates the table for the positions {@code from} to {@code to} of the
+	 * segment, inclusive.
+	 */
+	EnregexQuoteTable(EnregexSegment segment, int quoteType, int from, int to) {
+		int n = limit = to + 1;
+		int count = 0;
+		boolean in = false;
+		for (int k = from; k < n; k++) {
+			boolean now = segment.quoteTypeAt(k) == quoteType;
+			if (now && !in) count++;
+			in = now;
+		}
+		starts = new int[count];
+		ends = new int[count];
+		count = 0;
+		in = false;
+		for (int k = from; k < n; k++) {
+			boolean now = segment.quoteTypeAt(k) == quoteType;
+			if (now && !in) starts[count] = k;
+			if (!now && in) ends[count++] = k;
+			in = now;
+		}
+		if (in) ends[count] = n;
+	}
+	/**
+	 * @return the first position at or after {@code from} that is in the
+	 *         quote type (if {@code positive}) or is not in it (otherwise), or
+	 *         one more than the last position of the window if there is none
+	 */
+	int next(int from, boolean positive) {
+		// The last run starting at or before from
+		int run = EnregexBracketTable.floorIndex(starts, from);
+		boolean inRun = run >= 0 && from < ends[run];
+		if (positive) {
+			if (inRun) return from;
+			return run + 1 < starts.length ? starts[run + 1] : limit;
+		}
+		return inRun ? ends[run] : from;
+	}
+}
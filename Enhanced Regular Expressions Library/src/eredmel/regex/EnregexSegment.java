@@ -5,52 +5,422 @@ import java.util.logging.Logger;
 
 // TODO allow for smarter lazy evaluation
 public class EnregexSegment implements CharSequence {
+	/**
+	 * The spacing, in positions of the backing text, of the cached metadata
+	 * checkpoints.
+	 */
+	private static final int CHECKPOINT_INTERVAL = 1024;
+	/**
+	 * The length above which the metadata of a backing text is kept in
+	 * {@link EnregexMetadataColumns} instead of on the heap. This can be set
+	 * with the {@code eredmel.regex.heapMetadataLimit} system property.
+	 */
+	static final int HEAP_METADATA_LIMIT = Integer.getInteger(
+			"eredmel.regex.heapMetadataLimit", 1 << 20);
 	private final CharSequence backing;
 	public final EnregexType type;
+	/**
+	 * The metadata of the positions {@link #computedFrom} to
+	 * {@link #computedTo} of the backing text, inclusive, indexed from
+	 * computedFrom. Null if none has been computed or if {@link #columns} is
+	 * used instead.
+	 */
 	private EnregexMetadata[] metadata;
-	private boolean compiled;
+	/**
+	 * The metadata array of a segment that is no longer used, which
+	 * {@link #metadata} is computed into if it is large enough, or null.
+	 */
+	private EnregexMetadata[] spare;
+	/**
+	 * The metadata of the positions of the backing text, indexed by position,
+	 * for backing texts that are too large to keep it on the heap (those longer
+	 * than {@link #HEAP_METADATA_LIMIT}, or those that are themselves kept off
+	 * the heap), or as read from an {@link EnregexSidecar}. Null if
+	 * {@link #metadata} is used instead.
+	 */
+	private EnregexMetadataColumns columns;
+	/**
+	 * Whether {@link #columns} are used rather than {@link #metadata}, in
+	 * which case they are allocated once metadata is first computed.
+	 */
+	private final boolean offHeap;
+	private int computedFrom = 0, computedTo = -1;
+	/**
+	 * The metadata of every {@link #CHECKPOINT_INTERVAL}th position of the
+	 * backing text that has been reached by scanning from its start. This is
+	 * shared by all the segments of the same text, and is allocated once
+	 * metadata is first computed.
+	 */
+	private EnregexMetadata[] checkpoints;
+	/**
+	 * A caller-supplied metadata for the position {@link #seedAt} of the
+	 * backing text, which is used instead of scanning up to it, or null.
+	 */
+	private EnregexMetadata seed;
+	private int seedAt;
+	/**
+	 * The positions (relative to this segment) over which metadata and tables
+	 * are computed.
+	 */
+	private int windowStart, windowEnd;
 	private final int start, end;
+	/**
+	 * The backing text, if it keeps its own metadata for this segment's type,
+	 * or null.
+	 */
+	private final EnregexText annotated;
+	/**
+	 * The number of edits made to {@link #annotated} when this segment was
+	 * created.
+	 */
+	private final int edits;
+	/**
+	 * The bracket tables of this segment, indexed by paren type. Computed
+	 * lazily.
+	 */
+	private EnregexBracketTable[] bracketTables;
+	/**
+	 * The quote tables of this segment, indexed by quote type plus one (so
+	 * that the unquoted state, -1, has a table). Computed lazily.
+	 */
+	private EnregexQuoteTable[] quoteTables;
 	private EnregexSegment(CharSequence str, EnregexType type,
-			EnregexMetadata[] metadata, int start, int end) {
+			EnregexMetadata[] checkpoints, EnregexMetadata seed, int seedAt,
+			int start, int end) {
 		this.backing = str;
 		this.type = type;
-		this.metadata = metadata;
-		this.compiled = metadata != null;
+		this.checkpoints = checkpoints;
+		this.seed = seed;
+		this.seedAt = seedAt;
 		this.start = start;
 		this.end = end;
+		this.windowStart = 0;
+		this.windowEnd = end - start;
+		this.annotated = str instanceof EnregexText
+				&& ((EnregexText) str).type.equals(type) ? (EnregexText) str
+				: null;
+		this.edits = annotated == null ? 0 : annotated.edits();
+		EnregexMetadataColumns stored = str instanceof ByteText ? ((ByteText) str)
+				.metadata(type) : null;
+		if (stored != null
+				&& (seed == null || seed.equals(stored.get(seedAt)))) {
+			this.columns = stored;
+			this.computedTo = str.length();
+		}
+		this.offHeap = columns != null || offHeap(str);
 	}
 	public static EnregexSegment getInstance(CharSequence str, EnregexType type) {
-		return new EnregexSegment(str, type, null, 0, str.length());
-	}
-	private void compile() {
-		if (compiled) return;
-		compiled = true;
-		metadata = new EnregexMetadata[backing.length() + 1];
-		metadata[0] = EnregexMetadata.startOfString(type);
-		for (int i = 1; i < metadata.length; i++) {
-			metadata[i] = metadata[i - 1].next(backing.charAt(i - 1));
+		return new EnregexSegment(str, type, null, null, 0, 0, str.length());
+	}
+	/**
+	 * @return a segment of the given text, which computes its metadata into
+	 *         the buffers of the given segment, which is no longer used
+	 */
+	static EnregexSegment getInstance(CharSequence str, EnregexType type,
+			EnregexSegment recycled) {
+		EnregexSegment segment = getInstance(str, type);
+		if (!segment.offHeap)
+			segment.spare = recycled.metadata != null ? recycled.metadata
+					: recycled.spare;
+		return segment;
+	}
+	/**
+	 * @return the checkpoints of the backing text, allocating them if this is
+	 *         the first time they are needed
+	 */
+	private EnregexMetadata[] checkpoints() {
+		if (checkpoints == null) {
+			checkpoints = new EnregexMetadata[backing.length()
+					/ CHECKPOINT_INTERVAL + 1];
+			checkpoints[0] = EnregexMetadata.startOfString(type);
+		}
+		return checkpoints;
+	}
+	/**
+	 * @return whether the metadata of the given text should be kept off the
+	 *         heap
+	 */
+	private static boolean offHeap(CharSequence str) {
+		return str.length() > HEAP_METADATA_LIMIT || str instanceof ByteText
+				&& ((ByteText) str).offHeap();
+	}
+	/**
+	 * @return whether the backing text has been edited since this segment was
+	 *         created
+	 */
+	boolean stale() {
+		return annotated != null && annotated.edits() != edits;
+	}
+	/**
+	 * Restricts the positions over which metadata is computed to those from
+	 * {@code from} to {@code to}, inclusive. Positions outside of this window
+	 * are still computed if they are asked for.
+	 *
+	 * @param startState
+	 *        the metadata at {@code from}, or null to compute it by scanning
+	 *        from the nearest cached checkpoint. Metadata before {@code from}
+	 *        is always computed by scanning from the start of the text.
+	 */
+	void setWindow(int from, int to, EnregexMetadata startState) {
+		if (startState != seed || startState != null
+				&& from + start != seedAt) {
+			seed = startState;
+			seedAt = from + start;
+			metadata = null;
+			computedTo = -1;
+			if (columns != null && columns.mapped()) {
+				if (seed == null || seed.equals(columns.get(seedAt))) {
+					computedFrom = 0;
+					computedTo = backing.length();
+				} else columns = new EnregexMetadataColumns(type,
+						backing.length() + 1);
+			}
+			bracketTables = null;
+			quoteTables = null;
+		}
+		if (from != windowStart || to != windowEnd) {
+			windowStart = from;
+			windowEnd = to;
+			bracketTables = null;
+			quoteTables = null;
 		}
 	}
+	/**
+	 * Widens the window to include the given position, if necessary.
+	 */
+	private void cover(int index) {
+		if (index >= windowStart && index <= windowEnd) return;
+		windowStart = Math.min(windowStart, index);
+		windowEnd = Math.max(windowEnd, index);
+		bracketTables = null;
+		quoteTables = null;
+	}
+	/**
+	 * Computes the metadata of the positions {@code from} to {@code to} of the
+	 * backing text, inclusive, starting from the closest position before them
+	 * whose metadata is known.
+	 */
+	private void compute(int from, int to) {
+		EnregexMetadata[] checkpoints = checkpoints();
+		if (offHeap && columns == null)
+			columns = new EnregexMetadataColumns(type, backing.length() + 1);
+		int k = from / CHECKPOINT_INTERVAL;
+		while (checkpoints[k] == null)
+			k--;
+		int known = k * CHECKPOINT_INTERVAL;
+		EnregexMetadata state = checkpoints[k];
+		if (seed != null && seedAt <= from && seedAt >= known) {
+			known = seedAt;
+			state = seed;
+		}
+		if (computedFrom <= from && computedTo >= known) {
+			known = Math.min(from, computedTo);
+			state = stored(known);
+		}
+		for (; known < from; known++)
+			state = step(state, known);
+		if (columns != null) {
+			// Only the positions that have not been computed are written
+			if (!computed(from)) columns.set(from, state);
+			for (int i = from + 1; i <= to; i++) {
+				if (computed(i)) {
+					state = null;
+					continue;
+				}
+				if (state == null) state = columns.get(i - 1);
+				state = step(state, i - 1);
+				columns.set(i, state);
+			}
+			if (computedTo < from - 1 || computedFrom > to + 1) {
+				computedFrom = from;
+				computedTo = to;
+			} else {
+				computedFrom = Math.min(computedFrom, from);
+				computedTo = Math.max(computedTo, to);
+			}
+			return;
+		}
+		EnregexMetadata[] computed = spare != null
+				&& spare.length > to - from ? spare
+				: new EnregexMetadata[to - from + 1];
+		spare = null;
+		computed[0] = state;
+		for (int i = from + 1; i <= to; i++) {
+			computed[i - from] = computed(i) ? metadata[i - computedFrom]
+					: step(computed[i - from - 1], i - 1);
+		}
+		metadata = computed;
+		computedFrom = from;
+		computedTo = to;
+	}
+	private boolean computed(int position) {
+		return computedFrom <= position && position <= computedTo;
+	}
+	/**
+	 * @return the metadata of a position of the backing text that has been
+	 *         computed
+	 */
+	private EnregexMetadata stored(int position) {
+		return columns == null ? metadata[position - computedFrom] : columns
+				.get(position);
+	}
+	/**
+	 * @return the metadata after the character at the given position of the
+	 *         backing text, given the metadata before it
+	 */
+	private EnregexMetadata step(EnregexMetadata state, int position) {
+		EnregexMetadata next = state.next(backing.charAt(position));
+		int after = position + 1;
+		if (seed != null && after >= seedAt)
+			return after == seedAt ? seed : next;
+		if (after % CHECKPOINT_INTERVAL == 0)
+			checkpoints[after / CHECKPOINT_INTERVAL] = next;
+		return next;
+	}
+	/**
+	 * Discards the metadata and tables computed so far, freeing any that are
+	 * kept off the heap. They are recomputed if they are asked for again.
+	 * Metadata read from a sidecar is kept.
+	 */
+	void close() {
+		if (columns != null && columns.mapped()) return;
+		if (columns != null) columns.close();
+		metadata = null;
+		computedFrom = 0;
+		computedTo = -1;
+		bracketTables = null;
+		quoteTables = null;
+	}
 	public boolean parensMatch(int i, int j, int closeParen) {
-		if (!metadataAt(i).equalParenState(metadataAt(j), closeParen))
-			return false;
+		int parenType = type.parenType(closeParen);
+		int depth = parenDepthAt(i, parenType);
+		if (depth != parenDepthAt(j, parenType)) return false;
 		Logger.getGlobal().log(Level.FINE, "Equal Paren State");
 		for (int k = i + 1; k < j; k++) {
-			if (!metadataAt(k).greaterOrEqualParenState(metadataAt(i),
-					closeParen)) return false;
+			if (parenDepthAt(k, parenType) < depth) return false;
 		}
 		return true;
 	}
+	/**
+	 * @return the bracket table for the given paren type, covering at least
+	 *         the given position
+	 */
+	EnregexBracketTable bracketTable(int parenType, int position) {
+		cover(position);
+		if (bracketTables == null)
+			bracketTables = new EnregexBracketTable[type.parens.size()];
+		if (bracketTables[parenType] == null)
+			bracketTables[parenType] = new EnregexBracketTable(this,
+					parenType, windowStart, windowEnd);
+		return bracketTables[parenType];
+	}
+	/**
+	 * @return the first location at or after {@code from} at which
+	 *         {@link #quoteTypeMatches(int, boolean, int)} holds, or
+	 *         one more than the end of the window if there is none
+	 */
+	int nextQuoteTypeMatch(int from, boolean positive, int openQuote) {
+		cover(from);
+		int quoteType = type.quoteType(openQuote);
+		if (quoteTables == null)
+			quoteTables = new EnregexQuoteTable[type.quotes.size() + 1];
+		if (quoteTables[quoteType + 1] == null)
+			quoteTables[quoteType + 1] = new EnregexQuoteTable(this,
+					quoteType, windowStart, windowEnd);
+		return quoteTables[quoteType + 1].next(from, positive);
+	}
+	/**
+	 * @return the state of the {@link EnregexQuoteAutomaton} at the given
+	 *         position, found by running it from the closest position before
+	 *         it whose metadata is known, so that the metadata of the window
+	 *         need not be computed
+	 */
+	int quoteStateAt(int index) {
+		int position = index + start;
+		if (annotated != null || computed(position))
+			return EnregexQuoteAutomaton.of(quoteTypeAt(index),
+					slashCountAt(index));
+		EnregexMetadata[] checkpoints = checkpoints();
+		int k = position / CHECKPOINT_INTERVAL;
+		while (checkpoints[k] == null)
+			k--;
+		int known = k * CHECKPOINT_INTERVAL;
+		EnregexMetadata state = checkpoints[k];
+		if (seed != null && seedAt <= position && seedAt >= known) {
+			known = seedAt;
+			state = seed;
+		}
+		if (computedTo < position && computedTo >= known) {
+			known = computedTo;
+			state = stored(known);
+		}
+		EnregexQuoteAutomaton automaton = type.quoteAutomaton();
+		int quote = EnregexQuoteAutomaton.of(state);
+		for (; known < position; known++)
+			quote = automaton.next(quote, backing.charAt(known));
+		return quote;
+	}
 	public boolean quoteTypeMatches(int loc, boolean positive, int openQuote) {
-		return metadataAt(loc).quoteTypeMatches(positive, openQuote);
+		return (quoteTypeAt(loc) == type.quoteType(openQuote)) == positive;
 	}
 	@Override
 	public char charAt(int index) {
 		return backing.charAt(index + start);
 	}
 	public EnregexMetadata metadataAt(int index) {
-		compile();
-		return metadata[index + start];
+		int position = index + start;
+		if (annotated != null) return annotated.metadataAt(position);
+		reach(position);
+		return stored(position);
+	}
+	/**
+	 * @return the depth of the given paren type before the character at the
+	 *         given index, as in {@link #metadataAt(int)}, read from the
+	 *         columns without building the metadata if they are used
+	 */
+	int parenDepthAt(int index, int parenType) {
+		int position = index + start;
+		if (annotated != null)
+			return annotated.parenDepthAt(position, parenType);
+		reach(position);
+		if (columns != null) return columns.parenDepth(position, parenType);
+		return metadata[position - computedFrom].parenDepth(parenType);
+	}
+	/**
+	 * @return the quote type before the character at the given index, as in
+	 *         {@link #parenDepthAt(int, int)}
+	 */
+	int quoteTypeAt(int index) {
+		int position = index + start;
+		if (annotated != null) return annotated.quoteTypeAt(position);
+		reach(position);
+		if (columns != null) return columns.quoteType(position);
+		return metadata[position - computedFrom].quoteType();
+	}
+	/**
+	 * @return the slash count before the character at the given index, as in
+	 *         {@link #parenDepthAt(int, int)}
+	 */
+	int slashCountAt(int index) {
+		int position = index + start;
+		if (annotated != null) return annotated.slashCountAt(position);
+		reach(position);
+		if (columns != null) return columns.slashCount(position);
+		return metadata[position - computedFrom].slashCount();
+	}
+	/**
+	 * Computes the metadata of the given position of the backing text, if it
+	 * has not been computed.
+	 */
+	private void reach(int position) {
+		if (computed(position)) return;
+		int from = windowStart + start, to = windowEnd + start;
+		// Reads past the window (by lookahead, or by a match running past the
+		// end of the region) compute as far again ahead, so that reading on
+		// computes each position only a few times
+		if (position > to) to = (int) Math.max(position, Math.min(end,
+				2L * position - from));
+		compute(Math.min(position, from), to);
 	}
 	@Override
 	public int length() {
@@ -58,8 +428,28 @@ public class EnregexSegment implements CharSequence {
 	}
 	@Override
 	public EnregexSegment subSequence(int start, int end) {
-		return new EnregexSegment(backing, type, metadata,
-				this.start + start, this.start + end);
+		return subSequence(start, end, null);
+	}
+	/**
+	 * Returns a subsequence of this segment whose metadata is only computed
+	 * over the subsequence.
+	 *
+	 * @param startState
+	 *        the metadata at {@code start}, or null to use the metadata this
+	 *        segment has already computed or the nearest cached checkpoint
+	 */
+	public EnregexSegment subSequence(int start, int end,
+			EnregexMetadata startState) {
+		int from = this.start + start;
+		EnregexMetadata seed = this.seed;
+		int seedAt = this.seedAt;
+		if (startState == null && computed(from)) startState = stored(from);
+		if (startState != null) {
+			seed = startState;
+			seedAt = from;
+		}
+		return new EnregexSegment(backing, type, checkpoints(), seed, seedAt,
+				from, this.start + end);
 	}
 	@Override
 	public String toString() {
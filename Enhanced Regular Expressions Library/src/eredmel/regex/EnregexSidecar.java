@@ -0,0 +1,195 @@
+package eredmel.regex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Sidecar files holding the {@link EnregexMetadata} of every position of a
+ * file, so that matching the same file again does not recompute it.
+ * <p>
+ * A sidecar starts with a header identifying the format version, the
+ * {@link EnregexType}, the charset, and the size and SHA-256 digest of the
+ * file it describes, and the number of bytes in each count. It is followed by
+ * one record per position, in the layout of {@link EnregexMetadataColumns},
+ * which are mapped into memory and read in place when the sidecar is loaded.
+ * The counts take one byte each if they fit, and otherwise two or four. A
+ * sidecar whose header does not match the file is ignored.
+ *
+ * @author Kavi Gupta
+ *
+ */
+public final class EnregexSidecar {
+	private static final int MAGIC = 0x456E5278;
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 1 << 20;
+	/**
+	 * The number of bytes in a SHA-256 digest.
+	 */
+	private static final int DIGEST_LENGTH = 32;
+	private EnregexSidecar() {}
+	/**
+	 * Computes the metadata of the given file, which is in the given charset,
+	 * and writes it to the given sidecar file. The sidecar is written to a
+	 * temporary file first, so readers never see a partial sidecar.
+	 *
+	 * @throws IOException
+	 *         if the file cannot be read or the sidecar cannot be written
+	 * @throws IllegalArgumentException
+	 *         if the charset is not ISO-8859-1, US-ASCII or UTF-8
+	 */
+	public static void write(Path file, Charset charset, EnregexType type,
+			Path sidecar) throws IOException {
+		CharSequence text = MappedText.open(file, charset);
+		if (!(text instanceof ByteText))
+			throw new IllegalArgumentException("Unsupported charset "
+					+ charset);
+		write((ByteText) text, type, sidecar, new Header((ByteText) text,
+				charset, type));
+	}
+	static void write(ByteText text, EnregexType type, Path sidecar,
+			Header header) throws IOException {
+		Path directory = sidecar.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(directory, sidecar.getFileName()
+				.toString(), ".tmp");
+		try {
+			byte[] fields = header.fields, digest = header.digest();
+			try (FileChannel channel = FileChannel.open(temp,
+					StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+				for (int width = 1;; width *= 2) {
+					channel.truncate(0);
+					buffer.clear();
+					buffer.put(fields).putInt(digest.length).put(digest);
+					buffer.put((byte) width);
+					if (writeRecords(channel, buffer, text, type, width))
+						break;
+				}
+			}
+			Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+	/**
+	 * Writes the records of the given text, flushing the buffer as it fills.
+	 *
+	 * @return false if a count does not fit in the given width
+	 */
+	private static boolean writeRecords(FileChannel channel,
+			ByteBuffer buffer, ByteText text, EnregexType type, int width)
+			throws IOException {
+		int stride = EnregexMetadataColumns.stride(type, width);
+		EnregexMetadata state = EnregexMetadata.startOfString(type);
+		for (int i = 0; i <= text.length(); i++) {
+			if (buffer.remaining() < stride) flush(channel, buffer);
+			if (!EnregexMetadataColumns.put(buffer, state, width))
+				return false;
+			if (i < text.length()) state = state.next(text.charAt(i));
+		}
+		flush(channel, buffer);
+		return true;
+	}
+	/**
+	 * Reads the metadata of the given text from the given sidecar file, if it
+	 * exists and has the given header, so that matchers over the text use it.
+	 * The text is only hashed if the rest of the header, and the size of the
+	 * sidecar, match.
+	 *
+	 * @return whether the metadata was read
+	 */
+	static boolean load(ByteText text, EnregexType type, Path sidecar,
+			Header header) throws IOException {
+		if (!Files.isRegularFile(sidecar)) return false;
+		byte[] fields = header.fields;
+		try (FileChannel channel = FileChannel.open(sidecar,
+				StandardOpenOption.READ)) {
+			ByteBuffer stored = ByteBuffer.allocate(fields.length + 4
+					+ DIGEST_LENGTH + 1);
+			while (stored.hasRemaining())
+				if (channel.read(stored) < 0) return false;
+			if (!Arrays.equals(Arrays.copyOf(stored.array(), fields.length),
+					fields)) return false;
+			if (stored.getInt(fields.length) != DIGEST_LENGTH) return false;
+			int width = stored.get(stored.capacity() - 1);
+			if (width != 1 && width != 2 && width != 4) return false;
+			int stride = EnregexMetadataColumns.stride(type, width);
+			long records = (long) (text.length() + 1) * stride;
+			if (channel.size() != stored.capacity() + records) return false;
+			int digest = fields.length + 4;
+			if (!Arrays.equals(Arrays.copyOfRange(stored.array(), digest,
+					digest + DIGEST_LENGTH), header.digest())) return false;
+			long blockSize = (long) EnregexMetadataColumns.BLOCK_SIZE * stride;
+			int perChunk = (int) Math.max(1, (1 << 30) / blockSize);
+			ByteBuffer[] chunks = MappedText.map(channel, stored.capacity(),
+					records, perChunk * blockSize);
+			ByteBuffer[] blocks = new ByteBuffer[(int) ((records + blockSize - 1) / blockSize)];
+			for (int i = 0; i < blocks.length; i++) {
+				ByteBuffer block = chunks[i / perChunk].duplicate();
+				int at = (int) (i % perChunk * blockSize);
+				block.position(at);
+				block.limit((int) Math.min(block.capacity(), at + blockSize));
+				blocks[i] = block.slice();
+			}
+			text.setMetadata(new EnregexMetadataColumns(type, blocks, width,
+					true));
+			return true;
+		}
+	}
+	/**
+	 * The header of the sidecar of a text, whose digest is only computed once
+	 * it is needed, and then only once.
+	 */
+	static final class Header {
+		private final ByteText text;
+		/**
+		 * The fields of the header before the digest, which end with the size
+		 * and length of the text.
+		 */
+		final byte[] fields;
+		private byte[] digest;
+		Header(ByteText text, Charset charset, EnregexType type) {
+			this.text = text;
+			byte[] name = charset.name().getBytes(StandardCharsets.US_ASCII);
+			int pairs = type.parens.size() + type.quotes.size();
+			ByteBuffer fields = ByteBuffer.allocate(4 * 4 + 5 * pairs + 4
+					+ name.length + 8 + 4);
+			fields.putInt(MAGIC).putInt(VERSION);
+			fields.putInt(type.parens.size()).putInt(type.quotes.size());
+			for (SymbolPair pair : type.parens)
+				putPair(fields, pair);
+			for (SymbolPair pair : type.quotes)
+				putPair(fields, pair);
+			fields.putInt(name.length).put(name);
+			fields.putLong(text.size()).putInt(text.length());
+			this.fields = fields.array();
+		}
+		/**
+		 * @return the SHA-256 digest of the text
+		 */
+		byte[] digest() {
+			if (digest == null) digest = text.digest();
+			return digest;
+		}
+	}
+	private static void putPair(ByteBuffer header, SymbolPair pair) {
+		header.putChar(pair.open).putChar(pair.close);
+		header.put((byte) ((pair.openEscaped ? 1 : 0) | (pair.closeEscaped ? 2
+				: 0)));
+	}
+	private static void flush(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+}
@@ -1,63 +1,195 @@
 package eredmel.regex;
 
-import java.util.HashMap;
-import java.util.TreeSet;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Arrays;
 
 /**
  * The State of an Enregex matcher. This will contain all the open matched paren
  * assertions in existence.
- * 
+ *
  * @author Kavi Gupta
  *
  */
 class EnregexSystem {
 	/**
-	 * A map mapping close parenthesis characters to the locations at which
-	 * open assertions of matched parenthesis take place in the matcher string.
+	 * The initial capacity of each of the paren stacks.
+	 */
+	private static final int INITIAL_CAPACITY = 8;
+	/**
+	 * For each paren type (as given by {@link EnregexType#parenType(int)}), a
+	 * stack of the locations at which open assertions of matched parenthesis
+	 * take place in the matcher string. The top of the stack is the most
+	 * recently opened assertion.
+	 */
+	private final int[][] openParenthesis;
+	private final int[] openCount;
+	/**
+	 * For each paren type, a stack of the locations that have been popped off
+	 * of {@link #openParenthesis} by close assertions, so that they can be
+	 * restored when the close assertion is backtracked over.
 	 */
-	private final HashMap<Integer, TreeSet<Integer>> openParenthesis;
-	private final EnregexSegment matchingString;
+	private final int[][] closedParenthesis;
+	private final int[] closedCount;
+	private CharSequence text;
+	private EnregexSegment matchingString;
 	final EnregexType type;
+	/**
+	 * The last location at which the state of the
+	 * {@link EnregexQuoteAutomaton} is known, and the state there, or -1.
+	 */
+	private int quoteAt = -1, quoteState;
 	/**
 	 * Creates an EnregexSystem with the given matching string suppplier and
 	 * quote system.
 	 */
 	EnregexSystem(CharSequence text, EnregexType type) {
-		this.openParenthesis = new HashMap<>();
+		int parens = type.parens.size();
+		this.openParenthesis = new int[parens][INITIAL_CAPACITY];
+		this.openCount = new int[parens];
+		this.closedParenthesis = new int[parens][INITIAL_CAPACITY];
+		this.closedCount = new int[parens];
+		this.text = text;
 		this.matchingString = EnregexSegment.getInstance(text, type);
 		this.type = type;
 	}
-	private TreeSet<Integer> set(int close) {
-		if (!openParenthesis.containsKey(close))
-			openParenthesis.put(close, new TreeSet<>());
-		return openParenthesis.get(close);
+	/**
+	 * Starts matching the given text instead, keeping the stacks of this
+	 * system and the buffers its metadata was computed in.
+	 */
+	void reset(CharSequence text) {
+		this.text = text;
+		EnregexSegment old = matchingString;
+		matchingString = EnregexSegment.getInstance(text, type, old);
+		old.close();
+		quoteAt = -1;
+	}
+	/**
+	 * Discards all open and closed assertions. Called at the start of each
+	 * match operation.
+	 */
+	void clear() {
+		Arrays.fill(openCount, 0);
+		Arrays.fill(closedCount, 0);
 	}
 	/**
 	 * Adds a parenthesis to the record, along with a location in the string
 	 * for the parenthesis.
 	 */
 	void addParen(int open, int location) {
-		int close = type.matching(open);
-		set(close).add(location);
+		push(openParenthesis, openCount, type.parenType(type.matching(open)),
+				location);
 	}
+	/**
+	 * Removes the most recently added parenthesis of the given type.
+	 *
+	 * @return the location of the removed parenthesis, or -1 if there was no
+	 *         such parenthesis
+	 */
 	int popParen(int close) {
-		return set(close).pollLast();
+		int parenType = type.parenType(close);
+		if (parenType < 0 || openCount[parenType] == 0) return -1;
+		return openParenthesis[parenType][--openCount[parenType]];
+	}
+	/**
+	 * Closes the most recently added parenthesis of the given type, remembering
+	 * its location so that {@link #uncloseParen(int)} can restore it.
+	 */
+	void closeParen(int close) {
+		int location = popParen(close);
+		if (location < 0) return;
+		push(closedParenthesis, closedCount, type.parenType(close), location);
+	}
+	/**
+	 * Undoes the most recent call to {@link #closeParen(int)} for the given
+	 * type.
+	 */
+	void uncloseParen(int close) {
+		int parenType = type.parenType(close);
+		if (parenType < 0 || closedCount[parenType] == 0) return;
+		push(openParenthesis, openCount, parenType,
+				closedParenthesis[parenType][--closedCount[parenType]]);
 	}
 	boolean parenMatches(int close, int location) {
-		Logger.getGlobal().log(Level.FINE, (char) close + "\t" + location);
-		TreeSet<Integer> open = openParenthesis.get(close);
-		if (open == null) return false;
-		if (open.size() == 0) return false;
-		return matchingString.parensMatch(open.last(), location, close);
+		int parenType = type.parenType(close);
+		if (parenType < 0 || openCount[parenType] == 0) return false;
+		return matchingString.parensMatch(
+				openParenthesis[parenType][openCount[parenType] - 1],
+				location, close);
+	}
+	/**
+	 * Restricts the computation of the metadata of the matcher string to the
+	 * given region, as in {@link EnregexSegment#setWindow}. If the matcher
+	 * string is an {@link EnregexText} that has since been edited, its
+	 * metadata is picked up again.
+	 */
+	void region(int from, int to, EnregexMetadata startState) {
+		if (matchingString.stale()) {
+			matchingString.close();
+			matchingString = EnregexSegment.getInstance(text, type);
+		}
+		matchingString.setWindow(from, to, startState);
+		quoteAt = -1;
+	}
+	/**
+	 * Frees the metadata of the matcher string, as in
+	 * {@link EnregexSegment#close()}.
+	 */
+	void close() {
+		matchingString.close();
+	}
+	EnregexBracketTable bracketTable(int close, int location) {
+		return matchingString.bracketTable(type.parenType(close), location);
+	}
+	EnregexMetadata metadataAt(int location) {
+		return matchingString.metadataAt(location);
 	}
 	boolean quoteMatches(int openQuote, boolean positive, int loc) {
 		return matchingString.quoteTypeMatches(loc, positive, openQuote);
 	}
+	/**
+	 * @return the state of the {@link EnregexQuoteAutomaton} at the given
+	 *         location, which is followed on from the last one known if it is
+	 *         before the location
+	 */
+	int quoteStateAt(int location) {
+		int state;
+		if (quoteAt < 0 || quoteAt > location)
+			state = matchingString.quoteStateAt(location);
+		else {
+			EnregexQuoteAutomaton automaton = type.quoteAutomaton();
+			state = quoteState;
+			for (int i = quoteAt; i < location; i++)
+				state = automaton.next(state, matchingString.charAt(i));
+		}
+		quoteAt = location;
+		quoteState = state;
+		return state;
+	}
+	/**
+	 * @return the first location at or after {@code from} at which
+	 *         {@link #quoteMatches(int, boolean, int)} holds
+	 */
+	int nextQuoteMatch(int openQuote, boolean positive, int from) {
+		return matchingString.nextQuoteTypeMatch(from, positive, openQuote);
+	}
+	private static void push(int[][] stacks, int[] counts, int parenType,
+			int location) {
+		if (parenType < 0) return;
+		int[] stack = stacks[parenType];
+		if (counts[parenType] == stack.length)
+			stacks[parenType] = stack = Arrays.copyOf(stack, stack.length * 2);
+		stack[counts[parenType]++] = location;
+	}
 	@Override
 	public String toString() {
-		return "EnregexSystem [openParenthesis=" + openParenthesis
+		StringBuilder open = new StringBuilder("{");
+		for (int i = 0; i < openCount.length; i++) {
+			if (i != 0) open.append(", ");
+			open.append(type.parens.get(i).close).append('=')
+					.append(Arrays.toString(Arrays.copyOf(
+							openParenthesis[i], openCount[i])));
+		}
+		open.append('}');
+		return "EnregexSystem [openParenthesis=" + open
 				+ ", matchingString=" + matchingString + ", type=" + type
 				+ "]";
 	}
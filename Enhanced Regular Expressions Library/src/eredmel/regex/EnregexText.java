@@ -0,0 +1,237 @@
+package eredmel.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A mutable text that keeps its {@link EnregexMetadata} up to date as it is
+ * edited, so that matchers created over it do not need to scan it.
+ * <p>
+ * The characters and the metadata before each position are kept in gap
+ * buffers, with the gap at the last edit. The metadata after the gap is stored
+ * relative to a base paren count, so that an edit which only changes the paren
+ * counts of the rest of the text (which is the case once the quote state after
+ * the edit is the same as before it) only has to change the base.
+ *
+ * @author Kavi Gupta
+ *
+ */
+public final class EnregexText implements CharSequence {
+	private static final int INITIAL_GAP = 16;
+	public final EnregexType type;
+	private char[] buffer;
+	/**
+	 * The metadata before each position. Positions up to {@link #gapStart} are
+	 * stored at their own index, with absolute paren counts, and later
+	 * positions are stored after the gap, with paren counts relative to
+	 * {@link #base}.
+	 */
+	private EnregexMetadata[] states;
+	private int gapStart, gapEnd;
+	/**
+	 * The paren counts to add to the metadata stored after the gap.
+	 */
+	private final int[] base;
+	/**
+	 * The number of edits that have been made to this text.
+	 */
+	private int edits;
+	public EnregexText(CharSequence text, EnregexType type) {
+		this.type = type;
+		int length = text.length();
+		buffer = new char[length + INITIAL_GAP];
+		states = new EnregexMetadata[buffer.length + 1];
+		base = new int[type.parens.size()];
+		states[0] = EnregexMetadata.startOfString(type);
+		for (int i = 0; i < length; i++) {
+			buffer[i] = text.charAt(i);
+			states[i + 1] = states[i].next(buffer[i]);
+		}
+		gapStart = length;
+		gapEnd = buffer.length;
+	}
+	/**
+	 * Inserts the given text before the given index.
+	 */
+	public void insert(int index, CharSequence text) {
+		if (index < 0 || index > length())
+			throw new IndexOutOfBoundsException("index");
+		moveGap(index);
+		ensureGap(text.length());
+		EnregexMetadata old = states[gapStart];
+		for (int i = 0; i < text.length(); i++) {
+			buffer[gapStart] = text.charAt(i);
+			states[gapStart + 1] = states[gapStart].next(buffer[gapStart]);
+			gapStart++;
+		}
+		edits++;
+		resynchronize(old);
+	}
+	/**
+	 * Deletes the characters from {@code start} (inclusive) to {@code end}
+	 * (exclusive).
+	 */
+	public void delete(int start, int end) {
+		if (start < 0 || end > length() || start > end)
+			throw new IndexOutOfBoundsException("start " + start + ", end "
+					+ end);
+		moveGap(start);
+		EnregexMetadata old = metadataAt(end);
+		gapEnd += end - start;
+		edits++;
+		resynchronize(old);
+	}
+	/**
+	 * Replaces the characters from {@code start} (inclusive) to {@code end}
+	 * (exclusive) with the given text.
+	 */
+	public void replace(int start, int end, CharSequence text) {
+		delete(start, end);
+		insert(start, text);
+	}
+	/**
+	 * @return the metadata before the character at the given index, or at the
+	 *         end of the text if {@code index == length()}
+	 */
+	public EnregexMetadata metadataAt(int index) {
+		if (index <= gapStart) return states[index];
+		return stateAfterGap(index);
+	}
+	/**
+	 * @return the depth of the given paren type before the character at the
+	 *         given index, as in {@link #metadataAt(int)}, with the base added
+	 *         here rather than to a copy of the metadata
+	 */
+	int parenDepthAt(int index, int parenType) {
+		if (index <= gapStart) return states[index].parenDepth(parenType);
+		return stored(index).parenDepth(parenType) + base[parenType];
+	}
+	/**
+	 * @return the quote type before the character at the given index, as in
+	 *         {@link #metadataAt(int)}
+	 */
+	int quoteTypeAt(int index) {
+		return (index <= gapStart ? states[index] : stored(index)).quoteType();
+	}
+	/**
+	 * @return the slash count before the character at the given index, as in
+	 *         {@link #metadataAt(int)}
+	 */
+	int slashCountAt(int index) {
+		return (index <= gapStart ? states[index] : stored(index)).slashCount();
+	}
+	/**
+	 * @return the number of edits that have been made to this text, so that
+	 *         metadata derived from it can tell when it is out of date
+	 */
+	int edits() {
+		return edits;
+	}
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length())
+			throw new IndexOutOfBoundsException("index " + index);
+		return index < gapStart ? buffer[index] : buffer[index + gapEnd
+				- gapStart];
+	}
+	@Override
+	public int length() {
+		return buffer.length - (gapEnd - gapStart);
+	}
+	@Override
+	public String subSequence(int start, int end) {
+		if (start < 0 || end > length() || start > end)
+			throw new IndexOutOfBoundsException("start " + start + ", end "
+					+ end);
+		StringBuilder sb = new StringBuilder(end - start);
+		for (int i = start; i < end; i++)
+			sb.append(charAt(i));
+		return sb.toString();
+	}
+	@Override
+	public String toString() {
+		return new StringBuilder(length()).append(buffer, 0, gapStart)
+				.append(buffer, gapEnd, buffer.length - gapEnd).toString();
+	}
+	/**
+	 * @return the metadata at the given position, which must be after the gap
+	 */
+	private EnregexMetadata stateAfterGap(int index) {
+		return stored(index).shift(base, 1);
+	}
+	/**
+	 * @return the metadata stored for the given position, which must be after
+	 *         the gap, with paren counts relative to the base
+	 */
+	private EnregexMetadata stored(int index) {
+		return states[index + gapEnd - gapStart];
+	}
+	/**
+	 * Recomputes the metadata after the gap, which has just been edited,
+	 * until it is synchronized with the metadata before the edit, and then
+	 * shifts the paren counts of the rest of the text.
+	 *
+	 * @param old
+	 *        the metadata before the edit of the position now at the end of
+	 *        the gap
+	 */
+	private void resynchronize(EnregexMetadata old) {
+		EnregexMetadata state = states[gapStart];
+		ArrayList<EnregexMetadata> recomputed = new ArrayList<>();
+		int position = gapStart;
+		// Past the first position, the old metadata is compared as it is
+		// stored, relative to the base, rather than shifted
+		boolean relative = false;
+		while (!state.synchronizedWith(old) && position < length()) {
+			state = state.next(charAt(position++));
+			old = stored(position);
+			relative = true;
+			recomputed.add(state);
+		}
+		if (state.synchronizedWith(old)) {
+			if (relative) Arrays.fill(base, 0);
+			state.addParenDelta(old, base);
+		}
+		for (int i = 0; i < recomputed.size(); i++)
+			states[gapStart + 1 + i + gapEnd - gapStart] = recomputed.get(i)
+					.shift(base, -1);
+	}
+	/**
+	 * Moves the gap so that it starts at the given index.
+	 */
+	private void moveGap(int index) {
+		int gap = gapEnd - gapStart;
+		if (index < gapStart) {
+			System.arraycopy(buffer, index, buffer, index + gap, gapStart
+					- index);
+			for (int p = gapStart; p > index; p--)
+				states[p + gap] = states[p].shift(base, -1);
+		} else if (index > gapStart) {
+			System.arraycopy(buffer, gapEnd, buffer, gapStart, index
+					- gapStart);
+			for (int p = gapStart + 1; p <= index; p++)
+				states[p] = states[p + gap].shift(base, 1);
+		}
+		gapStart = index;
+		gapEnd = index + gap;
+	}
+	/**
+	 * Ensures that the gap can hold at least the given number of characters.
+	 */
+	private void ensureGap(int size) {
+		if (gapEnd - gapStart >= size) return;
+		int after = buffer.length - gapEnd;
+		int capacity = Math.max(buffer.length * 2, gapStart + size + after
+				+ INITIAL_GAP);
+		char[] buffer2 = new char[capacity];
+		EnregexMetadata[] states2 = new EnregexMetadata[capacity + 1];
+		System.arraycopy(buffer, 0, buffer2, 0, gapStart);
+		System.arraycopy(buffer, gapEnd, buffer2, capacity - after, after);
+		System.arraycopy(states, 0, states2, 0, gapStart + 1);
+		System.arraycopy(states, gapEnd + 1, states2, capacity - after + 1,
+				after);
+		buffer = buffer2;
+		states = states2;
+		gapEnd = capacity - after;
+	}
+}
@@ -14,17 +14,28 @@ public class EnregexType implements java.io.Serializable {
 			Arrays.asList(new SymbolPair('\'', '\'', false, true)));
 	public final List<SymbolPair> parens;
 	public final List<SymbolPair> quotes;
+	/**
+	 * The automaton that follows the quotes of this type, or null if it has
+	 * not yet been built.
+	 */
+	private transient EnregexQuoteAutomaton quoteAutomaton;
 	public EnregexType(List<SymbolPair> parens, List<SymbolPair> quotes) {
 		this.parens = parens;
 		this.quotes = quotes;
 	}
+	EnregexQuoteAutomaton quoteAutomaton() {
+		// Racing threads build equal automata, either of which will do
+		if (quoteAutomaton == null)
+			quoteAutomaton = new EnregexQuoteAutomaton(this);
+		return quoteAutomaton;
+	}
 	static enum EnregexSymbol {
 		OPEN_PAREN, CLOSE_PAREN, OPEN_QUOTE, CLOSE_QUOTE, CARET, ERROR;
 	}
 	EnregexSymbol classify(int c) {
 		if (c == '^') return EnregexSymbol.CARET;
 		for (SymbolPair ch : parens) {
-			Logger.getGlobal().log(Level.FINE, ch + "\t" + (char) c);
+			Logger.getGlobal().log(Level.FINE, () -> ch + "\t" + (char) c);
 			if (ch.open == c) return EnregexSymbol.OPEN_PAREN;
 			if (ch.close == c) return EnregexSymbol.CLOSE_PAREN;
 		}
@@ -55,4 +66,22 @@ public class EnregexType implements java.io.Serializable {
 			if (quotes.get(i).open == quoteOpen) return i;
 		return -1;
 	}
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + parens.hashCode();
+		result = prime * result + quotes.hashCode();
+		return result;
+	}
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (obj == null) return false;
+		if (getClass() != obj.getClass()) return false;
+		EnregexType other = (EnregexType) obj;
+		if (!parens.equals(other.parens)) return false;
+		if (!quotes.equals(other.quotes)) return false;
+		return true;
+	}
 }
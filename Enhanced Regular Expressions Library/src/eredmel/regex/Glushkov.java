@@ -0,0 +1,207 @@
+package eredmel.regex;
+
+import static eredmel.regex.PikeProgram.*;
+
+import java.util.Arrays;
+
+import eredmel.regex.CharProperty.BmpCharProperty;
+
+/**
+ * The instructions of a short {@link PikeProgram} that consume input,
+ * numbered as the bits of a long, as the positions of a Glushkov automaton
+ * are, for the automata that keep the instructions their threads have just
+ * taken as such bits. An instruction that can take a supplementary code point
+ * may be given a second bit for its low surrogate, so that a path through the
+ * bits is as long as the text it matches.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class Glushkov {
+	/**
+	 * The largest number of bits.
+	 */
+	static final int MAX_POSITIONS = 64;
+	/**
+	 * The characters below this have their masks looked up in the
+	 * {@link #table()}.
+	 */
+	static final int TABLE = 256;
+	final PikeProgram program;
+	/**
+	 * The bit of each instruction that consumes input.
+	 */
+	final int[] bits;
+	/**
+	 * The instruction each bit stands for, or its complement if the bit
+	 * stands for the low surrogate it consumes.
+	 */
+	final int[] positions;
+	private final boolean surrogates;
+	private Glushkov(PikeProgram program, int[] bits, int[] positions,
+			boolean surrogates) {
+		this.program = program;
+		this.bits = bits;
+		this.positions = positions;
+		this.surrogates = surrogates;
+	}
+	/**
+	 * @param surrogates
+	 *        whether an instruction that can take a supplementary code point
+	 *        is given a second bit
+	 * @return the bits of the given program, or null if it has more than
+	 *         {@link #MAX_POSITIONS}
+	 */
+	static Glushkov of(PikeProgram program, boolean surrogates) {
+		int length = program.length();
+		int[] bits = new int[length];
+		int count = 0;
+		for (int pc = 0; pc < length; pc++) {
+			if (!consumes(program.ops[pc])) continue;
+			int width = surrogates && wide(program, pc) ? 2 : 1;
+			if (count + width > MAX_POSITIONS) return null;
+			bits[pc] = count;
+			count += width;
+		}
+		int[] positions = new int[count];
+		for (int pc = 0; pc < length; pc++) {
+			if (!consumes(program.ops[pc])) continue;
+			positions[bits[pc]] = pc;
+			if (surrogates && wide(program, pc)) positions[bits[pc] + 1] = ~pc;
+		}
+		return new Glushkov(program, bits, positions, surrogates);
+	}
+	/**
+	 * @return whether the given instruction consumes input
+	 */
+	static boolean consumes(int op) {
+		return op == CHAR || op == CODE_POINT || op == PROPERTY;
+	}
+	/**
+	 * @return whether the given instruction, which consumes input, has a
+	 *         second bit for the low surrogate of a supplementary code point
+	 */
+	boolean wide(int pc) {
+		return surrogates && wide(program, pc);
+	}
+	private static boolean wide(PikeProgram program, int pc) {
+		switch (program.ops[pc]) {
+			case CODE_POINT:
+				return Character.isSupplementaryCodePoint(program.x[pc])
+						|| program.y[pc] == UNICODE_CASE;
+			case PROPERTY:
+				return !(program.nodes[pc] instanceof BmpCharProperty);
+			default:
+				return false;
+		}
+	}
+	/**
+	 * @return the bits that can take each character below {@link #TABLE}
+	 */
+	long[] table() {
+		long[] table = new long[TABLE];
+		for (char ch = 0; ch < TABLE; ch++)
+			table[ch] = mask(ch);
+		return table;
+	}
+	/**
+	 * @return the bits that can take the given character
+	 */
+	long mask(char ch) {
+		long mask = 0;
+		for (int p = 0; p < positions.length; p++)
+			if (takes(positions[p], ch)) mask |= 1L << p;
+		return mask;
+	}
+	private boolean takes(int pc, char ch) {
+		if (pc < 0) return Character.isLowSurrogate(ch);
+		if (wide(pc) && Character.isHighSurrogate(ch)) return true;
+		switch (program.ops[pc]) {
+			case CHAR:
+			case CODE_POINT:
+				return PikeVM.same(program.x[pc], ch, program.y[pc]);
+			default:
+				return ((CharProperty) program.nodes[pc]).isSatisfiedBy(ch);
+		}
+	}
+	/**
+	 * Finds the bits a thread can take next from an instruction, passing over
+	 * the instructions that consume nothing.
+	 */
+	static class Closure {
+		final PikeProgram program;
+		private final int[] bits;
+		private final int[] seen;
+		private int stamp;
+		private int[] stack;
+		private int size;
+		/**
+		 * Whether the match can be accepted from the last instruction the
+		 * closure was taken from.
+		 */
+		boolean accepts;
+		Closure(Glushkov positions) {
+			this.program = positions.program;
+			this.bits = positions.bits;
+			this.seen = new int[program.length()];
+			this.stack = new int[16];
+		}
+		@SuppressWarnings("fallthrough")
+		long from(int start) {
+			int[] ops = program.ops, x = program.x, y = program.y;
+			stamp++;
+			accepts = false;
+			long mask = 0;
+			size = 0;
+			push(start);
+			while (size > 0) {
+				int pc = stack[--size];
+				if (pc < 0 || seen[pc] == stamp) continue;
+				seen[pc] = stamp;
+				switch (ops[pc]) {
+					case CHAR:
+					case CODE_POINT:
+					case PROPERTY:
+						mask |= 1L << bits[pc];
+						break;
+					case MATCH:
+						match();
+						break;
+					case ASSERT:
+						assertion(pc);
+						break;
+					case JUMP:
+						push(x[pc]);
+						break;
+					case SPLIT:
+						for (int target : program.targets[pc])
+							push(target);
+						break;
+					case EMPTY:
+						push(y[pc]);
+					default:
+						if (ops[pc] != CLOSE || x[pc] >= 0) push(pc + 1);
+						break;
+				}
+			}
+			return mask;
+		}
+		/**
+		 * Accepts the match at a {@link PikeProgram#MATCH} instruction.
+		 */
+		void match() {
+			accepts = true;
+		}
+		/**
+		 * Passes the assertion at the given instruction, which is taken to
+		 * hold.
+		 */
+		void assertion(int pc) {
+			push(pc + 1);
+		}
+		final void push(int pc) {
+			if (size == stack.length) stack = Arrays.copyOf(stack, 2 * size);
+			stack[size++] = pc;
+		}
+	}
+}
@@ -24,6 +24,20 @@ class GroupRegistry implements java.io.Serializable {
 		capturingGroupCount = 1;
 		namedGroups = new HashMap<>(2);
 	}
+	/**
+	 * Creates a registry with the given groups, as read from a
+	 * {@link PatternBundle}.
+	 */
+	GroupRegistry(int capturingGroupCount, Map<String, Integer> namedGroups) {
+		this.capturingGroupCount = capturingGroupCount;
+		this.namedGroups = namedGroups;
+	}
+	/**
+	 * The group ids of all the named groups
+	 */
+	Map<String, Integer> namedGroups() {
+		return namedGroups;
+	}
 	/**
 	 * @return if the given group is defined
 	 */
@@ -0,0 +1,567 @@
+package eredmel.regex;
+
+import static eredmel.regex.PikeProgram.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import eredmel.regex.CharProperty.BmpCharProperty;
+import eredmel.regex.Node.EnregexQuoteStart;
+
+/**
+ * Finds where the match of a {@link PikeProgram} ends, or that there is none,
+ * without keeping track of where it starts or of its groups.
+ * <p>
+ * Each state of the automaton is the list of threads that the {@link PikeVM}
+ * would have at some position, in the same order, but without their slots or
+ * groups. A thread has consumed a character since it last saved a slot at an
+ * earlier position, so its slots only matter in whether they were saved at
+ * the current position, which is known while the state is built. A search
+ * thus takes one lookup per character once the states it passes through have
+ * been built. They are built the first time they are reached, and kept in a
+ * cache that is emptied when it grows past {@link #MAX_CACHE} bytes; a search
+ * that keeps emptying it gives up, and is left to the slower engines.
+ * <p>
+ * Enregex quote assertions are run by making the state of the
+ * {@link EnregexQuoteAutomaton} part of each state, so that the automaton is
+ * the product of the two. Other assertions cannot be run this way, since
+ * whether they hold depends on more than the state, so programs that contain
+ * them have no automaton.
+ * <p>
+ * The cache is not shared between threads; a thread that finds it in use
+ * builds its own, and whichever is put back last is kept.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class LazyDFA {
+	/**
+	 * Returned by {@link #run} if there is no match.
+	 */
+	static final int NO_MATCH = -1;
+	/**
+	 * Returned by {@link #run} if it gave up.
+	 */
+	static final int UNKNOWN = -2;
+	/**
+	 * The symbol for a carriage return followed by a line feed, which is
+	 * read as one symbol since a line ending consumes both.
+	 */
+	private static final int CRLF = Character.MAX_CODE_POINT + 1;
+	/**
+	 * The approximate number of bytes the states in a cache may take up.
+	 */
+	private static final long MAX_CACHE = 1 << 21;
+	/**
+	 * The number of characters per state that must have been read since the
+	 * cache was last emptied for it to be worth emptying again.
+	 */
+	private static final int MIN_READ_PER_STATE = 10;
+	final PikeProgram program;
+	/**
+	 * Whether matches must start at the start of the search.
+	 */
+	private final boolean anchored;
+	/**
+	 * Whether matches must end at the end of the region.
+	 */
+	private final boolean endAnchored;
+	/**
+	 * The literal every match starts with, or null.
+	 */
+	private final String prefix;
+	/**
+	 * Whether threads are only started at the start of each code point.
+	 */
+	private final boolean codePointStarts;
+	private final AtomicReference<Cache> idle = new AtomicReference<>();
+	private LazyDFA(PikeProgram program, boolean anchored,
+			boolean endAnchored, String prefix, boolean codePointStarts) {
+		this.program = program;
+		this.codePointStarts = codePointStarts;
+		this.anchored = anchored;
+		this.endAnchored = endAnchored;
+		this.prefix = anchored ? null : prefix;
+	}
+	/**
+	 * @return the automata that run the given program, unanchored or anchored
+	 *         at the start, and each of them unanchored or anchored at the
+	 *         end, in that order, or null in their place if it cannot be run
+	 *         by one
+	 */
+	static LazyDFA[] all(PikeProgram program, String prefix,
+			boolean codePointStarts) {
+		LazyDFA[] all = new LazyDFA[4];
+		if (!runs(program)) return all;
+		for (int k = 0; k < 4; k++)
+			all[k] = new LazyDFA(program, k >= 2, k % 2 == 1, prefix,
+					codePointStarts);
+		return all;
+	}
+	/**
+	 * @return whether the given program, which may be null, can be run by an
+	 *         automaton
+	 */
+	static boolean runs(PikeProgram program) {
+		if (program == null || program.hasParens()) return false;
+		for (int op : program.ops)
+			if (op == ASSERT) return false;
+		return true;
+	}
+	/**
+	 * Searches the matcher's region from the given position, setting
+	 * {@link Matcher#hitEnd} as the {@link PikeVM} would,
+	 * {@link Matcher#matchFrom} to the position it skipped ahead to, and
+	 * {@link Matcher#prefixStops} to the number of times it found the prefix.
+	 *
+	 * @param prefilter
+	 *        whether to skip ahead to the prefix, if there is one
+	 *
+	 * @return the end of the match the {@link PikeVM} would find, or
+	 *         {@link #NO_MATCH} or {@link #UNKNOWN}
+	 */
+	int run(Matcher matcher, int from, boolean prefilter) {
+		CharSequence seq = matcher.text;
+		int to = matcher.to;
+		int lastStart = anchored ? from : Math.min(to, matcher.lastStart);
+		String prefix = prefilter ? this.prefix : null;
+		matcher.matchFrom = from;
+		matcher.prefixStops = 0;
+		if (from > lastStart) return UNKNOWN;
+		EnregexQuoteAutomaton quotes = program.quotes;
+		Cache cache = idle.getAndSet(null);
+		if (cache == null) cache = new Cache();
+		try {
+			State state = cache.start(quotes == null ? 0 : matcher.system
+					.quoteStateAt(from));
+			if (state == null) return UNKNOWN;
+			int end = NO_MATCH;
+			// Positions before which there is nothing to do but follow the
+			// transitions
+			int plain = Math.min(to, lastStart);
+			for (int pos = from;;) {
+				if (state.start && prefix != null) {
+					// Only a thread started at the prefix can match
+					int skip = EnregexQuoteStart.indexOf(seq, prefix, pos,
+							Math.min(to - prefix.length(), lastStart));
+					if (skip < 0) break;
+					matcher.prefixStops++;
+					if (skip > pos) {
+						// No thread from before the skip can have lasted
+						// through it
+						if (end == NO_MATCH) matcher.matchFrom = skip;
+						if (quotes != null) {
+							state = cache.start(matcher.system
+									.quoteStateAt(skip));
+							if (state == null) return UNKNOWN;
+						}
+					}
+					pos = skip;
+				}
+				if (state.accepts && (!endAnchored || pos == to)) end = pos;
+				if (pos == to) {
+					if (state.reads) matcher.hitEnd = true;
+					break;
+				}
+				if (!state.live()) break;
+				// No more threads start after the last start
+				if (pos == lastStart && state.searching)
+					state = cache.stop(state);
+				int symbol = seq.charAt(pos);
+				if (Character.isHighSurrogate((char) symbol)) {
+					if (pos + 1 < to) {
+						char low = seq.charAt(pos + 1);
+						if (Character.isLowSurrogate(low))
+							symbol = Character.toCodePoint((char) symbol, low);
+					} else if (pos + 1 < seq.length()
+							&& Character.isLowSurrogate(seq.charAt(pos + 1))) {
+						// A code point split by the end of the region
+						return UNKNOWN;
+					}
+				} else if (symbol == 0x0D && pos + 1 < to
+						&& seq.charAt(pos + 1) == 0x0A) {
+					symbol = CRLF;
+				}
+				State next = state.next(symbol);
+				if (next == null) {
+					next = cache.step(state, symbol);
+					if (next == null) return UNKNOWN;
+					matcher.dfaBuilt = true;
+				}
+				cache.read++;
+				state = next;
+				pos++;
+				int at = pos;
+				State[] ascii;
+				char ch;
+				while (pos < plain && state.plain
+						&& (ascii = state.ascii) != null
+						&& (ch = seq.charAt(pos)) < 128 && ch != 0x0D
+						&& (next = ascii[ch]) != null) {
+					state = next;
+					pos++;
+				}
+				cache.read += pos - at;
+			}
+			if (end == NO_MATCH && !anchored) matcher.hitEnd = true;
+			return end;
+		} finally {
+			idle.set(cache);
+		}
+	}
+	/**
+	 * The threads at a position, and the states that follow them on each
+	 * symbol.
+	 */
+	private static final class State {
+		/**
+		 * The instruction of each thread, or the complement of the instruction
+		 * a thread will continue at after the second character of a symbol it
+		 * is consuming.
+		 */
+		final int[] threads;
+		/**
+		 * Whether a thread will be started at the next position.
+		 */
+		final boolean searching;
+		/**
+		 * The state of the {@link EnregexQuoteAutomaton} at the position.
+		 */
+		final int quote;
+		/**
+		 * Whether one of the threads accepts the match.
+		 */
+		final boolean accepts;
+		/**
+		 * Whether one of the threads before any that accepts reads the
+		 * character at the position.
+		 */
+		final boolean reads;
+		private final int hash;
+		/**
+		 * The next states on ASCII characters and on other symbols, or null.
+		 */
+		State[] ascii;
+		HashMap<Integer, State> other;
+		/**
+		 * Whether there is nothing to do at a position with this state but to
+		 * follow its transition.
+		 */
+		boolean plain;
+		/**
+		 * Whether this is the state a search starts in, with only the thread
+		 * started at the position.
+		 */
+		boolean start;
+		/**
+		 * The same threads, with no thread started at the next position, or
+		 * null.
+		 */
+		State stopped;
+		State(int[] threads, boolean searching, int quote, int[] ops) {
+			this.threads = threads;
+			this.searching = searching;
+			this.quote = quote;
+			boolean accepts = false, reads = false;
+			for (int t : threads) {
+				if (t < 0) continue;
+				if (ops[t] == MATCH) accepts = true;
+				else if (!accepts) reads = true;
+			}
+			this.accepts = accepts;
+			this.reads = reads;
+			this.hash = 31 * (31 * Arrays.hashCode(threads) + quote)
+					+ (searching ? 1 : 0);
+			this.plain = !accepts && live();
+		}
+		/**
+		 * @return whether there may be a match that ends after this position
+		 */
+		boolean live() {
+			return searching || threads.length > (accepts ? 1 : 0);
+		}
+		State next(int symbol) {
+			if (symbol < 128) return ascii == null ? null : ascii[symbol];
+			return other == null ? null : other.get(symbol);
+		}
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof State)) return false;
+			State other = (State) obj;
+			return searching == other.searching && quote == other.quote
+					&& Arrays.equals(threads, other.threads);
+		}
+	}
+	/**
+	 * The states built so far, and the space needed to build more.
+	 */
+	private final class Cache {
+		private final HashMap<State, State> states = new HashMap<>();
+		/**
+		 * The approximate number of bytes taken up by the states.
+		 */
+		private long size;
+		/**
+		 * The number of characters read since the cache was last emptied.
+		 */
+		long read;
+		/**
+		 * The start state for each state of the quote automaton.
+		 */
+		private final State[] starts;
+		/**
+		 * The threads of the state being built.
+		 */
+		private int[] threads = new int[16];
+		private int count;
+		/**
+		 * The state of the quote automaton at the position of the state being
+		 * built.
+		 */
+		private int quote;
+		/**
+		 * Whether a thread of the state being built accepts the match, and so
+		 * cuts off the ones after it.
+		 */
+		private boolean cut;
+		/**
+		 * The states of the program and pending instructions visited, and the
+		 * instructions listed, while building the current state, which are
+		 * those whose stamp is {@link #stamp}.
+		 */
+		private final int[] stamps;
+		private int stamp;
+		private int[] stackPc = new int[16];
+		private int[][] stackSlots = new int[16][];
+		private int stackSize;
+		private final int[] noSlots;
+		Cache() {
+			stamps = new int[program.states + 2 * program.length()];
+			noSlots = new int[program.slots];
+			Arrays.fill(noSlots, -1);
+			starts = new State[program.quotes == null ? 1
+					: program.quotes.states];
+		}
+		/**
+		 * @return the state a search starts in where the quote automaton is in
+		 *         the given state, or null if the cache has been emptied too
+		 *         often
+		 */
+		State start(int quote) {
+			if (starts[quote] == null) {
+				begin(quote);
+				add(0);
+				State start = state(!anchored);
+				if (start == null) return null;
+				start.start = true;
+				// The search skips ahead to the prefix from the start state
+				if (prefix != null) start.plain = false;
+				starts[quote] = start;
+			}
+			return starts[quote];
+		}
+		State stop(State state) {
+			if (state.stopped == null) {
+				state.stopped = intern(state.threads, false, state.quote);
+				if (state.stopped == null) return state;
+			}
+			return state.stopped;
+		}
+		/**
+		 * @return the state that follows the given one on the given symbol, or
+		 *         null if the cache has been emptied too often
+		 */
+		State step(State state, int symbol) {
+			int ch = symbol == CRLF ? 0x0D : symbol;
+			begin(program.quotes == null ? 0 : program.quotes.next(state.quote,
+					Character.isBmpCodePoint(ch) ? (char) ch : Character
+							.highSurrogate(ch)));
+			int[] ops = program.ops;
+			for (int t : state.threads) {
+				if (cut) break;
+				if (t < 0) {
+					add(~t);
+					continue;
+				}
+				if (ops[t] == MATCH) continue;
+				int width = width(t, symbol);
+				if (width == 1) add(t + 1);
+				else if (width == 2 && visit(program.states + t + 1))
+					list(~(t + 1));
+			}
+			boolean searching = state.searching
+					&& (endAnchored || !state.accepts);
+			// The second half of a code point is only a start if the first
+			// half was not
+			if (searching && !cut
+					&& !(codePointStarts && Character
+							.isSupplementaryCodePoint(symbol)))
+				add(0);
+			State next = state(searching);
+			if (next == null) return null;
+			if (symbol < 128) {
+				if (state.ascii == null) {
+					state.ascii = new State[128];
+					size += 16 + 4 * 128;
+				}
+				state.ascii[symbol] = next;
+			} else {
+				if (state.other == null) state.other = new HashMap<>();
+				state.other.put(symbol, next);
+				size += 48;
+			}
+			return next;
+		}
+		private void begin(int quote) {
+			this.quote = quote;
+			count = 0;
+			cut = false;
+			if (++stamp == 0) {
+				Arrays.fill(stamps, 0);
+				stamp = 1;
+			}
+		}
+		/**
+		 * @return the state with the threads listed since {@link #begin()},
+		 *         or null if the cache has been emptied too often
+		 */
+		private State state(boolean searching) {
+			return intern(Arrays.copyOf(threads, count), searching, quote);
+		}
+		private State intern(int[] threads, boolean searching, int quote) {
+			State state = new State(threads, searching, quote, program.ops);
+			State known = states.get(state);
+			if (known != null) return known;
+			if (size > MAX_CACHE) {
+				if (read < MIN_READ_PER_STATE * (long) states.size())
+					return null;
+				states.clear();
+				size = 0;
+				read = 0;
+				Arrays.fill(starts, null);
+			}
+			states.put(state, state);
+			size += 64 + 4L * threads.length;
+			return state;
+		}
+		/**
+		 * Lists the threads that a thread at the given instruction becomes
+		 * before it consumes a character, in order of preference, as
+		 * {@link PikeVM} does.
+		 */
+		private void add(int pc) {
+			int[] ops = program.ops, x = program.x, y = program.y;
+			// A slot is 0 if it was saved at this position, and -1 otherwise
+			push(pc, noSlots);
+			while (stackSize > 0) {
+				stackSize--;
+				pc = stackPc[stackSize];
+				int[] slots = stackSlots[stackSize];
+				stackSlots[stackSize] = null;
+				thread: for (;;) {
+					if (!visit(program.state(pc, slots, 0))) break;
+					switch (ops[pc]) {
+						case JUMP:
+							pc = x[pc];
+							continue;
+						case SPLIT:
+							int[] to = program.targets[pc];
+							for (int n = to.length - 1; n > 0; n--)
+								push(to[n], slots);
+							pc = to[0];
+							continue;
+						case SAVE:
+							slots = slots.clone();
+							slots[x[pc]] = 0;
+							pc++;
+							continue;
+						case CAPTURE:
+							pc++;
+							continue;
+						case QUOTE:
+							if (!EnregexQuoteAutomaton.matches(quote, x[pc],
+									y[pc] != 0)) break thread;
+							pc++;
+							continue;
+						case EMPTY:
+							if (slots[x[pc]] != 0)
+								pc++;
+							else if (y[pc] < 0)
+								break thread;
+							else pc = y[pc];
+							continue;
+						default:
+							// Threads at the same instruction go on to do the
+							// same, so only the first is kept
+							if (visit(program.states + program.length() + pc))
+								list(pc);
+							break thread;
+					}
+				}
+				if (cut) {
+					while (stackSize > 0)
+						stackSlots[--stackSize] = null;
+				}
+			}
+		}
+		private void list(int thread) {
+			if (count == threads.length)
+				threads = Arrays.copyOf(threads, 2 * count);
+			threads[count++] = thread;
+			// The threads after one that accepts are only tried if it fails
+			if (thread >= 0 && program.ops[thread] == MATCH && !endAnchored)
+				cut = true;
+		}
+		private void push(int pc, int[] slots) {
+			if (stackSize == stackPc.length) {
+				stackPc = Arrays.copyOf(stackPc, 2 * stackSize);
+				stackSlots = Arrays.copyOf(stackSlots, 2 * stackSize);
+			}
+			stackPc[stackSize] = pc;
+			stackSlots[stackSize] = slots;
+			stackSize++;
+		}
+		private boolean visit(int key) {
+			if (stamps[key] == stamp) return false;
+			stamps[key] = stamp;
+			return true;
+		}
+		/**
+		 * @return the number of characters the given instruction consumes from
+		 *         the given symbol, or 0 if it does not match it
+		 */
+		private int width(int pc, int symbol) {
+			int ch = symbol == CRLF ? 0x0D : symbol;
+			char first = Character.isBmpCodePoint(ch) ? (char) ch : Character
+					.highSurrogate(ch);
+			switch (program.ops[pc]) {
+				case CHAR:
+					return PikeVM.same(program.x[pc], first, program.y[pc]) ? 1
+							: 0;
+				case CODE_POINT:
+					return PikeVM.same(program.x[pc], ch, program.y[pc])
+							? Character.charCount(ch) : 0;
+				case PROPERTY: {
+					CharProperty property = (CharProperty) program.nodes[pc];
+					if (property instanceof BmpCharProperty)
+						return property.isSatisfiedBy(first) ? 1 : 0;
+					return property.isSatisfiedBy(ch) ? Character.charCount(ch)
+							: 0;
+				}
+				case LINE_ENDING:
+					if (symbol == CRLF) return 2;
+					return ch == 0x0A || ch == 0x0B || ch == 0x0C || ch == 0x0D
+							|| ch == 0x85 || ch == 0x2028 || ch == 0x2029 ? 1
+							: 0;
+				default:
+					throw new IllegalStateException("Instruction " + pc
+							+ " does not consume input");
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package eredmel.regex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Maps files into memory and views them as {@link CharSequence}s, without
+ * decoding them into {@link String}s. The mapped bytes are read as in
+ * {@link ByteText}, with the UTF-8 offset index and the enregex metadata of
+ * the text (as in {@link EnregexMetadataColumns}) kept outside of the heap.
+ *
+ * @author Kavi Gupta
+ *
+ */
+public final class MappedText {
+	private MappedText() {}
+	/**
+	 * Maps the given file, which is in the given charset, into memory.
+	 *
+	 * @return the mapped file, or the decoded file if the charset is not
+	 *         ISO-8859-1, US-ASCII or UTF-8
+	 * @throws IOException
+	 *         if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *         if the file has more than {@link Integer#MAX_VALUE} characters;
+	 *         such files can be searched with
+	 *         {@link Pattern#streamMatcher(java.nio.channels.ReadableByteChannel, Charset)}
+	 */
+	public static CharSequence open(Path path, Charset charset)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			long size = channel.size();
+			ByteBuffer[] chunks = map(channel, 0, size,
+					1L << ByteText.CHUNK_BITS);
+			if (ByteText.supports(charset))
+				return ByteText.of(chunks, size, charset, true);
+			if (chunks.length > 1)
+				throw new IllegalArgumentException("More than 2^"
+						+ ByteText.CHUNK_BITS + " bytes in " + charset);
+			return charset.decode(chunks[0]);
+		}
+	}
+	/**
+	 * Maps {@code size} bytes of the given file from {@code offset}, in chunks
+	 * of {@code chunkSize} bytes.
+	 */
+	static ByteBuffer[] map(FileChannel channel, long offset, long size,
+			long chunkSize) throws IOException {
+		ByteBuffer[] chunks = new ByteBuffer[(int) (size / chunkSize) + 1];
+		for (int i = 0; i < chunks.length; i++) {
+			long at = i * chunkSize;
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset
+					+ at, Math.min(size - at, chunkSize));
+		}
+		return chunks;
+	}
+}
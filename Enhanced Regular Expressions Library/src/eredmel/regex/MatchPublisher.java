@@ -0,0 +1,287 @@
+package eredmel.regex;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the matches of a pattern in a stream that is itself published in
+ * chunks.
+ * <p>
+ * The chunks are copied into the window of a {@link StreamMatcher}, which
+ * carries the {@link EnregexMetadata} across them and keeps only the text that
+ * may still be part of a match. A chunk is only requested once the matcher
+ * needs more of the stream and the subscriber has asked for more matches, so
+ * neither side is sent more than it asked for. Each match is published as a
+ * snapshot, as given by {@link StreamMatcher#toMatchResult()}.
+ * <p>
+ * A publisher can only be subscribed to once, since its input is.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class MatchPublisher<T> implements Flow.Publisher<MatchResult> {
+	/**
+	 * Turns the chunks of a stream into characters.
+	 */
+	interface Input<T> {
+		CharBuffer chars(T chunk) throws CharacterCodingException;
+		/**
+		 * @return the characters left at the end of the stream, or null
+		 */
+		CharBuffer end() throws CharacterCodingException;
+	}
+	private final Pattern pattern;
+	private final Flow.Publisher<T> input;
+	private final Input<T> chars;
+	private final int maxWindow;
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+	MatchPublisher(Pattern pattern, Flow.Publisher<T> input, Input<T> chars,
+			int maxWindow) {
+		this.pattern = pattern;
+		this.input = input;
+		this.chars = chars;
+		this.maxWindow = maxWindow;
+	}
+	/**
+	 * @return a publisher of the matches in the given stream of characters
+	 */
+	static MatchPublisher<CharBuffer> ofChars(Pattern pattern,
+			Flow.Publisher<CharBuffer> input, int maxWindow) {
+		return new MatchPublisher<>(pattern, input, new Input<CharBuffer>() {
+			@Override
+			public CharBuffer chars(CharBuffer chunk) {
+				// The chunk's own position is left as it is
+				return chunk.duplicate();
+			}
+			@Override
+			public CharBuffer end() {
+				return null;
+			}
+		}, maxWindow);
+	}
+	/**
+	 * @return a publisher of the matches in the given stream of bytes, which
+	 *         are decoded with the given charset
+	 */
+	static MatchPublisher<ByteBuffer> ofBytes(Pattern pattern,
+			Flow.Publisher<ByteBuffer> input, Charset charset, int maxWindow) {
+		CharsetDecoder decoder = charset.newDecoder();
+		return new MatchPublisher<>(pattern, input, new Input<ByteBuffer>() {
+			/**
+			 * The bytes at the end of the last chunk that do not make up a
+			 * whole character, or null.
+			 */
+			private ByteBuffer partial;
+			@Override
+			public CharBuffer chars(ByteBuffer chunk)
+					throws CharacterCodingException {
+				return decode(chunk, false);
+			}
+			@Override
+			public CharBuffer end() throws CharacterCodingException {
+				return decode(ByteBuffer.allocate(0), true);
+			}
+			private CharBuffer decode(ByteBuffer chunk, boolean end)
+					throws CharacterCodingException {
+				ByteBuffer in = chunk;
+				if (partial != null) {
+					in = ByteBuffer.allocate(partial.remaining()
+							+ chunk.remaining());
+					in.put(partial).put(chunk).flip();
+				}
+				CharBuffer out = CharBuffer.allocate((int) (in.remaining()
+						* (double) decoder.maxCharsPerByte()) + 16);
+				CoderResult result = decoder.decode(in, out, end);
+				if (result.isError()) result.throwException();
+				if (end) {
+					result = decoder.flush(out);
+					if (result.isError()) result.throwException();
+				}
+				partial = in.hasRemaining() ? ByteBuffer.allocate(
+						in.remaining()).put(in).flip() : null;
+				return out.flip();
+			}
+		}, maxWindow);
+	}
+	@Override
+	public void subscribe(Flow.Subscriber<? super MatchResult> subscriber) {
+		if (!subscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {}
+				@Override
+				public void cancel() {}
+			});
+			subscriber.onError(new IllegalStateException(
+					"A match publisher can only be subscribed to once"));
+			return;
+		}
+		input.subscribe(new Subscription(subscriber));
+	}
+	/**
+	 * The subscription of a subscriber to the matches, which is in turn
+	 * subscribed to the input.
+	 * <p>
+	 * All of the matching is done by {@link #drain()}, which runs on one
+	 * thread at a time, on whichever thread signals it first, and runs again if
+	 * it was signalled while running.
+	 */
+	private final class Subscription implements Flow.Subscriber<T>,
+			Flow.Subscription {
+		private final Flow.Subscriber<? super MatchResult> downstream;
+		private final StreamMatcher matcher;
+		private final AtomicInteger signals = new AtomicInteger();
+		private final AtomicLong demand = new AtomicLong();
+		private volatile Flow.Subscription upstream;
+		/**
+		 * The characters received that have not yet been copied into the
+		 * window, or null.
+		 */
+		private volatile CharBuffer pending;
+		/**
+		 * The characters at the end of the input, or null.
+		 */
+		private volatile CharBuffer last;
+		/**
+		 * Whether a chunk has been requested and has not yet been received.
+		 */
+		private volatile boolean requested;
+		private volatile boolean complete, cancelled;
+		private volatile Throwable error;
+		/**
+		 * Whether the matcher must be given more of the input before it
+		 * searches again.
+		 */
+		private boolean hungry = true;
+		private boolean done;
+		Subscription(Flow.Subscriber<? super MatchResult> downstream) {
+			this.downstream = downstream;
+			this.matcher = new StreamMatcher(pattern, null, maxWindow);
+		}
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			if (upstream != null) {
+				subscription.cancel();
+				return;
+			}
+			upstream = subscription;
+			downstream.onSubscribe(this);
+		}
+		@Override
+		public void onNext(T chunk) {
+			try {
+				pending = chars.chars(chunk);
+			} catch (CharacterCodingException e) {
+				fail(e);
+				return;
+			}
+			requested = false;
+			drain();
+		}
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+			drain();
+		}
+		@Override
+		public void onComplete() {
+			try {
+				last = chars.end();
+			} catch (CharacterCodingException e) {
+				error = e;
+			}
+			complete = true;
+			drain();
+		}
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException(
+						"Non-positive number of matches requested: " + n));
+				return;
+			}
+			demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+			drain();
+		}
+		@Override
+		public void cancel() {
+			cancelled = true;
+			upstream.cancel();
+		}
+		/**
+		 * Cancels the input, and reports the given error to the subscriber.
+		 */
+		private void fail(Throwable throwable) {
+			error = throwable;
+			upstream.cancel();
+			drain();
+		}
+		private void drain() {
+			if (signals.getAndIncrement() != 0) return;
+			int missed = 1;
+			do {
+				try {
+					publish();
+				} catch (RuntimeException e) {
+					done = true;
+					upstream.cancel();
+					downstream.onError(e);
+				}
+				missed = signals.addAndGet(-missed);
+			} while (missed != 0);
+		}
+		/**
+		 * Publishes matches until the subscriber wants no more of them, or
+		 * the matcher has to wait for more of the input.
+		 */
+		private void publish() {
+			while (!cancelled && !done) {
+				if (error != null) {
+					done = true;
+					downstream.onError(error);
+					return;
+				}
+				if (hungry) {
+					CharBuffer chunk = pending;
+					if (chunk != null) {
+						// Searching before the window is full would search
+						// the same text again for each chunk
+						if (matcher.feed(chunk)) hungry = false;
+						if (!chunk.hasRemaining()) pending = null;
+					} else if (last != null) {
+						pending = last;
+						last = null;
+					} else if (complete) {
+						matcher.endOfStream();
+						hungry = false;
+					} else {
+						if (!requested) {
+							requested = true;
+							upstream.request(1);
+						}
+						return;
+					}
+					continue;
+				}
+				if (demand.get() == 0) return;
+				int result = matcher.search();
+				if (result == StreamMatcher.MORE) hungry = true;
+				else if (result == StreamMatcher.FOUND) {
+					demand.decrementAndGet();
+					downstream.onNext(matcher.toMatchResult());
+				} else {
+					done = true;
+					downstream.onComplete();
+				}
+			}
+		}
+	}
+}
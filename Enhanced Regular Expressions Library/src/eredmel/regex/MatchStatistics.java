@@ -0,0 +1,93 @@
+package eredmel.regex;
+
+/**
+ * Counts of the searches of a pattern, along with how its searches are
+ * currently run, as given by {@link Pattern#statistics()}. The searches are
+ * those by {@link Matcher#find()} and the methods that use it.
+ *
+ * @author Kavi Gupta
+ *
+ */
+public final class MatchStatistics {
+	private final long searches, matches, searched, stops, hits,
+			nodeSearches, switches;
+	private final int way;
+	MatchStatistics(long searches, long matches, long searched, long stops,
+			long hits, long nodeSearches, long switches, int way) {
+		this.searches = searches;
+		this.matches = matches;
+		this.searched = searched;
+		this.stops = stops;
+		this.hits = hits;
+		this.nodeSearches = nodeSearches;
+		this.switches = switches;
+		this.way = way;
+	}
+	/**
+	 * @return the number of searches
+	 */
+	public long searches() {
+		return searches;
+	}
+	/**
+	 * @return the number of searches that found a match
+	 */
+	public long matches() {
+		return matches;
+	}
+	/**
+	 * @return the average number of characters a search went through, from
+	 *         where it started to the end of its match, or to the end of the
+	 *         region if it found none
+	 */
+	public double averageSearchLength() {
+		return searches == 0 ? 0 : (double) searched / searches;
+	}
+	/**
+	 * @return the fraction of the places the prefix of the pattern was found
+	 *         at, when searches skipped ahead to it, at which a match was
+	 *         found, or {@link Double#NaN} if the pattern has no prefix or
+	 *         searches have not skipped to it
+	 */
+	public double prefilterHitRate() {
+		return stops <= 0 ? Double.NaN : Math.min(1, (double) hits / stops);
+	}
+	/**
+	 * @return the number of searches that were run by backtracking alone,
+	 *         without the DFA finding where their matches end, or the
+	 *         bit-parallel automaton where they can start, first
+	 */
+	public long backtrackingSearches() {
+		return nodeSearches;
+	}
+	/**
+	 * @return the number of times searches switched to being run in another
+	 *         way
+	 */
+	public long switches() {
+		return switches;
+	}
+	/**
+	 * @return whether searches are now run by the DFA, or the bit-parallel
+	 *         automaton, before the nodes
+	 */
+	public boolean dfa() {
+		return way != Adaptation.NODES;
+	}
+	/**
+	 * @return whether searches by the DFA now skip ahead to the pattern's
+	 *         prefix
+	 */
+	public boolean prefilter() {
+		return way == Adaptation.PREFILTERED;
+	}
+	@Override
+	public String toString() {
+		return "MatchStatistics [searches=" + searches + ", matches="
+				+ matches + ", averageSearchLength=" + averageSearchLength()
+				+ ", prefilterHitRate=" + prefilterHitRate()
+				+ ", backtrackingSearches=" + nodeSearches + ", switches="
+				+ switches + ", dfa=" + dfa() + ", prefilter=" + prefilter()
+				+ "]";
+	}
+}
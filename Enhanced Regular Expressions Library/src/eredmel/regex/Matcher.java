@@ -105,6 +105,11 @@ import java.util.logging.Logger;
  * a matcher discards its explicit state information and sets the append
  * position to zero.
  * <p>
+ * The enregex metadata of inputs longer than
+ * {@code eredmel.regex.heapMetadataLimit} characters (by default 2<sup>20</sup>)
+ * and of mapped files is kept outside of the heap, and is freed by
+ * {@link #close()}.
+ * <p>
  * Instances of this class are not safe for use by multiple concurrent threads.
  * </p>
  *
@@ -114,7 +119,7 @@ import java.util.logging.Logger;
  * @since 1.4
  * @spec JSR-51
  */
-public final class Matcher implements MatchResult {
+public final class Matcher implements MatchResult, AutoCloseable {
 	/**
 	 * The Pattern object that created this Matcher.
 	 */
@@ -162,6 +167,27 @@ public final class Matcher implements MatchResult {
 	 * The end index of what matched in the last match operation.
 	 */
 	int oldLast = -1;
+	/**
+	 * The last position at which a search tries to start a match, so that a
+	 * search of part of the input can still match past the end of that part.
+	 * This is {@link Integer#MAX_VALUE} unless it is set by
+	 * {@link ParallelFinder}.
+	 */
+	int lastStart = Integer.MAX_VALUE;
+	/**
+	 * The position before which the last {@link LazyDFA} to run found that no
+	 * match starts.
+	 */
+	int matchFrom;
+	/**
+	 * The number of times the last {@link LazyDFA} to run skipped ahead to the
+	 * pattern's prefix.
+	 */
+	int prefixStops;
+	/**
+	 * Whether a {@link LazyDFA} has built states since this was last cleared.
+	 */
+	boolean dfaBuilt;
 	/**
 	 * The index of the last position appended in a substitution.
 	 */
@@ -172,6 +198,11 @@ public final class Matcher implements MatchResult {
 	 * so they rely on this field to hold state during a match.
 	 */
 	int[] locals;
+	/**
+	 * The virtual machine that runs the pattern's {@link PikeProgram}, if it
+	 * has one and it has been run.
+	 */
+	private PikeVM pike;
 	/**
 	 * Boolean indicating whether or not more input could change
 	 * the results of the last match.
@@ -213,7 +244,6 @@ public final class Matcher implements MatchResult {
 	/**
 	 * All matchers have the state used by Pattern during a match.
 	 */
-	@SuppressWarnings("unchecked")
 	Matcher(Pattern parent, CharSequence text, EnregexType type) {
 		this.parentPattern = parent;
 		this.text = text;
@@ -222,7 +252,7 @@ public final class Matcher implements MatchResult {
 		// storage
 		int parentGroupCount = Math.max(
 				parent.compiledPattern.registry.capturingGroupCount, 10);
-		groupsr = new ArrayList[parentGroupCount];
+		resetGroups(parentGroupCount);
 		locals = new int[parent.compiledPattern.localCount];
 		// Put fields into initial states
 		reset();
@@ -244,8 +274,9 @@ public final class Matcher implements MatchResult {
 	 * @since 1.5
 	 */
 	public MatchResult toMatchResult() {
-		Matcher result = new Matcher(this.parentPattern, text.toString(),
-				system.type);
+		// A ByteText is kept as is, since copying it would decode all of it
+		Matcher result = new Matcher(this.parentPattern,
+				text instanceof ByteText ? text : text.toString(), system.type);
 		result.first = this.first;
 		result.last = this.last;
 		result.groupsr = this.groupsr.clone();
@@ -297,12 +328,14 @@ public final class Matcher implements MatchResult {
 		first = -1;
 		last = 0;
 		oldLast = -1;
+		lastStart = Integer.MAX_VALUE;
 		resetGroups(groupsr.length);
 		for (int i = 0; i < locals.length; i++)
 			locals[i] = -1;
 		lastAppendPosition = 0;
 		from = 0;
 		to = getTextLength();
+		system.region(from, to, null);
 		return this;
 	}
 	/**
@@ -336,9 +369,22 @@ public final class Matcher implements MatchResult {
 	 */
 	public Matcher reset(CharSequence input, EnregexType type) {
 		text = input;
-		system = new EnregexSystem(text, type);
+		if (system != null && system.type.equals(type)) system.reset(text);
+		else {
+			if (system != null) system.close();
+			system = new EnregexSystem(text, type);
+		}
 		return reset();
 	}
+	/**
+	 * Frees the enregex metadata that this matcher has computed for its input,
+	 * including any that is kept outside of the heap. The matcher may still be
+	 * used afterwards, in which case the metadata is computed again.
+	 */
+	@Override
+	public void close() {
+		system.close();
+	}
 	/**
 	 * Returns the start index of the previous match.
 	 *
@@ -813,9 +859,23 @@ public final class Matcher implements MatchResult {
 			boolean doubleDollar, boolean onlyRepl) {
 		// If no match, return error
 		if (first < 0) throw new IllegalStateException("No match available");
+		StringBuilder result = new StringBuilder();
+		appendExpansion(result, replacement, doubleDollar);
+		// Append the intervening text
+		if (!onlyRepl) sb.append(text, lastAppendPosition, first);
+		// Append the match substitution
+		sb.append(result);
+		lastAppendPosition = last;
+		return this;
+	}
+	/**
+	 * Appends the given replacement string to the given builder, with its
+	 * group references replaced by the groups of the current match.
+	 */
+	void appendExpansion(StringBuilder result, String replacement,
+			boolean doubleDollar) {
 		// Process substitution string to replace group references with groups
 		int cursor = 0;
-		StringBuilder result = new StringBuilder();
 		while (cursor < replacement.length()) {
 			char nextChar = replacement.charAt(cursor);
 			if (nextChar == '\\' && !doubleDollar) {
@@ -907,12 +967,6 @@ public final class Matcher implements MatchResult {
 				cursor++;
 			}
 		}
-		// Append the intervening text
-		if (!onlyRepl) sb.append(text, lastAppendPosition, first);
-		// Append the match substitution
-		sb.append(result);
-		lastAppendPosition = last;
-		return this;
 	}
 	/**
 	 * Implements a terminal append-and-replace step.
@@ -969,12 +1023,14 @@ public final class Matcher implements MatchResult {
 		reset();
 		boolean result = find();
 		if (result) {
-			StringBuffer sb = new StringBuffer();
+			StringBuilder sb = new StringBuilder();
 			do {
-				appendReplacement(sb, replacement);
+				sb.append(text, lastAppendPosition, first);
+				appendExpansion(sb, replacement, false);
+				lastAppendPosition = last;
 				result = find();
 			} while (result);
-			appendTail(sb);
+			sb.append(text, lastAppendPosition, getTextLength());
 			return sb.toString();
 		}
 		return text.toString();
@@ -1049,6 +1105,31 @@ public final class Matcher implements MatchResult {
 	 * @since 1.5
 	 */
 	public Matcher region(int start, int end) {
+		return region(start, end, null);
+	}
+	/**
+	 * Sets the limits of this matcher's region, as in
+	 * {@link #region(int, int)}. The enregex metadata of the input is only
+	 * computed over the region, starting from the given state rather than by
+	 * scanning the input from its beginning.
+	 *
+	 * @param start
+	 *        The index to start searching at (inclusive)
+	 * @param end
+	 *        The index to end searching at (exclusive)
+	 * @param startState
+	 *        The enregex metadata at <code>start</code>, as given by
+	 *        {@link EnregexSegment#metadataAt(int)}, or <code>null</code> to
+	 *        start from the nearest position whose metadata has already been
+	 *        computed
+	 * @throws IndexOutOfBoundsException
+	 *         If start or end is less than zero, if
+	 *         start is greater than the length of the input sequence, if
+	 *         end is greater than the length of the input sequence, or if
+	 *         start is greater than end.
+	 * @return this matcher
+	 */
+	public Matcher region(int start, int end, EnregexMetadata startState) {
 		if ((start < 0) || (start > getTextLength()))
 			throw new IndexOutOfBoundsException("start");
 		if ((end < 0) || (end > getTextLength()))
@@ -1057,6 +1138,7 @@ public final class Matcher implements MatchResult {
 		reset();
 		from = start;
 		to = end;
+		system.region(from, to, startState);
 		return this;
 	}
 	/**
@@ -1244,16 +1326,16 @@ public final class Matcher implements MatchResult {
 	 * calls to the search methods start at a new "soft" boundary which is
 	 * the end of the previous match.
 	 */
-	private boolean search(int from) {
+	boolean search(int from) {
 		this.hitEnd = false;
 		this.requireEnd = false;
 		from = from < 0 ? 0 : from;
 		this.first = from;
 		this.oldLast = oldLast < 0 ? from : oldLast;
 		resetGroups(groupsr.length);
+		system.clear();
 		acceptMode = NOANCHOR;
-		boolean result = parentPattern.compiledPattern.root.match(this, from,
-				text);
+		boolean result = run(from, false);
 		if (!result) this.first = -1;
 		this.oldLast = this.last;
 		sortGroups();
@@ -1272,13 +1354,193 @@ public final class Matcher implements MatchResult {
 		this.first = from;
 		this.oldLast = oldLast < 0 ? from : oldLast;
 		resetGroups(groupsr.length);
+		system.clear();
 		acceptMode = anchor;
-		boolean result = parentPattern.compiledPattern.matchRoot.match(this,
-				from, text);
+		boolean result = run(from, true);
 		if (!result) this.first = -1;
 		this.oldLast = this.last;
 		return result;
 	}
+	/**
+	 * Decides whether {@link #find()} would find a match, if the given anchor
+	 * is {@link #NOANCHOR}, or whether {@link #matches()} would match, if it
+	 * is {@link #ENDANCHOR}, on this matcher just after it has been reset. If
+	 * the pattern's {@link LazyDFA} can decide this on its own, where the
+	 * match is and what its groups are is not found, and the matcher is left
+	 * without a match.
+	 */
+	boolean test(int anchor) {
+		LazyDFA dfa = parentPattern.compiledPattern.dfa(anchor == ENDANCHOR,
+				anchor == ENDANCHOR);
+		if (dfa != null) {
+			hitEnd = false;
+			requireEnd = false;
+			resetGroups(groupsr.length);
+			system.clear();
+			acceptMode = anchor;
+			int end = dfa.run(this, from, true);
+			if (end != LazyDFA.UNKNOWN) {
+				first = -1;
+				return end != LazyDFA.NO_MATCH;
+			}
+		}
+		return anchor == ENDANCHOR ? matches() : find();
+	}
+	/**
+	 * Matches the pattern from the given position with the engine it was
+	 * planned to be matched by. If the pattern has a {@link LazyDFA}, it
+	 * decides whether there is a match, and where it ends, and the nodes or
+	 * the {@link PikeVM} are only run up to that end to find where it starts
+	 * and what its groups are. If it has a {@link BitParallel} automaton, the
+	 * nodes are only run where it finds a match can be, and if it has a
+	 * {@link ReverseAutomaton}, they are only run from where it finds the
+	 * first match starts. Searches of a
+	 * pattern that adapts are run in the way its {@link Adaptation} chooses,
+	 * and recorded there, and those of a pattern that has code generated for
+	 * its nodes run that code in their place, once it is ready.
+	 *
+	 * @param anchored
+	 *        whether the match must start at the given position
+	 */
+	private boolean run(int from, boolean anchored) {
+		Adaptation adaptation = parentPattern.compiledPattern.adaptation;
+		if (adaptation == null || anchored)
+			return run(from, anchored, Adaptation.PREFILTERED);
+		int way = adaptation.way();
+		boolean timed = way < 0;
+		if (timed) way = ~way;
+		long start = timed ? System.nanoTime() : 0;
+		dfaBuilt = false;
+		boolean found = run(from, false, way);
+		long time = timed && !dfaBuilt ? System.nanoTime() - start : -1;
+		adaptation.record(way, time, (found ? last : to) - from, found,
+				way == Adaptation.PREFILTERED ? prefixStops : 0);
+		return found;
+	}
+	/**
+	 * Matches the pattern from the given position in the given way, as
+	 * {@link Adaptation} chooses.
+	 */
+	private boolean run(int from, boolean anchored, int way) {
+		CompiledPattern compiled = parentPattern.compiledPattern;
+		String prefix = compiled.prefix;
+		if (!anchored && compiled.engine == Pattern.Engine.LITERAL)
+			return literal(from, prefix);
+		// A character that differs from the prefix is all it takes
+		if (anchored && prefix != null && compiled.planned
+				&& mismatch(from, prefix)) return false;
+		ReverseAutomaton reverse = anchored ? null : compiled.reverse();
+		if (reverse != null) {
+			int start = reverse.start(this, from);
+			if (start == ReverseAutomaton.NO_MATCH) {
+				// The nodes would have tried every position up to the end
+				hitEnd = true;
+				return false;
+			}
+			if (start != ReverseAutomaton.UNKNOWN) from = start;
+		}
+		BitParallel bitParallel = anchored ? null : compiled.bitParallel();
+		if (bitParallel != null && way != Adaptation.NODES)
+			return bitParallel(bitParallel, from, compiled.root(false));
+		LazyDFA dfa = way == Adaptation.NODES ? null : compiled.dfa(anchored,
+				acceptMode == ENDANCHOR);
+		int end = dfa == null ? LazyDFA.UNKNOWN : dfa.run(this, from,
+				way == Adaptation.PREFILTERED);
+		if (end == LazyDFA.NO_MATCH) return false;
+		int to = this.to;
+		boolean hitEnd = this.hitEnd;
+		if (end != LazyDFA.UNKNOWN) {
+			this.to = end;
+			from = matchFrom;
+		}
+		try {
+			PikeProgram program = compiled.program();
+			if (program != null)
+				return pike(program).run(this, from, anchored);
+			OnePass onePass = compiled.onePass();
+			if (end != LazyDFA.UNKNOWN && onePass != null) {
+				int found = onePass.run(this, from, anchored);
+				// Otherwise two ways of matching went on past a character
+				if (found != OnePass.UNKNOWN) return found != OnePass.NO_MATCH;
+			}
+			// The virtual machine follows the quotes up to the end it was
+			// given, where the nodes would read the metadata of the region
+			if (end != LazyDFA.UNKNOWN && dfa.program.quotes != null)
+				return pike(dfa.program).run(this, from, anchored);
+			return compiled.root(anchored).match(this, from, text);
+		} finally {
+			if (end != LazyDFA.UNKNOWN) {
+				// Whether the end was hit is only known from the whole region
+				this.to = to;
+				this.hitEnd = hitEnd;
+			}
+		}
+	}
+	/**
+	 * Searches with the given nodes from the given position, only starting
+	 * them up to the end of each match the given automaton finds, from as
+	 * far before it as the longest match, until they match there. Until the
+	 * end of the region is that close, the nodes cannot reach it, so whether
+	 * they hit it is left as it was.
+	 */
+	private boolean bitParallel(BitParallel automaton, int from, Node root) {
+		int lastStart = this.lastStart, longest = automaton.longest;
+		boolean hitEnd = this.hitEnd;
+		for (;;) {
+			int end = automaton.run(this, from);
+			if (end == BitParallel.NO_MATCH || end > to - longest)
+				return root.match(this, Math.max(from,
+						(end == BitParallel.NO_MATCH ? to : end) - longest),
+						text);
+			// The match is not empty, so it starts before its end
+			this.lastStart = Math.min(lastStart, end - 1);
+			boolean found;
+			try {
+				found = root.match(this, Math.max(from, end - longest), text);
+			} finally {
+				this.lastStart = lastStart;
+			}
+			this.hitEnd = hitEnd;
+			if (found) return true;
+			from = end;
+		}
+	}
+	/**
+	 * Finds the literal the pattern consists of from the given position, as
+	 * the nodes would.
+	 */
+	private boolean literal(int from, String literal) {
+		int guard = Math.min(to - literal.length(), lastStart);
+		int found = from > guard ? -1 : Node.EnregexQuoteStart.indexOf(text,
+				literal, from, guard);
+		if (found < 0) {
+			hitEnd = true;
+			return false;
+		}
+		first = found;
+		last = found + literal.length();
+		cacheGroup(0, Range.of(first, last));
+		return true;
+	}
+	/**
+	 * @return whether a character of the region from the given position
+	 *         differs from the one in the same place in the given prefix
+	 */
+	private boolean mismatch(int from, String prefix) {
+		int length = Math.min(prefix.length(), to - from);
+		for (int k = 0; k < length; k++)
+			if (text.charAt(from + k) != prefix.charAt(k)) return true;
+		return false;
+	}
+	/**
+	 * @return the virtual machine that runs the given program, which is kept
+	 *         between searches
+	 */
+	private PikeVM pike(PikeProgram program) {
+		if (pike == null || pike.program != program)
+			pike = new PikeVM(program);
+		return pike;
+	}
 	/**
 	 * Returns the end index of the text.
 	 *
@@ -1325,17 +1587,24 @@ public final class Matcher implements MatchResult {
 	}
 	@SuppressWarnings("unchecked")
 	private void resetGroups(int parentGroupCount) {
+		// The lists are cleared in place, since match results copy them
+		if (groupsr != null && groupsr.length == parentGroupCount) {
+			for (ArrayList<Range> group : groupsr)
+				group.clear();
+			return;
+		}
 		groupsr = new ArrayList[parentGroupCount];
 		for (int i = 0; i < groupsr.length; i++)
 			groupsr[i] = new ArrayList<>();
 	}
 	private void sortGroups() {
-		Logger.getGlobal().log(Level.FINE, Arrays.toString(groupsr));
-		ArrayList<Range> zero = new ArrayList<>();
-		zero.add(range(0));
-		groupsr[0] = zero;
+		Logger.getGlobal().log(Level.FINE, () -> Arrays.toString(groupsr));
+		Range zero = range(0);
+		groupsr[0].clear();
+		groupsr[0].add(zero);
 		for (int i = 1; i < groupsr.length; i++)
-			groupsr[i] = new ArrayList<>(new TreeSet<>(groupsr[i]));
+			if (groupsr[i].size() > 1)
+				groupsr[i] = new ArrayList<>(new TreeSet<>(groupsr[i]));
 	}
 	void cacheGroup(int i, Range of) {
 		// if (range(i) != null && of.start < range(i).end)
@@ -1343,7 +1612,7 @@ public final class Matcher implements MatchResult {
 		groupsr[i].add(of);
 	}
 	void removeGroup(int i) {
-		Logger.getGlobal().log(Level.FINE, "Cleaning: " + (i));
+		Logger.getGlobal().log(Level.FINE, () -> "Cleaning: " + (i));
 		groupsr[i].remove(groupsr[i].size() - 1);
 	}
 }
\ No newline at end of file
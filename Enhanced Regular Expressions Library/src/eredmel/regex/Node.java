@@ -7,7 +7,6 @@ import static eredmel.regex.Pattern.*;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Stack;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,6 +60,21 @@ class Node extends Object {
 			return true;
 		}
 	}
+	/**
+	 * Base class for zero width assertions that depend only on the position
+	 * at which they are tested, so that they can also be tested by the
+	 * {@link PikeVM}.
+	 */
+	static abstract class Assertion extends Node {
+		/**
+		 * @return whether this assertion holds at the given position
+		 */
+		abstract boolean holds(Matcher matcher, int i, CharSequence seq);
+		@Override
+		boolean match(Matcher matcher, int i, CharSequence seq) {
+			return holds(matcher, i, seq) && next.match(matcher, i, seq);
+		}
+	}
 	/**
 	 * Used for REs that can start anywhere within the input string.
 	 * This basically tries to match repeatedly at each spot in the
@@ -81,7 +95,7 @@ class Node extends Object {
 				matcher.hitEnd = true;
 				return false;
 			}
-			int guard = matcher.to - minLength;
+			int guard = Math.min(matcher.to - minLength, matcher.lastStart);
 			for (; i <= guard; i++) {
 				if (next.match(matcher, i, seq)) {
 					matcher.first = i;
@@ -101,6 +115,132 @@ class Node extends Object {
 			return false;
 		}
 	}
+	/**
+	 * Used for REs that can start anywhere within the input string and begin
+	 * with enregex quote assertions, as in {@code ~^'//.*}. Rather than trying
+	 * every position, this skips directly to positions whose quote state
+	 * satisfies all the leading assertions, using the segment's
+	 * {@link EnregexQuoteTable}s. If the assertions are followed by a literal,
+	 * this also skips to the next occurrence of that literal.
+	 */
+	static final class EnregexQuoteStart extends Start {
+		private final boolean[] positive;
+		private final int[] quote;
+		/**
+		 * The literal every match starts with, after its quote assertions, or
+		 * null.
+		 */
+		final String literal;
+		final boolean supplementary;
+		private EnregexQuoteStart(Node node, boolean[] positive, int[] quote,
+				String literal, boolean supplementary) {
+			super(node);
+			this.positive = positive;
+			this.quote = quote;
+			this.literal = literal;
+			this.supplementary = supplementary;
+		}
+		/**
+		 * @return a start node for the given match root that filters on its
+		 *         leading quote assertions, or null if it has none
+		 */
+		static EnregexQuoteStart of(Node matchRoot, boolean supplementary) {
+			int count = 0;
+			Node node = matchRoot;
+			for (; node instanceof EnregexQuote; node = node.next)
+				count++;
+			if (count == 0) return null;
+			boolean[] positive = new boolean[count];
+			int[] quote = new int[count];
+			node = matchRoot;
+			for (int k = 0; k < count; k++, node = node.next) {
+				positive[k] = ((EnregexQuote) node).positive;
+				quote[k] = ((EnregexQuote) node).quote;
+			}
+			String literal = null;
+			if (node instanceof Slice) {
+				int[] buf = ((Slice) node).buffer;
+				literal = new String(buf, 0, buf.length);
+			} else if (node instanceof CharProperty.Single) {
+				literal = String.valueOf((char) ((CharProperty.Single) node).c);
+			}
+			return new EnregexQuoteStart(node, positive, quote, literal,
+					supplementary);
+		}
+		@Override
+		boolean match(Matcher matcher, int i, CharSequence seq) {
+			int guard = Math.min(matcher.to - minLength, matcher.lastStart);
+			while (i <= guard) {
+				if (literal != null) {
+					i = indexOf(seq, literal, i, guard);
+					if (i < 0) break;
+				}
+				int eligible = nextEligible(matcher, i, guard);
+				if (eligible != i) {
+					i = eligible;
+					continue;
+				}
+				if (next.match(matcher, i, seq)) {
+					matcher.first = i;
+					matcher.cacheGroup(0,
+							Range.of(matcher.first, matcher.last));
+					return true;
+				}
+				if (i == guard) break;
+				if (Character.isHighSurrogate(seq.charAt(i++)) && supplementary
+						&& i < seq.length()
+						&& Character.isLowSurrogate(seq.charAt(i))) {
+					i++;
+				}
+			}
+			matcher.hitEnd = true;
+			return false;
+		}
+		/**
+		 * @return the first position at or after i at which all of the quote
+		 *         assertions hold, or some position after guard if there is
+		 *         none up to it
+		 */
+		private int nextEligible(Matcher matcher, int i, int guard) {
+			for (boolean changed = true; changed && i <= guard;) {
+				changed = false;
+				// Past the end of the window there is no metadata to read
+				for (int k = 0; k < quote.length && i <= guard; k++) {
+					int j = matcher.system.nextQuoteMatch(quote[k],
+							positive[k], i);
+					if (j != i) {
+						i = j;
+						changed = true;
+					}
+				}
+			}
+			return i;
+		}
+		/**
+		 * @return the first index of the literal in the sequence starting at
+		 *         or after {@code from} and no later than {@code guard}, or -1
+		 */
+		static int indexOf(CharSequence seq, String literal,
+				int from, int guard) {
+			int found;
+			if (seq instanceof String) {
+				found = ((String) seq).indexOf(literal, from);
+			} else {
+				found = -1;
+				char first = literal.charAt(0);
+				int last = Math.min(guard, seq.length() - literal.length());
+				SEARCH: for (int k = from; k <= last; k++) {
+					if (seq.charAt(k) != first) continue;
+					for (int j = 1; j < literal.length(); j++)
+						if (seq.charAt(k + j) != literal.charAt(j))
+							continue SEARCH;
+					found = k;
+					break;
+				}
+			}
+			return found > guard ? -1 : found;
+		}
+	}
 	/*
 	 * StartS supports supplementary characters, including unpaired surrogates.
 	 */
@@ -114,7 +254,7 @@ class Node extends Object {
 				matcher.hitEnd = true;
 				return false;
 			}
-			int guard = matcher.to - minLength;
+			int guard = Math.min(matcher.to - minLength, matcher.lastStart);
 			while (i <= guard) {
 				// if ((ret = next.match(matcher, i, seq)) || i == guard)
 				if (next.match(matcher, i, seq)) {
@@ -142,11 +282,15 @@ class Node extends Object {
 	 * match for a \A sequence, and the caret anchor will use this if not in
 	 * multiline mode.
 	 */
-	static final class Begin extends Node {
+	static final class Begin extends Assertion {
 		@Override
-		boolean match(Matcher matcher, int i, CharSequence seq) {
+		boolean holds(Matcher matcher, int i, CharSequence seq) {
 			int fromIndex = (matcher.anchoringBounds) ? matcher.from : 0;
-			if (i == fromIndex && next.match(matcher, i, seq)) {
+			return i == fromIndex;
+		}
+		@Override
+		boolean match(Matcher matcher, int i, CharSequence seq) {
+			if (holds(matcher, i, seq) && next.match(matcher, i, seq)) {
 				matcher.first = i;
 				matcher.cacheGroup(0, Range.of(i, matcher.last));
 				return true;
@@ -159,14 +303,14 @@ class Node extends Object {
 	 * Node to anchor at the end of input. This is the absolute end, so this
 	 * should not match at the last newline before the end as $ will.
 	 */
-	static final class End extends Node {
+	static final class End extends Assertion {
 		@Override
-		boolean match(Matcher matcher, int i, CharSequence seq) {
+		boolean holds(Matcher matcher, int i, CharSequence seq) {
 			int endIndex = (matcher.anchoringBounds) ? matcher.to : matcher
 					.getTextLength();
 			if (i == endIndex) {
 				matcher.hitEnd = true;
-				return next.match(matcher, i, seq);
+				return true;
 			}
 			return false;
 		}
@@ -175,9 +319,9 @@ class Node extends Object {
 	 * Node to anchor at the beginning of a line. This is essentially the
 	 * object to match for the multiline ^.
 	 */
-	static final class Caret extends Node {
+	static final class Caret extends Assertion {
 		@Override
-		boolean match(Matcher matcher, int i, CharSequence seq) {
+		boolean holds(Matcher matcher, int i, CharSequence seq) {
 			int startIndex = matcher.from;
 			int endIndex = matcher.to;
 			if (!matcher.anchoringBounds) {
@@ -196,15 +340,15 @@ class Node extends Object {
 				// Should treat /r/n as one newline
 				if (ch == '\r' && seq.charAt(i) == '\n') return false;
 			}
-			return next.match(matcher, i, seq);
+			return true;
 		}
 	}
 	/**
 	 * Node to anchor at the beginning of a line when in unixdot mode.
 	 */
-	static final class UnixCaret extends Node {
+	static final class UnixCaret extends Assertion {
 		@Override
-		boolean match(Matcher matcher, int i, CharSequence seq) {
+		boolean holds(Matcher matcher, int i, CharSequence seq) {
 			int startIndex = matcher.from;
 			int endIndex = matcher.to;
 			if (!matcher.anchoringBounds) {
@@ -220,18 +364,17 @@ class Node extends Object {
 				char ch = seq.charAt(i - 1);
 				if (ch != '\n') { return false; }
 			}
-			return next.match(matcher, i, seq);
+			return true;
 		}
 	}
 	/**
 	 * Node to match the location where the last match ended.
 	 * This is used for the \G construct.
 	 */
-	static final class LastMatch extends Node {
+	static final class LastMatch extends Assertion {
 		@Override
-		boolean match(Matcher matcher, int i, CharSequence seq) {
-			if (i != matcher.oldLast) return false;
-			return next.match(matcher, i, seq);
+		boolean holds(Matcher matcher, int i, CharSequence seq) {
+			return i == matcher.oldLast;
 		}
 	}
 	/**
@@ -244,13 +387,13 @@ class Node extends Object {
 	 * Like ^ the $ operator matches at a position, it does not match the
 	 * line terminators themselves.
 	 */
-	static final class Dollar extends Node {
+	static final class Dollar extends Assertion {
 		boolean multiline;
 		Dollar(boolean mul) {
 			multiline = mul;
 		}
 		@Override
-		boolean match(Matcher matcher, int i, CharSequence seq) {
+		boolean holds(Matcher matcher, int i, CharSequence seq) {
 			int endIndex = (matcher.anchoringBounds) ? matcher.to : matcher
 					.getTextLength();
 			if (!multiline) {
@@ -275,10 +418,10 @@ class Node extends Object {
 				if (ch == '\n') {
 					// No match between \r\n
 					if (i > 0 && seq.charAt(i - 1) == '\r') return false;
-					if (multiline) return next.match(matcher, i, seq);
+					if (multiline) return true;
 				} else if (ch == '\r' || ch == '\u0085'
 						|| (ch | 1) == '\u2029') {
-					if (multiline) return next.match(matcher, i, seq);
+					if (multiline) return true;
 				} else { // No line terminator, no match
 					return false;
 				}
@@ -288,7 +431,7 @@ class Node extends Object {
 			// If a $ matches because of end of input, then more input
 			// could cause it to fail!
 			matcher.requireEnd = true;
-			return next.match(matcher, i, seq);
+			return true;
 		}
 		@Override
 		boolean study(TreeInfo info) {
@@ -300,13 +443,13 @@ class Node extends Object {
 	 * Node to anchor at the end of a line or the end of input based on the
 	 * multiline mode when in unix lines mode.
 	 */
-	static final class UnixDollar extends Node {
+	static final class UnixDollar extends Assertion {
 		boolean multiline;
 		UnixDollar(boolean mul) {
 			multiline = mul;
 		}
 		@Override
-		boolean match(Matcher matcher, int i, CharSequence seq) {
+		boolean holds(Matcher matcher, int i, CharSequence seq) {
 			int endIndex = (matcher.anchoringBounds) ? matcher.to : matcher
 					.getTextLength();
 			if (i < endIndex) {
@@ -316,9 +459,9 @@ class Node extends Object {
 					// match at very end or one before end
 					if (multiline == false && i != endIndex - 1)
 						return false;
-					// If multiline return next.match without setting
+					// If multiline return true without setting
 					// matcher.hitEnd
-					if (multiline) return next.match(matcher, i, seq);
+					if (multiline) return true;
 				} else {
 					return false;
 				}
@@ -329,7 +472,7 @@ class Node extends Object {
 			// If a $ matches because of end of input, then more input
 			// could cause it to fail!
 			matcher.requireEnd = true;
-			return next.match(matcher, i, seq);
+			return true;
 		}
 		@Override
 		boolean study(TreeInfo info) {
@@ -555,7 +698,7 @@ class Node extends Object {
 		int cmax;
 		int localIndex;
 		int groupIndex;
-		private final boolean capture;
+		final boolean capture;
 		GroupCurly(Node node, int cmin, int cmax, int type, int local,
 				int group, boolean capture) {
 			this.atom = node;
@@ -662,7 +805,8 @@ class Node extends Object {
 				if (!atom.match(matcher, i, seq)) return false;
 				if (i == matcher.last) return false;
 				if (capture) {
-					matcher.cacheGroup(0, Range.of(i, matcher.last));
+					matcher.cacheGroup(groupIndex / 2,
+							Range.of(i, matcher.last));
 				}
 				i = matcher.last;
 				j++;
@@ -675,7 +819,8 @@ class Node extends Object {
 					break;
 				}
 				if (capture) {
-					matcher.cacheGroup(0, Range.of(i, matcher.last));
+					matcher.cacheGroup(groupIndex / 2,
+							Range.of(i, matcher.last));
 				}
 				if (i == matcher.last) {
 					break;
@@ -686,17 +831,25 @@ class Node extends Object {
 		}
 		@Override
 		public void clean(Matcher mat) {
-			Logger.getGlobal().log(Level.FINE, Arrays.toString(mat.groupsr));
+			Logger.getGlobal().log(Level.FINE,
+					() -> Arrays.toString(mat.groupsr));
 			mat.removeGroup(groupIndex / 2);
-			Logger.getGlobal().log(Level.FINE, "THIS: " + this);
-			Logger.getGlobal().log(Level.FINE, "NEXT: " + next);
-			for (Node n = atom; n != null && n.next.next != null; n = n.next) {
-				Logger.getGlobal().log(Level.FINE, "Cleaning " + n);
-				Logger.getGlobal().log(Level.FINE,
-						Arrays.toString(mat.groupsr));
-				n.clean(mat);
-			}
-			Logger.getGlobal().log(Level.FINE, Arrays.toString(mat.groupsr));
+			Logger.getGlobal().log(Level.FINE, () -> "THIS: " + this);
+			Logger.getGlobal().log(Level.FINE, () -> "NEXT: " + next);
+			cleanChain(atom, mat);
+			Logger.getGlobal().log(Level.FINE,
+					() -> Arrays.toString(mat.groupsr));
+		}
+		/**
+		 * Cleans the nodes of the given chain in reverse order, so that
+		 * paired nodes (such as enregex open and close parens) are undone in
+		 * the opposite order to the one in which they matched.
+		 */
+		private static void cleanChain(Node n, Matcher mat) {
+			if (n == null || n.next.next == null) return;
+			cleanChain(n.next, mat);
+			Logger.getGlobal().log(Level.FINE, () -> "Cleaning " + n);
+			n.clean(mat);
 		}
 		@Override
 		boolean study(TreeInfo info) {
@@ -1141,7 +1294,7 @@ class Node extends Object {
 			if (atom instanceof BnM) { return atom.match(matcher, i, seq)
 					&& next.match(matcher, matcher.last, seq); }
 			for (;;) {
-				if (i > matcher.to) {
+				if (i > matcher.to || i > matcher.lastStart) {
 					matcher.hitEnd = true;
 					return false;
 				}
@@ -1248,6 +1401,63 @@ class Node extends Object {
 			return conditionMatched && next.match(matcher, i, seq);
 		}
 	}
+	/**
+	 * Matches the body of a lookbehind, which starts between the given
+	 * numbers of characters before the given position, and not before the
+	 * other given one, and ends there, backwards with the given automaton, if
+	 * it has one, and the nodes would not have read as far as the end of the
+	 * region, which they would have hit. The nodes are then only run to record
+	 * the groups of the match it finds.
+	 *
+	 * @param reach
+	 *        the number of characters past the given position the nodes may
+	 *        read
+	 * @return the start of the match, or {@link ReverseAutomaton#NO_MATCH},
+	 *         or {@link ReverseAutomaton#UNKNOWN} if the nodes must be run
+	 *         from each position in turn
+	 */
+	static int lookbehind(ReverseAutomaton reverse, Node cond,
+			Matcher matcher, int i, int rmin, int rmax, int reach, int from,
+			CharSequence seq) {
+		if (reverse == null || i + reach > matcher.to)
+			return ReverseAutomaton.UNKNOWN;
+		int start = reverse.behind(seq, i, rmin, rmax, from);
+		if (start < 0 || !reverse.captures || cond.match(matcher, start, seq))
+			return start;
+		return ReverseAutomaton.NO_MATCH;
+	}
+	/**
+	 * Base class for the lookbehinds, which match their bodies before where
+	 * they are.
+	 */
+	static abstract class Lookbehind extends Node {
+		Node cond;
+		int rmax, rmin;
+		/**
+		 * Matches the body backwards from where the lookbehind is, once it
+		 * has been built, if it has one.
+		 */
+		private transient ReverseAutomaton reverse;
+		private transient boolean reversed;
+		Lookbehind(Node cond, int rmax, int rmin) {
+			this.cond = cond;
+			this.rmax = rmax;
+			this.rmin = rmin;
+		}
+		/**
+		 * @return the automaton that matches the body backwards, or null
+		 */
+		final ReverseAutomaton reverse() {
+			if (!reversed) {
+				// Racing threads build equivalent automata, and the nodes try
+				// only one start if the body has only one length
+				reverse = rmin == rmax ? null : ReverseAutomaton
+						.lookbehind(cond);
+				reversed = true;
+			}
+			return reverse;
+		}
+	}
 	/**
 	 * For use with lookbehinds; matches the position where the lookbehind
 	 * was encountered.
@@ -1261,18 +1471,13 @@ class Node extends Object {
 	/**
 	 * Zero width positive lookbehind.
 	 */
-	static class Behind extends Node {
-		Node cond;
-		int rmax, rmin;
+	static class Behind extends Lookbehind {
 		Behind(Node cond, int rmax, int rmin) {
-			this.cond = cond;
-			this.rmax = rmax;
-			this.rmin = rmin;
+			super(cond, rmax, rmin);
 		}
 		@Override
 		boolean match(Matcher matcher, int i, CharSequence seq) {
 			int savedFrom = matcher.from;
-			boolean conditionMatched = false;
 			int startIndex = (!matcher.transparentBounds) ? matcher.from : 0;
 			int from = Math.max(i - rmax, startIndex);
 			// Set end boundary
@@ -1280,7 +1485,11 @@ class Node extends Object {
 			matcher.lookbehindTo = i;
 			// Relax transparent region boundaries for lookbehind
 			if (matcher.transparentBounds) matcher.from = 0;
-			for (int j = i - rmin; !conditionMatched && j >= from; j--) {
+			int start = lookbehind(reverse(), cond, matcher, i, rmin, rmax,
+					rmax - rmin, from, seq);
+			boolean conditionMatched = start >= 0;
+			for (int j = i - rmin; start == ReverseAutomaton.UNKNOWN
+					&& !conditionMatched && j >= from; j--) {
 				conditionMatched = cond.match(matcher, j, seq);
 			}
 			matcher.from = savedFrom;
@@ -1302,14 +1511,18 @@ class Node extends Object {
 			int rminChars = countChars(seq, i, -rmin);
 			int savedFrom = matcher.from;
 			int startIndex = (!matcher.transparentBounds) ? matcher.from : 0;
-			boolean conditionMatched = false;
 			int from = Math.max(i - rmaxChars, startIndex);
 			// Set end boundary
 			int savedLBT = matcher.lookbehindTo;
 			matcher.lookbehindTo = i;
 			// Relax transparent region boundaries for lookbehind
 			if (matcher.transparentBounds) matcher.from = 0;
-			for (int j = i - rminChars; !conditionMatched && j >= from; j -= j > from ? countChars(
+			// Each code point may take two characters
+			int start = lookbehind(reverse(), cond, matcher, i, rminChars,
+					rmaxChars, 2 * rmax, from, seq);
+			boolean conditionMatched = start >= 0;
+			for (int j = i - rminChars; start == ReverseAutomaton.UNKNOWN
+					&& !conditionMatched && j >= from; j -= j > from ? countChars(
 					seq, j, -1) : 1) {
 				conditionMatched = cond.match(matcher, j, seq);
 			}
@@ -1321,25 +1534,24 @@ class Node extends Object {
 	/**
 	 * Zero width negative lookbehind.
 	 */
-	static class NotBehind extends Node {
-		Node cond;
-		int rmax, rmin;
+	static class NotBehind extends Lookbehind {
 		NotBehind(Node cond, int rmax, int rmin) {
-			this.cond = cond;
-			this.rmax = rmax;
-			this.rmin = rmin;
+			super(cond, rmax, rmin);
 		}
 		@Override
 		boolean match(Matcher matcher, int i, CharSequence seq) {
 			int savedLBT = matcher.lookbehindTo;
 			int savedFrom = matcher.from;
-			boolean conditionMatched = false;
 			int startIndex = (!matcher.transparentBounds) ? matcher.from : 0;
 			int from = Math.max(i - rmax, startIndex);
 			matcher.lookbehindTo = i;
 			// Relax transparent region boundaries for lookbehind
 			if (matcher.transparentBounds) matcher.from = 0;
-			for (int j = i - rmin; !conditionMatched && j >= from; j--) {
+			int start = lookbehind(reverse(), cond, matcher, i, rmin, rmax,
+					rmax - rmin, from, seq);
+			boolean conditionMatched = start >= 0;
+			for (int j = i - rmin; start == ReverseAutomaton.UNKNOWN
+					&& !conditionMatched && j >= from; j--) {
 				conditionMatched = cond.match(matcher, j, seq);
 			}
 			// Reinstate region boundaries
@@ -1362,13 +1574,17 @@ class Node extends Object {
 			int rminChars = countChars(seq, i, -rmin);
 			int savedFrom = matcher.from;
 			int savedLBT = matcher.lookbehindTo;
-			boolean conditionMatched = false;
 			int startIndex = (!matcher.transparentBounds) ? matcher.from : 0;
 			int from = Math.max(i - rmaxChars, startIndex);
 			matcher.lookbehindTo = i;
 			// Relax transparent region boundaries for lookbehind
 			if (matcher.transparentBounds) matcher.from = 0;
-			for (int j = i - rminChars; !conditionMatched && j >= from; j -= j > from ? countChars(
+			// Each code point may take two characters
+			int start = lookbehind(reverse(), cond, matcher, i, rminChars,
+					rmaxChars, 2 * rmax, from, seq);
+			boolean conditionMatched = start >= 0;
+			for (int j = i - rminChars; start == ReverseAutomaton.UNKNOWN
+					&& !conditionMatched && j >= from; j -= j > from ? countChars(
 					seq, j, -1) : 1) {
 				conditionMatched = cond.match(matcher, j, seq);
 			}
@@ -1548,7 +1764,7 @@ class Node extends Object {
 	 * can are also part of a word if they have a base character, otherwise
 	 * they are ignored for purposes of finding word boundaries.
 	 */
-	static final class Bound extends Node {
+	static final class Bound extends Assertion {
 		static int LEFT = 0x1;
 		static int RIGHT = 0x2;
 		static int BOTH = 0x3;
@@ -1591,9 +1807,8 @@ class Node extends Object {
 			return ((left ^ right) ? (right ? LEFT : RIGHT) : NONE);
 		}
 		@Override
-		boolean match(Matcher matcher, int i, CharSequence seq) {
-			return (check(matcher, i, seq) & type) > 0
-					&& next.match(matcher, i, seq);
+		boolean holds(Matcher matcher, int i, CharSequence seq) {
+			return (check(matcher, i, seq) & type) > 0;
 		}
 	}
 	/**
@@ -1690,7 +1905,7 @@ class Node extends Object {
 		boolean match(Matcher matcher, int i, CharSequence seq) {
 			int[] src = buffer;
 			int patternLength = src.length;
-			int last = matcher.to - patternLength;
+			int last = Math.min(matcher.to - patternLength, matcher.lastStart);
 			// Loop over all possible match positions in text
 			NEXT: while (i <= last) {
 				// Loop over pattern from right to left
@@ -1744,7 +1959,7 @@ class Node extends Object {
 		boolean match(Matcher matcher, int i, CharSequence seq) {
 			int[] src = buffer;
 			int patternLength = src.length;
-			int last = matcher.to - lengthInChars;
+			int last = Math.min(matcher.to - lengthInChars, matcher.lastStart);
 			// Loop over all possible match positions in text
 			NEXT: while (i <= last) {
 				// Loop over pattern from right to left
@@ -1784,17 +1999,16 @@ class Node extends Object {
 	 * 
 	 */
 	static final class EnregexOpenParen extends Node {
-		private final int paren;
+		final int paren;
 		public EnregexOpenParen(int paren) {
 			this.paren = paren;
 		}
 		@Override
 		boolean match(Matcher matcher, int i, CharSequence seq) {
 			matcher.system.addParen(paren, i);
-			Logger.getGlobal().log(Level.FINE,
-					"Open called at " + i + "; resulting system:::");
-			Logger.getGlobal().log(Level.FINE, "\t" + matcher.system);
-			return next.match(matcher, i, seq);
+			if (next.match(matcher, i, seq)) return true;
+			clean(matcher);
+			return false;
 		}
 		@Override
 		public void clean(Matcher mat) {
@@ -1809,30 +2023,129 @@ class Node extends Object {
 	 * 
 	 */
 	static final class EnregexCloseParen extends Node {
-		private final int paren;
-		private final Stack<Integer> locallyUsed;
+		final int paren;
 		public EnregexCloseParen(int paren) {
 			this.paren = paren;
-			this.locallyUsed = new Stack<>();
 		}
 		@Override
 		boolean match(Matcher matcher, int i, CharSequence seq) {
-			if (!matcher.system.parenMatches(paren, i)) {
-				Logger.getGlobal().log(Level.FINE, "FALSE");
-				return false;
-			}
-			Logger.getGlobal().log(Level.FINE,
-					"Open called at " + i + "; resulting system:::");
-			Logger.getGlobal().log(Level.FINE, "TRUE");
-			locallyUsed.push(matcher.system.popParen(paren));
+			if (!matcher.system.parenMatches(paren, i)) return false;
+			matcher.system.closeParen(paren);
 			if (next.match(matcher, i, seq)) return true;
 			clean(matcher);
 			return false;
 		}
 		@Override
 		public void clean(Matcher mat) {
-			mat.system.addParen(mat.system.type.matching(paren),
-					locallyUsed.pop());
+			mat.system.uncloseParen(paren);
+		}
+	}
+	/**
+	 * 
+	 * A node representing an enregex open paren assertion, a repeated
+	 * character property and the matching close paren assertion, as in
+	 * {@code ~(.+~)}. Rather than consuming the body greedily and testing the
+	 * close assertion at every position while backing off, the candidate
+	 * close positions are read directly out of the segment's
+	 * {@link EnregexBracketTable}, and the body is only scanned once.
+	 * 
+	 * @author Kavi Gupta
+	 * 
+	 */
+	static final class EnregexParenSpan extends Node {
+		final int close;
+		final CharProperty body;
+		final int cmin, cmax, type;
+		private EnregexParenSpan(int close, CharProperty body, int cmin,
+				int cmax, int type) {
+			this.close = close;
+			this.body = body;
+			this.cmin = cmin;
+			this.cmax = cmax;
+			this.type = type;
+		}
+		/**
+		 * @return a node equivalent to the given open, body and close nodes in
+		 *         sequence, or null if they cannot be combined
+		 */
+		static EnregexParenSpan of(EnregexOpenParen open, Curly body,
+				EnregexCloseParen close, EnregexType enregexType) {
+			if (open.next != body || body.next != close) return null;
+			if (enregexType.matching(open.paren) != close.paren) return null;
+			if (!(body.atom instanceof CharProperty)) return null;
+			if (body.type != GREEDY && body.type != LAZY) return null;
+			return new EnregexParenSpan(close.paren,
+					(CharProperty) body.atom, body.cmin, body.cmax,
+					body.type);
+		}
+		@Override
+		boolean match(Matcher matcher, int i, CharSequence seq) {
+			EnregexBracketTable table = matcher.system.bracketTable(close, i);
+			// Scan the body once: it can match up to limit, and must match
+			// at least to minEnd
+			int limit = i, minEnd = cmin == 0 ? i : -1;
+			// Whether the body goes on to the end, where it would be read
+			boolean hit = false;
+			for (int count = 0; count < cmax;) {
+				if (limit >= Math.min(matcher.to, table.drop(i) - 1)) {
+					// The window can end before the region does (as it does
+					// for ParallelFinder), in which case the body may go on
+					// in a wider one
+					if (table.drop(i) <= table.last()
+							|| table.last() >= matcher.to) {
+						hit = limit >= matcher.to;
+						break;
+					}
+					table = matcher.system.bracketTable(close, (int) Math
+							.min(matcher.to, 2L * table.last() - i + 1));
+					continue;
+				}
+				int ch = Character.codePointAt(seq, limit);
+				if (!body.isSatisfiedBy(ch)) break;
+				limit += Character.charCount(ch);
+				if (++count == cmin) minEnd = limit;
+			}
+			// A lazy body is only read that far once every shorter one fails
+			if (hit && (type == GREEDY || minEnd < 0)) matcher.hitEnd = true;
+			if (minEnd < 0) return false;
+			int[] candidates = table.positionsAtDepthOf(i);
+			if (type == GREEDY) {
+				for (int k = EnregexBracketTable.floorIndex(candidates,
+						limit); k >= 0 && candidates[k] >= minEnd; k--) {
+					int j = candidates[k];
+					if (!splitsSurrogates(seq, i, j)
+							&& next.match(matcher, j, seq)) return true;
+				}
+			} else {
+				for (int k = EnregexBracketTable.floorIndex(candidates,
+						minEnd - 1) + 1; k < candidates.length
+						&& candidates[k] <= limit; k++) {
+					int j = candidates[k];
+					if (!splitsSurrogates(seq, i, j)
+							&& next.match(matcher, j, seq)) return true;
+				}
+				if (hit) matcher.hitEnd = true;
+			}
+			return false;
+		}
+		private static boolean splitsSurrogates(CharSequence seq, int i, int j) {
+			return j > i && j < seq.length()
+					&& Character.isLowSurrogate(seq.charAt(j))
+					&& Character.isHighSurrogate(seq.charAt(j - 1));
+		}
+		@Override
+		boolean study(TreeInfo info) {
+			info.minLength += cmin;
+			if (cmax == MAX_REPS)
+				info.maxValid = false;
+			else info.maxLength += cmax;
+			info.deterministic = false;
+			return next.study(info);
+		}
+		@Override
+		public String toString() {
+			return "EnregexParenSpan [close=" + (char) close + ", body="
+					+ body + ", cmin=" + cmin + ", cmax=" + cmax + "]";
 		}
 	}
 	/**
@@ -1843,19 +2156,16 @@ class Node extends Object {
 	 * @author Kavi Gupta
 	 * 
 	 */
-	static final class EnregexQuote extends Node {
-		private final boolean positive;
-		private final int quote;
+	static final class EnregexQuote extends Assertion {
+		final boolean positive;
+		final int quote;
 		EnregexQuote(boolean positive, int quote) {
 			this.positive = positive;
 			this.quote = quote;
 		}
 		@Override
-		boolean match(Matcher matcher, int i, CharSequence seq) {
-			if (!matcher.system.quoteMatches(quote, positive, i))
-				return false;
-			boolean nextMatch = next.match(matcher, i, seq);
-			return nextMatch;
+		boolean holds(Matcher matcher, int i, CharSequence seq) {
+			return matcher.system.quoteMatches(quote, positive, i);
 		}
 		@Override
 		public String toString() {
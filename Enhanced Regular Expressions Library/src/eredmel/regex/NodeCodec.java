@@ -0,0 +1,439 @@
+package eredmel.regex;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import eredmel.regex.CharPropertyNames.CloneableProperty;
+
+/**
+ * Encodes compiled node graphs in a compact binary form, and decodes them
+ * without running the {@link PatternCompiler}.
+ * <p>
+ * Nodes are encoded field by field, in the order given by
+ * {@link #fields(Class)}, other than the transient fields, which hold what
+ * the nodes work out from the others when they are first matched. The
+ * classes of the nodes are listed once, along with the names and types of
+ * their fields, in a class table that is shared by all the graphs written by
+ * the same encoder; a table that does not match the classes of the decoding
+ * library is rejected as a whole. Properties defined by name in
+ * {@link CharPropertyNames} are encoded by their names. Integers are written
+ * as zigzag varints, and boolean arrays (as in
+ * {@link CharProperty.BitClass}) as bits.
+ * <p>
+ * The accept nodes and {@link Node#lookbehindEnd} are shared by all graphs,
+ * so they are encoded as references rather than as objects.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class NodeCodec {
+	private static final Node[] SHARED = { Pattern.accept,
+			Pattern.lastAccept, Node.lookbehindEnd };
+	private static final String PROPERTY = "property:";
+	/**
+	 * Allocates an object without running its constructor, or null if this is
+	 * not possible on this JVM, in which case graphs cannot be decoded.
+	 */
+	private static final Method ALLOCATE;
+	private static final Object UNSAFE;
+	static {
+		Method allocate = null;
+		Object unsafe = null;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field field = c.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			allocate = c.getMethod("allocateInstance", Class.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			allocate = null;
+		}
+		ALLOCATE = allocate;
+		UNSAFE = unsafe;
+	}
+	private static final Map<Class<?>, Field[]> FIELDS = new HashMap<>();
+	/**
+	 * @return whether graphs can be decoded on this JVM
+	 */
+	static boolean available() {
+		return ALLOCATE != null;
+	}
+	/**
+	 * @return the fields of the given node class that are encoded, from those
+	 *         of {@link Node} down to those of the class itself, each class's
+	 *         in order of name
+	 */
+	static Field[] fields(Class<?> c) {
+		synchronized (FIELDS) {
+			Field[] fields = FIELDS.get(c);
+			if (fields != null) return fields;
+			List<Field> list = new ArrayList<>();
+			if (c != Node.class)
+				list.addAll(Arrays.asList(fields(c.getSuperclass())));
+			Field[] declared = c.getDeclaredFields();
+			Arrays.sort(declared, Comparator.comparing(Field::getName));
+			for (Field field : declared) {
+				if (Modifier.isStatic(field.getModifiers())
+						|| Modifier.isTransient(field.getModifiers())) continue;
+				field.setAccessible(true);
+				list.add(field);
+			}
+			fields = list.toArray(new Field[list.size()]);
+			FIELDS.put(c, fields);
+			return fields;
+		}
+	}
+	/**
+	 * Writes node graphs, building up the class table as it goes.
+	 */
+	static final class Encoder {
+		private final Output out = new Output();
+		private final Map<String, Integer> classIndex = new HashMap<>();
+		private final List<String> classKeys = new ArrayList<>();
+		private final List<Class<?>> classes = new ArrayList<>();
+		/**
+		 * Writes the graph reachable from the given roots.
+		 *
+		 * @throws IllegalArgumentException
+		 *         if the graph contains a node that cannot be encoded
+		 */
+		void writeGraph(Node... roots) {
+			Map<Node, Integer> ids = new IdentityHashMap<>();
+			List<Node> nodes = new ArrayList<>();
+			for (Node root : roots)
+				id(root, ids, nodes);
+			Output body = new Output();
+			for (int k = 0; k < nodes.size(); k++) {
+				Node node = nodes.get(k);
+				for (Field field : fields(node.getClass()))
+					writeValue(body, field, get(field, node), ids, nodes);
+			}
+			int[] classes = new int[nodes.size()];
+			for (int k = 0; k < classes.length; k++)
+				classes[k] = classIndex(nodes.get(k));
+			// The classes of all the nodes come before any of their fields, so
+			// that the decoder can allocate every node before filling any in
+			out.varint(nodes.size());
+			for (int c : classes)
+				out.varint(c);
+			for (Node root : roots)
+				out.varint(ref(root, ids, nodes));
+			out.bytes(body.toByteArray());
+		}
+		private void writeValue(Output body, Field field, Object value,
+				Map<Node, Integer> ids, List<Node> nodes) {
+			Class<?> type = field.getType();
+			if (type == int.class) body.zigzag((Integer) value);
+			else if (type == boolean.class) body.varint((Boolean) value ? 1
+					: 0);
+			else if (type == int[].class) {
+				int[] array = (int[]) value;
+				body.varint(array == null ? 0 : array.length + 1);
+				if (array != null) for (int v : array)
+					body.zigzag(v);
+			} else if (type == boolean[].class) {
+				boolean[] array = (boolean[]) value;
+				body.varint(array == null ? 0 : array.length + 1);
+				if (array == null) return;
+				for (int i = 0; i < array.length; i += 8) {
+					int bits = 0;
+					for (int j = 0; j < 8 && i + j < array.length; j++)
+						if (array[i + j]) bits |= 1 << j;
+					body.varint(bits);
+				}
+			} else if (Node.class.isAssignableFrom(type))
+				body.varint(ref((Node) value, ids, nodes));
+			else if (type == Node[].class) {
+				Node[] array = (Node[]) value;
+				body.varint(array == null ? 0 : array.length + 1);
+				if (array != null) for (Node node : array)
+					body.varint(ref(node, ids, nodes));
+			} else if (type == String.class) body.string((String) value);
+			else if (type.isEnum()) body.string(value == null ? null
+					: ((Enum<?>) value).name());
+			else if (type == Character.UnicodeBlock.class) body
+					.string(value == null ? null : value.toString());
+			else throw new IllegalArgumentException("Cannot encode "
+					+ field);
+		}
+		private static int ref(Node node, Map<Node, Integer> ids,
+				List<Node> nodes) {
+			if (node == null) return 0;
+			for (int i = 0; i < SHARED.length; i++)
+				if (node == SHARED[i]) return i + 1;
+			return id(node, ids, nodes) + SHARED.length + 1;
+		}
+		private static int id(Node node, Map<Node, Integer> ids,
+				List<Node> nodes) {
+			for (Node shared : SHARED)
+				if (node == shared) return -1;
+			Integer id = ids.get(node);
+			if (id != null) return id;
+			ids.put(node, nodes.size());
+			nodes.add(node);
+			return nodes.size() - 1;
+		}
+		private int classIndex(Node node) {
+			Class<?> c = node.getClass();
+			String key;
+			if (node instanceof CloneableProperty) key = PROPERTY
+					+ ((CloneableProperty) node).name;
+			else if (c.isAnonymousClass() || c.isLocalClass()) throw new IllegalArgumentException(
+					"Cannot encode " + c);
+			else key = c.getName();
+			Integer index = classIndex.get(key);
+			if (index != null) return index;
+			classIndex.put(key, classKeys.size());
+			classKeys.add(key);
+			classes.add(c);
+			return classKeys.size() - 1;
+		}
+		/**
+		 * @return the output that graphs are written to
+		 */
+		Output output() {
+			return out;
+		}
+		/**
+		 * Writes the class table, which lists each class and the names and
+		 * types of its encoded fields.
+		 */
+		void writeClassTable(Output table) {
+			table.varint(classKeys.size());
+			for (int i = 0; i < classKeys.size(); i++) {
+				table.string(classKeys.get(i));
+				table.string(signature(classes.get(i)));
+			}
+		}
+	}
+	/**
+	 * @return the names and types of the encoded fields of the given class
+	 */
+	private static String signature(Class<?> c) {
+		StringBuilder sb = new StringBuilder();
+		for (Field field : fields(c))
+			sb.append(field.getName()).append(':')
+					.append(field.getType().getName()).append(';');
+		return sb.toString();
+	}
+	/**
+	 * Reads node graphs written by an {@link Encoder}.
+	 */
+	static final class Decoder {
+		private final Class<?>[] classes;
+		private final String[] properties;
+		private final Field[][] fields;
+		/**
+		 * Reads the class table from the given buffer.
+		 *
+		 * @throws IllegalArgumentException
+		 *         if a class in the table does not exist or has different
+		 *         fields in this library
+		 */
+		Decoder(ByteBuffer in) {
+			int count = varint(in);
+			classes = new Class<?>[count];
+			properties = new String[count];
+			fields = new Field[count][];
+			for (int i = 0; i < count; i++) {
+				String key = string(in);
+				String signature = string(in);
+				Class<?> c;
+				if (key.startsWith(PROPERTY)) {
+					properties[i] = key.substring(PROPERTY.length());
+					CharProperty property = CharPropertyNames
+							.charPropertyFor(properties[i]);
+					if (!(property instanceof CloneableProperty))
+						throw new IllegalArgumentException("No property "
+								+ properties[i]);
+					c = property.getClass();
+				} else {
+					try {
+						c = Class.forName(key, false,
+								NodeCodec.class.getClassLoader());
+					} catch (ClassNotFoundException e) {
+						throw new IllegalArgumentException(e);
+					}
+					if (!Node.class.isAssignableFrom(c))
+						throw new IllegalArgumentException(key);
+				}
+				if (!signature(c).equals(signature))
+					throw new IllegalArgumentException("Fields of " + key
+							+ " have changed");
+				classes[i] = c;
+				fields[i] = fields(c);
+			}
+		}
+		/**
+		 * Reads a graph from the given buffer.
+		 *
+		 * @return its roots
+		 */
+		Node[] readGraph(ByteBuffer in, int rootCount) {
+			Node[] nodes = new Node[varint(in)];
+			int[] classOf = new int[nodes.length];
+			for (int k = 0; k < nodes.length; k++) {
+				classOf[k] = varint(in);
+				nodes[k] = allocate(classOf[k]);
+			}
+			Node[] roots = new Node[rootCount];
+			for (int r = 0; r < rootCount; r++)
+				roots[r] = deref(varint(in), nodes);
+			varint(in);
+			for (int k = 0; k < nodes.length; k++)
+				for (Field field : fields[classOf[k]])
+					readValue(in, field, nodes[k], nodes);
+			return roots;
+		}
+		private Node allocate(int classIndex) {
+			if (properties[classIndex] != null)
+				return CharPropertyNames
+						.charPropertyFor(properties[classIndex]);
+			try {
+				return (Node) ALLOCATE.invoke(UNSAFE, classes[classIndex]);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		private static void readValue(ByteBuffer in, Field field, Node node,
+				Node[] nodes) {
+			Class<?> type = field.getType();
+			try {
+				if (type == int.class) field.setInt(node, zigzag(in));
+				else if (type == boolean.class) field.setBoolean(node,
+						varint(in) != 0);
+				else if (type == int[].class) {
+					int length = varint(in) - 1;
+					int[] array = length < 0 ? null : new int[length];
+					for (int i = 0; i < length; i++)
+						array[i] = zigzag(in);
+					field.set(node, array);
+				} else if (type == boolean[].class) {
+					int length = varint(in) - 1;
+					boolean[] array = length < 0 ? null : new boolean[length];
+					for (int i = 0; i < length; i += 8) {
+						int bits = varint(in);
+						for (int j = 0; j < 8 && i + j < length; j++)
+							array[i + j] = (bits & 1 << j) != 0;
+					}
+					field.set(node, array);
+				} else if (Node.class.isAssignableFrom(type)) field.set(node,
+						deref(varint(in), nodes));
+				else if (type == Node[].class) {
+					int length = varint(in) - 1;
+					Node[] array = length < 0 ? null : new Node[length];
+					for (int i = 0; i < length; i++)
+						array[i] = deref(varint(in), nodes);
+					field.set(node, array);
+				} else if (type == String.class) field.set(node, string(in));
+				else if (type.isEnum()) {
+					String name = string(in);
+					field.set(node, name == null ? null : enumValue(type,
+							name));
+				} else if (type == Character.UnicodeBlock.class) {
+					String name = string(in);
+					field.set(node, name == null ? null
+							: Character.UnicodeBlock.forName(name));
+				} else throw new IllegalArgumentException("Cannot decode "
+						+ field);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private static Object enumValue(Class<?> type, String name) {
+			return Enum.valueOf((Class) type, name);
+		}
+		private static Node deref(int ref, Node[] nodes) {
+			if (ref == 0) return null;
+			if (ref <= SHARED.length) return SHARED[ref - 1];
+			return nodes[ref - SHARED.length - 1];
+		}
+	}
+	static int varint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) return value;
+		}
+	}
+	static int zigzag(ByteBuffer in) {
+		int v = varint(in);
+		return v >>> 1 ^ -(v & 1);
+	}
+	static String string(ByteBuffer in) {
+		int length = varint(in) - 1;
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	private static Object get(Field field, Node node) {
+		try {
+			return field.get(node);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	/**
+	 * A growable buffer of encoded values.
+	 */
+	static final class Output {
+		private byte[] bytes = new byte[256];
+		private int size;
+		void varint(int value) {
+			while ((value & ~0x7F) != 0) {
+				put(value & 0x7F | 0x80);
+				value >>>= 7;
+			}
+			put(value);
+		}
+		void zigzag(int value) {
+			varint(value << 1 ^ value >> 31);
+		}
+		void string(String value) {
+			if (value == null) {
+				varint(0);
+				return;
+			}
+			byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+			varint(utf8.length + 1);
+			raw(utf8);
+		}
+		/**
+		 * Writes the given bytes, preceded by their length.
+		 */
+		void bytes(byte[] value) {
+			varint(value.length);
+			raw(value);
+		}
+		/**
+		 * Writes the given bytes as they are.
+		 */
+		void raw(byte[] value) {
+			if (size + value.length > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size
+						+ value.length));
+			System.arraycopy(value, 0, bytes, size, value.length);
+			size += value.length;
+		}
+		private void put(int b) {
+			if (size == bytes.length) bytes = Arrays.copyOf(bytes, 2 * size);
+			bytes[size++] = (byte) b;
+		}
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, size);
+		}
+	}
+}
@@ -0,0 +1,476 @@
+package eredmel.regex;
+
+import static eredmel.regex.PikeProgram.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a {@link PikeProgram} in which at most one thread can go on past each
+ * character, following that thread alone, as RE2's one-pass matcher does.
+ * <p>
+ * From the start, and from each instruction after one that consumes input,
+ * the paths a thread can take through the instructions that consume nothing
+ * are listed when the program is analysed, in order of preference, each with
+ * the groups it captures, the slots it saves and the quote assertions it
+ * depends on. Checks for empty repetitions are decided as the paths are
+ * listed, since a thread that has consumed a character inside a repetition
+ * has not repeated it empty, and one that has just saved the start of a
+ * repetition has. A program is one-pass if no instruction is reached by two
+ * paths from the same place, and no ASCII character is consumed by two paths
+ * from the same place whose quote assertions can both hold, so that which path
+ * each ASCII character takes can be looked up in a table. Other characters
+ * are checked against every path as they are read, and a search in which two
+ * paths can take one gives up, so that it is run by the nodes instead.
+ * <p>
+ * The thread records each group it captures, so every repetition of a group
+ * is kept, as with the {@link PikeVM}, without the saving and restoring of
+ * groups that the nodes do to backtrack. A path that accepts the match ahead
+ * of the path the thread takes ends the search, as it cuts off the threads
+ * after it in the virtual machine, while one behind it is kept as the match
+ * in case the thread fails later on.
+ * <p>
+ * Each run follows one start, so a search tries each start in turn, and is
+ * only run between the positions that a {@link LazyDFA} has found the match
+ * to start after and end at.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class OnePass {
+	/**
+	 * Returned by {@link #run} if there is no match, or if two paths could
+	 * take the same character.
+	 */
+	static final int NO_MATCH = -1, UNKNOWN = -2;
+	/**
+	 * The largest number of instructions in a program that is analysed.
+	 */
+	private static final int MAX_LENGTH = 1024;
+	/**
+	 * In {@link Closure#ascii}, the index given to a character that no path
+	 * takes, or that several paths with quote assertions that cannot both
+	 * hold may take.
+	 */
+	private static final int NONE = -1, SEVERAL = -2;
+	final PikeProgram program;
+	/**
+	 * The paths from each instruction that follows one that consumes input,
+	 * or from the start, indexed by instruction, or null.
+	 */
+	private final Closure[] closures;
+	private OnePass(PikeProgram program, Closure[] closures) {
+		this.program = program;
+		this.closures = closures;
+	}
+	/**
+	 * @return the given program analysed, or null if it is not one-pass, or
+	 *         if it is too large to analyse
+	 */
+	static OnePass of(PikeProgram program) {
+		int length = program.length();
+		if (length > MAX_LENGTH) return null;
+		Closure[] closures = new Closure[length + 1];
+		Analysis analysis = new Analysis(program);
+		for (int pc = -1; pc < length; pc++) {
+			if (pc >= 0 && !consumes(program.ops[pc])) continue;
+			Closure closure = analysis.closure(pc);
+			if (closure == null) return null;
+			closures[pc + 1] = closure;
+		}
+		return new OnePass(program, closures);
+	}
+	private static boolean consumes(int op) {
+		return op == CHAR || op == CODE_POINT || op == PROPERTY
+				|| op == LINE_ENDING;
+	}
+	/**
+	 * Searches the matcher's region from the given position, setting its
+	 * match and groups if one is found, as the {@link PikeVM} would.
+	 *
+	 * @param anchored
+	 *        whether the match must start at the given position
+	 * @return the end of the match, or {@link #NO_MATCH} or {@link #UNKNOWN}
+	 */
+	int run(Matcher matcher, int from, boolean anchored) {
+		CharSequence seq = matcher.text;
+		int to = matcher.to;
+		int lastStart = anchored ? from : Math.min(to, matcher.lastStart);
+		boolean codePointStarts = matcher.parentPattern.compiledPattern
+				.codePointStarts;
+		EnregexQuoteAutomaton quotes = program.quotes;
+		int quote = quotes == null ? 0 : matcher.system.quoteStateAt(from);
+		Closure start = closures[0];
+		Run run = new Run(program.slots);
+		for (int pos = from; pos <= lastStart; pos++) {
+			if (quotes != null && pos > from)
+				quote = quotes.next(quote, seq.charAt(pos - 1));
+			if (codePointStarts && pos > from && PikeVM.secondHalf(seq, pos))
+				continue;
+			// A start that cannot be taken by any path
+			if (start.matches.length == 0 && pos < to) {
+				char ch = seq.charAt(pos);
+				if (ch < 128 && start.ascii[ch] == NONE) continue;
+			}
+			int end = run.from(matcher, seq, pos, quote);
+			if (end != NO_MATCH) return end;
+		}
+		return NO_MATCH;
+	}
+	/**
+	 * The paths from one place in the program, in order of preference.
+	 */
+	private static final class Closure {
+		final Path[] paths;
+		/**
+		 * The indices of the paths that accept the match, in order.
+		 */
+		final int[] matches;
+		/**
+		 * The index of the path that takes each ASCII character, or
+		 * {@link #NONE} or {@link #SEVERAL}.
+		 */
+		final int[] ascii;
+		Closure(Path[] paths, int[] matches, int[] ascii) {
+			this.paths = paths;
+			this.matches = matches;
+			this.ascii = ascii;
+		}
+	}
+	/**
+	 * A path through the instructions that consume nothing.
+	 */
+	private static final class Path {
+		/**
+		 * The instruction it ends at, which consumes input or accepts the
+		 * match.
+		 */
+		final int target;
+		/**
+		 * The group and start slot of each group it captures, in order, the
+		 * slot being -1 if the path saves it first, so that the group is
+		 * empty.
+		 */
+		final int[] captures;
+		/**
+		 * The slots it saves the position in.
+		 */
+		final int[] saves;
+		/**
+		 * The quote type and whether the position must be in it, for each
+		 * quote assertion on the path.
+		 */
+		final int[] quotes;
+		Path(int target, int[] captures, int[] saves, int[] quotes) {
+			this.target = target;
+			this.captures = captures;
+			this.saves = saves;
+			this.quotes = quotes;
+		}
+		/**
+		 * @return whether the quote assertions of the path hold in the given
+		 *         state of the {@link EnregexQuoteAutomaton}
+		 */
+		boolean holds(int quote) {
+			for (int k = 0; k < quotes.length; k += 2)
+				if (!EnregexQuoteAutomaton.matches(quote, quotes[k],
+						quotes[k + 1] != 0)) return false;
+			return true;
+		}
+		/**
+		 * @return whether the quote assertions of this path and the given one
+		 *         cannot both hold
+		 */
+		boolean excludes(Path other) {
+			for (int k = 0; k < quotes.length; k += 2)
+				for (int j = 0; j < other.quotes.length; j += 2) {
+					boolean positive = quotes[k + 1] != 0;
+					boolean otherPositive = other.quotes[j + 1] != 0;
+					// A position is in at most one quote
+					if (quotes[k] == other.quotes[j] ? positive != otherPositive
+							: positive && otherPositive) return true;
+				}
+			return false;
+		}
+	}
+	/**
+	 * Lists the paths of a program.
+	 */
+	private static final class Analysis {
+		private final PikeProgram program;
+		/**
+		 * The instructions reached from the place being analysed.
+		 */
+		private final boolean[] reached;
+		private final List<Path> paths = new ArrayList<>();
+		/**
+		 * The instruction that consumed the last character, or -1 at the
+		 * start.
+		 */
+		private int consumer;
+		Analysis(PikeProgram program) {
+			this.program = program;
+			this.reached = new boolean[program.length()];
+		}
+		/**
+		 * @return the paths from after the given instruction, or from the
+		 *         start if it is -1, or null if they show that the program is
+		 *         not one-pass
+		 */
+		Closure closure(int consumer) {
+			this.consumer = consumer;
+			Arrays.fill(reached, false);
+			paths.clear();
+			if (!follow(consumer + 1, new int[0], new int[0], new int[0]))
+				return null;
+			Path[] paths = this.paths.toArray(new Path[this.paths.size()]);
+			int matchCount = 0;
+			for (Path path : paths)
+				if (program.ops[path.target] == MATCH) matchCount++;
+			int[] matches = new int[matchCount];
+			for (int n = 0, k = 0; n < paths.length; n++)
+				if (program.ops[paths[n].target] == MATCH) matches[k++] = n;
+			int[] ascii = new int[128];
+			for (char ch = 0; ch < 128; ch++) {
+				ascii[ch] = NONE;
+				for (int n = 0; n < paths.length; n++) {
+					if (!accepts(paths[n].target, ch)) continue;
+					if (ascii[ch] == NONE) {
+						ascii[ch] = n;
+						continue;
+					}
+					// Every path that takes it must exclude every other one
+					for (int m = 0; m < n; m++)
+						if (accepts(paths[m].target, ch)
+								&& !paths[m].excludes(paths[n])) return null;
+					ascii[ch] = SEVERAL;
+				}
+			}
+			return new Closure(paths, matches, ascii);
+		}
+		/**
+		 * Follows a path from the given instruction.
+		 *
+		 * @return false if the program is not one-pass
+		 */
+		private boolean follow(int pc, int[] captures, int[] saves,
+				int[] quotes) {
+			int[] ops = program.ops, x = program.x, y = program.y;
+			for (;;) {
+				// Two paths to the same place, one of which the virtual
+				// machine would drop
+				if (reached[pc]) return false;
+				reached[pc] = true;
+				switch (ops[pc]) {
+					case JUMP:
+						pc = x[pc];
+						continue;
+					case SPLIT:
+						for (int to : program.targets[pc])
+							if (!follow(to, captures, saves, quotes))
+								return false;
+						return true;
+					case SAVE:
+						saves = with(saves, x[pc]);
+						pc++;
+						continue;
+					case CAPTURE:
+						captures = with(with(captures, y[pc]),
+								contains(saves, x[pc]) ? -1 : x[pc]);
+						pc++;
+						continue;
+					case EMPTY: {
+						boolean empty;
+						if (contains(saves, x[pc]))
+							empty = true;
+						else if (consumer < 0
+								|| contains(program.guards[consumer], x[pc]))
+							// Saved before the character just consumed, or
+							// never saved
+							empty = false;
+						else return false;
+						if (!empty)
+							pc++;
+						else if (y[pc] < 0)
+							return true;
+						else pc = y[pc];
+						continue;
+					}
+					case QUOTE:
+						quotes = with(with(quotes, x[pc]), y[pc]);
+						pc++;
+						continue;
+					case MATCH:
+					case CHAR:
+					case CODE_POINT:
+					case PROPERTY:
+					case LINE_ENDING:
+						paths.add(new Path(pc, captures, saves, quotes));
+						return true;
+					default:
+						// Assertions and paren assertions
+						return false;
+				}
+			}
+		}
+		/**
+		 * @return whether the given instruction consumes the given ASCII
+		 *         character
+		 */
+		private boolean accepts(int pc, char ch) {
+			switch (program.ops[pc]) {
+				case CHAR:
+				case CODE_POINT:
+					return PikeVM.same(program.x[pc], ch, program.y[pc]);
+				case PROPERTY:
+					return ((CharProperty) program.nodes[pc]).isSatisfiedBy(ch);
+				case LINE_ENDING:
+					return ch >= 0x0A && ch <= 0x0D;
+				default:
+					return false;
+			}
+		}
+		private static int[] with(int[] array, int value) {
+			int[] with = Arrays.copyOf(array, array.length + 1);
+			with[array.length] = value;
+			return with;
+		}
+		private static boolean contains(int[] array, int value) {
+			for (int element : array)
+				if (element == value) return true;
+			return false;
+		}
+	}
+	/**
+	 * The one thread of a search, and the groups it has captured.
+	 */
+	private final class Run {
+		private final int[] slots;
+		/**
+		 * The group, start and end of each group captured, in order.
+		 */
+		private int[] captured = new int[24];
+		private int count;
+		/**
+		 * The end of the match found, or -1, the number of the groups
+		 * captured before its path, and the groups its path captures.
+		 */
+		private int found;
+		private int foundCount;
+		private int[] foundPath = new int[12];
+		private int foundPathCount;
+		Run(int slots) {
+			this.slots = new int[slots];
+		}
+		/**
+		 * Runs the thread from the given start, at which the
+		 * {@link EnregexQuoteAutomaton} is in the given state.
+		 *
+		 * @return the end of the match, or {@link #NO_MATCH} or
+		 *         {@link #UNKNOWN}
+		 */
+		int from(Matcher matcher, CharSequence seq, int start, int quote) {
+			Arrays.fill(slots, -1);
+			slots[program.start] = start;
+			count = 0;
+			found = -1;
+			int to = matcher.to;
+			boolean endAnchored = matcher.acceptMode == Matcher.ENDANCHOR;
+			EnregexQuoteAutomaton quotes = program.quotes;
+			Closure closure = closures[0];
+			for (int pos = start;;) {
+				Path[] paths = closure.paths;
+				int take = NONE;
+				if (pos < to) {
+					char ch = seq.charAt(pos);
+					take = ch < 128 ? closure.ascii[ch] : SEVERAL;
+					if (take == SEVERAL) {
+						take = choose(paths, pos, quote, matcher, seq);
+						if (take == UNKNOWN) return UNKNOWN;
+					} else if (take >= 0 && !paths[take].holds(quote))
+						take = NONE;
+				}
+				for (int m : closure.matches) {
+					Path path = paths[m];
+					if (endAnchored && pos != to || !path.holds(quote))
+						continue;
+					found(path, pos);
+					// It cuts off the thread, unless the thread is ahead of it
+					if (m < take) take = NONE;
+					break;
+				}
+				if (take < 0) break;
+				Path path = paths[take];
+				int[] captures = path.captures;
+				for (int k = 0; k < captures.length; k += 2) {
+					int slot = captures[k + 1];
+					capture(captures[k], slot < 0 ? pos : slots[slot], pos);
+				}
+				for (int slot : path.saves)
+					slots[slot] = pos;
+				int width = PikeVM.width(program, path.target, pos, matcher,
+						seq);
+				if (quotes != null)
+					for (int k = 0; k < width; k++)
+						quote = quotes.next(quote, seq.charAt(pos + k));
+				pos += width;
+				closure = closures[path.target + 1];
+			}
+			if (found < 0) return NO_MATCH;
+			matcher.first = start;
+			matcher.last = found;
+			for (int k = 0; k < 3 * foundCount; k += 3)
+				matcher.cacheGroup(captured[k], Range.of(captured[k + 1],
+						captured[k + 2]));
+			for (int k = 0; k < foundPathCount; k += 3)
+				matcher.cacheGroup(foundPath[k], Range.of(foundPath[k + 1],
+						foundPath[k + 2]));
+			matcher.cacheGroup(0, Range.of(start, found));
+			return found;
+		}
+		/**
+		 * @return the index of the one path that takes the character at the
+		 *         given position, or {@link #NONE}, or {@link #UNKNOWN} if
+		 *         several can
+		 */
+		private int choose(Path[] paths, int pos, int quote, Matcher matcher,
+				CharSequence seq) {
+			int take = NONE;
+			for (int n = 0; n < paths.length; n++) {
+				Path path = paths[n];
+				if (program.ops[path.target] == MATCH || !path.holds(quote)
+						|| PikeVM.width(program, path.target, pos, matcher,
+								seq) == 0) continue;
+				if (take != NONE) return UNKNOWN;
+				take = n;
+			}
+			return take;
+		}
+		private void capture(int group, int start, int end) {
+			if (3 * count == captured.length)
+				captured = Arrays.copyOf(captured, 2 * captured.length);
+			captured[3 * count] = group;
+			captured[3 * count + 1] = start;
+			captured[3 * count + 2] = end;
+			count++;
+		}
+		/**
+		 * Keeps the match accepted by the given path at the given position.
+		 */
+		private void found(Path path, int pos) {
+			found = pos;
+			foundCount = count;
+			int[] captures = path.captures;
+			if (3 * captures.length / 2 > foundPath.length)
+				foundPath = new int[3 * captures.length / 2];
+			foundPathCount = 0;
+			for (int k = 0; k < captures.length; k += 2) {
+				int slot = captures[k + 1];
+				foundPath[foundPathCount++] = captures[k];
+				foundPath[foundPathCount++] = slot < 0 ? pos : slots[slot];
+				foundPath[foundPathCount++] = pos;
+			}
+		}
+	}
+}
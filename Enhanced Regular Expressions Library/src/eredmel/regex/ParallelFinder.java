@@ -0,0 +1,340 @@
+package eredmel.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Finds all the matches of a pattern in a large input on several threads,
+ * giving exactly the matches that repeated calls to {@link Matcher#find()}
+ * would. Subclasses decide what is made of the matches.
+ * <p>
+ * The input is split into chunks, each of which is searched by its own
+ * matcher for the matches that start in it, as {@link Matcher#find()} would
+ * search it if the previous match ended at its start. Matches may run past the
+ * end of their chunk. The {@link EnregexMetadata} at the start of each chunk
+ * is found by a parallel prefix: each chunk is first scanned from every quote
+ * state, which gives its effect on the metadata from that state up to the
+ * paren counts before it, and these effects are then composed in order.
+ * <p>
+ * The chunks are then merged in order. A chunk keeps its matches if the
+ * matches before it end at or before its start. Otherwise it is searched
+ * again from the end of the match that runs into it, until a match starts
+ * where one of its own matches does, after which the two agree.
+ *
+ * @author Kavi Gupta
+ *
+ */
+abstract class ParallelFinder<R> {
+	/**
+	 * The smallest number of characters in a chunk.
+	 */
+	static final int MIN_CHUNK = 1 << 16;
+	/**
+	 * The number of chunks per thread, so that threads whose chunks are
+	 * quick to search can take on others.
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+	final Pattern pattern;
+	final CharSequence text;
+	private final int count;
+	private final List<Chunk> chunks = new ArrayList<>();
+	ParallelFinder(Pattern pattern, CharSequence text, int count) {
+		this.pattern = pattern;
+		this.text = text;
+		this.count = count;
+	}
+	/**
+	 * @return the number of chunks to split the given text into to match the
+	 *         given pattern on the threads of the given pool, or zero if it
+	 *         should be matched on the calling thread
+	 */
+	static int chunkCount(Pattern pattern, CharSequence text,
+			ForkJoinPool pool) {
+		int count = (int) Math.min((long) pool.getParallelism()
+				* CHUNKS_PER_THREAD, text.length() / MIN_CHUNK);
+		if (pool.getParallelism() < 2 || count < 2
+				|| matchesAtLastMatch(pattern.pattern())) return 0;
+		return count;
+	}
+	/**
+	 * @return the matches of the given pattern in the given text, found on
+	 *         the threads of the given pool
+	 */
+	static List<MatchResult> findAll(Pattern pattern, CharSequence text,
+			ForkJoinPool pool) {
+		int count = chunkCount(pattern, text, pool);
+		if (count == 0) return pattern.matches(text);
+		return new AllMatches(pattern, text, count).run(pool);
+	}
+	/**
+	 * @return whether the given regex may contain a {@code \G}, whose matches
+	 *         depend on where the previous match ended
+	 */
+	private static boolean matchesAtLastMatch(String regex) {
+		for (int i = 0; i < regex.length() - 1; i++)
+			if (regex.charAt(i) == '\\' && regex.charAt(++i) == 'G')
+				return true;
+		return false;
+	}
+	/**
+	 * @return a chunk of the text
+	 */
+	abstract Chunk chunk(int start, int end);
+	/**
+	 * Adds a match that {@link Matcher#find()} finds but that its chunk did
+	 * not, which is the current match of the given matcher.
+	 */
+	abstract void add(Matcher matcher);
+	/**
+	 * @return what has been made of the matches
+	 */
+	abstract R result();
+	/**
+	 * Finds the matches on the threads of the given pool.
+	 *
+	 * @return what has been made of them
+	 */
+	final R run(ForkJoinPool pool) {
+		int length = text.length();
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			int end = i == count - 1 ? length : (int) ((long) length * (i + 1)
+					/ count);
+			// Never start a chunk between the halves of a surrogate pair
+			if (end < length && Character.isLowSurrogate(text.charAt(end))
+					&& Character.isHighSurrogate(text.charAt(end - 1))) end++;
+			chunks.add(chunk(start, end));
+			start = end;
+		}
+		try {
+			if (needsStartStates()) {
+				run(pool, Chunk::summarize);
+				EnregexMetadata state = EnregexMetadata.startOfString(pattern
+						.type());
+				for (Chunk chunk : chunks)
+					state = chunk.compose(state);
+			}
+			run(pool, Chunk::search);
+			merge();
+			return result();
+		} finally {
+			for (Chunk chunk : chunks)
+				if (chunk.matcher != null) chunk.matcher.close();
+		}
+	}
+	/**
+	 * @return whether the matchers need to be given the metadata at the start
+	 *         of their chunks, which is the case if the pattern may have
+	 *         enregex assertions (all of which start with a {@code ~}) and the
+	 *         text does not keep its own metadata
+	 */
+	private boolean needsStartStates() {
+		if (!Pattern.has(pattern.flags(), Pattern.ENHANCED_REGEX)
+				|| pattern.pattern().indexOf('~') < 0) return false;
+		EnregexType type = pattern.type();
+		if (text instanceof EnregexText)
+			return !((EnregexText) text).type.equals(type);
+		if (text instanceof ByteText)
+			return ((ByteText) text).metadata(type) == null;
+		return true;
+	}
+	/**
+	 * Runs the given step on every chunk, on the threads of the given pool.
+	 */
+	private void run(ForkJoinPool pool, Consumer<Chunk> step) {
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[chunks.size()];
+		for (int i = 0; i < tasks.length; i++) {
+			Chunk chunk = chunks.get(i);
+			tasks[i] = pool.submit(() -> step.accept(chunk));
+		}
+		for (ForkJoinTask<?> task : tasks)
+			task.join();
+	}
+	/**
+	 * Merges the matches of the chunks into those that
+	 * {@link Matcher#find()} finds.
+	 */
+	private void merge() {
+		// The position at which find() would next search
+		int next = 0;
+		for (Chunk chunk : chunks) {
+			if (next >= chunk.limit) continue;
+			if (next <= chunk.start) {
+				chunk.keep(0);
+				next = chunk.next;
+				continue;
+			}
+			// A match runs into this chunk, so search again from its end
+			Matcher matcher = chunk.matcher;
+			int k = 0;
+			while (next < chunk.limit) {
+				if (!matcher.search(next)) {
+					next = chunk.limit;
+					break;
+				}
+				int start = matcher.first;
+				while (k < chunk.count && chunk.starts[k] < start)
+					k++;
+				if (k < chunk.count && chunk.starts[k] == start) {
+					chunk.keep(k);
+					next = chunk.next;
+					break;
+				}
+				add(matcher);
+				next = after(matcher.first, matcher.last);
+			}
+		}
+	}
+	/**
+	 * @return the position at which {@link Matcher#find()} searches after the
+	 *         given match
+	 */
+	private static int after(int start, int end) {
+		return start == end ? end + 1 : end;
+	}
+	abstract class Chunk {
+		final int start, end;
+		/**
+		 * The end of the positions at which the matches of this chunk start,
+		 * which for the last chunk includes the end of the text.
+		 */
+		final int limit;
+		/**
+		 * The metadata at the start of this chunk, or null if the matcher
+		 * can find it itself.
+		 */
+		private EnregexMetadata startState;
+		/**
+		 * The text, as read by this chunk's thread.
+		 */
+		final CharSequence view;
+		/**
+		 * The end of the backslashes at the start of this chunk, and of the
+		 * character after them, which depend on the slash count before it.
+		 */
+		private int lead;
+		/**
+		 * For each quote state (plus one, so that the unquoted state, -1,
+		 * has an entry), the metadata at the end of this chunk if that is the
+		 * state at {@link #lead} and all paren counts there are zero.
+		 */
+		private EnregexMetadata[] effects;
+		Matcher matcher;
+		/**
+		 * The starts of the matches that start in this chunk, searching from
+		 * its start.
+		 */
+		int[] starts = new int[16];
+		int count;
+		/**
+		 * The position at which find() would search after the last of these
+		 * matches, or {@link #limit} if there are none. No match
+		 * starts between it and the limit.
+		 */
+		int next;
+		Chunk(int start, int end) {
+			this.start = start;
+			this.end = end;
+			this.limit = end == text.length() ? end + 1 : end;
+			this.view = text instanceof ByteText ? ((ByteText) text).view()
+					: text;
+		}
+		void summarize() {
+			EnregexType type = pattern.type();
+			int i = start;
+			while (i < end && view.charAt(i) == '\\')
+				i++;
+			lead = Math.min(i + 1, end);
+			effects = new EnregexMetadata[type.quotes.size() + 1];
+			for (int q = 0; q < effects.length; q++)
+				effects[q] = new EnregexMetadata(type,
+						new int[type.parens.size()], q - 1, 0);
+			for (int k = lead; k < end; k++) {
+				char c = view.charAt(k);
+				for (int q = 0; q < effects.length; q++)
+					effects[q] = effects[q].next(c);
+			}
+		}
+		/**
+		 * Sets the metadata at the start of this chunk.
+		 *
+		 * @return the metadata at its end
+		 */
+		EnregexMetadata compose(EnregexMetadata state) {
+			startState = state;
+			for (int k = start; k < lead; k++)
+				state = state.next(view.charAt(k));
+			if (lead == end) return state;
+			// Every character but a backslash leaves the slash count at zero
+			int[] depths = new int[state.type.parens.size()];
+			for (int p = 0; p < depths.length; p++)
+				depths[p] = state.parenDepth(p);
+			return effects[state.quoteType() + 1].shift(depths, 1);
+		}
+		void search() {
+			matcher = pattern.matcher(view);
+			matcher.useTransparentBounds(true);
+			matcher.useAnchoringBounds(false);
+			matcher.region(start, view.length(), startState);
+			// Only compute metadata for this chunk, unless a match runs on
+			matcher.system.region(start, end, startState);
+			matcher.lastStart = limit - 1;
+			next = limit;
+			while (matcher.find()) {
+				if (count == starts.length)
+					starts = Arrays.copyOf(starts, 2 * count);
+				starts[count] = matcher.first;
+				found();
+				count++;
+				next = after(matcher.first, matcher.last);
+			}
+		}
+		/**
+		 * Records the current match of this chunk's matcher, which is its
+		 * match number {@link #count}. Called on this chunk's thread.
+		 */
+		abstract void found();
+		/**
+		 * Keeps the matches of this chunk from the given one on, which are
+		 * those that {@link Matcher#find()} finds after the matches before
+		 * them.
+		 */
+		abstract void keep(int from);
+	}
+	/**
+	 * Collects the matches as {@link MatchResult}s.
+	 */
+	private static final class AllMatches extends
+			ParallelFinder<List<MatchResult>> {
+		private final List<MatchResult> matches = new ArrayList<>();
+		AllMatches(Pattern pattern, CharSequence text, int count) {
+			super(pattern, text, count);
+		}
+		@Override
+		Chunk chunk(int start, int end) {
+			return new Chunk(start, end) {
+				private final List<MatchResult> found = new ArrayList<>();
+				@Override
+				void found() {
+					found.add(matcher.toMatchResult());
+				}
+				@Override
+				void keep(int from) {
+					matches.addAll(found.subList(from, found.size()));
+				}
+			};
+		}
+		@Override
+		void add(Matcher matcher) {
+			matches.add(matcher.toMatchResult());
+		}
+		@Override
+		List<MatchResult> result() {
+			return matches;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package eredmel.regex;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Replaces all the matches of a pattern in a large input on several threads,
+ * giving the same text as {@link Matcher#replaceAll(String)}.
+ * <p>
+ * Each chunk writes its own matches, replaced, and the text between them into
+ * a builder as it finds them. When the chunks are merged, the output of a
+ * chunk is kept from its first match that {@link Matcher#find()} also finds,
+ * and the result is a {@link Rope} of these outputs and of the text between
+ * the chunks' last and first matches, so the output is never copied into one
+ * string.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class ParallelReplacer extends ParallelFinder<Rope> {
+	private final String replacement;
+	private final Rope.Builder rope = new Rope.Builder();
+	/**
+	 * The end of the text that has been replaced so far.
+	 */
+	private int copied;
+	private ParallelReplacer(Pattern pattern, CharSequence text, int count,
+			String replacement) {
+		super(pattern, text, count);
+		this.replacement = replacement;
+	}
+	/**
+	 * @return the given text, with every match of the given pattern replaced
+	 *         by the given replacement, found on the threads of the given pool
+	 */
+	static Rope replaceAll(Pattern pattern, CharSequence text,
+			String replacement, ForkJoinPool pool) {
+		if (replacement == null)
+			throw new NullPointerException("replacement");
+		int count = chunkCount(pattern, text, pool);
+		if (count == 0) {
+			String result = pattern.matcher(text).replaceAll(replacement);
+			return new Rope.Builder().add(result, 0, result.length()).build();
+		}
+		return new ParallelReplacer(pattern, text, count, replacement)
+				.run(pool);
+	}
+	@Override
+	Chunk chunk(int start, int end) {
+		return new Chunk(start, end) {
+			/**
+			 * The matches of this chunk, replaced, and the text between them.
+			 */
+			private final StringBuilder out = new StringBuilder();
+			/**
+			 * The start of the replacement of each match in {@link #out}.
+			 */
+			private int[] outAt = new int[16];
+			/**
+			 * The end of the last match.
+			 */
+			private int last;
+			@Override
+			void found() {
+				if (count == outAt.length)
+					outAt = Arrays.copyOf(outAt, 2 * count);
+				if (count > 0) out.append(view, last, matcher.first);
+				outAt[count] = out.length();
+				matcher.appendExpansion(out, replacement, false);
+				last = matcher.last;
+			}
+			@Override
+			void keep(int from) {
+				if (from == count) return;
+				text(starts[from]);
+				rope.add(out, outAt[from], out.length());
+				copied = last;
+			}
+		};
+	}
+	@Override
+	void add(Matcher matcher) {
+		text(matcher.first);
+		StringBuilder expansion = new StringBuilder();
+		matcher.appendExpansion(expansion, replacement, false);
+		rope.add(expansion, 0, expansion.length());
+		copied = matcher.last;
+	}
+	/**
+	 * Adds the text from the end of the last match up to the given position.
+	 */
+	private void text(int to) {
+		if (text instanceof String || text instanceof ByteText)
+			rope.add(text, copied, to);
+		else {
+			// The input may change once replaced, so keep a copy
+			String copy = text.subSequence(copied, to).toString();
+			rope.add(copy, 0, copy.length());
+		}
+	}
+	@Override
+	Rope result() {
+		text(text.length());
+		return rope.build();
+	}
+}
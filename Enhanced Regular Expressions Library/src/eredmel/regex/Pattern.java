@@ -26,13 +26,27 @@
  */
 package eredmel.regex;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
+import eredmel.regex.CharProperty.CharRange;
 import eredmel.regex.CharProperty.Single;
 import eredmel.regex.CharProperty.SingleI;
 import eredmel.regex.CharProperty.SingleS;
@@ -43,7 +57,6 @@ import eredmel.regex.Node.GroupTail;
 import eredmel.regex.Node.LastNode;
 import eredmel.regex.Node.Loop;
 import eredmel.regex.Node.Prolog;
-import eredmel.regex.Node.Start;
 
 /**
  * A compiled representation of a regular expression.
@@ -1245,6 +1258,105 @@ public final class Pattern implements java.io.Serializable {
 	 * character that must be escaped.
 	 */
 	public static final int ENHANCED_REGEX = 0x200;
+	/**
+	 * Matches the pattern in time linear in the length of the input, rather
+	 * than by backtracking, which can take time exponential in the length of
+	 * the input for patterns such as {@code (a|aa)*b}.
+	 * <p>
+	 * The match and groups found are the same as without this flag. Patterns
+	 * containing back references, lookahead, lookbehind, possessive
+	 * quantifiers or independent groups cannot be compiled with this flag,
+	 * and neither can patterns whose counted repetitions add up to too large
+	 * an expression, or whose enregex parenthesis assertions are not closed
+	 * the same way on every path through the pattern. Matching the
+	 * assertions takes time that also grows with how deeply the parens of the
+	 * input are nested.
+	 * <p>
+	 * This flag is meant for patterns and inputs that are not trusted.
+	 */
+	public static final int LINEAR_TIME = 0x400;
+	/**
+	 * Keeps to the engine planned for the pattern when it is compiled, rather
+	 * than adapting how its searches are run to how fast they have been going.
+	 * <p>
+	 * The matches found are the same either way, so this flag only matters for
+	 * timing, as when comparing engines, and it also leaves
+	 * {@link Pattern#statistics()} null.
+	 */
+	public static final int FIXED_PLAN = 0x800;
+	/**
+	 * Generates code of its own for the pattern once its searches have run
+	 * the backtracking nodes often enough, which is then run in their place,
+	 * as the JIT compiles methods once they are hot.
+	 * <p>
+	 * The matches found are the same either way. The code is generated on a
+	 * background thread, by the system Java compiler, so it is only generated
+	 * when the program is run on a JDK. The number of searches before the code
+	 * is generated is 10000, unless it is set with the
+	 * {@code eredmel.regex.generateAfter} system property, whether it has
+	 * been is given by {@link Pattern#codeGenerated()}, and it can be waited
+	 * for with {@link Pattern#awaitCodeGenerated(long, TimeUnit)}.
+	 * <p>
+	 * This flag is meant for the few patterns of a program that are searched
+	 * very many times, since generating the code takes a while, and every
+	 * pattern it is generated for keeps a class of its own.
+	 */
+	public static final int GENERATE_CODE = 0x1000;
+	/**
+	 * The engines that can match a pattern. One is chosen for each pattern
+	 * when it is compiled, as given by {@link Pattern#engine()}, unless the
+	 * pattern is compiled with
+	 * {@link Pattern#compile(String, int, EnregexType, Engine)}.
+	 */
+	public static enum Engine {
+		/**
+		 * Searches for the literal the pattern consists of, as
+		 * {@link String#indexOf(String, int)} does.
+		 */
+		LITERAL,
+		/**
+		 * Decides whether there is a match, and where it ends, with a lazily
+		 * built DFA, in one pass over the input, and only then finds where it
+		 * starts and its groups.
+		 */
+		DFA,
+		/**
+		 * Matches in time linear in the length of the input, keeping every
+		 * thread of the pattern at once, as with {@link Pattern#LINEAR_TIME}.
+		 */
+		PIKE_VM,
+		/**
+		 * Matches by backtracking over the nodes of the pattern, as patterns
+		 * with back references or lookaround must be.
+		 */
+		BACKTRACKING,
+		/**
+		 * Matches by backtracking over the nodes of the pattern, with the
+		 * enregex assertions skipping straight to where they can hold.
+		 */
+		ENREGEX,
+		/**
+		 * Decides whether there is a match, and where it ends, as
+		 * {@link #DFA} does, and then finds its groups in one pass over it,
+		 * as can be done for patterns in which at most one way of matching can
+		 * go on past each character, such as {@code key=(\w+);val=([^;]*)}.
+		 */
+		ONE_PASS,
+		/**
+		 * Finds where a match can start with a bit-parallel automaton, in one
+		 * pass over the input, and only then matches by backtracking over the
+		 * nodes from there, as can be done for short patterns without
+		 * repetitions of unbounded length, such as {@code \b[A-Z]\w{2,8}\b}.
+		 */
+		BIT_PARALLEL,
+		/**
+		 * Finds where the first match starts by reading the input backwards
+		 * from where it can end, and only then matches by backtracking over
+		 * the nodes from there, as can be done for short patterns anchored at
+		 * the end of the input, such as {@code \.(\w+)$}.
+		 */
+		REVERSE
+	}
 	/*
 	 * Pattern has only two serialized components: The pattern string
 	 * and the flags, which are all that is needed to recompile the pattern
@@ -1252,7 +1364,7 @@ public final class Pattern implements java.io.Serializable {
 	 */
 	/** use serialVersionUID from Merlin b59 for interoperability */
 	private static final long serialVersionUID = 5073258162644648461L;
-	CompiledPattern compiledPattern;
+	transient CompiledPattern compiledPattern;
 	/**
 	 * The original regular-expression pattern string.
 	 *
@@ -1260,6 +1372,13 @@ public final class Pattern implements java.io.Serializable {
 	 */
 	private final String pattern;
 	private EnregexType type;
+	/**
+	 * The engine this pattern was compiled to be matched by, or null if it
+	 * was chosen.
+	 *
+	 * @serial
+	 */
+	private Engine engine;
 	/**
 	 * Boolean indicating this Pattern is compiled; this is necessary in order
 	 * to lazily compile deserialized Patterns.
@@ -1293,8 +1412,9 @@ public final class Pattern implements java.io.Serializable {
 	 *        Match flags, a bit mask that may include
 	 *        {@link #CASE_INSENSITIVE}, {@link #MULTILINE}, {@link #DOTALL},
 	 *        {@link #UNICODE_CASE}, {@link #CANON_EQ}, {@link #UNIX_LINES},
-	 *        {@link #LITERAL}, {@link #UNICODE_CHARACTER_CLASS} and
-	 *        {@link #COMMENTS}
+	 *        {@link #LITERAL}, {@link #UNICODE_CHARACTER_CLASS},
+	 *        {@link #COMMENTS}, {@link #LINEAR_TIME}, {@link #FIXED_PLAN}
+	 *        and {@link #GENERATE_CODE}
 	 * @return the given regular expression compiled into a pattern with the
 	 *         given flags
 	 * @throws IllegalArgumentException
@@ -1308,7 +1428,32 @@ public final class Pattern implements java.io.Serializable {
 		return compile(regex, flags, EnregexType.EREDMEL_STANDARD);
 	}
 	public static Pattern compile(String regex, int flags, EnregexType type) {
-		return new Pattern(regex, flags, type);
+		return new Pattern(regex, flags, type, (Engine) null);
+	}
+	/**
+	 * Compiles the given regular expression into a pattern that is matched by
+	 * the given engine, rather than by the one that would be chosen for it.
+	 * This is meant for comparing the engines, since the matches found are the
+	 * same whichever engine finds them.
+	 *
+	 * @param engine
+	 *        The engine to match the pattern with, or null to choose one as
+	 *        {@link #compile(String, int, EnregexType)} does
+	 *
+	 * @throws PatternSyntaxException
+	 *         If the expression's syntax is invalid, or it cannot be matched
+	 *         by the given engine
+	 * @throws IllegalArgumentException
+	 *         If the flags include {@link #LINEAR_TIME} and the engine can
+	 *         take more than linear time
+	 */
+	public static Pattern compile(String regex, int flags, EnregexType type,
+			Engine engine) {
+		if ((flags & LINEAR_TIME) != 0 && engine != null
+				&& engine != Engine.LITERAL && engine != Engine.PIKE_VM)
+			throw new IllegalArgumentException(engine
+					+ " cannot match in linear time");
+		return new Pattern(regex, flags, type, engine);
 	}
 	/**
 	 * Returns the regular expression from which this pattern was compiled.
@@ -1341,16 +1486,199 @@ public final class Pattern implements java.io.Serializable {
 	 * @return A new matcher for this pattern
 	 */
 	public Matcher matcher(CharSequence input) {
+		compiled();
+		return new Matcher(this, input, type);
+	}
+	/**
+	 * @return the compiled form of this pattern, compiling it first if it has
+	 *         been deserialized
+	 */
+	CompiledPattern compiled() {
 		if (!compiled) {
 			synchronized (this) {
 				if (!compiled) {
 					compiledPattern = PatternCompiler.compile(pattern,
-							flags, type);
+							flags, type, engine);
 					compiled = true;
 				}
 			}
 		}
-		return new Matcher(this, input, type);
+		return compiledPattern;
+	}
+	/**
+	 * @return the enregex type of this pattern
+	 */
+	EnregexType type() {
+		return type;
+	}
+	/**
+	 * Creates a matcher that will match the given UTF-8 file against this
+	 * pattern. The file is mapped into memory rather than read into a string,
+	 * as in {@link MappedText}.
+	 *
+	 * @param path
+	 *        The file to be matched
+	 * @return A new matcher for this pattern
+	 * @throws IOException
+	 *         If the file cannot be read
+	 */
+	public Matcher fileMatcher(Path path) throws IOException {
+		return fileMatcher(path, StandardCharsets.UTF_8);
+	}
+	/**
+	 * Creates a matcher that will match the given file, in the given charset,
+	 * against this pattern, as in {@link #fileMatcher(Path)}.
+	 *
+	 * @param path
+	 *        The file to be matched
+	 * @param charset
+	 *        The charset of the file
+	 * @return A new matcher for this pattern
+	 * @throws IOException
+	 *         If the file cannot be read
+	 */
+	public Matcher fileMatcher(Path path, Charset charset)
+			throws IOException {
+		return matcher(MappedText.open(path, charset));
+	}
+	/**
+	 * Creates a matcher that will match the given file, in the given charset,
+	 * against this pattern, as in {@link #fileMatcher(Path)}, reading the
+	 * enregex metadata of the file from the given sidecar file rather than
+	 * computing it. If the sidecar does not exist or describes a different
+	 * file or enregex type, it is first written, as in
+	 * {@link EnregexSidecar#write}.
+	 *
+	 * @param path
+	 *        The file to be matched
+	 * @param charset
+	 *        The charset of the file
+	 * @param sidecar
+	 *        The sidecar file holding the metadata of the file
+	 * @return A new matcher for this pattern
+	 * @throws IOException
+	 *         If the file cannot be read or the sidecar cannot be written
+	 */
+	public Matcher fileMatcher(Path path, Charset charset, Path sidecar)
+			throws IOException {
+		CharSequence text = MappedText.open(path, charset);
+		if (text instanceof ByteText) {
+			ByteText bytes = (ByteText) text;
+			// The file is hashed once, and only if the sidecar could match
+			EnregexSidecar.Header header = new EnregexSidecar.Header(bytes,
+					charset, type);
+			if (!EnregexSidecar.load(bytes, type, sidecar, header)) {
+				EnregexSidecar.write(bytes, type, sidecar, header);
+				EnregexSidecar.load(bytes, type, sidecar, header);
+			}
+		}
+		return matcher(text);
+	}
+	/**
+	 * Creates a matcher that will match the given bytes, in the given charset,
+	 * against this pattern. For ISO-8859-1, US-ASCII and UTF-8 the bytes are
+	 * not decoded into a string, as in {@link ByteText}; for ASCII text the
+	 * indices reported by the matcher are then the byte offsets from
+	 * {@code offset}. For other UTF-8 text they are character indices, which
+	 * can be converted to byte offsets by matching the text returned by
+	 * {@link ByteText#wrap(byte[], int, int, Charset)} and passing them to
+	 * its {@link ByteText#byteOffset(int)}.
+	 *
+	 * @param bytes
+	 *        The bytes to be matched
+	 * @param offset
+	 *        The offset of the first byte to be matched
+	 * @param length
+	 *        The number of bytes to be matched
+	 * @param charset
+	 *        The charset of the bytes
+	 * @return A new matcher for this pattern
+	 */
+	public Matcher matcher(byte[] bytes, int offset, int length,
+			Charset charset) {
+		if (!ByteText.supports(charset))
+			return matcher(new String(bytes, offset, length, charset));
+		return matcher(ByteText.wrap(bytes, offset, length, charset));
+	}
+	/**
+	 * Creates a matcher that will find the matches of this pattern in the
+	 * given stream, keeping at most {@link StreamMatcher#DEFAULT_MAX_WINDOW}
+	 * characters of it in memory.
+	 *
+	 * @param input
+	 *        The stream to be matched
+	 * @return A new stream matcher for this pattern
+	 */
+	public StreamMatcher streamMatcher(Reader input) {
+		return streamMatcher(input, StreamMatcher.DEFAULT_MAX_WINDOW);
+	}
+	/**
+	 * Creates a matcher that will find the matches of this pattern in the
+	 * given stream, keeping at most the given number of characters of it in
+	 * memory.
+	 *
+	 * @param input
+	 *        The stream to be matched
+	 * @param maxWindow
+	 *        The maximum number of characters to keep in memory
+	 * @return A new stream matcher for this pattern
+	 */
+	public StreamMatcher streamMatcher(Reader input, int maxWindow) {
+		return new StreamMatcher(this, input, maxWindow);
+	}
+	/**
+	 * Creates a matcher that will find the matches of this pattern in the
+	 * given channel, decoded with the given charset.
+	 *
+	 * @param input
+	 *        The channel to be matched
+	 * @param charset
+	 *        The charset of the channel
+	 * @return A new stream matcher for this pattern
+	 */
+	public StreamMatcher streamMatcher(ReadableByteChannel input,
+			Charset charset) {
+		return streamMatcher(Channels.newReader(input, charset.newDecoder(),
+				-1));
+	}
+	/**
+	 * Creates a publisher of the matches of this pattern in the stream
+	 * published by the given publisher, found as by a {@link StreamMatcher}
+	 * keeping at most {@link StreamMatcher#DEFAULT_MAX_WINDOW} characters of
+	 * the stream in memory. Chunks of the stream are only requested as the
+	 * matches are, and each match is published as a {@link MatchResult} whose
+	 * offsets are absolute positions in the stream. Matches are only
+	 * published once the window is full or the stream has ended, so that the
+	 * window is not searched again for every chunk. The publisher can only be
+	 * subscribed to once.
+	 *
+	 * @param input
+	 *        The publisher of the stream to be matched
+	 * @return A publisher of the matches
+	 */
+	public Flow.Publisher<MatchResult> matchPublisher(
+			Flow.Publisher<CharBuffer> input) {
+		compiled();
+		return MatchPublisher.ofChars(this, input,
+				StreamMatcher.DEFAULT_MAX_WINDOW);
+	}
+	/**
+	 * Creates a publisher of the matches of this pattern in the stream of
+	 * bytes published by the given publisher, decoded with the given charset,
+	 * as {@link #matchPublisher(Flow.Publisher)} does. A character may be
+	 * split across chunks.
+	 *
+	 * @param input
+	 *        The publisher of the stream to be matched
+	 * @param charset
+	 *        The charset of the stream
+	 * @return A publisher of the matches
+	 */
+	public Flow.Publisher<MatchResult> matchPublisher(
+			Flow.Publisher<ByteBuffer> input, Charset charset) {
+		compiled();
+		return MatchPublisher.ofBytes(this, input, charset,
+				StreamMatcher.DEFAULT_MAX_WINDOW);
 	}
 	/**
 	 * Returns this pattern's match flags.
@@ -1360,6 +1688,63 @@ public final class Pattern implements java.io.Serializable {
 	public int flags() {
 		return flags;
 	}
+	/**
+	 * Returns the engine that matches this pattern.
+	 *
+	 * @return The engine this pattern was compiled to be matched by, or that
+	 *         was chosen for it
+	 */
+	public Engine engine() {
+		return compiled().engine;
+	}
+	/**
+	 * @return the engine this pattern was compiled to be matched by, or null
+	 *         if it was chosen
+	 */
+	Engine forcedEngine() {
+		return engine;
+	}
+	/**
+	 * Returns the statistics of the searches of this pattern, which are kept
+	 * when its searches adapt how they are run, namely when it is planned to be
+	 * matched by the {@link Engine#DFA}, {@link Engine#ONE_PASS} or
+	 * {@link Engine#BIT_PARALLEL} and not compiled with {@link #FIXED_PLAN}.
+	 *
+	 * @return the statistics of the searches of this pattern so far, or null
+	 *         if they are not kept
+	 */
+	public MatchStatistics statistics() {
+		Adaptation adaptation = compiled().adaptation;
+		return adaptation == null ? null : adaptation.statistics();
+	}
+	/**
+	 * Returns whether code of its own has been generated for this pattern,
+	 * which it may be once it has been searched often enough if it is
+	 * compiled with {@link #GENERATE_CODE}.
+	 *
+	 * @return whether the searches of this pattern now run the code generated
+	 *         for it
+	 */
+	public boolean codeGenerated() {
+		CodeGenerator generator = compiled().generator;
+		return generator != null && generator.generated();
+	}
+	/**
+	 * Waits at most the given time for the code being generated for this
+	 * pattern to be ready, if it has started being generated, as when timing
+	 * the searches that run it. This returns at once if its searches have not
+	 * yet started code being generated.
+	 *
+	 * @return whether the searches of this pattern now run the code generated
+	 *         for it, as {@link #codeGenerated()} gives
+	 * @throws InterruptedException
+	 *         if the thread is interrupted while waiting
+	 */
+	public boolean awaitCodeGenerated(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		CodeGenerator generator = compiled().generator;
+		return generator != null && generator.await(timeout, unit);
+	}
 	/**
 	 * Compiles the given regular expression and attempts to match the given
 	 * input against it.
@@ -1392,7 +1777,7 @@ public final class Pattern implements java.io.Serializable {
 	 *         If the expression's syntax is invalid
 	 */
 	public static boolean matches(String regex, CharSequence input) {
-		return Pattern.compile(regex).matcher(input).matches();
+		return Pattern.compile(regex).matcher(input).test(Matcher.ENDANCHOR);
 	}
 	/**
 	 * Splits the given input sequence around matches of this pattern.
@@ -1589,8 +1974,8 @@ public final class Pattern implements java.io.Serializable {
 		// if length > 0, the Pattern is lazily compiled
 		compiled = false;
 		if (pattern.length() == 0) {
-			compiledPattern = new CompiledPattern(new Start(lastAccept),
-					lastAccept, new GroupRegistry(), 0);
+			compiledPattern = PatternCompiler.compile(pattern, flags, type,
+					engine);
 			compiled = true;
 		}
 	}
@@ -1600,18 +1985,33 @@ public final class Pattern implements java.io.Serializable {
 	 * a Pattern. An empty pattern string results in an object tree with
 	 * only a Start node and a LastNode node.
 	 */
-	private Pattern(String p, int f, EnregexType type) {
+	private Pattern(String p, int f, EnregexType type, Engine engine) {
 		pattern = p;
+		flags = f;
 		this.type = type;
+		this.engine = engine;
 		// Reset group index count
 		if (pattern.length() > 0) {
-			compiledPattern = PatternCompiler.compile(pattern, f, type);
+			compiledPattern = PatternCompiler.compile(pattern, f, type, engine);
 			compiled = true;
 		} else {
-			compiledPattern = PatternCompiler.compile(p, f, type);
+			compiledPattern = PatternCompiler.compile(p, f, type, engine);
 		}
 		printObjectTree(Level.FINE, compiledPattern.matchRoot);
 	}
+	/**
+	 * Creates a pattern that has already been compiled, as read from a
+	 * {@link PatternBundle}.
+	 */
+	Pattern(String p, int f, EnregexType type, Engine engine,
+			CompiledPattern compiledPattern) {
+		pattern = p;
+		flags = f;
+		this.type = type;
+		this.engine = engine;
+		this.compiledPattern = compiledPattern;
+		compiled = true;
+	}
 	/**
 	 * Used to print out a subtree of the Pattern to help with debugging.
 	 */
@@ -1774,12 +2174,7 @@ public final class Pattern implements java.io.Serializable {
 	 * Returns node for matching characters within an explicit value range.
 	 */
 	static CharProperty rangeFor(final int lower, final int upper) {
-		return new CharProperty() {
-			@Override
-			boolean isSatisfiedBy(int ch) {
-				return inRange(lower, ch, upper);
-			}
-		};
+		return new CharRange(lower, upper);
 	}
 	/**
 	 * Non spacing marks only count as word characters in bounds calculations
@@ -1810,7 +2205,7 @@ public final class Pattern implements java.io.Serializable {
 	 * @since 1.8
 	 */
 	public Predicate<String> asPredicate() {
-		return s -> matcher(s).find();
+		return s -> matcher(s).test(Matcher.NOANCHOR);
 	}
 	/**
 	 * Creates a stream from the given input sequence around matches of this
@@ -1914,4 +2309,109 @@ public final class Pattern implements java.io.Serializable {
 			list.add(mat.toMatchResult());
 		return list;
 	}
-}
\ No newline at end of file
+	/**
+	 * Finds all the matches of this pattern in the given input, as
+	 * {@link #matches(CharSequence)} does, on the threads of the common
+	 * {@link ForkJoinPool}.
+	 *
+	 * @param input
+	 *        The character sequence to be matched
+	 * @return the matches, in order
+	 * @see #findAllParallel(CharSequence, ForkJoinPool)
+	 */
+	public List<MatchResult> findAllParallel(CharSequence input) {
+		return findAllParallel(input, ForkJoinPool.commonPool());
+	}
+	/**
+	 * Finds all the matches of this pattern in the given input, as
+	 * {@link #matches(CharSequence)} does, on the threads of the given pool.
+	 * The input is split into chunks that are searched in parallel, and the
+	 * matches found in them are reconciled so that they are exactly those
+	 * that repeated calls to {@link Matcher#find()} would find. Inputs that
+	 * are too short to be worth splitting, and patterns containing
+	 * {@code \G}, are searched on the calling thread. The input must not be
+	 * modified during the search.
+	 *
+	 * @param input
+	 *        The character sequence to be matched
+	 * @param pool
+	 *        The pool on which to search
+	 * @return the matches, in order
+	 */
+	public List<MatchResult> findAllParallel(CharSequence input,
+			ForkJoinPool pool) {
+		return ParallelFinder.findAll(this, input, pool);
+	}
+	/**
+	 * Replaces every match of this pattern in the given input, as
+	 * {@link Matcher#replaceAll(String)} does, on the threads of the common
+	 * {@link ForkJoinPool}.
+	 *
+	 * @param input
+	 *        The character sequence to be matched
+	 * @param replacement
+	 *        The replacement string
+	 * @return the replaced input
+	 * @see #replaceAllParallel(CharSequence, String, ForkJoinPool)
+	 */
+	public Rope replaceAllParallel(CharSequence input, String replacement) {
+		return replaceAllParallel(input, replacement, ForkJoinPool.commonPool());
+	}
+	/**
+	 * Replaces every match of this pattern in the given input, as
+	 * {@link Matcher#replaceAll(String)} does, on the threads of the given
+	 * pool. The matches are found as by
+	 * {@link #findAllParallel(CharSequence, ForkJoinPool)}, and each chunk of
+	 * the input is replaced on its own thread. The result is a {@link Rope} of
+	 * the replaced chunks, and of parts of the input if it is a
+	 * {@link String} or a text read by {@link MappedText}, so it is not copied
+	 * into one string unless {@link Rope#toString()} is called. The input must
+	 * not be modified during the replacement.
+	 *
+	 * @param input
+	 *        The character sequence to be matched
+	 * @param replacement
+	 *        The replacement string
+	 * @param pool
+	 *        The pool on which to replace
+	 * @return the replaced input
+	 */
+	public Rope replaceAllParallel(CharSequence input, String replacement,
+			ForkJoinPool pool) {
+		return ParallelReplacer.replaceAll(this, input, replacement, pool);
+	}
+	/**
+	 * Searches each of the given inputs for a match of this pattern, as the
+	 * predicate returned by {@link #asPredicate()} does, on the given
+	 * executor. The inputs are shared out among one worker per thread of the
+	 * executor, each of which reuses a single matcher for all of its inputs,
+	 * which makes this much cheaper than matching each input with a new
+	 * matcher when there are many small inputs.
+	 *
+	 * @param inputs
+	 *        The character sequences to be matched
+	 * @param executor
+	 *        The executor on which to match them
+	 * @return the set of the indices of the inputs that contain a match
+	 */
+	public BitSet matchAll(List<? extends CharSequence> inputs,
+			Executor executor) {
+		return BitSet.valueOf(BatchMatcher.run(this, inputs, executor, false)
+				.found);
+	}
+	/**
+	 * Searches each of the given inputs for a match of this pattern on the
+	 * given executor, as {@link #matchAll(List, Executor)} does.
+	 *
+	 * @param inputs
+	 *        The character sequences to be matched
+	 * @param executor
+	 *        The executor on which to match them
+	 * @return for each input, the start of the first match in it, or -1 if
+	 *         there is none
+	 */
+	public int[] findFirstAll(List<? extends CharSequence> inputs,
+			Executor executor) {
+		return BatchMatcher.run(this, inputs, executor, true).starts;
+	}
+}
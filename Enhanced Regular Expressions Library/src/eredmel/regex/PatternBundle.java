@@ -0,0 +1,193 @@
+package eredmel.regex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bundles of precompiled patterns, which can be loaded without compiling them
+ * again.
+ * <p>
+ * A bundle holds, for each pattern, its source, flags, enregex type and the
+ * engine that matches it, along with its compiled node graph as encoded by
+ * {@link NodeCodec}. A pattern read from a bundle is matched by that engine
+ * without being planned again, and the automata the engine runs are only
+ * built when the pattern is first searched. When a bundle is read by a version
+ * of this library whose node classes differ from those of the version that
+ * wrote it, or on a JVM that cannot decode node graphs, the patterns are
+ * compiled from their sources instead, so a bundle can always be read.
+ *
+ * @author Kavi Gupta
+ *
+ */
+public final class PatternBundle {
+	private static final int MAGIC = 0x456E5242;
+	private static final int VERSION = 2;
+	private PatternBundle() {}
+	/**
+	 * Writes the given patterns as a bundle.
+	 *
+	 * @return the bundle
+	 * @throws IllegalArgumentException
+	 *         if a pattern contains a node that cannot be encoded
+	 */
+	public static byte[] write(List<Pattern> patterns) {
+		NodeCodec.Encoder encoder = new NodeCodec.Encoder();
+		NodeCodec.Output out = encoder.output();
+		out.varint(patterns.size());
+		for (Pattern pattern : patterns) {
+			out.string(pattern.pattern());
+			out.varint(pattern.flags());
+			writeType(out, pattern.type());
+			Pattern.Engine forced = pattern.forcedEngine();
+			CompiledPattern compiled = pattern.compiled();
+			out.varint(forced == null ? 0 : forced.ordinal() + 1);
+			out.varint(compiled.engine.ordinal());
+			out.varint(compiled.registry.capturingGroupCount);
+			Map<String, Integer> named = compiled.registry.namedGroups();
+			out.varint(named.size());
+			for (Map.Entry<String, Integer> group : named.entrySet()) {
+				out.string(group.getKey());
+				out.varint(group.getValue());
+			}
+			out.varint(compiled.localCount);
+			encoder.writeGraph(compiled.root, compiled.matchRoot);
+		}
+		NodeCodec.Output bundle = new NodeCodec.Output();
+		bundle.varint(MAGIC);
+		bundle.varint(VERSION);
+		encoder.writeClassTable(bundle);
+		bundle.raw(out.toByteArray());
+		return bundle.toByteArray();
+	}
+	/**
+	 * Writes the given patterns as a bundle to the given file.
+	 *
+	 * @throws IOException
+	 *         if the file cannot be written
+	 */
+	public static void write(List<Pattern> patterns, Path path)
+			throws IOException {
+		Files.write(path, write(patterns));
+	}
+	/**
+	 * Reads the patterns in the given bundle, in the order they were written.
+	 *
+	 * @throws IllegalArgumentException
+	 *         if the bytes are not a bundle
+	 */
+	public static List<Pattern> read(ByteBuffer bundle) {
+		ByteBuffer in = bundle.duplicate();
+		if (NodeCodec.varint(in) != MAGIC)
+			throw new IllegalArgumentException("Not a pattern bundle");
+		int version = NodeCodec.varint(in);
+		if (version != VERSION)
+			throw new IllegalArgumentException("Unknown bundle version "
+					+ version);
+		int table = in.position();
+		NodeCodec.Decoder decoder;
+		try {
+			decoder = NodeCodec.available() ? new NodeCodec.Decoder(in)
+					: null;
+		} catch (IllegalArgumentException e) {
+			// Written by a library with different nodes
+			decoder = null;
+		}
+		if (decoder == null) {
+			in.position(table);
+			skipClassTable(in);
+		}
+		List<Pattern> patterns = new ArrayList<>();
+		Map<EnregexType, EnregexType> types = new HashMap<>();
+		types.put(EnregexType.EREDMEL_STANDARD, EnregexType.EREDMEL_STANDARD);
+		for (int count = NodeCodec.varint(in); count > 0; count--) {
+			String source = NodeCodec.string(in);
+			int flags = NodeCodec.varint(in);
+			EnregexType type = readType(in);
+			EnregexType known = types.putIfAbsent(type, type);
+			if (known != null) type = known;
+			int given = NodeCodec.varint(in);
+			Pattern.Engine forced = given == 0 ? null
+					: Pattern.Engine.values()[given - 1];
+			Pattern.Engine engine = Pattern.Engine.values()[NodeCodec
+					.varint(in)];
+			int capturingGroupCount = NodeCodec.varint(in);
+			Map<String, Integer> named = new HashMap<>(2);
+			for (int n = NodeCodec.varint(in); n > 0; n--)
+				named.put(NodeCodec.string(in), NodeCodec.varint(in));
+			int localCount = NodeCodec.varint(in);
+			if (decoder == null) {
+				skipGraph(in);
+				patterns.add(Pattern.compile(source, flags, type, forced));
+				continue;
+			}
+			Node[] roots = decoder.readGraph(in, 2);
+			patterns.add(new Pattern(source, flags, type, forced,
+					CompiledPattern.planned(roots[0], roots[1],
+							new GroupRegistry(capturingGroupCount, named),
+							localCount, source, flags, type, engine,
+							forced == null)));
+		}
+		return patterns;
+	}
+	/**
+	 * Reads the patterns in the bundle in the given file.
+	 *
+	 * @throws IOException
+	 *         if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *         if the file is not a bundle
+	 */
+	public static List<Pattern> read(Path path) throws IOException {
+		return read(ByteBuffer.wrap(Files.readAllBytes(path)));
+	}
+	private static void writeType(NodeCodec.Output out, EnregexType type) {
+		out.varint(type.parens.size());
+		for (SymbolPair pair : type.parens)
+			writePair(out, pair);
+		out.varint(type.quotes.size());
+		for (SymbolPair pair : type.quotes)
+			writePair(out, pair);
+	}
+	private static void writePair(NodeCodec.Output out, SymbolPair pair) {
+		out.varint(pair.open);
+		out.varint(pair.close);
+		out.varint((pair.openEscaped ? 1 : 0) | (pair.closeEscaped ? 2 : 0));
+	}
+	private static EnregexType readType(ByteBuffer in) {
+		SymbolPair[] parens = new SymbolPair[NodeCodec.varint(in)];
+		for (int i = 0; i < parens.length; i++)
+			parens[i] = readPair(in);
+		SymbolPair[] quotes = new SymbolPair[NodeCodec.varint(in)];
+		for (int i = 0; i < quotes.length; i++)
+			quotes[i] = readPair(in);
+		return new EnregexType(Arrays.asList(parens), Arrays.asList(quotes));
+	}
+	private static SymbolPair readPair(ByteBuffer in) {
+		char open = (char) NodeCodec.varint(in);
+		char close = (char) NodeCodec.varint(in);
+		int escaped = NodeCodec.varint(in);
+		return new SymbolPair(open, close, (escaped & 1) != 0,
+				(escaped & 2) != 0);
+	}
+	private static void skipClassTable(ByteBuffer in) {
+		for (int count = NodeCodec.varint(in); count > 0; count--) {
+			NodeCodec.string(in);
+			NodeCodec.string(in);
+		}
+	}
+	private static void skipGraph(ByteBuffer in) {
+		for (int nodes = NodeCodec.varint(in); nodes > 0; nodes--)
+			NodeCodec.varint(in);
+		NodeCodec.varint(in);
+		NodeCodec.varint(in);
+		int body = NodeCodec.varint(in);
+		in.position(in.position() + body);
+	}
+}
@@ -5,6 +5,7 @@ package eredmel.regex;
 
 import static eredmel.regex.Pattern.*;
 
+import java.util.ArrayList;
 import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -13,10 +14,15 @@ import eredmel.regex.CharProperty.All;
 import eredmel.regex.CharProperty.BitClass;
 import eredmel.regex.CharProperty.Block;
 import eredmel.regex.CharProperty.Category;
+import eredmel.regex.CharProperty.CharRangeI;
+import eredmel.regex.CharProperty.CharRangeU;
 import eredmel.regex.CharProperty.Ctype;
+import eredmel.regex.CharProperty.Difference;
 import eredmel.regex.CharProperty.Dot;
 import eredmel.regex.CharProperty.HorizWS;
+import eredmel.regex.CharProperty.Intersection;
 import eredmel.regex.CharProperty.Script;
+import eredmel.regex.CharProperty.Union;
 import eredmel.regex.CharProperty.UnixDot;
 import eredmel.regex.CharProperty.Utype;
 import eredmel.regex.CharProperty.VertWS;
@@ -35,7 +41,9 @@ import eredmel.regex.Node.Dollar;
 import eredmel.regex.Node.End;
 import eredmel.regex.Node.EnregexCloseParen;
 import eredmel.regex.Node.EnregexOpenParen;
+import eredmel.regex.Node.EnregexParenSpan;
 import eredmel.regex.Node.EnregexQuote;
+import eredmel.regex.Node.EnregexQuoteStart;
 import eredmel.regex.Node.First;
 import eredmel.regex.Node.GroupCurly;
 import eredmel.regex.Node.GroupHead;
@@ -93,6 +101,10 @@ public class PatternCompiler implements java.io.Serializable {
 	private int flags;
 	private final GroupRegistry registry;
 	private final EnregexType type;
+	/**
+	 * Whether an enregex assertion has been parsed.
+	 */
+	private transient boolean enregex;
 	private PatternCompiler(String pattern, int f, EnregexType type) {
 		this.flags = f;
 		this.localCount = 0;
@@ -107,11 +119,11 @@ public class PatternCompiler implements java.io.Serializable {
 	 * of the expression which will create the object tree.
 	 */
 	public static CompiledPattern compile(String pattern, int flags,
-			EnregexType type) {
+			EnregexType type, Pattern.Engine engine) {
 		PatternCompiler pc = new PatternCompiler(pattern, flags, type);
 		Node matchRoot = pc.parse();
-		return new CompiledPattern(pc.root, matchRoot, pc.registry,
-				pc.localCount);
+		return CompiledPattern.of(pc.root, matchRoot, pc.registry,
+				pc.localCount, pattern, flags, type, pc.enregex, engine);
 	}
 	private Node parse() {
 		// Allocate all temporary objects here.
@@ -137,6 +149,8 @@ public class PatternCompiler implements java.io.Serializable {
 			}
 		} else if (matchRoot instanceof Begin || matchRoot instanceof First) {
 			root = matchRoot;
+		} else if (matchRoot instanceof EnregexQuote) {
+			root = EnregexQuoteStart.of(matchRoot, codepoints.hasSupplementary);
 		} else {
 			root = codepoints.hasSupplementary ? new StartS(matchRoot)
 					: new Start(matchRoot);
@@ -212,6 +226,8 @@ public class PatternCompiler implements java.io.Serializable {
 		Node head = null;
 		Node tail = null;
 		Node node = null;
+		// The tails of the nodes appended so far, in order
+		ArrayList<Node> tails = new ArrayList<>();
 		LOOP: for (;;) {
 			int ch = codepoints.peek();
 			switch (ch) {
@@ -226,6 +242,7 @@ public class PatternCompiler implements java.io.Serializable {
 					else tail.next = node;
 					// Double return: Tail was returned in root
 					tail = root;
+					tails.add(tail);
 					continue;
 				case '[':
 					node = clazz(true);
@@ -317,6 +334,24 @@ public class PatternCompiler implements java.io.Serializable {
 				tail.next = node;
 				tail = node;
 			}
+			tails.add(node);
+			if (node instanceof EnregexCloseParen && tails.size() >= 3) {
+				// Peephole optimization of ~( body ~)
+				int n = tails.size();
+				Node open = tails.get(n - 3), body = tails.get(n - 2);
+				if (open instanceof EnregexOpenParen && body instanceof Curly) {
+					Node span = EnregexParenSpan.of((EnregexOpenParen) open,
+							(Curly) body, (EnregexCloseParen) node, type);
+					if (span != null) {
+						tails.subList(n - 3, n).clear();
+						if (tails.isEmpty())
+							head = span;
+						else tails.get(tails.size() - 1).next = span;
+						tail = span;
+						tails.add(span);
+					}
+				}
+			}
 		}
 		if (head == null) { return end; }
 		Logger.getGlobal().log(Level.FINE, "Tree");
@@ -326,6 +361,7 @@ public class PatternCompiler implements java.io.Serializable {
 	}
 	private Node enhancedRegex(boolean caretted) {
 		Logger.getGlobal().log(Level.FINE, "eRE");
+		enregex = true;
 		int ch = codepoints.next();
 		switch (type.classify(ch)) {
 			case OPEN_PAREN:
@@ -1335,36 +1371,21 @@ public class PatternCompiler implements java.io.Serializable {
 	 */
 	private static CharProperty union(final CharProperty lhs,
 			final CharProperty rhs) {
-		return new CharProperty() {
-			@Override
-			boolean isSatisfiedBy(int ch) {
-				return lhs.isSatisfiedBy(ch) || rhs.isSatisfiedBy(ch);
-			}
-		};
+		return new Union(lhs, rhs);
 	}
 	/**
 	 * Returns the set intersection of two CharProperty nodes.
 	 */
 	private static CharProperty intersection(final CharProperty lhs,
 			final CharProperty rhs) {
-		return new CharProperty() {
-			@Override
-			boolean isSatisfiedBy(int ch) {
-				return lhs.isSatisfiedBy(ch) && rhs.isSatisfiedBy(ch);
-			}
-		};
+		return new Intersection(lhs, rhs);
 	}
 	/**
 	 * Returns the set difference of two CharProperty nodes.
 	 */
 	private static CharProperty setDifference(final CharProperty lhs,
 			final CharProperty rhs) {
-		return new CharProperty() {
-			@Override
-			boolean isSatisfiedBy(int ch) {
-				return !rhs.isSatisfiedBy(ch) && lhs.isSatisfiedBy(ch);
-			}
-		};
+		return new Difference(lhs, rhs);
 	}
 	/**
 	 * Returns node for matching characters within an explicit value
@@ -1372,25 +1393,8 @@ public class PatternCompiler implements java.io.Serializable {
 	 */
 	private CharProperty caseInsensitiveRangeFor(final int lower,
 			final int upper) {
-		if (has(UNICODE_CASE)) return new CharProperty() {
-			@Override
-			boolean isSatisfiedBy(int ch) {
-				if (inRange(lower, ch, upper)) return true;
-				int up = Character.toUpperCase(ch);
-				return inRange(lower, up, upper)
-						|| inRange(lower, Character.toLowerCase(up),
-								upper);
-			}
-		};
-		return new CharProperty() {
-			@Override
-			boolean isSatisfiedBy(int ch) {
-				return inRange(lower, ch, upper)
-						|| ASCII.isAscii(ch)
-						&& (inRange(lower, ASCII.toUpper(ch), upper) || inRange(
-								lower, ASCII.toLower(ch), upper));
-			}
-		};
+		if (has(UNICODE_CASE)) return new CharRangeU(lower, upper);
+		return new CharRangeI(lower, upper);
 	}
 	private boolean has(int flag) {
 		return Pattern.has(flags, flag);
@@ -0,0 +1,625 @@
+package eredmel.regex;
+
+import static eredmel.regex.Pattern.GREEDY;
+import static eredmel.regex.Pattern.LAZY;
+import static eredmel.regex.Pattern.MAX_REPS;
+
+import java.util.Arrays;
+
+import eredmel.regex.Node.Assertion;
+import eredmel.regex.Node.Branch;
+import eredmel.regex.Node.BranchConn;
+import eredmel.regex.Node.Curly;
+import eredmel.regex.Node.EnregexCloseParen;
+import eredmel.regex.Node.EnregexOpenParen;
+import eredmel.regex.Node.EnregexParenSpan;
+import eredmel.regex.Node.EnregexQuote;
+import eredmel.regex.Node.GroupCurly;
+import eredmel.regex.Node.GroupHead;
+import eredmel.regex.Node.GroupTail;
+import eredmel.regex.Node.LastNode;
+import eredmel.regex.Node.LazyLoop;
+import eredmel.regex.Node.LineEnding;
+import eredmel.regex.Node.Loop;
+import eredmel.regex.Node.Prolog;
+import eredmel.regex.Node.Ques;
+import eredmel.regex.Node.Slice;
+import eredmel.regex.Node.SliceI;
+import eredmel.regex.Node.SliceIS;
+import eredmel.regex.Node.SliceNode;
+import eredmel.regex.Node.SliceU;
+import eredmel.regex.Node.SliceUS;
+
+/**
+ * A node graph compiled into instructions for the {@link PikeVM}.
+ * <p>
+ * Each instruction either consumes a character, tests a position, or moves a
+ * thread to other instructions without consuming anything. Alternatives are
+ * listed in the order in which the node graph would try them, so that the
+ * virtual machine finds the same match as the backtracking nodes. Counted
+ * repetitions are unrolled, so the number of instructions, and thus the work
+ * done per character of input, is bounded by {@link #MAX_LENGTH}.
+ * <p>
+ * Whether an enregex quote assertion holds only depends on the state of the
+ * {@link EnregexQuoteAutomaton} at the position, which the engines follow
+ * along as they read the input.
+ * <p>
+ * Enregex parenthesis assertions are compiled into instructions that save
+ * the position of an open assertion in a slot, and check that the text
+ * between it and a close assertion is balanced, so that the input is read as
+ * a visibly pushdown language. Each close assertion is paired with an open
+ * one when the program is compiled, which can only be done if they are paired
+ * the same way on every path through the pattern.
+ * <p>
+ * Other nodes whose result depends on more than the position and the path
+ * taken to it, namely back references, lookaround and possessive and
+ * independent groups, cannot be compiled.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class PikeProgram {
+	/**
+	 * Consumes one character equal to {@link #x}, compared as given by
+	 * {@link #y}.
+	 */
+	static final int CHAR = 0;
+	/**
+	 * Consumes one code point equal to {@link #x}, compared as given by
+	 * {@link #y}.
+	 */
+	static final int CODE_POINT = 1;
+	/**
+	 * Consumes a character satisfying the property in {@link #nodes}.
+	 */
+	static final int PROPERTY = 2;
+	/**
+	 * Consumes a line ending, which may be two characters.
+	 */
+	static final int LINE_ENDING = 3;
+	/**
+	 * Continues if the assertion in {@link #nodes} holds.
+	 */
+	static final int ASSERT = 4;
+	/**
+	 * Continues at each of the {@link #targets}, in order of preference.
+	 */
+	static final int SPLIT = 5;
+	/**
+	 * Continues at {@link #x}.
+	 */
+	static final int JUMP = 6;
+	/**
+	 * Saves the position in slot {@link #x}.
+	 */
+	static final int SAVE = 7;
+	/**
+	 * Records group {@link #y} as running from the position saved in slot
+	 * {@link #x} to the current position.
+	 */
+	static final int CAPTURE = 8;
+	/**
+	 * If the position is the one saved in slot {@link #x}, continues at
+	 * {@link #y}, or fails if it is negative.
+	 */
+	static final int EMPTY = 9;
+	/**
+	 * Accepts the match.
+	 */
+	static final int MATCH = 10;
+	/**
+	 * Saves the position of an open paren assertion for the close paren
+	 * {@link #y} in slot {@link #x}.
+	 */
+	static final int OPEN = 11;
+	/**
+	 * Continues if the text from the position saved in slot {@link #x} to
+	 * the current position is balanced in the close paren {@link #y}, or
+	 * fails if {@link #x} is negative.
+	 */
+	static final int CLOSE = 12;
+	/**
+	 * Continues if the position is in the quote with index {@link #x} in the
+	 * enregex type, or not in it if {@link #y} is 0, as given by the state of
+	 * the {@link EnregexQuoteAutomaton}.
+	 */
+	static final int QUOTE = 13;
+	/**
+	 * Ways in which characters are compared.
+	 */
+	static final int EXACT = 0, ASCII_CASE = 1, UNICODE_CASE = 2;
+	/**
+	 * The largest number of instructions in a program.
+	 */
+	static final int MAX_LENGTH = 1 << 16;
+	final int[] ops;
+	final int[] x;
+	final int[] y;
+	final int[][] targets;
+	final Node[] nodes;
+	/**
+	 * The slots holding the start of the current repetition of each
+	 * repetition that each instruction is part of, outermost first.
+	 * <p>
+	 * Two threads at the same instruction behave the same unless they differ
+	 * in which of these repetitions are empty so far, so they are told apart
+	 * by their {@link #state}.
+	 */
+	final int[][] guards;
+	/**
+	 * The slots of the open paren assertions that have not been closed at
+	 * each instruction, oldest first.
+	 * <p>
+	 * Two threads whose open assertions are at different depths, or which
+	 * differ in whether they can still be closed, also behave differently, so
+	 * these are part of the state too.
+	 */
+	final int[][] opens;
+	/**
+	 * For each of the {@link #opens} of each instruction, whether a thread
+	 * that can no longer close it is dropped. This is so for those that must
+	 * be closed before the match is accepted and that open an
+	 * {@link EnregexParenSpan}, which stops reading its body there. The nodes
+	 * follow any other body on until it fails to close, and so, for what they
+	 * read on the way, do the threads.
+	 */
+	final boolean[][] mustClose;
+	/**
+	 * The close paren of the open paren assertion whose position each slot
+	 * holds, or 0.
+	 */
+	final int[] parens;
+	/**
+	 * The first state of each instruction.
+	 */
+	private final int[] firstState;
+	/**
+	 * The number of states of all the instructions.
+	 */
+	final int states;
+	/**
+	 * The number of slots.
+	 */
+	final int slots;
+	/**
+	 * The slot that holds the start of the match.
+	 */
+	final int start;
+	/**
+	 * The automaton that follows the quotes the {@link #QUOTE} instructions
+	 * are in, or null if there are none.
+	 */
+	final EnregexQuoteAutomaton quotes;
+	/**
+	 * Whether an enregex parenthesis assertion may be matched more than once,
+	 * in which case the nodes may try exponentially many ways of matching the
+	 * text between it and its close.
+	 */
+	final boolean repeatedParens;
+	private PikeProgram(Compiler compiler, int start) {
+		int length = compiler.length;
+		this.ops = Arrays.copyOf(compiler.ops, length);
+		this.x = Arrays.copyOf(compiler.x, length);
+		this.y = Arrays.copyOf(compiler.y, length);
+		this.targets = Arrays.copyOf(compiler.targets, length);
+		this.nodes = Arrays.copyOf(compiler.nodes, length);
+		this.guards = Arrays.copyOf(compiler.guards, length);
+		this.firstState = new int[length];
+		int states = 0;
+		for (int pc = 0; pc < length; pc++) {
+			firstState[pc] = states;
+			states += guards[pc].length + 1;
+		}
+		this.states = states;
+		this.start = start;
+		this.repeatedParens = compiler.repeatedParens;
+		this.quotes = compiler.quotes ? compiler.type.quoteAutomaton() : null;
+		this.slots = compiler.nextSlot;
+		this.parens = Arrays.copyOf(compiler.parens, slots);
+		this.opens = Arrays.copyOf(compiler.opens, length);
+		int[] atMatch = new int[0];
+		for (int pc = 0; pc < length; pc++)
+			if (ops[pc] == MATCH) atMatch = opens[pc];
+		this.mustClose = new boolean[length][];
+		for (int pc = 0; pc < length; pc++) {
+			mustClose[pc] = new boolean[opens[pc].length];
+			for (int k = 0; k < opens[pc].length; k++)
+				mustClose[pc][k] = compiler.spans[opens[pc][k]]
+						&& !contains(atMatch, opens[pc][k]);
+		}
+	}
+	private static boolean contains(int[] array, int value) {
+		for (int element : array)
+			if (element == value) return true;
+		return false;
+	}
+	/**
+	 * @return the state of a thread at the given instruction, with the given
+	 *         slots, at the given position
+	 */
+	int state(int pc, int[] slots, int pos) {
+		// A repetition that is empty so far started after, and so inside,
+		// any that are not, so the state is given by the outermost one
+		int[] guard = guards[pc];
+		int empty = 0;
+		while (empty < guard.length && slots[guard[empty]] != pos)
+			empty++;
+		return firstState[pc] + empty;
+	}
+	int length() {
+		return ops.length;
+	}
+	/**
+	 * @return whether the program has enregex parenthesis assertions
+	 */
+	boolean hasParens() {
+		for (int op : ops)
+			if (op == OPEN || op == CLOSE) return true;
+		return false;
+	}
+	/**
+	 * Compiles the node graph with the given match root, whose enregex
+	 * parenthesis assertions are those of the given type.
+	 *
+	 * @throws PatternSyntaxException
+	 *         if the graph contains nodes that cannot be compiled
+	 */
+	static PikeProgram compile(Node matchRoot, int localCount,
+			String pattern, EnregexType type) {
+		Compiler compiler = new Compiler(type, localCount + 1);
+		try {
+			compiler.chain(matchRoot, null);
+		} catch (Unsupported e) {
+			throw new PatternSyntaxException(e.getMessage()
+					+ " cannot be matched in linear time", pattern, -1);
+		}
+		return new PikeProgram(compiler, localCount);
+	}
+	/**
+	 * @param type
+	 *        the enregex type of the graph, or null if its enregex assertions
+	 *        are not to be compiled
+	 * @return the node graph with the given match root compiled, or null if
+	 *         it contains nodes that cannot be compiled
+	 */
+	static PikeProgram tryCompile(Node matchRoot, int localCount,
+			EnregexType type) {
+		Compiler compiler = new Compiler(type, localCount + 1);
+		try {
+			compiler.chain(matchRoot, null);
+		} catch (Unsupported e) {
+			return null;
+		}
+		return new PikeProgram(compiler, localCount);
+	}
+	/**
+	 * Thrown when a node cannot be compiled.
+	 */
+	private static final class Unsupported extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		Unsupported(String construct) {
+			super(construct, null, false, false);
+		}
+	}
+	private static final class Compiler {
+		private int[] ops = new int[16];
+		private int[] x = new int[16];
+		private int[] y = new int[16];
+		private int[][] targets = new int[16][];
+		private Node[] nodes = new Node[16];
+		private int[][] guards = new int[16][];
+		private int[][] opens = new int[16][];
+		private int length;
+		private final EnregexType type;
+		/**
+		 * The next slot to be given to an open paren assertion, and the close
+		 * paren of each slot given so far.
+		 */
+		private int nextSlot;
+		private int[] parens = new int[16];
+		/**
+		 * Whether each slot given so far opens an {@link EnregexParenSpan}.
+		 */
+		private boolean[] spans = new boolean[16];
+		/**
+		 * The slots of the open paren assertions not yet closed, oldest first.
+		 */
+		private int[] open = new int[0];
+		/**
+		 * The number of repetitions of more than once being emitted, and
+		 * whether a paren assertion has been emitted inside one.
+		 */
+		private int repeating;
+		private boolean repeatedParens;
+		/**
+		 * Whether a quote assertion has been emitted.
+		 */
+		private boolean quotes;
+		Compiler(EnregexType type, int slots) {
+			this.type = type;
+			this.nextSlot = slots;
+		}
+		/**
+		 * The slots of the repetitions being emitted, outermost first.
+		 */
+		private int[] guard = new int[0];
+		private int emit(int op, int x, int y) {
+			if (length == ops.length) {
+				if (length == MAX_LENGTH)
+					throw new Unsupported("A pattern this large");
+				int size = Math.min(2 * length, MAX_LENGTH);
+				ops = Arrays.copyOf(ops, size);
+				this.x = Arrays.copyOf(this.x, size);
+				this.y = Arrays.copyOf(this.y, size);
+				targets = Arrays.copyOf(targets, size);
+				nodes = Arrays.copyOf(nodes, size);
+				guards = Arrays.copyOf(guards, size);
+				opens = Arrays.copyOf(opens, size);
+			}
+			ops[length] = op;
+			this.x[length] = x;
+			this.y[length] = y;
+			guards[length] = guard;
+			opens[length] = open;
+			return length++;
+		}
+		private int emit(int op, Node node) {
+			int pc = emit(op, 0, 0);
+			nodes[pc] = node;
+			return pc;
+		}
+		/**
+		 * Emits the nodes from the given node up to, but not including, the
+		 * given end.
+		 */
+		void chain(Node node, Node end) {
+			while (node != end)
+				node = node(node);
+		}
+		/**
+		 * Emits the given node.
+		 *
+		 * @return the node that follows it
+		 */
+		private Node node(Node node) {
+			// The body of a lookbehind is compiled on its own, to be matched
+			// backwards from where it ends
+			if (node instanceof LastNode || node == Node.lookbehindEnd) {
+				emit(MATCH, 0, 0);
+				return null;
+			} else if (node instanceof CharProperty) {
+				emit(PROPERTY, node);
+			} else if (node instanceof SliceNode) {
+				slice((SliceNode) node);
+			} else if (node instanceof LineEnding) {
+				emit(LINE_ENDING, 0, 0);
+			} else if (node instanceof EnregexQuote && type != null) {
+				EnregexQuote quote = (EnregexQuote) node;
+				emit(QUOTE, type.quoteType(quote.quote), quote.positive ? 1 : 0);
+				quotes = true;
+			} else if (node instanceof Assertion) {
+				emit(ASSERT, node);
+			} else if (node instanceof EnregexOpenParen && type != null) {
+				open(type.matching(((EnregexOpenParen) node).paren), false);
+			} else if (node instanceof EnregexCloseParen && type != null) {
+				close(((EnregexCloseParen) node).paren);
+			} else if (node instanceof EnregexParenSpan && type != null) {
+				EnregexParenSpan span = (EnregexParenSpan) node;
+				open(span.close, true);
+				repeat(() -> emit(PROPERTY, span.body), span.cmin, span.cmax,
+						span.type == LAZY, -1, false, 0);
+				close(span.close);
+			} else if (node instanceof GroupHead) {
+				emit(SAVE, ((GroupHead) node).localIndex, 0);
+			} else if (node instanceof GroupTail) {
+				GroupTail tail = (GroupTail) node;
+				// Non-capturing groups record group 0, which is replaced
+				// by the whole match anyway
+				if (tail.groupIndex > 0)
+					emit(CAPTURE, tail.localIndex, tail.groupIndex / 2);
+			} else if (node instanceof Branch) {
+				Branch branch = (Branch) node;
+				int split = emit(SPLIT, 0, 0);
+				int[] to = new int[branch.size];
+				int[] jumps = new int[branch.size];
+				int[] before = open;
+				for (int n = 0; n < branch.size; n++) {
+					jumps[n] = -1;
+					if (branch.atoms[n] == null) continue;
+					to[n] = length;
+					chain(branch.atoms[n], branch.conn);
+					balanced(before);
+					jumps[n] = emit(JUMP, 0, 0);
+				}
+				for (int n = 0; n < branch.size; n++) {
+					if (jumps[n] >= 0)
+						x[jumps[n]] = length;
+					else to[n] = length;
+				}
+				targets[split] = to;
+				return branch.conn.next;
+			} else if (node instanceof BranchConn) {
+				// Reached only as the end of a branch
+			} else if (node instanceof Ques) {
+				Ques ques = (Ques) node;
+				if (ques.type != GREEDY && ques.type != LAZY)
+					throw new Unsupported(ques.type == Pattern.POSSESSIVE
+							? "A possessive quantifier" : "An independent group");
+				int split = emit(SPLIT, 0, 0);
+				int atom = length;
+				int[] before = open;
+				chain(ques.atom, Pattern.accept);
+				balanced(before);
+				targets[split] = order(ques.type == LAZY, atom, length);
+			} else if (node instanceof Curly) {
+				Curly curly = (Curly) node;
+				if (curly.type != GREEDY && curly.type != LAZY)
+					throw new Unsupported("A possessive quantifier");
+				repeat(() -> chain(curly.atom, Pattern.accept), curly.cmin,
+						curly.cmax, curly.type == LAZY, -1, false, 0);
+			} else if (node instanceof GroupCurly) {
+				GroupCurly curly = (GroupCurly) node;
+				if (curly.type != GREEDY && curly.type != LAZY)
+					throw new Unsupported("A possessive quantifier");
+				int slot = curly.localIndex;
+				repeat(() -> {
+					emit(SAVE, slot, 0);
+					Node tail = curly.atom;
+					// The group's own tail, rather than that of a group in it
+					while (!(tail instanceof GroupTail)
+							|| ((GroupTail) tail).localIndex != slot)
+						tail = node(tail);
+					if (curly.capture)
+						emit(CAPTURE, slot, curly.groupIndex / 2);
+				}, curly.cmin, curly.cmax, curly.type == LAZY, slot, false,
+						curly.type == LAZY ? -1 : 0);
+			} else if (node instanceof Prolog) {
+				Loop loop = ((Prolog) node).loop;
+				repeat(() -> chain(loop.body, loop), loop.cmin, loop.cmax,
+						loop instanceof LazyLoop, loop.beginIndex, true, 0);
+				return loop.next;
+			} else {
+				throw new Unsupported(describe(node));
+			}
+			return node.next;
+		}
+		/**
+		 * Emits a literal, one character or code point at a time.
+		 */
+		private void slice(SliceNode slice) {
+			int op = slice instanceof Slice || slice instanceof SliceI
+					|| slice instanceof SliceU ? CHAR : CODE_POINT;
+			int compare = EXACT;
+			if (slice instanceof SliceU || slice instanceof SliceUS)
+				compare = UNICODE_CASE;
+			else if (slice instanceof SliceI || slice instanceof SliceIS)
+				compare = ASCII_CASE;
+			for (int ch : slice.buffer)
+				emit(op, ch, compare);
+		}
+		/**
+		 * Emits a repetition of the body emitted by the given code.
+		 *
+		 * @param slot
+		 *        the slot holding the start of the latest repetition, or -1
+		 *        if empty repetitions need not be checked for
+		 * @param checkRequired
+		 *        whether to check for empty repetitions among the required
+		 *        ones too
+		 * @param onEmpty
+		 *        0 to stop repeating after an empty repetition, or -1 to fail
+		 */
+		private void repeat(Runnable body, int cmin, int cmax, boolean lazy,
+				int slot, boolean checkRequired, int onEmpty) {
+			int[] exits = new int[16];
+			int exitCount = 0;
+			int[] outer = guard;
+			int[] before = open;
+			if (cmax > 1) repeating++;
+			for (int k = 0; k < cmin; k++) {
+				if (slot >= 0) guard = with(outer, slot);
+				body.run();
+				balanced(before);
+				if (slot >= 0 && checkRequired && (k < cmin - 1 || cmax > cmin))
+					exits = add(exits, exitCount++, emit(EMPTY, slot, 0));
+				guard = outer;
+			}
+			int optional = cmax == MAX_REPS ? 1 : cmax - cmin;
+			for (int k = 0; k < optional; k++) {
+				int split = emit(SPLIT, 0, 0);
+				int start = length;
+				if (slot >= 0) guard = with(outer, slot);
+				body.run();
+				balanced(before);
+				if (slot >= 0
+						&& (onEmpty < 0 || k < optional - 1 || cmax == MAX_REPS)) {
+					int empty = emit(EMPTY, slot, onEmpty);
+					if (onEmpty == 0) exits = add(exits, exitCount++, empty);
+				}
+				guard = outer;
+				if (cmax == MAX_REPS) emit(JUMP, split, 0);
+				// The exit is filled in below
+				targets[split] = order(lazy, start, -1);
+				exits = add(exits, exitCount++, ~split);
+			}
+			if (cmax > 1) repeating--;
+			for (int k = 0; k < exitCount; k++) {
+				int pc = exits[k];
+				if (pc >= 0)
+					y[pc] = length;
+				else {
+					int[] to = targets[~pc];
+					to[to[0] < 0 ? 0 : 1] = length;
+				}
+			}
+		}
+		/**
+		 * Emits an open paren assertion for the given close paren, which
+		 * opens an {@link EnregexParenSpan} if {@code span} is set.
+		 */
+		private void open(int close, boolean span) {
+			int slot = nextSlot++;
+			if (slot >= parens.length) {
+				parens = Arrays.copyOf(parens, 2 * slot);
+				spans = Arrays.copyOf(spans, 2 * slot);
+			}
+			parens[slot] = close;
+			spans[slot] = span;
+			if (repeating > 0) repeatedParens = true;
+			emit(OPEN, slot, close);
+			open = with(open, slot);
+		}
+		/**
+		 * Emits a close paren assertion, paired with the latest open one for
+		 * the same paren.
+		 */
+		private void close(int close) {
+			for (int k = open.length - 1; k >= 0; k--) {
+				if (parens[open[k]] != close) continue;
+				emit(CLOSE, open[k], close);
+				int[] rest = Arrays.copyOf(open, open.length - 1);
+				System.arraycopy(open, k + 1, rest, k, rest.length - k);
+				open = rest;
+				return;
+			}
+			// As for the nodes, there is nothing for it to close
+			emit(CLOSE, -1, close);
+		}
+		/**
+		 * Checks that the paren assertions open now are those that were open
+		 * before a part of the pattern that may be skipped or repeated.
+		 */
+		private void balanced(int[] before) {
+			if (!Arrays.equals(open, before))
+				throw new Unsupported(
+						"An enregex parenthesis assertion closed on only some paths");
+		}
+		private static int[] with(int[] guard, int slot) {
+			int[] with = Arrays.copyOf(guard, guard.length + 1);
+			with[guard.length] = slot;
+			return with;
+		}
+		private static int[] add(int[] array, int index, int value) {
+			if (index == array.length) array = Arrays.copyOf(array, 2 * index);
+			array[index] = value;
+			return array;
+		}
+		private static int[] order(boolean lazy, int take, int skip) {
+			return lazy ? new int[] { skip, take } : new int[] { take, skip };
+		}
+		private static String describe(Node node) {
+			if (node instanceof Node.BackRef || node instanceof Node.CIBackRef
+					|| node instanceof Node.GroupRef)
+				return "A back reference";
+			if (node instanceof Node.Behind || node instanceof Node.NotBehind)
+				return "A lookbehind";
+			if (node instanceof Node.Pos || node instanceof Node.Neg)
+				return "A lookahead";
+			if (node instanceof Node.EnregexOpenParen
+					|| node instanceof Node.EnregexCloseParen
+					|| node instanceof Node.EnregexParenSpan)
+				return "An enregex parenthesis assertion";
+			return "The node " + node.getClass().getSimpleName();
+		}
+	}
+}
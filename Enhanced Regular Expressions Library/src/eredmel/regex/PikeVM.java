@@ -0,0 +1,536 @@
+package eredmel.regex;
+
+import static eredmel.regex.PikeProgram.*;
+
+import java.util.Arrays;
+
+import eredmel.regex.CharProperty.BmpCharProperty;
+import eredmel.regex.Node.Assertion;
+import eredmel.regex.Node.EnregexQuoteStart;
+
+/**
+ * Runs a {@link PikeProgram} over the input of a matcher in time linear in
+ * the length of the input.
+ * <p>
+ * Rather than trying one path through the pattern at a time, as the nodes do,
+ * this keeps every thread of the program that is at a consuming instruction,
+ * and advances all of them together one character at a time. Threads are kept
+ * in the order in which the nodes would have tried them, and a thread that
+ * reaches the {@link PikeProgram#state state} of an earlier one at the same
+ * position is dropped, since it can only do what the earlier one does. There
+ * are therefore never more threads than states, and an instruction has one
+ * more state than the number of repetitions it is part of. When a thread
+ * matches, the threads after it are dropped, and the search goes on only for
+ * the earlier ones, so that the match found is the one the nodes would find.
+ * <p>
+ * Each thread carries the groups it has captured as a list shared with the
+ * thread it was split from, so that every repetition of a group is kept, as
+ * it is by {@link Matcher#cacheGroup(int, Range)}.
+ * <p>
+ * A thread inside enregex parenthesis assertions also keeps where each of
+ * them was opened. All that matters of such a position to what the thread
+ * can still do is its paren depth, or that the text has since dropped below
+ * it, so that the assertion can no longer be closed. That is therefore added
+ * to the state, and the number of threads is bounded by the nesting depth of
+ * the input rather than by its length.
+ * <p>
+ * The nodes only hit the end, or find that a match requires it, on the paths
+ * they try, which are those before the match they find. Each thread therefore
+ * carries whether the threads before it, and the path that led to it, have
+ * done so, and only the match's own is reported.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class PikeVM {
+	/**
+	 * The depth given in a state to a paren assertion that can no longer be
+	 * closed.
+	 */
+	private static final int CLOSED = Integer.MIN_VALUE;
+	/**
+	 * The flags of a thread for {@link Matcher#hitEnd} and
+	 * {@link Matcher#requireEnd}.
+	 */
+	private static final int HIT_END = 1, REQUIRE_END = 2;
+	final PikeProgram program;
+	/**
+	 * The threads at the current position, and at the next one.
+	 */
+	private Threads current, next;
+	/**
+	 * The threads still to be followed by {@link #add}.
+	 */
+	private int[] stackPc = new int[16];
+	private int[][] stackSlots = new int[16][];
+	private Capture[] stackCaptures = new Capture[16];
+	private int stackSize;
+	/**
+	 * The state of the {@link EnregexQuoteAutomaton} at the position that
+	 * threads are being added at.
+	 */
+	private int quote;
+	/**
+	 * The end flags of the thread being followed by {@link #add}, which are
+	 * those of the threads before it and of the path it has taken.
+	 */
+	private int ends;
+	/**
+	 * The bracket table last used for the paren assertion in each slot.
+	 */
+	private final EnregexBracketTable[] tables;
+	PikeVM(PikeProgram program) {
+		this.program = program;
+		this.tables = new EnregexBracketTable[program.slots];
+		this.current = new Threads(program.states + program.length());
+		this.next = new Threads(program.states + program.length());
+	}
+	/**
+	 * Searches the matcher's input from the given position, setting its match
+	 * and groups if one is found. The match must end at the end of the region
+	 * if the matcher's accept mode is {@link Matcher#ENDANCHOR}.
+	 *
+	 * @param anchored
+	 *        whether the match must start at the given position
+	 * @return whether a match was found
+	 */
+	boolean run(Matcher matcher, int from, boolean anchored) {
+		CharSequence seq = matcher.text;
+		int[] ops = program.ops;
+		int lastStart = anchored ? from : Math.min(matcher.to,
+				matcher.lastStart);
+		CompiledPattern compiled = matcher.parentPattern.compiledPattern;
+		// The nodes' root only starts where a match is long enough to fit
+		if (!anchored && compiled.root instanceof Node.Start)
+			lastStart = Math.min(lastStart, matcher.to
+					- ((Node.Start) compiled.root).minLength);
+		boolean codePointStarts = compiled.codePointStarts;
+		String prefix = anchored ? null : compiled.prefix;
+		EnregexQuoteAutomaton quotes = program.quotes;
+		int quote = quotes == null ? 0 : matcher.system.quoteStateAt(from);
+		int[] initial = new int[program.slots];
+		Arrays.fill(initial, -1);
+		int[] found = null;
+		Capture captures = null;
+		int end = -1;
+		// The end flags of every thread, and of the match and those before it
+		int given = takeEnds(matcher), all = 0, accepted = 0;
+		current.clear();
+		next.clear();
+		Arrays.fill(tables, null);
+		for (int pos = from;; pos++) {
+			if (current.size == 0 && found == null && prefix != null) {
+				// Only a thread started at the prefix can match
+				int skip = EnregexQuoteStart.indexOf(seq, prefix, pos, Math
+						.min(matcher.to - prefix.length(), lastStart));
+				if (skip < 0) break;
+				if (quotes != null)
+					for (; pos < skip; pos++)
+						quote = quotes.next(quote, seq.charAt(pos));
+				pos = skip;
+			}
+			this.quote = quote;
+			if (found == null && pos <= lastStart
+					&& !(codePointStarts && pos > from && secondHalf(seq, pos))) {
+				int[] slots = initial.clone();
+				slots[program.start] = pos;
+				// This comes after every thread so far
+				ends = all;
+				add(current, 0, pos, slots, null, matcher, seq);
+				all |= ends;
+			}
+			if (current.size == 0 && (found != null || pos >= lastStart))
+				break;
+			if (quotes != null && pos < matcher.to)
+				quote = quotes.next(quote, seq.charAt(pos));
+			this.quote = quote;
+			ends = 0;
+			boolean matched = false;
+			for (int t = 0; t < current.size; t++) {
+				int pc = current.pc[t];
+				int[] slots = current.slots[t];
+				Capture history = current.captures[t];
+				ends |= current.ends[t];
+				if (current.pending[t]) {
+					add(next, pc, pos + 1, slots, history, matcher, seq);
+					continue;
+				}
+				if (ops[pc] == MATCH) {
+					if (matcher.acceptMode == Matcher.ENDANCHOR
+							&& pos != matcher.to) continue;
+					found = slots;
+					captures = history;
+					end = pos;
+					matched = true;
+					// The threads after this one are only tried by the nodes
+					// if it fails
+					break;
+				}
+				int width = width(program, pc, pos, matcher, seq);
+				ends |= takeEnds(matcher);
+				if (width == 1)
+					add(next, pc + 1, pos + 1, slots, history, matcher, seq);
+				else if (width == 2
+						&& visit(next, program.states + pc + 1, pc + 1,
+								slots, pos + 1, matcher))
+					next.add(pc + 1, slots, history, true, ends);
+			}
+			all |= ends;
+			// The threads left after a match are all tried before it
+			if (matched) accepted = ends;
+			else if (found != null) accepted |= ends;
+			Threads swap = current;
+			current = next;
+			next = swap;
+			next.clear();
+		}
+		current.clear();
+		if (found == null) {
+			// The end is hit wherever a thread reads at it, and by a search
+			// that could have started at every position up to it, as the
+			// nodes' root would, but not by one that can only start where it
+			// is run from, such as one beginning with \A
+			if (!anchored && compiled.root != compiled.matchRoot)
+				all |= HIT_END;
+			giveEnds(matcher, given | all);
+			return false;
+		}
+		giveEnds(matcher, given | accepted);
+		matcher.first = found[program.start];
+		matcher.last = end;
+		int count = 0;
+		for (Capture c = captures; c != null; c = c.previous)
+			count++;
+		Capture[] inOrder = new Capture[count];
+		for (Capture c = captures; c != null; c = c.previous)
+			inOrder[--count] = c;
+		for (Capture c : inOrder)
+			matcher.cacheGroup(c.group, Range.of(c.start, c.end));
+		matcher.cacheGroup(0, Range.of(matcher.first, matcher.last));
+		return true;
+	}
+	/**
+	 * Adds the given thread to the given list, following it through every
+	 * instruction that does not consume a character, in order of preference.
+	 */
+	private void add(Threads list, int pc, int pos, int[] slots,
+			Capture captures, Matcher matcher, CharSequence seq) {
+		int[] ops = program.ops, x = program.x, y = program.y;
+		int base = stackSize;
+		push(pc, slots, captures);
+		while (stackSize > base) {
+			stackSize--;
+			pc = stackPc[stackSize];
+			slots = stackSlots[stackSize];
+			captures = stackCaptures[stackSize];
+			stackSlots[stackSize] = null;
+			stackCaptures[stackSize] = null;
+			thread: for (;;) {
+				if (!visit(list, program.state(pc, slots, pos), pc, slots,
+						pos, matcher)) break;
+				switch (ops[pc]) {
+					case JUMP:
+						pc = x[pc];
+						continue;
+					case SPLIT:
+						int[] to = program.targets[pc];
+						for (int n = to.length - 1; n > 0; n--)
+							push(to[n], slots, captures);
+						pc = to[0];
+						continue;
+					case SAVE:
+						slots = slots.clone();
+						slots[x[pc]] = pos;
+						pc++;
+						continue;
+					case CAPTURE:
+						captures = new Capture(y[pc], slots[x[pc]], pos,
+								captures);
+						pc++;
+						continue;
+					case EMPTY:
+						if (slots[x[pc]] != pos)
+							pc++;
+						else if (y[pc] < 0)
+							break thread;
+						else pc = y[pc];
+						continue;
+					case OPEN:
+						slots = slots.clone();
+						slots[x[pc]] = pos;
+						pc++;
+						continue;
+					case CLOSE: {
+						if (x[pc] < 0) break thread;
+						int open = slots[x[pc]];
+						EnregexBracketTable table = table(x[pc], pos, matcher);
+						if (pos >= table.drop(open)
+								|| table.depth(pos) != table.depth(open))
+							break thread;
+						pc++;
+						continue;
+					}
+					case QUOTE:
+						if (!EnregexQuoteAutomaton.matches(quote, x[pc],
+								y[pc] != 0)) break thread;
+						pc++;
+						continue;
+					case ASSERT: {
+						boolean holds = ((Assertion) program.nodes[pc]).holds(
+								matcher, pos, seq);
+						ends |= takeEnds(matcher);
+						if (!holds) break thread;
+						pc++;
+						continue;
+					}
+					default:
+						list.add(pc, slots, captures, false, ends);
+						break thread;
+				}
+			}
+		}
+	}
+	/**
+	 * Marks the given state of a thread at the given instruction as visited
+	 * in the given list, along with the depths of the paren assertions that
+	 * the thread has open.
+	 *
+	 * @return whether it had not yet been visited, and the thread can still
+	 *         close the assertions it must
+	 */
+	private boolean visit(Threads list, int state, int pc, int[] slots,
+			int pos, Matcher matcher) {
+		int[] opens = program.opens[pc];
+		if (opens.length == 0) return list.visit(state);
+		int[] key = new int[opens.length + 1];
+		key[0] = state;
+		for (int k = 0; k < opens.length; k++) {
+			int open = slots[opens[k]];
+			EnregexBracketTable table = table(opens[k], pos, matcher);
+			if (pos < table.drop(open))
+				key[k + 1] = table.depth(open);
+			else if (program.mustClose[pc][k])
+				return false;
+			else key[k + 1] = CLOSED;
+		}
+		return list.visit(key);
+	}
+	/**
+	 * @return a bracket table for the paren assertion in the given slot that
+	 *         covers the given position
+	 */
+	private EnregexBracketTable table(int slot, int pos, Matcher matcher) {
+		EnregexBracketTable table = tables[slot];
+		if (table == null || pos > table.last())
+			tables[slot] = table = matcher.system.bracketTable(
+					program.parens[slot], pos);
+		return table;
+	}
+	/**
+	 * @return whether the given position is in the middle of a code point
+	 */
+	static boolean secondHalf(CharSequence seq, int pos) {
+		return pos < seq.length() && Character.isLowSurrogate(seq.charAt(pos))
+				&& Character.isHighSurrogate(seq.charAt(pos - 1));
+	}
+	/**
+	 * @return the end flags the matcher has been given since they were last
+	 *         taken, clearing them
+	 */
+	private static int takeEnds(Matcher matcher) {
+		int ends = (matcher.hitEnd ? HIT_END : 0)
+				| (matcher.requireEnd ? REQUIRE_END : 0);
+		matcher.hitEnd = false;
+		matcher.requireEnd = false;
+		return ends;
+	}
+	private static void giveEnds(Matcher matcher, int ends) {
+		matcher.hitEnd = (ends & HIT_END) != 0;
+		matcher.requireEnd = (ends & REQUIRE_END) != 0;
+	}
+	private void push(int pc, int[] slots, Capture captures) {
+		if (stackSize == stackPc.length) {
+			stackPc = Arrays.copyOf(stackPc, 2 * stackSize);
+			stackSlots = Arrays.copyOf(stackSlots, 2 * stackSize);
+			stackCaptures = Arrays.copyOf(stackCaptures, 2 * stackSize);
+		}
+		stackPc[stackSize] = pc;
+		stackSlots[stackSize] = slots;
+		stackCaptures[stackSize] = captures;
+		stackSize++;
+	}
+	/**
+	 * @return the number of characters consumed by the given instruction of
+	 *         the given program at the given position, or 0 if it does not
+	 *         match there
+	 */
+	static int width(PikeProgram program, int pc, int pos, Matcher matcher,
+			CharSequence seq) {
+		if (pos >= matcher.to) {
+			matcher.hitEnd = true;
+			return 0;
+		}
+		switch (program.ops[pc]) {
+			case CHAR:
+				return same(program.x[pc], seq.charAt(pos), program.y[pc]) ? 1
+						: 0;
+			case CODE_POINT: {
+				int ch = Character.codePointAt(seq, pos);
+				if (!same(program.x[pc], ch, program.y[pc])) return 0;
+				int width = Character.charCount(ch);
+				if (pos + width > matcher.to) {
+					matcher.hitEnd = true;
+					return 0;
+				}
+				return width;
+			}
+			case PROPERTY: {
+				CharProperty property = (CharProperty) program.nodes[pc];
+				if (property instanceof BmpCharProperty)
+					return property.isSatisfiedBy(seq.charAt(pos)) ? 1 : 0;
+				int ch = Character.codePointAt(seq, pos);
+				return property.isSatisfiedBy(ch) ? Character.charCount(ch)
+						: 0;
+			}
+			case LINE_ENDING: {
+				char ch = seq.charAt(pos);
+				if (ch == 0x0A || ch == 0x0B || ch == 0x0C || ch == 0x85
+						|| ch == 0x2028 || ch == 0x2029) return 1;
+				if (ch != 0x0D) return 0;
+				return pos + 1 < matcher.to && seq.charAt(pos + 1) == 0x0A ? 2
+						: 1;
+			}
+			default:
+				throw new IllegalStateException("Instruction " + pc
+						+ " does not consume input");
+		}
+	}
+	/**
+	 * @return whether the given character is the given character of a
+	 *         literal, compared as given
+	 */
+	static boolean same(int literal, int ch, int compare) {
+		if (literal == ch) return true;
+		switch (compare) {
+			case ASCII_CASE:
+				return literal == ASCII.toLower(ch);
+			case UNICODE_CASE:
+				return literal == Character.toLowerCase(Character
+						.toUpperCase(ch));
+			default:
+				return false;
+		}
+	}
+	/**
+	 * A group captured by a thread, linked to the groups it captured before.
+	 */
+	private static final class Capture {
+		final int group, start, end;
+		final Capture previous;
+		Capture(int group, int start, int end, Capture previous) {
+			this.group = group;
+			this.start = start;
+			this.end = end;
+			this.previous = previous;
+		}
+	}
+	/**
+	 * The threads at one position, in order of preference.
+	 */
+	private static final class Threads {
+		int[] pc;
+		int[][] slots;
+		Capture[] captures;
+		/**
+		 * Whether each thread is in the middle of consuming two characters,
+		 * and so is to be followed from the next position.
+		 */
+		boolean[] pending;
+		/**
+		 * The end flags of each thread.
+		 */
+		int[] ends;
+		int size;
+		/**
+		 * The states visited at this position are those whose stamp is
+		 * {@link #stamp}; the instructions of pending threads are offset by
+		 * the number of states.
+		 */
+		private final int[] stamps;
+		private int stamp = 1;
+		/**
+		 * The states visited at this position that include the depths of paren
+		 * assertions, as an open addressed hash set.
+		 */
+		private int[][] keys = new int[16][];
+		private int keyCount;
+		Threads(int capacity) {
+			pc = new int[capacity];
+			slots = new int[capacity][];
+			captures = new Capture[capacity];
+			pending = new boolean[capacity];
+			ends = new int[capacity];
+			stamps = new int[capacity];
+		}
+		/**
+		 * @return whether the given state had not yet been visited
+		 */
+		boolean visit(int key) {
+			if (stamps[key] == stamp) return false;
+			stamps[key] = stamp;
+			return true;
+		}
+		boolean visit(int[] key) {
+			int mask = keys.length - 1;
+			int k = hash(key) & mask;
+			for (; keys[k] != null; k = (k + 1) & mask)
+				if (Arrays.equals(keys[k], key)) return false;
+			keys[k] = key;
+			if (2 * ++keyCount > keys.length) {
+				int[][] old = keys;
+				keys = new int[2 * old.length][];
+				mask = keys.length - 1;
+				for (int[] entry : old) {
+					if (entry == null) continue;
+					for (k = hash(entry) & mask; keys[k] != null;)
+						k = (k + 1) & mask;
+					keys[k] = entry;
+				}
+			}
+			return true;
+		}
+		private static int hash(int[] key) {
+			return Arrays.hashCode(key) * 0x9E3779B9 >>> 8;
+		}
+		void add(int pc, int[] slots, Capture captures, boolean pending,
+				int ends) {
+			if (size == this.pc.length) {
+				// Paren depths can make for more threads than states
+				this.pc = Arrays.copyOf(this.pc, 2 * size);
+				this.slots = Arrays.copyOf(this.slots, 2 * size);
+				this.captures = Arrays.copyOf(this.captures, 2 * size);
+				this.pending = Arrays.copyOf(this.pending, 2 * size);
+				this.ends = Arrays.copyOf(this.ends, 2 * size);
+			}
+			this.pc[size] = pc;
+			this.slots[size] = slots;
+			this.captures[size] = captures;
+			this.pending[size] = pending;
+			this.ends[size] = ends;
+			size++;
+		}
+		void clear() {
+			Arrays.fill(slots, 0, size, null);
+			Arrays.fill(captures, 0, size, null);
+			size = 0;
+			if (keyCount > 0) {
+				Arrays.fill(keys, null);
+				keyCount = 0;
+			}
+			if (++stamp == 0) {
+				Arrays.fill(stamps, 0);
+				stamp = 1;
+			}
+		}
+	}
+}
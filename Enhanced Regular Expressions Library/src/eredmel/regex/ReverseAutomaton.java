@@ -0,0 +1,300 @@
+package eredmel.regex;
+
+import static eredmel.regex.PikeProgram.*;
+
+import eredmel.regex.Node.Assertion;
+
+/**
+ * Matches a short {@link PikeProgram} from right to left, keeping the
+ * instructions that consume input which the threads have just taken as the
+ * bits of a long, numbered as the positions of a {@link Glushkov} automaton,
+ * as {@link BitParallel} does from left to right, but
+ * following the instructions backwards: a thread at an instruction goes on to
+ * those it can be reached from, and a match is found where a thread reaches
+ * one the program can start with.
+ * <p>
+ * Unlike {@link BitParallel}, the automaton is exact, finding the matches the
+ * program has and no others, so programs with assertions have none, other
+ * than those all of whose matches end at an assertion that can only hold at
+ * the end of the input, such as {@code $} or {@code \z}, which only hold at
+ * one of the last few positions, and so are checked there before the text is
+ * read. Such programs are searched for from the end of the region, and the
+ * bodies of lookbehinds, which end where the lookbehind is, are matched from
+ * there, rather than from each position before it. Since the instructions are
+ * taken to consume one character each, surrogates are left to the nodes.
+ *
+ * @author Kavi Gupta
+ *
+ */
+final class ReverseAutomaton {
+	/**
+	 * Returned if there is no match.
+	 */
+	static final int NO_MATCH = -1;
+	/**
+	 * Returned if the nodes must be run to find out.
+	 */
+	static final int UNKNOWN = -2;
+	final PikeProgram program;
+	/**
+	 * The bits, one per instruction that consumes input.
+	 */
+	private final Glushkov glushkov;
+	/**
+	 * The bits a match can start with, and the bits a match can end with.
+	 */
+	private final long initial, finals;
+	/**
+	 * The bits that can be reached from the bit before them, and those that
+	 * can be reached from other bits, which are given by {@link #sources}.
+	 */
+	private final long shifted, jumped;
+	private final long[] sources;
+	/**
+	 * The bits that can take each character below {@link Glushkov#TABLE}.
+	 */
+	private final long[] table;
+	/**
+	 * Whether the program matches the empty string.
+	 */
+	private final boolean empty;
+	/**
+	 * Whether the program records groups, which are then only found by the
+	 * nodes.
+	 */
+	final boolean captures;
+	/**
+	 * The assertion at which every match ends, or null if the matches end
+	 * wherever the program accepts them.
+	 */
+	final Assertion end;
+	private ReverseAutomaton(Glushkov glushkov, long initial, long finals,
+			long[] follow, boolean empty, Assertion end) {
+		this.program = glushkov.program;
+		this.glushkov = glushkov;
+		this.initial = initial;
+		this.finals = finals;
+		this.empty = empty;
+		this.end = end;
+		boolean captures = false;
+		for (int op : program.ops)
+			captures |= op == CAPTURE;
+		this.captures = captures;
+		long shifted = 0, jumped = 0;
+		sources = new long[follow.length];
+		for (int p = 0; p < follow.length; p++)
+			for (long next = follow[p]; next != 0; next &= next - 1) {
+				int q = Long.numberOfTrailingZeros(next);
+				if (q == p + 1) shifted |= 1L << q;
+				else {
+					sources[q] |= 1L << p;
+					jumped |= 1L << q;
+				}
+			}
+		this.shifted = shifted;
+		this.jumped = jumped;
+		table = glushkov.table();
+	}
+	/**
+	 * @return the automaton for the given program, which may be null, or null
+	 *         if it has none
+	 */
+	static ReverseAutomaton of(PikeProgram program) {
+		if (program == null) return null;
+		for (int op : program.ops)
+			if (op == LINE_ENDING || op == OPEN || op == CLOSE || op == QUOTE)
+				return null;
+		Glushkov glushkov = Glushkov.of(program, false);
+		if (glushkov == null) return null;
+		int[] positions = glushkov.positions;
+		int count = positions.length;
+		Closure closure = new Closure(glushkov);
+		long initial = closure.from(0);
+		boolean empty = closure.accepts;
+		long finals = 0;
+		long[] follow = new long[count];
+		for (int p = 0; p < count; p++) {
+			follow[p] = closure.from(positions[p] + 1);
+			if (closure.accepts) finals |= 1L << p;
+		}
+		if (closure.failed) return null;
+		return new ReverseAutomaton(glushkov, initial, finals, follow, empty,
+				closure.end);
+	}
+	/**
+	 * @return the automaton for the body of a lookbehind, or null if it has
+	 *         none
+	 */
+	static ReverseAutomaton lookbehind(Node cond) {
+		// The program is only read, never run, so its slots need not cover
+		// those of the groups in the body
+		ReverseAutomaton automaton = of(PikeProgram.tryCompile(cond, 0, null));
+		return automaton == null || automaton.end != null ? null : automaton;
+	}
+	/**
+	 * @return whether the given assertion only holds at the end of the input,
+	 *         or just before a line terminator there
+	 */
+	private static boolean anchorsEnd(Node node) {
+		if (node instanceof Node.Dollar) return !((Node.Dollar) node).multiline;
+		if (node instanceof Node.UnixDollar)
+			return !((Node.UnixDollar) node).multiline;
+		return node instanceof Node.End;
+	}
+	/**
+	 * Reads the text backwards from the given end, down to the given
+	 * position at the least.
+	 *
+	 * @param last
+	 *        the last position at which a match is wanted to start
+	 * @param leftmost
+	 *        whether to go on to find the first position at which a match
+	 *        starts, rather than the last
+	 * @return the position found, or {@link #NO_MATCH} or {@link #UNKNOWN}
+	 */
+	private int scan(CharSequence seq, int end, int low, int last,
+			boolean leftmost) {
+		int found = empty && end <= last ? end : NO_MATCH;
+		if (found != NO_MATCH && !leftmost) return found;
+		long[] table = this.table;
+		long initial = this.initial, shifted = this.shifted;
+		long jumped = this.jumped;
+		// The mask of the last character above the table
+		char other = 0;
+		long otherMask = 0;
+		long state = finals;
+		for (int pos = end - 1; pos >= low; pos--) {
+			char ch = seq.charAt(pos);
+			if (Character.isSurrogate(ch)) return UNKNOWN;
+			long next = state;
+			if (pos < end - 1) {
+				next = (state & shifted) >>> 1;
+				for (long jump = state & jumped; jump != 0; jump &= jump - 1)
+					next |= sources[Long.numberOfTrailingZeros(jump)];
+			}
+			if (ch < Glushkov.TABLE) state = next & table[ch];
+			else {
+				if (ch != other) {
+					other = ch;
+					otherMask = glushkov.mask(ch);
+				}
+				state = next & otherMask;
+			}
+			if (state == 0) break;
+			if ((state & initial) != 0 && pos <= last) {
+				found = pos;
+				if (!leftmost) break;
+			}
+		}
+		return found;
+	}
+	/**
+	 * Finds where the last match ending at the given position starts, at
+	 * least the given number of characters before it, and at most the given
+	 * other number, and not before the given position.
+	 *
+	 * @return the start of the match, or {@link #NO_MATCH} or
+	 *         {@link #UNKNOWN}
+	 */
+	int behind(CharSequence seq, int i, int rmin, int rmax, int from) {
+		return scan(seq, i, Math.max(from, i - rmax), i - rmin, false);
+	}
+	/**
+	 * Searches the matcher's region from the given position for the match of
+	 * a program whose matches end at {@link #end}, which only holds at the
+	 * last few positions, leaving whether the end was hit, and is required, as
+	 * it was.
+	 *
+	 * @return the start of the first match, or {@link #NO_MATCH} or
+	 *         {@link #UNKNOWN}
+	 */
+	int start(Matcher matcher, int from) {
+		CharSequence seq = matcher.text;
+		int to = matcher.to;
+		int last = Math.min(to, matcher.lastStart);
+		// The nodes read a code point whole, even past the end of the region
+		if (from > last || to > 0 && Character.isHighSurrogate(seq.charAt(to
+				- 1))) return UNKNOWN;
+		boolean hitEnd = matcher.hitEnd, requireEnd = matcher.requireEnd;
+		int first = NO_MATCH;
+		try {
+			for (int e = Math.max(from, to - 2); e <= to; e++) {
+				if (!end.holds(matcher, e, seq)) continue;
+				int start = scan(seq, e, from, Math.min(last, first == NO_MATCH
+						? e : first - 1), true);
+				if (start == UNKNOWN) return UNKNOWN;
+				if (start != NO_MATCH) first = start;
+			}
+		} finally {
+			matcher.hitEnd = hitEnd;
+			matcher.requireEnd = requireEnd;
+		}
+		return first;
+	}
+	/**
+	 * Finds the bits a thread can take next from an instruction, as the
+	 * closure of a {@link Glushkov} automaton does, and checks that the
+	 * assertions it passes are at the end of every match.
+	 */
+	private static final class Closure extends Glushkov.Closure {
+		/**
+		 * The assertion the matches end at, or null if none has been passed.
+		 */
+		Assertion end;
+		/**
+		 * Whether an assertion has been passed that is not at the end of every
+		 * match, or a match has been accepted both at one and without one.
+		 */
+		boolean failed;
+		private boolean plain;
+		Closure(Glushkov glushkov) {
+			super(glushkov);
+		}
+		@Override
+		long from(int start) {
+			long mask = super.from(start);
+			failed |= plain && end != null;
+			return mask;
+		}
+		@Override
+		void match() {
+			accepts = true;
+			plain = true;
+		}
+		/**
+		 * Passes the assertion at the given instruction, which must anchor the
+		 * end of the match, and be followed only by instructions that consume
+		 * nothing before the match is accepted.
+		 */
+		@Override
+		void assertion(int pc) {
+			Assertion node = (Assertion) program.nodes[pc];
+			if (!anchorsEnd(node) || end != null
+					&& end.getClass() != node.getClass()) {
+				failed = true;
+				return;
+			}
+			end = node;
+			// The instructions after it, up to the match, are only followed
+			// here, so they do not count as accepting without it
+			int[] ops = program.ops;
+			for (int next = pc + 1;;) {
+				switch (ops[next]) {
+					case MATCH:
+						accepts = true;
+						return;
+					case SAVE:
+					case CAPTURE:
+						next++;
+						break;
+					case JUMP:
+						next = program.x[next];
+						break;
+					default:
+						failed = true;
+						return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package eredmel.regex;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A character sequence made of pieces of other character sequences, which are
+ * only copied into one string when {@link #toString()} is called.
+ * <p>
+ * A rope is immutable, as long as the sequences its pieces are taken from are
+ * not changed. Reading a character finds its piece by binary search, so
+ * reading a rope in order is best done by {@link #writeTo(Appendable)}.
+ *
+ * @author Kavi Gupta
+ *
+ */
+public final class Rope implements CharSequence {
+	private final CharSequence[] sources;
+	/**
+	 * The start of each piece in its source.
+	 */
+	private final int[] from;
+	/**
+	 * The start of each piece in this rope, followed by the length of this
+	 * rope.
+	 */
+	private final int[] offsets;
+	private Rope(CharSequence[] sources, int[] from, int[] offsets) {
+		this.sources = sources;
+		this.from = from;
+		this.offsets = offsets;
+	}
+	@Override
+	public int length() {
+		return offsets[sources.length];
+	}
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length())
+			throw new IndexOutOfBoundsException("index " + index);
+		int piece = piece(index);
+		return sources[piece].charAt(from[piece] + index - offsets[piece]);
+	}
+	/**
+	 * @return the piece containing the given index, which is in this rope
+	 */
+	private int piece(int index) {
+		int piece = Arrays.binarySearch(offsets, 0, sources.length, index);
+		if (piece >= 0) return piece;
+		return -piece - 2;
+	}
+	@Override
+	public Rope subSequence(int start, int end) {
+		if (start < 0 || end > length() || start > end)
+			throw new IndexOutOfBoundsException("start " + start + ", end "
+					+ end + ", length " + length());
+		Builder builder = new Builder();
+		if (start == end) return builder.build();
+		for (int piece = piece(start); piece < sources.length
+				&& offsets[piece] < end; piece++) {
+			int pieceStart = Math.max(start, offsets[piece]) - offsets[piece];
+			int pieceEnd = Math.min(end, offsets[piece + 1]) - offsets[piece];
+			builder.add(sources[piece], from[piece] + pieceStart, from[piece]
+					+ pieceEnd);
+		}
+		return builder.build();
+	}
+	/**
+	 * Appends the characters of this rope to the given appendable, one piece
+	 * at a time.
+	 *
+	 * @throws IOException
+	 *         if the appendable throws one
+	 */
+	public void writeTo(Appendable out) throws IOException {
+		for (int piece = 0; piece < sources.length; piece++)
+			out.append(sources[piece], from[piece], from[piece]
+					+ offsets[piece + 1] - offsets[piece]);
+	}
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(length());
+		for (int piece = 0; piece < sources.length; piece++)
+			sb.append(sources[piece], from[piece], from[piece]
+					+ offsets[piece + 1] - offsets[piece]);
+		return sb.toString();
+	}
+	/**
+	 * Builds ropes from pieces, in order.
+	 */
+	static final class Builder {
+		private CharSequence[] sources = new CharSequence[16];
+		private int[] from = new int[16];
+		private int[] offsets = new int[17];
+		private int count;
+		/**
+		 * Adds the given part of the given sequence to the end of the rope.
+		 */
+		Builder add(CharSequence source, int start, int end) {
+			if (start == end) return this;
+			if (count == sources.length) {
+				sources = Arrays.copyOf(sources, 2 * count);
+				from = Arrays.copyOf(from, 2 * count);
+				offsets = Arrays.copyOf(offsets, 2 * count + 1);
+			}
+			if ((long) offsets[count] + end - start > Integer.MAX_VALUE)
+				throw new OutOfMemoryError("Rope is too long");
+			sources[count] = source;
+			from[count] = start;
+			offsets[count + 1] = offsets[count] + end - start;
+			count++;
+			return this;
+		}
+		Rope build() {
+			return new Rope(Arrays.copyOf(sources, count), Arrays.copyOf(from,
+					count), Arrays.copyOf(offsets, count + 1));
+		}
+	}
+}
@@ -0,0 +1,450 @@
+package eredmel.regex;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+import eredmel.regex.Pattern.TreeInfo;
+
+/**
+ * Finds the matches of a pattern in a stream of characters, keeping only a
+ * bounded window of the stream in memory.
+ * <p>
+ * The window is a ring buffer that is refilled from the stream as matching
+ * proceeds. The {@link EnregexMetadata} at the start of the window is carried
+ * across refills, so paren and quote assertions see the same state as they
+ * would on the whole input. A match attempt that reaches the end of the window
+ * (as reported by {@link Matcher#hitEnd()} or {@link Matcher#requireEnd()})
+ * is retried once more of the stream has been read.
+ * <p>
+ * Text before the current search position is discarded, except for
+ * {@link #CONTEXT} characters of context for lookbehind and boundary
+ * assertions. If the pattern has a maximum match length, positions more than
+ * that far from the end of the window are discarded once a search fails;
+ * otherwise the window grows up to the maximum window size, after which
+ * matches that do not fit in half of it may be missed.
+ * <p>
+ * Offsets are absolute positions in the stream. The groups of a match are only
+ * available until the next call to {@link #find()}.
+ *
+ * @author Kavi Gupta
+ *
+ */
+public final class StreamMatcher {
+	/**
+	 * The number of characters before the search position that are kept.
+	 */
+	public static final int CONTEXT = 1024;
+	/**
+	 * The default maximum number of characters in the window.
+	 */
+	public static final int DEFAULT_MAX_WINDOW = 1 << 22;
+	private static final int INITIAL_CAPACITY = 1 << 14;
+	/**
+	 * The results of {@link #search()}.
+	 */
+	static final int FOUND = 0, NONE = 1, MORE = 2;
+	private final Pattern pattern;
+	/**
+	 * The stream, or null if it is given in chunks by {@link #feed}.
+	 */
+	private final Reader in;
+	private final int maxWindow;
+	/**
+	 * The maximum length of a match, or -1 if there is none.
+	 */
+	private final int maxLength;
+	private final Window window;
+	/**
+	 * The absolute position of the start of the window in the stream, and the
+	 * metadata there.
+	 */
+	private long base;
+	private EnregexMetadata baseState;
+	/**
+	 * The absolute position at which the next search starts.
+	 */
+	private long searchFrom;
+	private boolean eof;
+	/**
+	 * The matcher over the current contents of the window, or null if the
+	 * window has changed since it was created.
+	 */
+	private Matcher matcher;
+	private boolean matched;
+	StreamMatcher(Pattern pattern, Reader in, int maxWindow) {
+		this.pattern = pattern;
+		this.in = in;
+		this.maxWindow = Math.max(maxWindow, 4 * CONTEXT);
+		this.window = new Window(Math.min(INITIAL_CAPACITY, this.maxWindow));
+		this.baseState = EnregexMetadata.startOfString(pattern
+				.matcher("").system.type);
+		TreeInfo info = new TreeInfo();
+		pattern.compiledPattern.matchRoot.study(info);
+		this.maxLength = info.maxValid ? info.maxLength : -1;
+	}
+	/**
+	 * Attempts to find the next match in the stream.
+	 *
+	 * @return whether there is another match
+	 * @throws IOException
+	 *         if the stream cannot be read
+	 */
+	public boolean find() throws IOException {
+		int result;
+		while ((result = search()) == MORE) {
+			eof = !window.fill(in);
+			closeMatcher();
+		}
+		return result == FOUND;
+	}
+	/**
+	 * Searches the window for the next match.
+	 *
+	 * @return {@link #FOUND} or {@link #NONE} if the search is complete, or
+	 *         {@link #MORE} if more of the stream must be read into the window
+	 *         first, in which case room has been made for it
+	 */
+	int search() {
+		if (matched) searchFrom = end() == start() ? end() + 1 : end();
+		matched = false;
+		while (true) {
+			if (searchFrom > base + window.length()) {
+				if (eof) return NONE;
+				makeRoom();
+				return MORE;
+			}
+			if (matcher == null) {
+				matcher = pattern.matcher(window);
+				matcher.region(0, window.length(), baseState);
+			}
+			boolean found = matcher.search((int) (searchFrom - base));
+			boolean complete = eof || !matcher.hitEnd && !matcher.requireEnd;
+			if (complete && found) {
+				matched = true;
+				return FOUND;
+			}
+			if (complete) return NONE;
+			if (maxLength >= 0) {
+				// Starts that cannot reach past the end of the window have
+				// failed for good
+				long limit = base + window.length() - maxLength;
+				if (found) limit = Math.min(limit, base + matcher.first);
+				searchFrom = Math.max(searchFrom, limit);
+			}
+			if (makeRoom()) return MORE;
+			// The window is as large as it can be
+			if (found) {
+				matched = true;
+				return FOUND;
+			}
+			searchFrom = Math.max(searchFrom, base + window.length()
+					- maxWindow / 2);
+			discard();
+		}
+	}
+	/**
+	 * Makes room in the window for more of the stream, by discarding text
+	 * that is no longer needed or by growing the window.
+	 *
+	 * @return false if the window is full and cannot be grown, or true
+	 *         otherwise
+	 */
+	private boolean makeRoom() {
+		discard();
+		if (window.length() == window.capacity()) {
+			if (window.capacity() >= maxWindow) return false;
+			window.grow(Math.min(maxWindow, 2 * window.capacity()));
+		}
+		return true;
+	}
+	/**
+	 * Copies as much of the given chunk of the stream into the window as
+	 * fits, for a stream matcher that is given its stream in chunks.
+	 *
+	 * @return whether the window is full
+	 */
+	boolean feed(CharBuffer chunk) {
+		window.fill(chunk);
+		closeMatcher();
+		return window.length() == window.capacity();
+	}
+	/**
+	 * Marks the end of the stream, for a stream matcher that is given its
+	 * stream in chunks.
+	 */
+	void endOfStream() {
+		eof = true;
+		closeMatcher();
+	}
+	/**
+	 * Discards the text before the context of the search position.
+	 */
+	private void discard() {
+		long keep = Math.min(searchFrom - CONTEXT, base + window.length());
+		if (keep <= base) return;
+		int count = (int) (keep - base);
+		if (matcher != null) {
+			baseState = matcher.system.metadataAt(count);
+		} else {
+			for (int i = 0; i < count; i++)
+				baseState = baseState.next(window.charAt(i));
+		}
+		window.discard(count);
+		base = keep;
+		closeMatcher();
+	}
+	/**
+	 * Frees the metadata of the matcher over the window, which no longer
+	 * matches its contents.
+	 */
+	private void closeMatcher() {
+		if (matcher != null) matcher.close();
+		matcher = null;
+	}
+	/**
+	 * @return the absolute position of the start of the last match
+	 */
+	public long start() {
+		return start(0);
+	}
+	/**
+	 * @return the absolute position of the start of the given group in the
+	 *         last match, or -1 if it did not participate
+	 */
+	public long start(int group) {
+		checkMatch();
+		Range range = matcher.range(group);
+		return range == null ? -1 : base + range.start;
+	}
+	/**
+	 * @return the absolute position of the end of the last match
+	 */
+	public long end() {
+		return end(0);
+	}
+	/**
+	 * @return the absolute position of the end of the given group in the last
+	 *         match, or -1 if it did not participate
+	 */
+	public long end(int group) {
+		checkMatch();
+		Range range = matcher.range(group);
+		return range == null ? -1 : base + range.end;
+	}
+	public String group() {
+		return group(0);
+	}
+	public String group(int group) {
+		checkMatch();
+		return matcher.group(group);
+	}
+	public String group(String name) {
+		checkMatch();
+		return matcher.group(name);
+	}
+	public int groupCount() {
+		return pattern.compiledPattern.registry.capturingGroupCount - 1;
+	}
+	/**
+	 * Returns the last match as a {@link MatchResult}, which keeps only the
+	 * text of its groups and is unaffected by further calls to
+	 * {@link #find()}. Its offsets are absolute positions in the stream.
+	 *
+	 * @throws ArithmeticException
+	 *         if the match ends more than {@link Integer#MAX_VALUE}
+	 *         characters into the stream
+	 */
+	public MatchResult toMatchResult() {
+		checkMatch();
+		Range[][] groups = new Range[matcher.groupsr.length][];
+		int from = matcher.first, to = matcher.last;
+		for (int g = 0; g < groups.length; g++) {
+			groups[g] = matcher.groupsr[g].toArray(new Range[0]);
+			for (Range range : groups[g]) {
+				if (range == null || range.isEmpty()) continue;
+				from = Math.min(from, range.start);
+				to = Math.max(to, range.end);
+			}
+		}
+		int offset = Math.toIntExact(base + from);
+		// The end must be an int as well
+		Math.toIntExact(base + to);
+		for (Range[] group : groups)
+			for (int i = 0; i < group.length; i++)
+				if (group[i] != null && !group[i].isEmpty())
+					group[i] = Range.of(offset + group[i].start - from,
+							offset + group[i].end - from);
+		return new Snapshot(window.subSequence(from, to), offset, groups,
+				pattern.compiledPattern.registry);
+	}
+	private void checkMatch() {
+		if (!matched) throw new IllegalStateException("No match available");
+	}
+	/**
+	 * A match of a stream matcher, with the text its groups span.
+	 */
+	private static final class Snapshot implements MatchResult {
+		private final String text;
+		/**
+		 * The position of the text in the stream.
+		 */
+		private final int offset;
+		private final Range[][] groups;
+		private final GroupRegistry registry;
+		Snapshot(String text, int offset, Range[][] groups,
+				GroupRegistry registry) {
+			this.text = text;
+			this.offset = offset;
+			this.groups = groups;
+			this.registry = registry;
+		}
+		@Override
+		public int start() {
+			return start(0);
+		}
+		@Override
+		public int start(int group) {
+			Range range = range(group);
+			return range == null ? -1 : range.start;
+		}
+		@Override
+		public int start(String name) {
+			return start(groupNumber(name));
+		}
+		@Override
+		public int end() {
+			return end(0);
+		}
+		@Override
+		public int end(int group) {
+			Range range = range(group);
+			return range == null ? -1 : range.end;
+		}
+		@Override
+		public int end(String name) {
+			return end(groupNumber(name));
+		}
+		@Override
+		public Range range(int group) {
+			return range(group, iterations(group) - 1);
+		}
+		@Override
+		public int iterations(int group) {
+			if (group < 0 || group > groupCount())
+				throw new IndexOutOfBoundsException("No group " + group);
+			return groups[group].length;
+		}
+		@Override
+		public int iterations(String name) {
+			return iterations(groupNumber(name));
+		}
+		@Override
+		public Range range(int group, int iteration) {
+			if (iteration < 0 || iteration >= iterations(group)) return null;
+			return groups[group][iteration];
+		}
+		@Override
+		public Range range(String name, int iteration) {
+			return range(groupNumber(name), iteration);
+		}
+		@Override
+		public String group() {
+			return group(0);
+		}
+		@Override
+		public String group(int group) {
+			Range range = range(group);
+			if (range == null || range.isEmpty()) return null;
+			return text.substring(range.start - offset, range.end - offset);
+		}
+		@Override
+		public String group(String name) {
+			return group(groupNumber(name));
+		}
+		/**
+		 * @return the number of the group with the given name
+		 */
+		private int groupNumber(String name) {
+			if (!registry.groupDefined(name))
+				throw new IllegalArgumentException("No group with name <"
+						+ name + ">");
+			return registry.groupNumber(name);
+		}
+		@Override
+		public int groupCount() {
+			return registry.capturingGroupCount - 1;
+		}
+	}
+	/**
+	 * A ring buffer of characters, viewed as the sequence from its head.
+	 */
+	private static final class Window implements CharSequence {
+		private char[] buffer;
+		private int head, length;
+		Window(int capacity) {
+			buffer = new char[capacity];
+		}
+		int capacity() {
+			return buffer.length;
+		}
+		/**
+		 * Copies as much of the given chunk as fits into the buffer.
+		 */
+		void fill(CharBuffer chunk) {
+			while (length < buffer.length && chunk.hasRemaining()) {
+				int tail = (head + length) % buffer.length;
+				int room = tail < head ? head - tail : buffer.length - tail;
+				int count = Math.min(room, chunk.remaining());
+				chunk.get(buffer, tail, count);
+				length += count;
+			}
+		}
+		/**
+		 * Reads from the stream until the buffer is full.
+		 *
+		 * @return false if the end of the stream was reached, or true otherwise
+		 */
+		boolean fill(Reader in) throws IOException {
+			while (length < buffer.length) {
+				int tail = (head + length) % buffer.length;
+				int room = tail < head ? head - tail : buffer.length - tail;
+				int read = in.read(buffer, tail, room);
+				if (read < 0) return false;
+				length += read;
+			}
+			return true;
+		}
+		void discard(int count) {
+			head = (head + count) % buffer.length;
+			length -= count;
+		}
+		void grow(int capacity) {
+			char[] buffer2 = new char[capacity];
+			for (int i = 0; i < length; i++)
+				buffer2[i] = charAt(i);
+			buffer = buffer2;
+			head = 0;
+		}
+		@Override
+		public char charAt(int index) {
+			int i = head + index;
+			return buffer[i < buffer.length ? i : i - buffer.length];
+		}
+		@Override
+		public int length() {
+			return length;
+		}
+		@Override
+		public String subSequence(int start, int end) {
+			StringBuilder sb = new StringBuilder(end - start);
+			for (int i = start; i < end; i++)
+				sb.append(charAt(i));
+			return sb.toString();
+		}
+		@Override
+		public String toString() {
+			return subSequence(0, length);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package eredmel.test.enregex;
+
+import static eredmel.test.enregex.EnregexTestUtil.compile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eredmel.regex.MatchStatistics;
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+import eredmel.regex.Pattern.Engine;
+
+public class AdaptationTest {
+	private static String text(int words) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < words; i++)
+			text.append(i % 7 == 0 ? "'key=" + i + "' " : "key=" + i + " ");
+		return text.toString();
+	}
+	@Test
+	public void statisticsTest() {
+		assertNotNull(compile("(\\w+)=(\\d+)", 0, null).statistics());
+		assertNull(compile("(\\w+)=(\\d+)", Pattern.FIXED_PLAN, null)
+				.statistics());
+		assertNull(compile("(\\w+)=(\\d+)", 0, Engine.DFA).statistics());
+		assertNull(compile("(a+)b\\1", 0, null).statistics());
+	}
+	@Test
+	public void countTest() {
+		Pattern pattern = compile("key=(\\d+)", 0, null);
+		Matcher matcher = pattern.matcher(text(100));
+		int found = 0;
+		while (matcher.find())
+			found++;
+		MatchStatistics statistics = pattern.statistics();
+		assertEquals(found + 1, statistics.searches());
+		assertEquals(found, statistics.matches());
+		assertTrue(statistics.averageSearchLength() > 0);
+		assertTrue(statistics.prefilterHitRate() > 0);
+		assertTrue(statistics.prefilterHitRate() <= 1);
+	}
+	@Test
+	public void hitRateTest() {
+		// Each key is a place the prefix is found at, but only one in ten
+		// ends in the digit, and one in seven of those is quoted
+		Pattern pattern = compile("key=(\\d*)5 ", 0, null);
+		Matcher matcher = pattern.matcher(text(20000));
+		while (matcher.find()) {}
+		MatchStatistics statistics = pattern.statistics();
+		assertTrue(statistics.prefilter());
+		assertEquals(0.1 * 6 / 7, statistics.prefilterHitRate(), 0.002);
+	}
+	@Test(timeout = 10000)
+	public void exponentialTest() {
+		// The nodes alone would try every way of splitting the text between
+		// the repetitions, in every search after the first window
+		Pattern pattern = compile("([^a]*)+(a|ab)", 0, null);
+		assertEquals(Engine.DFA, pattern.engine());
+		Matcher matcher = pattern.matcher("xxxxxxxxxxxxxxxxxxxxxxxxxxxxxx");
+		for (int i = 0; i < 1200; i++)
+			assertFalse(matcher.find(0));
+		assertEquals(0, pattern.statistics().backtrackingSearches());
+	}
+	@Test
+	public void sameMatchesTest() {
+		String text = text(5000);
+		for (String regex : new String[] { "(\\w+)=(\\d+)", "~^'key=(\\d)",
+				"y=(\\d+)5" }) {
+			Matcher expected = compile(regex, Pattern.FIXED_PLAN, null)
+					.matcher(text);
+			Matcher actual = compile(regex, 0, null).matcher(text);
+			while (expected.find()) {
+				assertTrue(regex, actual.find());
+				assertEquals(regex, expected.start(), actual.start());
+				assertEquals(regex, expected.end(), actual.end());
+				assertEquals(regex, expected.group(1), actual.group(1));
+			}
+			assertFalse(regex, actual.find());
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package eredmel.test.enregex;
+
+import static eredmel.test.enregex.EnregexTestUtil.assertSameAs;
+import static eredmel.test.enregex.EnregexTestUtil.compile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+import eredmel.regex.Pattern.Engine;
+import eredmel.regex.PatternSyntaxException;
+
+public class BitParallelTest {
+	private static void assertSame(String regex, int flags, String text) {
+		assertSameAs(Engine.BACKTRACKING, Engine.BIT_PARALLEL, regex, flags,
+				text);
+	}
+	@Test
+	public void keywordTest() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			text.append(i % 9 == 0 ? "retrying timeout " : "retry. x"
+					+ i + " ");
+		assertSame("\\b(?:timeout|retry)\\b", 0, text.toString());
+		assertSame("\\b(x)(\\d{1,2})?\\b", 0, text.toString());
+		assertSame("\\bretry\\b|t", 0, "retry");
+		assertSame("\\bretry\\b", 0, "retrying");
+	}
+	@Test
+	public void lineTest() {
+		String text = "abcdef-ghi\njklmno\r\npq\nERROR 404 ERROR 500\n";
+		assertSame("^\\p{Alpha}{3}", Pattern.MULTILINE, text);
+		assertSame("^\\p{Alpha}{3}", 0, text);
+		assertSame("(?m)^ERROR \\d{3}", 0, text);
+		assertSame("\\w{2}$", Pattern.MULTILINE, text);
+	}
+	@Test
+	public void regionTest() {
+		Pattern pattern = compile("\\b\\w{3}\\b", 0, Engine.BIT_PARALLEL);
+		Matcher matcher = pattern.matcher("one three two four");
+		matcher.region(1, 13);
+		assertTrue(matcher.find());
+		assertEquals("two", matcher.group());
+		assertFalse(matcher.find());
+	}
+	@Test
+	public void supplementaryTest() {
+		String text = "a😀b ab 😀😀 x😀y a\uD83Db";
+		assertSame("a.b", 0, text);
+		assertSame("\\b.{1,2}\\b", 0, text);
+		assertSame("😀{2}|x.y", 0, text);
+	}
+	@Test(expected = PatternSyntaxException.class)
+	public void unboundedTest() {
+		compile("\\b\\w+\\b", 0, Engine.BIT_PARALLEL);
+	}
+}
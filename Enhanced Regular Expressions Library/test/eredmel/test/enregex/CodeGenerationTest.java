@@ -0,0 +1,78 @@
+package eredmel.test.enregex;
+
+import static eredmel.test.enregex.EnregexTestUtil.compile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+import eredmel.regex.Pattern.Engine;
+
+public class CodeGenerationTest {
+	private static final String[] REGEXES = { "(\\w+)@(\\w+)\\.com",
+			"(?i)(re|fwd): (\\S+)", "a(b|c)*?d|(x)?y{2,3}+", "(?=\\d)(\\d+)\\b",
+			"~^'(key)=(\\w*)", "\\s*(from)\\s+(.)\\R?" };
+	private static String text() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			text.append(i % 5 == 0 ? "'key=" + i + "' " : "key=" + i + " ")
+					.append("user").append(i).append("@host.com RE: abcd ")
+					.append(i % 3 == 0 ? "xyyy " : "ad\r\n from X\n");
+		return text.toString();
+	}
+	/**
+	 * Searches the text with the given pattern until it has code generated
+	 * for it, waiting for the code once the searches have started it, or
+	 * until they have run the nodes often enough to start it, which each
+	 * search does at least once.
+	 */
+	private static void warm(Pattern pattern, String text)
+			throws InterruptedException {
+		for (int i = 0; i < 10000
+				&& !pattern.awaitCodeGenerated(1, TimeUnit.MINUTES); i++) {
+			Matcher matcher = pattern.matcher(text);
+			while (matcher.find()) {}
+		}
+	}
+	@Test
+	public void optInTest() {
+		Pattern pattern = compile("(\\w+)@(\\w+)\\.com", 0,
+				Engine.BACKTRACKING);
+		for (int i = 0; i < 100; i++)
+			pattern.matcher(text()).find();
+		assertFalse(pattern.codeGenerated());
+	}
+	@Test
+	public void sameMatchesTest() throws InterruptedException {
+		String text = text();
+		for (String regex : REGEXES) {
+			Pattern generated = compile(regex, Pattern.GENERATE_CODE,
+					Engine.BACKTRACKING);
+			warm(generated, text);
+			assertTrue(regex, generated.codeGenerated());
+			for (int from = 0; from < 40; from++) {
+				Matcher expected = compile(regex, 0, Engine.BACKTRACKING)
+						.matcher(text);
+				Matcher actual = generated.matcher(text);
+				expected.region(from, text.length() - from);
+				actual.region(from, text.length() - from);
+				while (expected.find()) {
+					assertTrue(regex, actual.find());
+					assertEquals(regex, expected.start(), actual.start());
+					assertEquals(regex, expected.end(), actual.end());
+					for (int g = 1; g <= expected.groupCount(); g++)
+						assertEquals(regex, expected.group(g), actual.group(g));
+				}
+				assertFalse(regex, actual.find());
+				assertEquals(regex, expected.hitEnd(), actual.hitEnd());
+				assertEquals(regex, expected.lookingAt(), actual.lookingAt());
+				assertEquals(regex, expected.matches(), actual.matches());
+			}
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package eredmel.test.enregex;
+
+import static eredmel.test.enregex.EnregexTestUtil.assertSameAs;
+import static eredmel.test.enregex.EnregexTestUtil.compile;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import eredmel.regex.Pattern;
+import eredmel.regex.Pattern.Engine;
+import eredmel.regex.PatternSyntaxException;
+
+public class EnginePlanTest {
+	@Test
+	public void planTest() {
+		assertEquals(Engine.LITERAL, compile("timeout", 0, null).engine());
+		assertEquals(Engine.LITERAL, compile("a.b", Pattern.LITERAL, null)
+				.engine());
+		assertEquals(Engine.ONE_PASS, compile("(\\w+)=(\\d+)", 0, null)
+				.engine());
+		assertEquals(Engine.ONE_PASS, compile("~^'ERROR", 0, null).engine());
+		assertEquals(Engine.DFA, compile("(\\w+)(\\d+)", 0, null).engine());
+		assertEquals(Engine.BACKTRACKING, compile("(a+)b\\1", 0, null)
+				.engine());
+		assertEquals(Engine.BIT_PARALLEL, compile("\\bERR\\d{2,4}\\b", 0, null)
+				.engine());
+		assertEquals(Engine.BACKTRACKING, compile("timeout\\b", 0, null)
+				.engine());
+		assertEquals(Engine.REVERSE, compile("\\.(\\w+)$", 0, null).engine());
+		assertEquals(Engine.ENREGEX, compile("f~(.*~)", 0, null).engine());
+		assertEquals(Engine.PIKE_VM, compile("(a|aa)*b", Pattern.LINEAR_TIME,
+				null).engine());
+	}
+	@Test
+	public void forcedTest() {
+		String text = "x=12 'y=3' z=456 literal";
+		for (String regex : new String[] { "(\\w)=(\\d+)", "~^'\\w=\\d",
+				"literal", "\\d+$", "" }) {
+			for (Engine engine : Engine.values()) {
+				try {
+					assertSameAs(Engine.BACKTRACKING, engine, regex, 0, text);
+				} catch (PatternSyntaxException e) {
+					continue;
+				}
+				assertEquals(regex, engine, compile(regex, 0, engine).engine());
+			}
+		}
+	}
+	@Test(expected = PatternSyntaxException.class)
+	public void notLiteralTest() {
+		compile("a+", 0, Engine.LITERAL);
+	}
+	@Test(expected = IllegalArgumentException.class)
+	public void notLinearTest() {
+		compile("a+", Pattern.LINEAR_TIME, Engine.BACKTRACKING);
+	}
+}
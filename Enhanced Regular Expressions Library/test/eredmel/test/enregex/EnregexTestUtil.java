@@ -2,12 +2,16 @@ package eredmel.test.enregex;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 
 import eredmel.regex.EnregexType;
 import eredmel.regex.MatchResult;
+import eredmel.regex.Matcher;
 import eredmel.regex.Pattern;
+import eredmel.regex.Pattern.Engine;
 
 public class EnregexTestUtil {
 	public static EnregexType TO_USE = EnregexType.EREDMEL_STANDARD;
@@ -24,4 +28,25 @@ public class EnregexTestUtil {
 		}
 		assertEquals("Match Count", startends.length, i);
 	}
+	public static Pattern compile(String regex, int flags, Engine engine) {
+		return Pattern.compile(regex, Pattern.ENHANCED_REGEX | flags,
+				EnregexType.EREDMEL_STANDARD, engine);
+	}
+	public static void assertSameAs(Engine reference, Engine engine,
+			String regex, int flags, String text) {
+		Matcher expected = compile(regex, flags, reference).matcher(text);
+		Matcher actual = compile(regex, flags, engine).matcher(text);
+		while (expected.find()) {
+			assertTrue(regex, actual.find());
+			assertEquals(regex, expected.start(), actual.start());
+			assertEquals(regex, expected.end(), actual.end());
+			for (int g = 1; g <= expected.groupCount(); g++)
+				assertEquals(regex, expected.group(g), actual.group(g));
+			assertEquals(regex, expected.hitEnd(), actual.hitEnd());
+			assertEquals(regex, expected.requireEnd(), actual.requireEnd());
+		}
+		assertFalse(regex, actual.find());
+		assertEquals(regex, expected.hitEnd(), actual.hitEnd());
+		assertEquals(regex, expected.requireEnd(), actual.requireEnd());
+	}
 }
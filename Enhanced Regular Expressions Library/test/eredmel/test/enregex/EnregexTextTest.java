@@ -0,0 +1,52 @@
+package eredmel.test.enregex;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import eredmel.regex.EnregexSegment;
+import eredmel.regex.EnregexText;
+import eredmel.regex.EnregexType;
+import eredmel.regex.MatchResult;
+import eredmel.regex.Pattern;
+
+public class EnregexTextTest {
+	private static void assertMetadataMatches(EnregexText text) {
+		EnregexSegment scanned = EnregexSegment.getInstance(text.toString(),
+				EnregexType.EREDMEL_STANDARD);
+		for (int i = 0; i <= text.length(); i++)
+			assertEquals("metadata at " + i, scanned.metadataAt(i).toString(),
+					text.metadataAt(i).toString());
+	}
+	@Test
+	public void editTest() {
+		EnregexText text = new EnregexText("f(a) + g('b(', [c]) + h(d)",
+				EnregexType.EREDMEL_STANDARD);
+		text.insert(2, "(");
+		assertMetadataMatches(text);
+		text.insert(0, "'");
+		assertMetadataMatches(text);
+		text.delete(0, 1);
+		assertMetadataMatches(text);
+		text.replace(2, 3, "[x]");
+		assertMetadataMatches(text);
+		text.delete(text.length() - 3, text.length());
+		assertMetadataMatches(text);
+		assertEquals("f([x]a) + g('b(', [c]) + h", text.toString());
+	}
+	@Test
+	public void matchAfterEditTest() {
+		EnregexText text = new EnregexText("g(a), h(b)",
+				EnregexType.EREDMEL_STANDARD);
+		Pattern pattern = Pattern.compile("\\(~(.+~)\\)",
+				Pattern.ENHANCED_REGEX, EnregexType.EREDMEL_STANDARD);
+		assertEquals(2, pattern.matches(text).size());
+		text.insert(4, ")");
+		text.insert(2, "(");
+		ArrayList<MatchResult> matches = pattern.matches(text);
+		assertEquals(2, matches.size());
+		assertEquals("((a))", matches.get(0).group());
+	}
+}
@@ -0,0 +1,44 @@
+package eredmel.test.enregex;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import eredmel.regex.EnregexType;
+import eredmel.regex.MatchResult;
+import eredmel.regex.Pattern;
+
+public class FindAllParallelTest {
+	@Test
+	public void sameAsSequentialTest() {
+		Random random = new Random(37);
+		String alphabet = "ab ()[]'\\\nxy";
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 300000; i++)
+			sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		String text = sb.toString();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (String regex : new String[] { "(?m)$", "(a|b)+y",
+					"\\(~([^\\n]*~)\\)", "~'[ab]+", "~^'\\[~(.*?~)\\]" }) {
+				Pattern pattern = Pattern.compile(regex,
+						Pattern.ENHANCED_REGEX, EnregexType.EREDMEL_STANDARD);
+				List<MatchResult> expected = pattern.matches(text);
+				List<MatchResult> actual = pattern.findAllParallel(text, pool);
+				assertEquals(regex, expected.size(), actual.size());
+				for (int i = 0; i < expected.size(); i++) {
+					assertEquals(regex, expected.get(i).start(), actual.get(i)
+							.start());
+					assertEquals(regex, expected.get(i).end(), actual.get(i)
+							.end());
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package eredmel.test.enregex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+import eredmel.regex.EnregexType;
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+
+public class LazyDFATest {
+	@Test
+	public void filterTest() {
+		Predicate<String> error = Pattern.compile("ERROR.*time(out|d out)")
+				.asPredicate();
+		int count = 0;
+		for (int i = 0; i < 10000; i++) {
+			String line = "2024-01-01 12:00:00 INFO request " + i + " served";
+			if (i % 100 == 0) line += " ERROR timed out";
+			if (error.test(line)) count++;
+		}
+		assertEquals(100, count);
+	}
+	@Test
+	public void matchEndTest() {
+		Matcher matcher = Pattern.compile("(a|ab)(c|bcd)(d*)").matcher(
+				"xxabcdd abcx");
+		assertTrue(matcher.find());
+		assertEquals(2, matcher.start());
+		assertEquals(7, matcher.end());
+		assertEquals("bcd", matcher.group(2));
+		assertEquals("d", matcher.group(3));
+		assertTrue(matcher.find());
+		assertEquals("abc", matcher.group());
+		assertFalse(matcher.find());
+		assertTrue(matcher.hitEnd());
+		matcher = Pattern.compile("a+?").matcher("aaa");
+		assertTrue(matcher.lookingAt());
+		assertEquals(1, matcher.end());
+		assertFalse(matcher.hitEnd());
+		assertTrue(matcher.matches());
+		assertFalse(matcher.hitEnd());
+	}
+	@Test
+	public void codePointStartTest() {
+		String text = new String(new int[] { 'x', 0x1d400, 'y' }, 0, 3);
+		Matcher matcher = Pattern.compile("\\P{Lu}").matcher(text);
+		assertTrue(matcher.find());
+		assertEquals(0, matcher.start());
+		assertTrue(matcher.find());
+		assertEquals(3, matcher.start());
+		assertFalse(matcher.find());
+	}
+	@Test
+	public void quoteTest() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			text.append(i % 10 == 0 ? "msg='ERROR \\' x' ERROR\n"
+					: "msg='ok' ERROR\n");
+		for (int flags : new int[] { 0, Pattern.LINEAR_TIME }) {
+			Matcher matcher = Pattern.compile("~^'ERROR",
+					Pattern.ENHANCED_REGEX | flags,
+					EnregexType.EREDMEL_STANDARD).matcher(text);
+			int count = 0;
+			while (matcher.find()) {
+				assertEquals("ERROR", matcher.group());
+				count++;
+			}
+			assertEquals(1000, count);
+			matcher = Pattern.compile("~'ERROR \\\\'",
+					Pattern.ENHANCED_REGEX | flags,
+					EnregexType.EREDMEL_STANDARD).matcher(text);
+			assertTrue(matcher.find());
+			assertEquals(5, matcher.start());
+			assertTrue(matcher.find());
+			assertEquals(text.indexOf("ERROR \\'", 6), matcher.start());
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package eredmel.test.enregex;
+
+import static eredmel.test.enregex.EnregexTestUtil.compile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+import eredmel.regex.PatternSyntaxException;
+
+public class LinearParenTest {
+	@Test
+	public void sameAsBacktrackingTest() {
+		String[][] cases = { { "\\(~(.+~)\\)", "(a b c() ()d e f) (()(()))" },
+				{ "\\(~(.*?~)\\)", "(a(b)c) (d)" },
+				{ "\\(~(.*~),~(.*~)\\)", "((),()) (,)" },
+				{ "(\\w+)~((\\w+|, )*~)\\)", "f(a, g(b)) h(" },
+				{ "~[(~(\\w*~)|\\w)+~]", "[a(b)c] [(d)(e] [f]" },
+				{ "x~(.+~)\\(", "x(a)(b)\ny)(" } };
+		for (String[] c : cases) {
+			Matcher expected = compile(c[0], 0, null).matcher(c[1]);
+			Matcher actual = compile(c[0], Pattern.LINEAR_TIME, null).matcher(
+					c[1]);
+			while (expected.find()) {
+				assertTrue(c[0], actual.find());
+				assertEquals(c[0], expected.start(), actual.start());
+				assertEquals(c[0], expected.end(), actual.end());
+				for (int g = 1; g <= expected.groupCount(); g++) {
+					assertEquals(c[0], expected.iterations(g),
+							actual.iterations(g));
+					for (int k = 0; k < expected.iterations(g); k++)
+						assertEquals(c[0], expected.range(g, k),
+								actual.range(g, k));
+				}
+			}
+			assertFalse(c[0], actual.find());
+		}
+	}
+	@Test
+	public void repeatedParenTest() {
+		StringBuilder text = new StringBuilder("(");
+		for (int i = 0; i < 10000; i++)
+			text.append('a');
+		text.append(")x");
+		// Repeated paren assertions are matched in linear time without the
+		// flag
+		assertFalse(compile("(a|~(a~)|aa)*y", 0, null).matcher(text).find());
+		assertTrue(compile("\\((a|~(a~)|aa)*\\)x", 0, null).matcher(text)
+				.matches());
+	}
+	@Test(expected = PatternSyntaxException.class)
+	public void unpairedTest() {
+		compile("~((a~)|b)", Pattern.LINEAR_TIME, null);
+	}
+}
@@ -0,0 +1,112 @@
+package eredmel.test.enregex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import eredmel.regex.EnregexType;
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+import eredmel.regex.Pattern.Engine;
+import eredmel.regex.PatternSyntaxException;
+
+public class LinearTimeTest {
+	@Test
+	public void sameAsBacktrackingTest() {
+		String[][] cases = { { "(a|ab)(c|bcd)(d*)", "xabcdd abcd" },
+				{ "(a?)*b", "aab ab b" }, { "(\\w+?)(\\d{2,3})", "ab1234 x12" },
+				{ "(?i)(A|b)+c", "aBAc bbC" }, { "^(x*)(x+)$", "xxxx" },
+				{ "\\b(\\w)(\\w)?\\b", "a bc def" }, { "(?:(a)|(b))*", "abba" } };
+		for (String[] c : cases) {
+			Matcher expected = Pattern.compile(c[0]).matcher(c[1]);
+			Matcher actual = Pattern.compile(c[0], Pattern.LINEAR_TIME)
+					.matcher(c[1]);
+			while (expected.find()) {
+				assertTrue(c[0], actual.find());
+				assertEquals(c[0], expected.start(), actual.start());
+				assertEquals(c[0], expected.end(), actual.end());
+				for (int g = 1; g <= expected.groupCount(); g++) {
+					assertEquals(c[0], expected.iterations(g),
+							actual.iterations(g));
+					for (int k = 0; k < expected.iterations(g); k++)
+						assertEquals(c[0], expected.range(g, k),
+								actual.range(g, k));
+				}
+			}
+			assertFalse(c[0], actual.find());
+			assertEquals(c[0], expected.hitEnd(), actual.hitEnd());
+		}
+	}
+	@Test
+	public void hitEndTest() {
+		String[][] cases = { { "^.*", "cb=bc ;c.A\nbb;A.b1" },
+				{ "^x+", "abc" }, { "\\Ax", "yx" }, { "x+", "abc" },
+				{ "^a+", "aaa" } };
+		for (String[] c : cases) {
+			for (boolean linear : new boolean[] { false, true }) {
+				Matcher expected = Pattern.compile(c[0]).matcher(c[1]);
+				Matcher actual = Pattern.compile(c[0],
+						linear ? Pattern.LINEAR_TIME : 0,
+						EnregexType.EREDMEL_STANDARD, Engine.PIKE_VM).matcher(
+						c[1]);
+				while (expected.find())
+					assertTrue(c[0], actual.find());
+				assertFalse(c[0], actual.find());
+				assertEquals(c[0], expected.hitEnd(), actual.hitEnd());
+			}
+		}
+	}
+	@Test
+	public void endTest() {
+		// Only the threads the nodes would try before the match may hit or
+		// require the end
+		String[][] cases = { { "(c|\\z)*?", "\nb~" }, { "\\Z.", "?c" },
+				{ "([^a]|(\\b|.))b", "a'" }, { "~(\\w*?~)", "(bc" },
+				{ "(?m).~(\\)$~)", "a bcx)" },
+				{ "(a{0,2}($|~([^a]+~))??|'(.~^'.{2}~')??[^a])*?",
+						"a'b(c)a'" } };
+		for (String[] c : cases)
+			EnregexTestUtil.assertSameAs(Engine.BACKTRACKING, Engine.PIKE_VM,
+					c[0], 0, c[1]);
+	}
+	@Test
+	public void streamTest() throws IOException {
+		// A search that fails at the start of the stream need not read on
+		int length = 1 << 22;
+		int[] read = new int[1];
+		Reader input = new Reader() {
+			@Override
+			public int read(char[] buffer, int offset, int count) {
+				if (read[0] == length) return -1;
+				count = Math.min(count, length - read[0]);
+				Arrays.fill(buffer, offset, offset + count, 'a');
+				read[0] += count;
+				return count;
+			}
+			@Override
+			public void close() {}
+		};
+		assertFalse(Pattern.compile("^x+", Pattern.LINEAR_TIME)
+				.streamMatcher(input).find());
+		assertTrue(read[0] < length);
+	}
+	@Test
+	public void pathologicalTest() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100000; i++)
+			text.append('a');
+		Pattern pattern = Pattern.compile("(a|aa)*b", Pattern.LINEAR_TIME);
+		assertFalse(pattern.matcher(text).find());
+		assertTrue(pattern.matcher(text.append('b')).matches());
+	}
+	@Test(expected = PatternSyntaxException.class)
+	public void backReferenceTest() {
+		Pattern.compile("(a)\\1", Pattern.LINEAR_TIME);
+	}
+}
@@ -0,0 +1,112 @@
+package eredmel.test.enregex;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import eredmel.regex.ByteText;
+import eredmel.regex.EnregexType;
+import eredmel.regex.MappedText;
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+
+public class MappedTextTest {
+	@Test
+	public void utf8Test() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 500; i++)
+			text.append("f(é, '😀)', g(").append(i).append("))\n");
+		Path file = Files.createTempFile("mapped", ".txt");
+		try {
+			Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+			CharSequence mapped = MappedText.open(file, StandardCharsets.UTF_8);
+			assertEquals(text.toString(), mapped.toString());
+			Pattern pattern = Pattern.compile("f\\(~(.+~)\\)",
+					Pattern.ENHANCED_REGEX, EnregexType.EREDMEL_STANDARD);
+			Matcher expected = pattern.matcher(text);
+			Matcher actual = pattern.fileMatcher(file);
+			while (expected.find()) {
+				actual.find();
+				assertEquals(expected.start(), actual.start());
+				assertEquals(expected.end(), actual.end());
+			}
+			assertEquals(false, actual.find());
+		} finally {
+			Files.delete(file);
+		}
+	}
+	@Test
+	public void bytesTest() {
+		byte[] bytes = "xx f('a)', é) f(g(1))".getBytes(StandardCharsets.UTF_8);
+		Pattern pattern = Pattern.compile("f\\(~(.+~)\\)",
+				Pattern.ENHANCED_REGEX, EnregexType.EREDMEL_STANDARD);
+		Matcher matcher = pattern.matcher(bytes, 3, bytes.length - 3,
+				StandardCharsets.UTF_8);
+		matcher.find();
+		assertEquals("f('a)', é)", matcher.group());
+		matcher.find();
+		assertEquals("f(g(1))", matcher.group());
+		ByteText text = ByteText.wrap(bytes, 3, bytes.length - 3,
+				StandardCharsets.UTF_8);
+		assertEquals(12, text.byteOffset(matcher.start()));
+	}
+	@Test
+	public void closeTest() throws IOException {
+		Path file = Files.createTempFile("mapped", ".txt");
+		try {
+			Files.write(file, "f('(') f(1) f(2)".getBytes(StandardCharsets.UTF_8));
+			Pattern pattern = Pattern.compile("f\\(~(.+~)\\)",
+					Pattern.ENHANCED_REGEX, EnregexType.EREDMEL_STANDARD);
+			Matcher matcher = pattern.fileMatcher(file);
+			matcher.find();
+			assertEquals("f('(')", matcher.group());
+			// The metadata is computed again once the matcher is used
+			matcher.close();
+			matcher.find();
+			assertEquals("f(1)", matcher.group());
+			matcher.close();
+		} finally {
+			Files.delete(file);
+		}
+	}
+	@Test
+	public void sidecarTest() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			text.append("(");
+		for (int i = 0; i < 500; i++)
+			text.append("f(é, ')', g(").append(i).append("))\n");
+		Path file = Files.createTempFile("mapped", ".txt");
+		Path sidecar = Files.createTempFile("mapped", ".enregex");
+		try {
+			Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+			Pattern pattern = Pattern.compile("f\\(~(.+~)\\)",
+					Pattern.ENHANCED_REGEX, EnregexType.EREDMEL_STANDARD);
+			for (int run = 0; run < 4; run++) {
+				// The file then changes size, and then only its contents
+				if (run == 2) text.insert(0, "'");
+				if (run == 3) text.setCharAt(0, '(');
+				if (run >= 2)
+					Files.write(file,
+							text.toString().getBytes(StandardCharsets.UTF_8));
+				Matcher expected = pattern.matcher(text);
+				Matcher actual = pattern.fileMatcher(file,
+						StandardCharsets.UTF_8, sidecar);
+				while (expected.find()) {
+					actual.find();
+					assertEquals(expected.start(), actual.start());
+					assertEquals(expected.end(), actual.end());
+				}
+				assertEquals(false, actual.find());
+			}
+		} finally {
+			Files.delete(file);
+			Files.delete(sidecar);
+		}
+	}
+}
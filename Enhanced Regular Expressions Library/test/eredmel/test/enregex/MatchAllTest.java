@@ -0,0 +1,49 @@
+package eredmel.test.enregex;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import eredmel.regex.EnregexType;
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+
+public class MatchAllTest {
+	@Test
+	public void sameAsPredicateTest() {
+		Random random = new Random(39);
+		String alphabet = "ab ()'\\xy";
+		List<String> inputs = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			StringBuilder sb = new StringBuilder();
+			for (int k = random.nextInt(30); k > 0; k--)
+				sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			inputs.add(sb.toString());
+		}
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (String regex : new String[] { "(a|b)+y", "\\(~([^()]*~)\\)",
+					"~'[ab]+", "^$" }) {
+				Pattern pattern = Pattern.compile(regex,
+						Pattern.ENHANCED_REGEX, EnregexType.EREDMEL_STANDARD);
+				BitSet found = pattern.matchAll(inputs, pool);
+				int[] starts = pattern.findFirstAll(inputs, pool);
+				for (int i = 0; i < inputs.size(); i++) {
+					Matcher matcher = pattern.matcher(inputs.get(i));
+					boolean match = matcher.find();
+					assertEquals(regex, match, found.get(i));
+					assertEquals(regex, match ? matcher.start() : -1,
+							starts[i]);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package eredmel.test.enregex;
+
+import static eredmel.test.enregex.EnregexTestUtil.assertSameAs;
+import static eredmel.test.enregex.EnregexTestUtil.compile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern.Engine;
+import eredmel.regex.PatternSyntaxException;
+
+public class OnePassTest {
+	private static void assertSame(String regex, String text) {
+		assertSameAs(Engine.BACKTRACKING, Engine.ONE_PASS, regex, 0, text);
+	}
+	@Test
+	public void groupsTest() {
+		String text = "key=a;val=1 key=timeout;val=; key=b;val=x;y val=2";
+		assertSame("key=(\\w+);val=([^;]*)", text);
+		assertSame("(\\w+)=(\\w*)", text);
+		assertSame("(?:(\\w)-)+(\\.)?", "a-b-c-. x- -y 9-.");
+		assertSame("(a)?b|c(d)", "ab b cd c abcd");
+		assertSame("~^'(\\w+)", "x 'y' z 'w'");
+	}
+	@Test
+	public void nonAsciiTest() {
+		String text = "k=éè k=αβ k=😀 é=1";
+		assertSame("(\\w+)=(\\S*)", text);
+		assertSame("k=([^ ]*)", text);
+		Matcher matcher = compile("~^'😀", 0, Engine.ONE_PASS).matcher(
+				"a😀");
+		assertTrue(matcher.find());
+		assertEquals(1, matcher.start());
+		assertEquals(3, matcher.end());
+	}
+	@Test(expected = PatternSyntaxException.class)
+	public void notOnePassTest() {
+		compile("(\\w+)(\\d+)", 0, Engine.ONE_PASS);
+	}
+}
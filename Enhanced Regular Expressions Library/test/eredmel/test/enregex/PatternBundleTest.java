@@ -0,0 +1,55 @@
+package eredmel.test.enregex;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import eredmel.regex.EnregexType;
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+import eredmel.regex.PatternBundle;
+
+public class PatternBundleTest {
+	@Test
+	public void roundTripTest() {
+		List<Pattern> patterns = Arrays.asList(
+				Pattern.compile("f\\(~(.+~)\\)", Pattern.ENHANCED_REGEX,
+						EnregexType.EREDMEL_STANDARD),
+				Pattern.compile("~'(?<body>[a-z]+)'", Pattern.ENHANCED_REGEX,
+						EnregexType.EREDMEL_STANDARD),
+				Pattern.compile("[b-y]+\\d{2,}", Pattern.CASE_INSENSITIVE),
+				Pattern.compile("\\p{Lu}\\w*(?=!)|hello"),
+				Pattern.compile("(he|b)l+o", 0, EnregexType.EREDMEL_STANDARD,
+						Pattern.Engine.PIKE_VM),
+				Pattern.compile("(?<=B)O\\w|(?<!l)lo"),
+				Pattern.compile("\\w+$"),
+				Pattern.compile("(\\w)(\\d)", 0, EnregexType.EREDMEL_STANDARD,
+						Pattern.Engine.ONE_PASS),
+				Pattern.compile("l+o", Pattern.LINEAR_TIME),
+				Pattern.compile("\\b(B)(\\w{1,2})?\\b"));
+		String text = "f('a)', g(1)) 'xyz' BOB12 Hello! hello";
+		List<Pattern> read = PatternBundle.read(ByteBuffer.wrap(PatternBundle
+				.write(patterns)));
+		assertEquals(patterns.size(), read.size());
+		for (int i = 0; i < patterns.size(); i++) {
+			assertEquals(patterns.get(i).pattern(), read.get(i).pattern());
+			assertEquals(patterns.get(i).flags(), read.get(i).flags());
+			assertEquals(patterns.get(i).engine(), read.get(i).engine());
+			Matcher expected = patterns.get(i).matcher(text);
+			Matcher actual = read.get(i).matcher(text);
+			while (expected.find()) {
+				assertEquals(true, actual.find());
+				assertEquals(expected.group(), actual.group());
+				assertEquals(expected.groupCount(), actual.groupCount());
+			}
+			assertEquals(false, actual.find());
+		}
+		Matcher named = read.get(1).matcher(text);
+		named.find();
+		assertEquals("xyz", named.group("body"));
+	}
+}
@@ -1,13 +1,18 @@
 package eredmel.test.enregex;
 
 import static eredmel.test.enregex.EnregexTestUtil.assertMatch;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import java.util.Arrays;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import eredmel.regex.EnregexSegment;
 import eredmel.regex.EnregexType;
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
 import eredmel.regex.SymbolPair;
 
 public class QuoteMatchingTest {
@@ -63,4 +68,19 @@ public class QuoteMatchingTest {
 				"((?:\\+|-)?\\d+(?:\\.\\d*)?(?:e(?:\\+|-)?\\d+)?~^')\\s*\\+\\s*((?:\\+|-)?\\d+(?:\\.\\d*)?(?:e(?:\\+|-)?\\d+)?~^')",
 				"1.23e34 + -3.45e-34", new int[][] { { 0, 19 } });
 	}
+	@Test
+	public void regionTest() {
+		String text = "x = 'a = b' = c";
+		Pattern pattern = Pattern.compile("~^'=", Pattern.ENHANCED_REGEX,
+				EnregexTestUtil.TO_USE);
+		Matcher scanned = pattern.matcher(text).region(7, 15);
+		Matcher seeded = pattern.matcher(text).region(7, 15,
+				EnregexSegment.getInstance(text, EnregexTestUtil.TO_USE)
+						.metadataAt(7));
+		for (Matcher m : new Matcher[] { scanned, seeded }) {
+			m.find();
+			assertEquals(12, m.start());
+			assertFalse(m.find());
+		}
+	}
 }
@@ -0,0 +1,43 @@
+package eredmel.test.enregex;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import eredmel.regex.EnregexType;
+import eredmel.regex.Pattern;
+import eredmel.regex.Rope;
+
+public class ReplaceAllParallelTest {
+	@Test
+	public void sameAsSequentialTest() throws Exception {
+		Random random = new Random(38);
+		String alphabet = "ab ()[]'\\\nxy";
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 300000; i++)
+			sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		String text = sb.toString();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			String[][] cases = { { "(?m)$", "|" }, { "(a|b)+y", "<$1>" },
+					{ "\\(~([^\\n]*~)\\)", "{$0}" }, { "~'[ab]+", "\\$" } };
+			for (String[] replace : cases) {
+				Pattern pattern = Pattern.compile(replace[0],
+						Pattern.ENHANCED_REGEX, EnregexType.EREDMEL_STANDARD);
+				String expected = pattern.matcher(text).replaceAll(replace[1]);
+				Rope actual = pattern.replaceAllParallel(text, replace[1], pool);
+				assertEquals(replace[0], expected, actual.toString());
+				StringBuilder written = new StringBuilder();
+				actual.writeTo(written);
+				assertEquals(replace[0], expected, written.toString());
+				assertEquals(replace[0], expected.substring(100, 200), actual
+						.subSequence(100, 200).toString());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
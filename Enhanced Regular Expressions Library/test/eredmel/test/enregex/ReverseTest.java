@@ -0,0 +1,80 @@
+package eredmel.test.enregex;
+
+import static eredmel.test.enregex.EnregexTestUtil.assertSameAs;
+import static eredmel.test.enregex.EnregexTestUtil.compile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eredmel.regex.Matcher;
+import eredmel.regex.Pattern;
+import eredmel.regex.Pattern.Engine;
+import eredmel.regex.PatternSyntaxException;
+
+public class ReverseTest {
+	private static void assertSame(String regex, int flags, String text) {
+		assertSameAs(Engine.BACKTRACKING, Engine.REVERSE, regex, flags, text);
+	}
+	private static String lookbehind(String regex, String text) {
+		StringBuilder found = new StringBuilder();
+		Matcher matcher = Pattern.compile(regex).matcher(text);
+		while (matcher.find()) {
+			found.append(matcher.start()).append('-').append(matcher.end());
+			for (int g = 1; g <= matcher.groupCount(); g++)
+				found.append(' ').append(matcher.group(g));
+			found.append(';');
+		}
+		return found.toString();
+	}
+	@Test
+	public void endTest() {
+		String text = "report.final.txt";
+		assertSame("\\.(\\w+)$", 0, text);
+		assertSame("\\.(\\w+)$", 0, text + "\n");
+		assertSame("\\.(\\w+)$", 0, text + "\r\n");
+		assertSame("\\.(\\w+)\\z", 0, text + "\n");
+		assertSame("\\w{2}$", Pattern.UNIX_LINES, text + "\n");
+		assertSame("(?:a|ab)(?:c|bcd)?$", 0, "abcd");
+		assertSame("x*$", 0, "xxyxx");
+		assertSame("[a-z]+\\d$", 0, "abc1 def2 ghi");
+	}
+	@Test
+	public void regionTest() {
+		Matcher matcher = compile("\\d+$", 0, Engine.REVERSE).matcher(
+				"12 34 56");
+		matcher.region(0, 5);
+		assertTrue(matcher.find());
+		assertEquals("34", matcher.group());
+		matcher.reset().region(0, 5).useAnchoringBounds(false);
+		assertFalse(matcher.find());
+		assertTrue(matcher.hitEnd());
+	}
+	@Test
+	public void supplementaryTest() {
+		assertSame("\\w.$", 0, "ab😀");
+		assertSame("😀+$", 0, "a😀😀");
+		assertSame("a.$", 0, "ab a😀");
+	}
+	@Test
+	public void lookbehindTest() {
+		assertEquals("3-6;", lookbehind("(?<=ab|abc)def", "abcdef"));
+		assertEquals("0-3;", lookbehind("(?<!ab|abc)def", "defabcdef"));
+		assertEquals("3-4 abc;", lookbehind("(?<=(a\\w{1,3}))d", "abcd"));
+		assertEquals("1-2;", lookbehind("(?<=x{0,3})y", "xy"));
+		assertEquals("3-4;", lookbehind("(?<=😀{1,2})b", "a😀b"));
+		assertEquals("5-6;", lookbehind("(?<![a-c]{2})\\d", "ab1x 2"));
+		Matcher matcher = Pattern.compile("(?<=a{1,2})b").matcher("aab");
+		matcher.region(1, 3);
+		assertTrue(matcher.find());
+		matcher.reset().region(2, 3);
+		assertFalse(matcher.find());
+		matcher.reset().region(2, 3).useTransparentBounds(true);
+		assertTrue(matcher.find());
+	}
+	@Test(expected = PatternSyntaxException.class)
+	public void unanchoredTest() {
+		compile("\\w+", 0, Engine.REVERSE);
+	}
+}
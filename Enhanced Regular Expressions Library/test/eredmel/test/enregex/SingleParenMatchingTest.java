@@ -44,4 +44,15 @@ public class SingleParenMatchingTest {
 		EnregexTestUtil.assertMatch("\\(~(.*~),~(.*~)\\)", "((),()) (,)",
 				new int[][] { { 0, 7 }, { 8, 11 } });
 	}
+	@Test
+	public void quantifierTest() {
+		EnregexTestUtil.assertMatch("\\(~(.*?~)\\)", "(a(b)c) (d)",
+				new int[][] { { 0, 7 }, { 8, 11 } });
+		EnregexTestUtil.assertMatch("~([^;]+~);", "(a;b) a(b);",
+				new int[][] { { 1, 3 }, { 5, 11 } });
+		EnregexTestUtil.assertMatch("<~(.{2,3}~)>", "<()> <(a)> <(ab)>",
+				new int[][] { { 0, 4 }, { 5, 10 } });
+		EnregexTestUtil.assertMatch("x~(.+~)\\(", "x(a)(b)\ny)(",
+				new int[][] { { 0, 5 } });
+	}
 }
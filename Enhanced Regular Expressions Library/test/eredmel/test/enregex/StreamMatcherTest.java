@@ -0,0 +1,103 @@
+package eredmel.test.enregex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import eredmel.regex.EnregexType;
+import eredmel.regex.MatchResult;
+import eredmel.regex.Pattern;
+import eredmel.regex.StreamMatcher;
+
+public class StreamMatcherTest {
+	@Test
+	public void acrossRefillsTest() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 2000; i++)
+			text.append("f(g('(', ").append(i).append(")) + 'x)'\n");
+		Pattern pattern = Pattern.compile("f\\(~([^\\n]+~)\\)",
+				Pattern.ENHANCED_REGEX, EnregexType.EREDMEL_STANDARD);
+		StreamMatcher matcher = pattern.streamMatcher(new StringReader(
+				text.toString()), 4096);
+		int count = 0;
+		int lineStart = 0;
+		while (matcher.find()) {
+			assertEquals(lineStart, matcher.start());
+			assertEquals("f(g('(', " + count + "))", matcher.group());
+			lineStart = text.indexOf("\n", lineStart) + 1;
+			count++;
+		}
+		assertEquals(2000, count);
+	}
+	@Test
+	public void endAnchorTest() throws IOException {
+		Pattern pattern = Pattern.compile("ab+$", Pattern.ENHANCED_REGEX,
+				EnregexType.EREDMEL_STANDARD);
+		StreamMatcher matcher = pattern.streamMatcher(new StringReader(
+				"abb abbb"));
+		assertTrue(matcher.find());
+		assertEquals(4, matcher.start());
+		assertEquals(8, matcher.end());
+		assertFalse(matcher.find());
+	}
+	@Test
+	public void publisherTest() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 2000; i++)
+			text.append("f(g('(', é").append(i).append(")) + 'x)'\n");
+		Pattern pattern = Pattern.compile("f\\(~([^\\n]+~)\\)",
+				Pattern.ENHANCED_REGEX, EnregexType.EREDMEL_STANDARD);
+		List<MatchResult> matches = new ArrayList<>();
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		SubmissionPublisher<ByteBuffer> input = new SubmissionPublisher<>();
+		pattern.matchPublisher(input, StandardCharsets.UTF_8).subscribe(
+				new Flow.Subscriber<MatchResult>() {
+					private Flow.Subscription subscription;
+					@Override
+					public void onSubscribe(Flow.Subscription subscription) {
+						this.subscription = subscription;
+						subscription.request(1);
+					}
+					@Override
+					public void onNext(MatchResult match) {
+						matches.add(match);
+						subscription.request(1);
+					}
+					@Override
+					public void onError(Throwable throwable) {
+						done.completeExceptionally(throwable);
+					}
+					@Override
+					public void onComplete() {
+						done.complete(null);
+					}
+				});
+		// Chunks of an odd size split some of the two-byte characters
+		byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < bytes.length; i += 333)
+			input.submit(ByteBuffer.wrap(bytes, i,
+					Math.min(333, bytes.length - i)));
+		input.close();
+		done.get(60, TimeUnit.SECONDS);
+		assertEquals(2000, matches.size());
+		int lineStart = 0;
+		for (int i = 0; i < 2000; i++) {
+			assertEquals(lineStart, matches.get(i).start());
+			assertEquals("f(g('(', é" + i + "))", matches.get(i).group());
+			lineStart = text.indexOf("\n", lineStart) + 1;
+		}
+	}
+}